@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.Platform;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.LongByReference;
+import com.sun.jna.ptr.PointerByReference;
+import com.vmware.vix.VixConstants;
+import com.vmware.vix.VixError;
+import com.vmware.vix.VixHandle;
+import com.vmware.vix.VixHandleByReference;
+import com.vmware.vix.VixHostHandle;
+import com.vmware.vix.VixLibrary;
+import com.vmware.vix.VixPropertyID;
+import com.vmware.vix.VixServiceProvider;
+import com.vmware.vix.VixVmHandle;
+
+/**
+ * Cost of single calls across the binding: JNA dispatch into a real native
+ * library, allocation of the by-reference arguments every VIX property read
+ * needs, and synchronous VixLibrary calls into the simulated backend.
+ * <p/>
+ * VIX itself is not available to benchmarks, so JNA dispatch is measured with
+ * the C library, using the same interface mapping VixLibrary uses.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dvix.library=simulated")
+@State(Scope.Benchmark)
+public class BindingBenchmark {
+
+   /**
+    * Functions of the C library with argument types like those of VIX
+    * functions.
+    */
+   public interface CLibrary extends Library {
+
+      CLibrary INSTANCE =
+            (CLibrary) Native.loadLibrary(Platform.isWindows() ? "msvcrt"
+                  : Platform.isLinux() ? "libc.so.6" : "c", CLibrary.class);
+
+      int abs(int i);
+
+      int strlen(String s);
+   }
+
+   private final VixLibrary mVix = VixLibrary.INSTANCE;
+   private VixHostHandle mHost;
+   private VixVmHandle mVm;
+
+   @Setup
+   public void setUp() throws Exception {
+      mHost = new VixHostHandle(VixConstants.VIX_API_VERSION,
+                                VixServiceProvider.VIX_SERVICEPROVIDER_VMWARE_VI_SERVER,
+                                "bench",
+                                0,
+                                "root",
+                                "");
+      mVm = mHost.openVm("[datastore1] vm-1/vm-1.vmx");
+   }
+
+   @TearDown
+   public void tearDown() {
+      mVm.release();
+      mHost.disconnect();
+   }
+
+   @Benchmark
+   public int jnaIntArgument() {
+      return CLibrary.INSTANCE.abs(-42);
+   }
+
+   @Benchmark
+   public int jnaStringArgument() {
+      return CLibrary.INSTANCE.strlen("[datastore1] vm-1/vm-1.vmx");
+   }
+
+   @Benchmark
+   public Object allocateIntByReference() {
+      return new IntByReference();
+   }
+
+   @Benchmark
+   public Object allocateLongByReference() {
+      return new LongByReference();
+   }
+
+   @Benchmark
+   public Object allocatePointerByReference() {
+      return new PointerByReference();
+   }
+
+   @Benchmark
+   public Object allocateVixHandleByReference() {
+      return new VixHandleByReference();
+   }
+
+   @Benchmark
+   public String getStringProperty() throws Exception {
+      PointerByReference pathRef = new PointerByReference();
+      VixError err =
+            mVix.Vix_GetProperties(mVm,
+                                   VixPropertyID.VIX_PROPERTY_VM_VMX_PATHNAME,
+                                   pathRef,
+                                   VixPropertyID.VIX_PROPERTY_NONE);
+      String path = pathRef.getValue().getString(0);
+      mVix.Vix_FreeBuffer(pathRef.getValue());
+      return err.equals(VixError.VIX_OK) ? path : null;
+   }
+
+   @Benchmark
+   public int getIntProperty() {
+      IntByReference stateRef = new IntByReference();
+      mVix.Vix_GetProperties(mVm,
+                             VixPropertyID.VIX_PROPERTY_VM_POWER_STATE,
+                             stateRef,
+                             VixPropertyID.VIX_PROPERTY_NONE);
+      return stateRef.getValue();
+   }
+
+   @Benchmark
+   public Object getHandleType() {
+      return mVix.Vix_GetHandleType(mVm);
+   }
+
+   /**
+    * Round trip of an asynchronous job through submission, completion on a
+    * simulator thread and VixJob_Wait().
+    */
+   @Benchmark
+   public VixError jobRoundTrip() {
+      VixHandle jobHandle = mVix.VixVM_WaitForToolsInGuest(mVm, 0, null, null);
+      VixError err =
+            mVix.VixJob_Wait(jobHandle, VixPropertyID.VIX_PROPERTY_NONE);
+      mVix.Vix_ReleaseHandle(jobHandle);
+      return err;
+   }
+}
@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vmware.vix.VixError;
+import com.vmware.vix.VixHandle;
+import com.vmware.vix.VixPropertyID;
+
+/**
+ * Cost of creating and comparing VixType values, which every VIX call and
+ * every error check does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dvix.library=simulated")
+@State(Scope.Thread)
+public class VixTypeBenchmark {
+
+   private int mCode = 3015;
+   private VixError mError = new VixError(3015);
+   private VixError mSame = new VixError(3015);
+
+   @Benchmark
+   public VixError newVixError() {
+      return new VixError(mCode);
+   }
+
+   @Benchmark
+   public VixHandle newVixHandle() {
+      return new VixHandle(mCode);
+   }
+
+   @Benchmark
+   public VixPropertyID newVixPropertyID() {
+      return new VixPropertyID(mCode);
+   }
+
+   @Benchmark
+   public boolean equalsSameValue() {
+      return mError.equals(mSame);
+   }
+
+   @Benchmark
+   public boolean equalsConstant() {
+      return mError.equals(VixError.VIX_OK);
+   }
+
+   @Benchmark
+   public int intValue() {
+      return mError.intValue();
+   }
+}
@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.bench;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vmware.vix.VixConstants;
+import com.vmware.vix.VixHostHandle;
+import com.vmware.vix.VixLibrary;
+import com.vmware.vix.VixServiceProvider;
+import com.vmware.vix.VixUtils;
+import com.vmware.vix.VixVmHandle;
+import com.vmware.vix.simulator.SimulatedVixLibrary;
+import com.vmware.vix.simulator.SimulatedVm;
+import com.vmware.vix.util.GuestFileInfo;
+import com.vmware.vix.util.GuestFileUtil;
+import com.vmware.vix.util.ProcessInfo;
+
+/**
+ * Cost of the VixVmHandle and VixUtils wrappers, which submit a job, wait for
+ * it and pull its results off the job handle. Runs against the simulated
+ * backend with no latency, so the numbers are the client side overhead of
+ * each wrapper.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Dvix.library=simulated",
+                                   "-Dvix.sim.latency=none",
+                                   "-Dvix.sim.seed=1" })
+@State(Scope.Benchmark)
+public class WrapperBenchmark {
+
+   private static final String DIRECTORY = "/var/bench";
+
+   /**
+    * Number of files in the listed directory and of processes in the guest.
+    */
+   @Param({ "10", "100", "1000" })
+   public int mEntries;
+
+   private VixHostHandle mHost;
+   private VixVmHandle mVm;
+
+   @Setup
+   public void setUp() throws Exception {
+      SimulatedVixLibrary vix = (SimulatedVixLibrary) VixLibrary.INSTANCE;
+      SimulatedVm guest = vix.getVm("[datastore1] vm-1/vm-1.vmx");
+      guest.createDirectories(DIRECTORY);
+      for (int i = 0; i < mEntries; i++) {
+         guest.writeFile(DIRECTORY + "/file-" + i + ".log", new byte[i]);
+         guest.startProcess("worker", "user", "/usr/bin/worker --id " + i);
+      }
+      mHost = new VixHostHandle(VixConstants.VIX_API_VERSION,
+                                VixServiceProvider.VIX_SERVICEPROVIDER_VMWARE_VI_SERVER,
+                                "bench",
+                                0,
+                                "root",
+                                "");
+      mVm = mHost.openVm(guest.getVmxPath());
+      mVm.loginInGuest("user", "password", 0);
+   }
+
+   @TearDown
+   public void tearDown() throws Exception {
+      mVm.logoutFromGuest();
+      mVm.release();
+      mHost.disconnect();
+   }
+
+   @Benchmark
+   public String readVariable() throws Exception {
+      return mVm.getGuestVariable("ip");
+   }
+
+   @Benchmark
+   public boolean fileExists() throws Exception {
+      return mVm.fileExistsInGuest(DIRECTORY + "/file-0.log");
+   }
+
+   @Benchmark
+   public ArrayList<String> listDirectory() throws Exception {
+      return mVm.listDirectoryInGuest(DIRECTORY);
+   }
+
+   @Benchmark
+   public ArrayList<GuestFileInfo> listFiles() throws Exception {
+      return GuestFileUtil.listFiles(mVm, DIRECTORY, false);
+   }
+
+   @Benchmark
+   public HashMap<Long, HashMap<String, String>> getProcessesInGuest()
+         throws Exception {
+      return VixUtils.getProcessesInGuest(mVm);
+   }
+
+   @Benchmark
+   public ProcessInfo listProcessInfo() throws Exception {
+      return ProcessInfo.list(mVm);
+   }
+}
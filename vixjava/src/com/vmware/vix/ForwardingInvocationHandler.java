@@ -0,0 +1,300 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package com.vmware.vix;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.IntByReference;
+
+/**
+ * Base of the proxy handlers which forward VixLibrary calls to another
+ * VixLibrary and observe them.
+ * <p/>
+ * Subclasses start a context for each call they observe, and are told when
+ * the call returns, when its job delivers events and when the job ends. A job
+ * is followed from the call which submits it until VixJob_Wait() returns for
+ * it, its completion callback is made, VixJob_CheckCompletion() reports it
+ * complete or its handle is released without a callback, whichever comes
+ * first.
+ *
+ * @param <C>
+ *           Context kept for an observed call.
+ */
+public abstract class ForwardingInvocationHandler<C> implements InvocationHandler {
+
+   private static final int JOB_COMPLETED =
+         VixEventType.VIX_EVENTTYPE_JOB_COMPLETED.intValue();
+
+   /**
+    * Job being followed. Stands in for the caller's callback, if any, so that
+    * events are seen without the caller waiting.
+    */
+   private final class Job implements VixEventProc {
+
+      final C mCall;
+      final VixEventProc mCallback;
+      final AtomicBoolean mEnded = new AtomicBoolean();
+
+      Job(C call, VixEventProc callback) {
+         mCall = call;
+         mCallback = callback;
+      }
+
+      public void callback(
+            int handle,
+            int eventType,
+            int moreEventInfo,
+            Pointer clientData) {
+         eventDelivered(mCall, handle, eventType, moreEventInfo);
+         if (eventType == JOB_COMPLETED) {
+            end(mDelegate.VixJob_GetError(new VixHandle(handle)));
+            mJobs.remove(handle);
+            mCallbackJobs.remove(this);
+         }
+         mCallback.callback(handle, eventType, moreEventInfo, clientData);
+      }
+
+      /**
+       * Ends the job unless it already ended.
+       *
+       * @param error
+       *           Error of the job; <code>null</code> if it was abandoned.
+       */
+      void end(VixError error) {
+         if (mEnded.compareAndSet(false, true)) {
+            jobEnded(mCall, error);
+         }
+      }
+   }
+
+   protected final VixLibrary mDelegate;
+   private final String mDescription;
+   private final ConcurrentHashMap<Integer, Job> mJobs =
+         new ConcurrentHashMap<Integer, Job>();
+
+   /*
+    * JNA only holds weak references to callbacks, so keep the stand-ins
+    * reachable until their job completes.
+    */
+   private final Set<Job> mCallbackJobs =
+         Collections.synchronizedSet(new HashSet<Job>());
+   private final ConcurrentHashMap<Method, Integer> mCallbackIndexes =
+         new ConcurrentHashMap<Method, Integer>();
+
+   /**
+    * Constructor.
+    *
+    * @param delegate
+    *           Library the calls are forwarded to.
+    * @param description
+    *           Prefix of the description of the proxy, such as "Metered".
+    */
+   protected ForwardingInvocationHandler(VixLibrary delegate, String description) {
+      mDelegate = delegate;
+      mDescription = description;
+   }
+
+   /**
+    * Called before a call is forwarded.
+    *
+    * @param method
+    *           Function being called.
+    * @param args
+    *           Arguments of the call.
+    * @param startsJob
+    *           Whether the function submits a job.
+    * @return Context of the call; <code>null</code> to neither observe the
+    *         call nor follow its job.
+    */
+   protected abstract C callStarted(Method method, Object[] args, boolean startsJob);
+
+   /**
+    * Called when an observed call returns or throws.
+    *
+    * @param call
+    *           Context of the call.
+    * @param method
+    *           Function called.
+    * @param args
+    *           Arguments of the call, as passed by the caller.
+    * @param result
+    *           Result of the call; <code>null</code> if it threw.
+    * @param exception
+    *           Exception thrown by the call; <code>null</code> if it returned.
+    *           A call which throws starts no job.
+    */
+   protected abstract void callEnded(
+         C call,
+         Method method,
+         Object[] args,
+         Object result,
+         Throwable exception);
+
+   /**
+    * Called for each event delivered to the callback of a followed job,
+    * before the caller's callback.
+    *
+    * @param call
+    *           Context of the call which submitted the job.
+    */
+   protected void eventDelivered(
+         C call,
+         int handle,
+         int eventType,
+         int moreEventInfo) {
+   }
+
+   /**
+    * Called once when a followed job ends.
+    *
+    * @param call
+    *           Context of the call which submitted the job.
+    * @param error
+    *           Error of the job; <code>null</code> if its handle was released
+    *           before it was seen to complete.
+    */
+   protected void jobEnded(C call, VixError error) {
+   }
+
+   public Object invoke(Object proxy, Method method, Object[] args)
+         throws Throwable {
+      if (method.getDeclaringClass().equals(Object.class)) {
+         return invokeObjectMethod(proxy, method, args);
+      }
+      int callbackIndex = getCallbackIndex(method);
+      C call = callStarted(method, args, callbackIndex >= 0);
+      Job job = null;
+      Object[] callArgs = args;
+      if (call != null && callbackIndex >= 0) {
+         job = new Job(call, (VixEventProc) args[callbackIndex]);
+         if (job.mCallback != null) {
+            callArgs = args.clone();
+            callArgs[callbackIndex] = job;
+            mCallbackJobs.add(job);
+         }
+      }
+      Object result;
+      try {
+         result = method.invoke(mDelegate, callArgs);
+      } catch (InvocationTargetException e) {
+         if (job != null) {
+            // No job was started, so no event will release the stand-in.
+            mCallbackJobs.remove(job);
+            job.mEnded.set(true);
+         }
+         if (call != null) {
+            callEnded(call, method, args, null, e.getCause());
+         }
+         throw e.getCause();
+      }
+
+      if (job != null) {
+         int handle = ((VixHandle) result).intValue();
+         mJobs.put(handle, job);
+         if (job.mEnded.get()) {
+            // Completed before the call returned.
+            mJobs.remove(handle, job);
+         }
+      } else {
+         followUp(method.getName(), args, result);
+      }
+      if (call != null) {
+         callEnded(call, method, args, result, null);
+      }
+      return result;
+   }
+
+   /**
+    * Ends the followed job, if any, which a call to VixJob_Wait(),
+    * VixJob_CheckCompletion() or Vix_ReleaseHandle() has seen complete or
+    * abandoned.
+    */
+   private void followUp(String function, Object[] args, Object result) {
+      if (function.equals("VixJob_Wait")) {
+         Job waited = mJobs.remove(((VixHandle) args[0]).intValue());
+         if (waited != null) {
+            waited.end((VixError) result);
+         }
+      } else if (function.equals("VixJob_CheckCompletion")) {
+         if (((IntByReference) args[1]).getValue() != 0) {
+            Job checked = mJobs.remove(((VixHandle) args[0]).intValue());
+            if (checked != null) {
+               checked.end(mDelegate.VixJob_GetError((VixHandle) args[0]));
+            }
+         }
+      } else if (function.equals("Vix_ReleaseHandle")) {
+         Job released = mJobs.get(((VixHandle) args[0]).intValue());
+         if (released != null && released.mCallback == null) {
+            mJobs.remove(((VixHandle) args[0]).intValue());
+            released.end(null);
+         }
+      }
+   }
+
+   /**
+    * Get the position of the callback parameter of a function.
+    *
+    * @return Index of the VixEventProc parameter; -1 if the function does not
+    *         start a job.
+    */
+   private int getCallbackIndex(Method method) {
+      Integer index = mCallbackIndexes.get(method);
+      if (index == null) {
+         index = -1;
+         Class<?>[] types = method.getParameterTypes();
+         for (int i = 0; i < types.length; i++) {
+            if (types[i].equals(VixEventProc.class)) {
+               index = i;
+            }
+         }
+         mCallbackIndexes.put(method, index);
+      }
+      return index;
+   }
+
+   private Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+      String name = method.getName();
+      if (name.equals("equals")) {
+         return proxy == args[0];
+      } else if (name.equals("hashCode")) {
+         return System.identityHashCode(proxy);
+      }
+      return mDescription + " " + mDelegate;
+   }
+}
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix;
+
+/**
+ * Result of running a program in a guest.
+ */
+public class GuestProgramResult {
+
+   private final long mPid;
+   private final int mExitCode;
+   private final int mElapsedTime;
+   private final String mStdout;
+   private final String mStderr;
+
+   /**
+    * Constructor for a result without captured output.
+    *
+    * @param pid
+    *           Process id of the program in the guest.
+    * @param exitCode
+    *           Exit code of the program.
+    * @param elapsedTime
+    *           Run time of the program in seconds.
+    */
+   public GuestProgramResult(long pid, int exitCode, int elapsedTime) {
+      this(pid, exitCode, elapsedTime, null, null);
+   }
+
+   /**
+    * Constructor.
+    *
+    * @param pid
+    *           Process id of the program in the guest.
+    * @param exitCode
+    *           Exit code of the program.
+    * @param elapsedTime
+    *           Run time of the program in seconds.
+    * @param stdout
+    *           Captured standard output, or null.
+    * @param stderr
+    *           Captured standard error, or null.
+    */
+   public GuestProgramResult(
+         long pid,
+         int exitCode,
+         int elapsedTime,
+         String stdout,
+         String stderr) {
+      mPid = pid;
+      mExitCode = exitCode;
+      mElapsedTime = elapsedTime;
+      mStdout = stdout;
+      mStderr = stderr;
+   }
+
+   /**
+    * Get the process id of the program.
+    *
+    * @return Guest process id.
+    */
+   public long getPid() {
+      return mPid;
+   }
+
+   /**
+    * Get the exit code of the program.
+    *
+    * @return Exit code; 0 if the program was started with
+    *         VIX_RUNPROGRAM_RETURN_IMMEDIATELY.
+    */
+   public int getExitCode() {
+      return mExitCode;
+   }
+
+   /**
+    * Get the run time of the program, as measured by the guest.
+    *
+    * @return Elapsed time in seconds; 0 if the program was started with
+    *         VIX_RUNPROGRAM_RETURN_IMMEDIATELY.
+    */
+   public int getElapsedTime() {
+      return mElapsedTime;
+   }
+
+   /**
+    * Get the standard output of the program.
+    *
+    * @return Captured output, or null if output was not captured.
+    */
+   public String getStdout() {
+      return mStdout;
+   }
+
+   /**
+    * Get the standard error of the program.
+    *
+    * @return Captured output, or null if output was not captured.
+    */
+   public String getStderr() {
+      return mStderr;
+   }
+}
@@ -0,0 +1,267 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Classification of VixError codes by what a caller can do about them. Codes
+ * which are not listed explicitly, including VIX_E_FAIL and codes unknown to
+ * this version, are {@link #PERMANENT}.
+ *
+ * @see VixException#getCategory()
+ */
+public enum VixErrorCategory {
+
+   /**
+    * VIX_OK.
+    */
+   NONE(false),
+
+   /**
+    * The host could not be reached or the connection was lost. The operation
+    * may or may not have taken effect.
+    */
+   CONNECTION(true),
+
+   /**
+    * The host or VM is busy or an object is locked; the operation was
+    * rejected before it started, so it may be retried even if it is not
+    * idempotent. Errors which can occur while an operation is under way,
+    * such as VMware Tools stopping, are not in this category.
+    */
+   TRANSIENT(true),
+
+   /**
+    * Credentials were refused or the user lacks permissions; retrying with
+    * the same credentials will fail again.
+    */
+   AUTH(false),
+
+   /**
+    * The VM, file, process, snapshot or other object does not exist.
+    */
+   NOT_FOUND(false),
+
+   /**
+    * The object already exists or is in a state which does not allow the
+    * operation, such as a VM that is not running.
+    */
+   CONFLICT(false),
+
+   /**
+    * An argument, path or property value was rejected.
+    */
+   INVALID_ARGUMENT(false),
+
+   /**
+    * The operation is not supported by the host, guest or VM version.
+    */
+   UNSUPPORTED(false),
+
+   /**
+    * The operation was cancelled.
+    */
+   CANCELLED(false),
+
+   /**
+    * Any other failure, such as disk, snapshot or crypto errors.
+    */
+   PERMANENT(false);
+
+   private static final Map<Integer, VixErrorCategory> mCategories =
+         new HashMap<Integer, VixErrorCategory>();
+   static {
+      put(NONE, VixError.VIX_OK);
+      put(CONNECTION,
+          VixError.VIX_E_HOST_NOT_CONNECTED,
+          VixError.VIX_E_VM_HOST_DISCONNECTED,
+          VixError.VIX_E_HOST_SOCKET_CREATION_ERROR,
+          VixError.VIX_E_HOST_SERVER_NOT_FOUND,
+          VixError.VIX_E_HOST_NETWORK_CONN_REFUSED,
+          VixError.VIX_E_HOST_TCP_SOCKET_ERROR,
+          VixError.VIX_E_HOST_TCP_CONN_LOST,
+          VixError.VIX_E_CANNOT_CONNECT_TO_HOST);
+      put(TRANSIENT,
+          VixError.VIX_E_OBJECT_IS_BUSY,
+          VixError.VIX_E_FILE_ALREADY_LOCKED,
+          VixError.VIX_E_UNFINISHED_JOB,
+          VixError.VIX_E_OPERATION_ALREADY_IN_PROGRESS,
+          VixError.VIX_E_TOO_MANY_HANDLES,
+          VixError.VIX_E_VM_INSUFFICIENT_HOST_MEMORY,
+          VixError.VIX_E_SNAPSHOT_LOCKED,
+          VixError.VIX_E_SNAPSHOT_DISKLOCKED,
+          VixError.VIX_E_DISK_TOOMANYOPENFILES,
+          VixError.VIX_E_TOOLS_INSTALL_GUEST_NOT_READY,
+          VixError.VIX_E_TOOLS_INSTALL_IN_PROGRESS);
+      put(AUTH,
+          VixError.VIX_E_FILE_ACCESS_ERROR,
+          VixError.VIX_E_HOST_USER_PERMISSIONS,
+          VixError.VIX_E_GUEST_USER_PERMISSIONS,
+          VixError.VIX_E_GUEST_OPERATIONS_PROHIBITED,
+          VixError.VIX_E_ANON_GUEST_OPERATIONS_PROHIBITED,
+          VixError.VIX_E_ROOT_GUEST_OPERATIONS_PROHIBITED,
+          VixError.VIX_E_MISSING_ANON_GUEST_ACCOUNT,
+          VixError.VIX_E_CANNOT_AUTHENTICATE_WITH_GUEST,
+          VixError.VIX_E_CONSOLE_GUEST_OPERATIONS_PROHIBITED,
+          VixError.VIX_E_MUST_BE_CONSOLE_USER,
+          VixError.VIX_E_OPERATION_NOT_ALLOWED_FOR_LOGIN_TYPE,
+          VixError.VIX_E_EMPTY_PASSWORD_NOT_ALLOWED_IN_GUEST,
+          VixError.VIX_E_INTERACTIVE_SESSION_NOT_PRESENT,
+          VixError.VIX_E_INTERACTIVE_SESSION_USER_MISMATCH,
+          VixError.VIX_E_SNAPSHOT_NOPERM,
+          VixError.VIX_E_NEED_KEY,
+          VixError.VIX_E_LICENSE,
+          VixError.VIX_E_CRYPTO_NEED_PASSWORD,
+          VixError.VIX_E_CRYPTO_BAS_PASSWORD,
+          VixError.VIX_E_DISK_NEEDKEY,
+          VixError.VIX_E_DISK_NOKEY,
+          VixError.VIX_E_DISK_NOLICENSE);
+      put(NOT_FOUND,
+          VixError.VIX_E_FILE_NOT_FOUND,
+          VixError.VIX_E_OBJECT_NOT_FOUND,
+          VixError.VIX_E_NOT_FOUND,
+          VixError.VIX_E_VM_NOT_FOUND,
+          VixError.VIX_E_SNAPSHOT_NOTFOUND,
+          VixError.VIX_E_NO_SUCH_PROCESS,
+          VixError.VIX_E_DISK_KEY_NOTFOUND,
+          VixError.VIX_E_TOOLS_INSTALL_NO_IMAGE,
+          VixError.VIX_E_WRAPPER_WORKSTATION_NOT_INSTALLED,
+          VixError.VIX_E_WRAPPER_VERSION_NOT_FOUND,
+          VixError.VIX_E_WRAPPER_SERVICEPROVIDER_NOT_FOUND);
+      put(CONFLICT,
+          VixError.VIX_E_FILE_READ_ONLY,
+          VixError.VIX_E_FILE_ALREADY_EXISTS,
+          VixError.VIX_E_ALREADY_EXISTS,
+          VixError.VIX_E_CANNOT_START_READ_ONLY_VM,
+          VixError.VIX_E_VM_NOT_RUNNING,
+          VixError.VIX_E_TOOLS_NOT_RUNNING,
+          VixError.VIX_E_VM_IS_RUNNING,
+          VixError.VIX_E_NOT_ALLOWED_DURING_VM_RECORDING,
+          VixError.VIX_E_NOT_ALLOWED_DURING_VM_REPLAY,
+          VixError.VIX_E_TEMPLATE_VM,
+          VixError.VIX_E_VM_ALREADY_LOADED,
+          VixError.VIX_E_VM_ALREADY_UP_TO_DATE,
+          VixError.VIX_E_SNAPSHOT_EXISTS,
+          VixError.VIX_E_SNAPSHOT_NONUNIQUE_NAME,
+          VixError.VIX_E_SNAPSHOT_MAXSNAPSHOTS,
+          VixError.VIX_E_GUEST_VOLUMES_NOT_FROZEN,
+          VixError.VIX_E_TOOLS_INSTALL_ALREADY_UP_TO_DATE);
+      put(INVALID_ARGUMENT,
+          VixError.VIX_E_INVALID_ARG,
+          VixError.VIX_E_INCORRECT_FILE_TYPE,
+          VixError.VIX_E_FILE_NAME_INVALID,
+          VixError.VIX_E_BUFFER_TOOSMALL,
+          VixError.VIX_E_INVALID_UTF8_STRING,
+          VixError.VIX_E_INVALID_HANDLE,
+          VixError.VIX_E_NOT_SUPPORTED_ON_HANDLE_TYPE,
+          VixError.VIX_E_TYPE_MISMATCH,
+          VixError.VIX_E_INVALID_XML,
+          VixError.VIX_E_UNRECOGNIZED_PROPERTY,
+          VixError.VIX_E_INVALID_PROPERTY_VALUE,
+          VixError.VIX_E_READ_ONLY_PROPERTY,
+          VixError.VIX_E_MISSING_REQUIRED_PROPERTY,
+          VixError.VIX_E_INVALID_SERIALIZED_DATA,
+          VixError.VIX_E_BAD_VM_INDEX,
+          VixError.VIX_E_INVALID_MESSAGE_HEADER,
+          VixError.VIX_E_INVALID_MESSAGE_BODY,
+          VixError.VIX_E_SNAPSHOT_INVAL,
+          VixError.VIX_E_SNAPSHOT_NAMETOOLONG,
+          VixError.VIX_E_DISK_INVAL,
+          VixError.VIX_E_DISK_OUTOFRANGE,
+          VixError.VIX_E_INVALID_HOSTNAME_SPECIFICATION,
+          VixError.VIX_E_NOT_A_FILE,
+          VixError.VIX_E_NOT_A_DIRECTORY,
+          VixError.VIX_E_FILE_NAME_TOO_LONG);
+      put(UNSUPPORTED,
+          VixError.VIX_E_NOT_SUPPORTED,
+          VixError.VIX_E_REQUIRES_LARGE_FILES,
+          VixError.VIX_E_NOT_SUPPORTED_ON_REMOTE_OBJECT,
+          VixError.VIX_E_UNRECOGNIZED_COMMAND,
+          VixError.VIX_E_OP_NOT_SUPPORTED_ON_GUEST,
+          VixError.VIX_E_POWEROP_SCRIPTS_NOT_AVAILABLE,
+          VixError.VIX_E_NO_GUEST_OS_INSTALLED,
+          VixError.VIX_E_UNRECOGNIZED_COMMAND_IN_GUEST,
+          VixError.VIX_E_LOGIN_TYPE_NOT_SUPPORTED,
+          VixError.VIX_E_NO_DISPLAY_SERVER,
+          VixError.VIX_E_NOT_SUPPORTED_FOR_VM_VERSION,
+          VixError.VIX_E_SNAPSHOT_VERSION,
+          VixError.VIX_E_DISK_NOTSUPPORTED,
+          VixError.VIX_E_DISK_UNSUPPORTEDDISKVERSION,
+          VixError.VIX_E_DISK_UNSUPPORTEDDEVICE,
+          VixError.VIX_E_CRYPTO_UNKNOWN_ALGORITHM,
+          VixError.VIX_E_CRYPTO_NO_CRYPTO,
+          VixError.VIX_E_NOT_FOR_REMOTE_HOST,
+          VixError.VIX_E_TOOLS_INSTALL_AUTO_NOT_SUPPORTED);
+      put(CANCELLED,
+          VixError.VIX_E_CANCELLED,
+          VixError.VIX_E_TOOLS_INSTALL_CANCELLED);
+   }
+
+   private final boolean mRetryable;
+
+   private VixErrorCategory(boolean retryable) {
+      mRetryable = retryable;
+   }
+
+   private static void put(VixErrorCategory category, VixError... errors) {
+      for (VixError error : errors) {
+         mCategories.put(error.intValue(), category);
+      }
+   }
+
+   /**
+    * Get the category of an error.
+    *
+    * @param error
+    *           Error; may be <code>null</code>.
+    * @return Category; {@link #PERMANENT} for <code>null</code> and
+    *         unlisted errors.
+    */
+   public static VixErrorCategory of(VixError error) {
+      if (error == null) {
+         return PERMANENT;
+      }
+      VixErrorCategory category = mCategories.get(error.intValue());
+      return category != null ? category : PERMANENT;
+   }
+
+   /**
+    * Tells whether an operation failing with an error of this category may
+    * succeed when tried again later without changes.
+    *
+    * @return <code>true</code> for {@link #CONNECTION} and
+    *         {@link #TRANSIENT}.
+    */
+   public boolean isRetryable() {
+      return mRetryable;
+   }
+}
@@ -93,6 +93,16 @@ public class VixException extends Exception {
       return mVixError;
    }
 
+   /**
+    * Get the category of the error that was set.
+    *
+    * @return Category of the VixError; {@link VixErrorCategory#PERMANENT} if
+    *         no VixError was set.
+    */
+   public VixErrorCategory getCategory() {
+      return VixErrorCategory.of(mVixError);
+   }
+
    /**
     * Overrides so that if a VixError has been set, the message will be set to
     * that error's specific message.
@@ -34,6 +34,12 @@ import java.util.Vector;
 
 import com.sun.jna.Pointer;
 import com.sun.jna.ptr.PointerByReference;
+import com.vmware.vix.resilience.CircuitBreaker;
+import com.vmware.vix.resilience.ConcurrencyLimiter;
+import com.vmware.vix.resilience.RetryPolicy;
+import com.vmware.vix.resilience.VixCall;
+import com.vmware.vix.trace.Span;
+import com.vmware.vix.trace.Tracer;
 
 /**
  * Class representing a connection with a VIX host. This includes the following
@@ -46,10 +52,19 @@ import com.sun.jna.ptr.PointerByReference;
  * <p/>
  * While this class can be used for a connection to any type of VIX host, it is
  * recommended that a subclass be used for the specific type of host.
+ * <p/>
+ * Operations are retried according to a RetryPolicy. Operations of handles
+ * connected by name also run through the CircuitBreaker of their host, and
+ * fail fast while the host is unreachable, and through its
+ * ConcurrencyLimiter if limiters are enabled.
  */
 public class VixHostHandle extends VixHandle {
 
    private final VixLibrary mVix = VixLibrary.INSTANCE;
+   private String mHostName;
+   private CircuitBreaker mCircuitBreaker;
+   private ConcurrencyLimiter mConcurrencyLimiter;
+   private RetryPolicy mRetryPolicy = RetryPolicy.getDefault();
 
    /**
     * Constructor.
@@ -85,26 +100,181 @@ public class VixHostHandle extends VixHandle {
     * @throws VixException
     *            If there was a problem connecting with the host
     */
-   public VixHostHandle(int apiVersion,
-                        VixServiceProvider hostType,
-                        String hostName,
-                        int hostPort,
-                        String userName,
-                        String password) throws VixException {
-    
-       VixHandle jobHandle =
-	   mVix.VixHost_Connect(apiVersion,
-				hostType,
-				hostName,
-				hostPort,
-				userName,
-				password,
-				VixHostOptions.NONE,
-				VixHandle.VIX_INVALID_HANDLE,
-				null,
-				null);
-       VixHandle handle = VixUtils.getResultHandleFromJob(jobHandle, true);
-       super.setValue(handle.longValue());
+   public VixHostHandle(final int apiVersion,
+                        final VixServiceProvider hostType,
+                        final String hostName,
+                        final int hostPort,
+                        final String userName,
+                        final String password) throws VixException {
+      mHostName = hostName;
+      if (hostName != null) {
+         mCircuitBreaker = CircuitBreaker.forHost(hostName);
+         if (ConcurrencyLimiter.isEnabled()) {
+            mConcurrencyLimiter = ConcurrencyLimiter.forHost(hostName);
+         }
+      }
+      Span span =
+            Tracer.getDefault().startSpan("connect")
+                  .setAttribute("host", hostName)
+                  .setAttribute("user", userName);
+      try {
+         VixHandle handle = execute(new VixCall<VixHandle>() {
+            public VixHandle call() throws VixException {
+               VixHandle jobHandle =
+                     mVix.VixHost_Connect(apiVersion,
+                                          hostType,
+                                          hostName,
+                                          hostPort,
+                                          userName,
+                                          password,
+                                          VixHostOptions.NONE,
+                                          VixHandle.VIX_INVALID_HANDLE,
+                                          null,
+                                          null);
+               return VixUtils.getResultHandleFromJob(jobHandle, true);
+            }
+         });
+         super.setValue(handle.longValue());
+      } catch (VixException e) {
+         span.setException(e);
+         throw e;
+      } finally {
+         span.end();
+      }
+   }
+
+   /**
+    * Get the name of the host this handle is connected to.
+    *
+    * @return Host name or URL given when connecting; <code>null</code> if
+    *         this handle was not created by connecting.
+    */
+   public String getHostName() {
+      return mHostName;
+   }
+
+   /**
+    * Get the circuit breaker guarding the operations of this handle.
+    *
+    * @return Breaker of the host; <code>null</code> if this handle was not
+    *         created by connecting to a named host.
+    */
+   public CircuitBreaker getCircuitBreaker() {
+      return mCircuitBreaker;
+   }
+
+   /**
+    * Get the adaptive limit on concurrent operations against this host.
+    *
+    * @return Limiter of the host; <code>null</code> if limiters are not
+    *         enabled or this handle was not created by connecting to a named
+    *         host.
+    */
+   public ConcurrencyLimiter getConcurrencyLimiter() {
+      return mConcurrencyLimiter;
+   }
+
+   /**
+    * Get the retry policy of the operations of this handle and of the VMs
+    * opened through it.
+    *
+    * @return Retry policy; {@link RetryPolicy#getDefault()} unless set.
+    */
+   public RetryPolicy getRetryPolicy() {
+      return mRetryPolicy;
+   }
+
+   /**
+    * Sets the retry policy of the operations of this handle and of the VMs
+    * opened through it.
+    *
+    * @param retryPolicy
+    */
+   public void setRetryPolicy(RetryPolicy retryPolicy) {
+      mRetryPolicy = retryPolicy;
+   }
+
+   /**
+    * Runs an idempotent operation against this host.
+    *
+    * @see #execute(VixCall, boolean)
+    */
+   <T> T execute(VixCall<T> call) throws VixException {
+      return execute(call, true);
+   }
+
+   /**
+    * Runs an operation against this host under the retry policy, each
+    * attempt through the circuit breaker and the concurrency limiter, if
+    * any.
+    *
+    * @param call
+    *           Operation to run.
+    * @param idempotent
+    *           Whether the operation may be repeated after a connection
+    *           error.
+    * @return Result of the operation.
+    * @throws VixException
+    */
+   <T> T execute(VixCall<T> call, boolean idempotent) throws VixException {
+      return execute(call, idempotent, true);
+   }
+
+   /**
+    * Runs an operation against this host under the retry policy, each
+    * attempt through the circuit breaker and, if <code>limited</code>, the
+    * concurrency limiter, if any.
+    *
+    * @param call
+    *           Operation to run.
+    * @param idempotent
+    *           Whether the operation may be repeated after a connection
+    *           error.
+    * @param limited
+    *           Whether the operation is short enough to count against the
+    *           concurrency limit; false for operations whose duration
+    *           depends on the guest or the amount of data.
+    * @return Result of the operation.
+    * @throws VixException
+    */
+   <T> T execute(VixCall<T> call, boolean idempotent, boolean limited)
+         throws VixException {
+      return mRetryPolicy.execute(guard(call, limited), idempotent);
+   }
+
+   /**
+    * Runs a long operation against this host once, through the circuit
+    * breaker, if any, but neither the retry policy nor the concurrency
+    * limiter.
+    *
+    * @param call
+    *           Operation to run.
+    * @return Result of the operation.
+    * @throws VixException
+    */
+   <T> T executeOnce(VixCall<T> call) throws VixException {
+      return guard(call, false).call();
+   }
+
+   /**
+    * Wraps an operation so that it runs through the circuit breaker and then
+    * the concurrency limiter, if any, so that refused attempts do not take a
+    * slot.
+    */
+   private <T> VixCall<T> guard(final VixCall<T> call, boolean limited) {
+      final CircuitBreaker breaker = mCircuitBreaker;
+      final ConcurrencyLimiter limiter = limited ? mConcurrencyLimiter : null;
+      final VixCall<T> limitedCall =
+            limiter == null ? call : new VixCall<T>() {
+               public T call() throws VixException {
+                  return limiter.execute(call);
+               }
+            };
+      return breaker == null ? limitedCall : new VixCall<T>() {
+         public T call() throws VixException {
+            return breaker.execute(limitedCall);
+         }
+      };
    }
 
    /**
@@ -157,17 +327,22 @@ public class VixHostHandle extends VixHandle {
     * @return List of VMX paths.
     * @throws VixException
     */
-   private ArrayList<String> getVms(VixFindItemType findType) throws VixException {
-      FindVmCallback finder = new FindVmCallback();
-      VixHandle jobHandle =
-            getVix().VixHost_FindItems(this,
-                                       findType,
-                                       VixHandle.VIX_INVALID_HANDLE,
-                                       -1, // must always be -1
-                                       finder,
-                                       null);
-      VixUtils.waitForJob(jobHandle, true);
-      return finder.getVmxPaths();
+   private ArrayList<String> getVms(final VixFindItemType findType)
+         throws VixException {
+      return execute(new VixCall<ArrayList<String>>() {
+         public ArrayList<String> call() throws VixException {
+            FindVmCallback finder = new FindVmCallback();
+            VixHandle jobHandle =
+                  getVix().VixHost_FindItems(VixHostHandle.this,
+                                             findType,
+                                             VixHandle.VIX_INVALID_HANDLE,
+                                             -1, // must always be -1
+                                             finder,
+                                             null);
+            VixUtils.waitForJob(jobHandle, true);
+            return finder.getVmxPaths();
+         }
+      });
    }
 
    /**
@@ -178,10 +353,29 @@ public class VixHostHandle extends VixHandle {
     * @return Handle for the VM
     * @throws VixException
     */
-   public VixVmHandle openVm(String vmxPath) throws VixException {
-      VixHandle jobHandle = getVix().VixVM_Open(this, vmxPath, null, null);
-      VixHandle result = VixUtils.getResultHandleFromJob(jobHandle, true);
-      return new VixVmHandle(result.longValue());
+   public VixVmHandle openVm(final String vmxPath) throws VixException {
+      Span span =
+            Tracer.getDefault().startSpan("openVm")
+                  .setAttribute("host", mHostName)
+                  .setAttribute("vmx", vmxPath);
+      try {
+         VixHandle result = execute(new VixCall<VixHandle>() {
+            public VixHandle call() throws VixException {
+               VixHandle jobHandle =
+                     getVix().VixVM_Open(VixHostHandle.this, vmxPath, null, null);
+               return VixUtils.getResultHandleFromJob(jobHandle, true);
+            }
+         });
+         VixVmHandle vmHandle = new VixVmHandle(result.longValue());
+         vmHandle.setHostHandle(this);
+         vmHandle.setVmxPath(vmxPath);
+         return vmHandle;
+      } catch (VixException e) {
+         span.setException(e);
+         throw e;
+      } finally {
+         span.end();
+      }
    }
 
    /**
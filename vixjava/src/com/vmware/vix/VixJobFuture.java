@@ -0,0 +1,250 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.sun.jna.Pointer;
+
+/**
+ * Future for an asynchronous VIX job. Instead of blocking in VixJob_Wait(), an
+ * instance is passed as the callbackProc of a VixVM_* or VixHost_* function
+ * and is completed by the VIX library when the job finishes.
+ * <p/>
+ * Subclasses override {@link #getJobResult(VixHandle)} to pull result
+ * properties off the job handle. The job handle is released by the future once
+ * the result has been read, so callers must not release the handle returned by
+ * the VIX function themselves.
+ *
+ * @param <T>
+ *           Type of the job result.
+ */
+public class VixJobFuture<T> implements Future<T>, VixEventProc {
+
+   /*
+    * JNA only holds weak references to callbacks, so keep every job that has
+    * not completed yet reachable until VIX calls back.
+    */
+   private static final Set<VixJobFuture<?>> mPending =
+         Collections.synchronizedSet(new HashSet<VixJobFuture<?>>());
+
+   private final VixLibrary mVix = VixLibrary.INSTANCE;
+   private final CountDownLatch mDone = new CountDownLatch(1);
+   private VixError mError;
+   private VixException mException;
+   private T mResult;
+
+   /**
+    * Constructor.
+    */
+   public VixJobFuture() {
+      mPending.add(this);
+   }
+
+   /**
+    * Called by the VIX library for job events. Only
+    * VIX_EVENTTYPE_JOB_COMPLETED is of interest; progress events are ignored.
+    *
+    * @see com.vmware.vix.VixEventProc#callback(int, int, int,
+    *      com.sun.jna.Pointer)
+    */
+   public synchronized void callback(
+         int handle,
+         int eventType,
+         int moreEventInfo,
+         Pointer clientData) {
+      if (eventType != VixEventType.VIX_EVENTTYPE_JOB_COMPLETED.longValue()) {
+         return;
+      }
+      VixHandle jobHandle = new VixHandle(handle);
+      if (isDone()) {
+         jobHandle.release();
+         return;
+      }
+      try {
+         mError = mVix.VixJob_GetError(jobHandle);
+         if (mError.equals(VixError.VIX_OK)) {
+            mResult = getJobResult(jobHandle);
+         } else {
+            mException = new VixException(mError);
+         }
+      } catch (VixException e) {
+         mException = e;
+         mError = e.getError();
+      } catch (RuntimeException e) {
+         mException = new VixException(e);
+      } finally {
+         jobHandle.release();
+         complete();
+      }
+   }
+
+   /**
+    * Extracts the result of the job. Called once from the VIX callback after
+    * the job has completed successfully; the job handle is still valid at this
+    * point and will be released afterwards.
+    *
+    * @param jobHandle
+    *           Handle of the completed job.
+    * @return Result of the job. The default implementation returns
+    *         <code>null</code>.
+    * @throws VixException
+    */
+   protected T getJobResult(VixHandle jobHandle) throws VixException {
+      return null;
+   }
+
+   /**
+    * Hook invoked once the job has completed, successfully or not, from the
+    * thread that completed it. Subclasses may use it to release resources
+    * held for the job. Must not block.
+    */
+   protected void done() {
+   }
+
+   /**
+    * Completes this future with the given exception without a VIX callback;
+    * used when the job could not be submitted at all.
+    *
+    * @param e
+    *           Reason the job failed.
+    */
+   public synchronized void fail(VixException e) {
+      if (!isDone()) {
+         mException = e;
+         mError = e.getError();
+         complete();
+      }
+   }
+
+   /**
+    * Completes this future with the given result without a VIX callback; used
+    * by futures standing for a chain of several jobs.
+    *
+    * @param result
+    *           Result of the job.
+    */
+   public synchronized void set(T result) {
+      if (!isDone()) {
+         mError = VixError.VIX_OK;
+         mResult = result;
+         complete();
+      }
+   }
+
+   /**
+    * Blocks until the job completes and returns its result.
+    *
+    * @return Result of the job.
+    * @throws VixException
+    *            If the job failed.
+    */
+   public T getResult() throws VixException {
+      try {
+         mDone.await();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new VixException("Interrupted while waiting for VIX job", e);
+      }
+      if (mException != null) {
+         throw mException;
+      }
+      return mResult;
+   }
+
+   /**
+    * Get the error the job completed with.
+    *
+    * @return VixError of the job; <code>null</code> if the job has not
+    *         completed or failed for a reason other than a VIX error.
+    */
+   public VixError getError() {
+      return mError;
+   }
+
+   /**
+    * VIX jobs cannot be cancelled.
+    *
+    * @return <code>false</code>
+    */
+   public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+   }
+
+   public boolean isCancelled() {
+      return false;
+   }
+
+   public boolean isDone() {
+      return mDone.getCount() == 0;
+   }
+
+   public T get() throws InterruptedException, ExecutionException {
+      mDone.await();
+      return report();
+   }
+
+   public T get(long timeout, TimeUnit unit)
+         throws InterruptedException, ExecutionException, TimeoutException {
+      if (!mDone.await(timeout, unit)) {
+         throw new TimeoutException();
+      }
+      return report();
+   }
+
+   /**
+    * Returns the result or wraps the failure for the {@link Future} methods.
+    */
+   private T report() throws ExecutionException {
+      if (mException != null) {
+         throw new ExecutionException(mException);
+      }
+      return mResult;
+   }
+
+   /**
+    * Marks this future as complete and releases waiting threads.
+    */
+   private void complete() {
+      mPending.remove(this);
+      try {
+         done();
+      } finally {
+         mDone.countDown();
+      }
+   }
+}
@@ -30,7 +30,6 @@
 package com.vmware.vix;
 
 import com.sun.jna.Library;
-import com.sun.jna.Native;
 import com.sun.jna.Pointer;
 import com.sun.jna.ptr.IntByReference;
 
@@ -47,10 +46,10 @@ import com.sun.jna.ptr.IntByReference;
 public interface VixLibrary extends Library {
 
    /**
-    * Object that allows us to load and access the VIX library.
+    * Object that allows us to load and access the VIX library. Native unless
+    * another implementation is selected, see {@link VixLibraryFactory}.
     */
-   public static VixLibrary INSTANCE =
-         (VixLibrary) Native.loadLibrary("vixAllProducts", VixLibrary.class);
+   public static VixLibrary INSTANCE = VixLibraryFactory.create();
 
    /**
     * Creates a new host handle. This handle cannot be shared or reused after
@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import javax.management.JMException;
+
+import com.sun.jna.Native;
+import com.vmware.vix.metrics.HandleRegistry;
+import com.vmware.vix.metrics.VixMetrics;
+import com.vmware.vix.replay.TraceRecorder;
+import com.vmware.vix.replay.TraceReplayer;
+import com.vmware.vix.trace.Tracer;
+
+/**
+ * Creates the VixLibrary implementation behind {@link VixLibrary#INSTANCE}.
+ * <p/>
+ * The implementation is chosen with the <code>vix.library</code> system
+ * property, which must be set before the first use of the VIX classes:
+ * <ul>
+ * <li><code>native</code> (default): the vixAllProducts library, loaded
+ * through JNA.</li>
+ * <li><code>simulated</code>: the in-process simulator,
+ * com.vmware.vix.simulator.SimulatedVixLibrary.</li>
+ * <li><code>replay</code>: a stub answering calls from the trace named by
+ * <code>vix.replay.file</code>, see com.vmware.vix.replay.TraceReplayer.</li>
+ * <li>The fully qualified name of any other class implementing VixLibrary
+ * with a public no-argument constructor.</li>
+ * </ul>
+ * For example: <code>java -Dvix.library=simulated ...</code>
+ * <p/>
+ * With <code>vix.record=&lt;file&gt;</code> all calls are recorded to a trace
+ * by com.vmware.vix.replay.TraceRecorder. With
+ * <code>vix.metrics=true</code> the implementation is wrapped to collect
+ * com.vmware.vix.metrics.VixMetrics, with <code>vix.handles=true</code> to
+ * track live handles in com.vmware.vix.metrics.HandleRegistry, and with
+ * <code>vix.trace=&lt;file&gt;</code> to write a span for every job to
+ * com.vmware.vix.trace.Tracer.
+ */
+public class VixLibraryFactory {
+
+   public static final String LIBRARY_PROPERTY = "vix.library";
+   public static final String NATIVE = "native";
+   public static final String SIMULATED = "simulated";
+
+   private static final String SIMULATED_CLASS =
+         "com.vmware.vix.simulator.SimulatedVixLibrary";
+
+   /**
+    * Creates the implementation selected by the <code>vix.library</code>
+    * system property.
+    *
+    * @return VixLibrary implementation.
+    */
+   static VixLibrary create() {
+      VixLibrary vix = load();
+      String recordPath = System.getProperty(TraceRecorder.RECORD_PROPERTY);
+      if (recordPath != null) {
+         vix = record(vix, recordPath);
+      }
+      if (Boolean.getBoolean(HandleRegistry.HANDLES_PROPERTY)) {
+         HandleRegistry handles = HandleRegistry.getDefault();
+         vix = handles.instrument(vix);
+         Long threshold = Long.getLong(HandleRegistry.LEAK_THRESHOLD_PROPERTY);
+         if (threshold != null) {
+            handles.startWatchdog(threshold * 1000);
+         }
+         try {
+            handles.registerMBean();
+         } catch (JMException e) {
+            System.err.println("Unable to register VIX handle registry MBean: "
+                  + e);
+         }
+      }
+      if (Boolean.getBoolean(VixMetrics.METRICS_PROPERTY)) {
+         VixMetrics metrics = VixMetrics.getDefault();
+         vix = metrics.instrument(vix);
+         try {
+            metrics.registerMBeans();
+         } catch (JMException e) {
+            System.err.println("Unable to register VIX metrics MBeans: " + e);
+         }
+      }
+      Tracer tracer = Tracer.getDefault();
+      if (tracer.isEnabled()) {
+         vix = tracer.instrument(vix);
+      }
+      return vix;
+   }
+
+   /**
+    * Wraps a VixLibrary to record all calls to a trace file, which is closed
+    * when the JVM exits.
+    */
+   private static VixLibrary record(VixLibrary vix, String path) {
+      final TraceRecorder recorder;
+      try {
+         recorder = new TraceRecorder(new FileOutputStream(path));
+      } catch (IOException e) {
+         System.err.println("Unable to record VIX calls to " + path + ": " + e);
+         return vix;
+      }
+      Runtime.getRuntime().addShutdownHook(new Thread("VIX trace recorder") {
+         @Override
+         public void run() {
+            try {
+               recorder.close();
+            } catch (IOException e) {
+               System.err.println("Unable to close VIX trace: " + e);
+            }
+         }
+      });
+      return recorder.instrument(vix);
+   }
+
+   /**
+    * Loads the implementation selected by the <code>vix.library</code>
+    * system property.
+    */
+   private static VixLibrary load() {
+      String library = System.getProperty(LIBRARY_PROPERTY, NATIVE);
+      if (library.equals(NATIVE)) {
+         return (VixLibrary) Native.loadLibrary("vixAllProducts",
+                                                VixLibrary.class);
+      }
+      if (library.equals(TraceReplayer.REPLAY)) {
+         try {
+            return TraceReplayer.createBackendFromProperties();
+         } catch (IOException e) {
+            throw new IllegalStateException("Unable to load VIX trace", e);
+         }
+      }
+      String className = library.equals(SIMULATED) ? SIMULATED_CLASS : library;
+      try {
+         return (VixLibrary) Class.forName(className)
+               .getDeclaredConstructor().newInstance();
+      } catch (Exception e) {
+         throw new IllegalStateException("Unable to create VixLibrary "
+               + className, e);
+      }
+   }
+}
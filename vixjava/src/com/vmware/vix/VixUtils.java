@@ -29,7 +29,10 @@
  ******************************************************************************/
 package com.vmware.vix;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.util.HashMap;
+import java.util.Map;
 
 import com.sun.jna.ptr.LongByReference;
 import com.sun.jna.ptr.PointerByReference;
@@ -52,6 +55,7 @@ import com.sun.jna.ptr.PointerByReference;
 public class VixUtils {
 
    public static VixLibrary mVix = VixLibrary.INSTANCE;
+   private static Map<Integer, String> mErrorNames;
 
    /**
     * Helper method that waits for a VIX job to complete. Should only be used
@@ -69,10 +73,10 @@ public class VixUtils {
    public static void waitForJob(VixHandle job, boolean release)
          throws VixException {
       VixError err = mVix.VixJob_Wait(job, VixPropertyID.VIX_PROPERTY_NONE);
-      checkError(err);
       if (release) {
          mVix.Vix_ReleaseHandle(job);
       }
+      checkError(err);
    }
 
    /**
@@ -100,6 +104,9 @@ public class VixUtils {
                           VixPropertyID.VIX_PROPERTY_JOB_RESULT_HANDLE,
                           href,
                           VixPropertyID.VIX_PROPERTY_NONE);
+      if (releaseHandle) {
+         mVix.Vix_ReleaseHandle(jobHandle);
+      }
       checkError(err);
       return href.getValue();
    }
@@ -108,10 +115,14 @@ public class VixUtils {
     * Creates a map of processes running in the given guest. Caller should have
     * previously called VixVM_LoginInGuest(). Map key is the pid, which contains
     * the value of another map with the keys 'name', 'owner', and 'command'.
+    * <p/>
+    * ProcessInfo returns the same processes, plus start times and debug
+    * flags, in a far more compact form.
     *
     * @param vmHandle
     *           Handle for a VM.
     * @return Map of processes
+    * @see com.vmware.vix.util.ProcessInfo#list(VixVmHandle)
     * @throws VixException
     */
    public static HashMap<Long, HashMap<String, String>> getProcessesInGuest(
@@ -171,6 +182,54 @@ public class VixUtils {
       }
    }
 
+   /**
+    * Tells whether a VixVM_ReadVariable() job failed because the variable
+    * does not exist. Other not-found errors, such as VIX_E_VM_NOT_FOUND, mean
+    * that the variable could not be looked up at all.
+    *
+    * @param vixError
+    *           Error of the job; may be <code>null</code>.
+    * @return <code>true</code> for VIX_E_NOT_FOUND and
+    *         VIX_E_OBJECT_NOT_FOUND.
+    */
+   public static boolean isVariableNotFound(VixError vixError) {
+      return vixError != null
+            && (vixError.equals(VixError.VIX_E_NOT_FOUND)
+                  || vixError.equals(VixError.VIX_E_OBJECT_NOT_FOUND));
+   }
+
+   /**
+    * Get the name of the VixError constant for an error, which unlike the
+    * text from Vix_GetErrorText() is stable and suits metrics and logs.
+    *
+    * @param vixError
+    *           Error to look up.
+    * @return Name such as <code>VIX_E_FILE_NOT_FOUND</code>; the numeric
+    *         value for unknown errors.
+    */
+   public static String getErrorName(VixError vixError) {
+      synchronized (VixUtils.class) {
+         if (mErrorNames == null) {
+            mErrorNames = new HashMap<Integer, String>();
+            for (Field field : VixError.class.getFields()) {
+               if (Modifier.isStatic(field.getModifiers())
+                     && field.getType().equals(VixError.class)) {
+                  try {
+                     Integer code = ((VixError) field.get(null)).intValue();
+                     if (!mErrorNames.containsKey(code)) {
+                        mErrorNames.put(code, field.getName());
+                     }
+                  } catch (IllegalAccessException e) {
+                     // Public constant; cannot happen.
+                  }
+               }
+            }
+         }
+         String name = mErrorNames.get(vixError.intValue());
+         return name != null ? name : String.valueOf(vixError.longValue());
+      }
+   }
+
    /**
     * Gets the value of the specified environment variable. You must call
     * VixVM_LoginInGuest() before calling this method.
@@ -187,20 +246,9 @@ public class VixUtils {
    public static String getEnvironmentVariable(
          VixHandle vmHandle,
          String varName) throws VixException {
-      VixHandle jobHandle =
-            mVix.VixVM_ReadVariable(vmHandle,
-                                    VixConstants.VIX_GUEST_ENVIRONMENT_VARIABLE,
-                                    varName,
-                                    0,
-                                    null,
-                                    null);
-      PointerByReference valPtr = new PointerByReference();
-      mVix.VixJob_Wait(jobHandle,
-                       VixPropertyID.VIX_PROPERTY_JOB_RESULT_VM_VARIABLE_STRING,
-                       valPtr,
-                       VixPropertyID.VIX_PROPERTY_NONE);
-      mVix.Vix_ReleaseHandle(jobHandle);
-      return valPtr.getValue().getString(0);
+      return VixVmHandle.readVariable(vmHandle,
+                                      varName,
+                                      VixConstants.VIX_GUEST_ENVIRONMENT_VARIABLE);
    }
 
    /**
@@ -214,6 +262,7 @@ public class VixUtils {
     * @throws VixException
     *            If there was a problem creating the directory other than
     *            VIX_E_ALREADY_EXISTS
+    * @see com.vmware.vix.util.GuestFileBatch#createDirectories
     */
    public static void createDirectoryInGuest(VixHandle vmHandle, String dirPath)
          throws VixException {
@@ -225,7 +274,10 @@ public class VixUtils {
                                               null);
       VixError err =
             mVix.VixJob_Wait(jobHandle, VixPropertyID.VIX_PROPERTY_NONE);
-      if (!err.equals(VixError.VIX_E_ALREADY_EXISTS)) {
+      mVix.Vix_ReleaseHandle(jobHandle);
+      if (!err.equals(VixError.VIX_OK)
+            && !err.equals(VixError.VIX_E_ALREADY_EXISTS)
+            && !err.equals(VixError.VIX_E_FILE_ALREADY_EXISTS)) {
          throw new VixException(err);
       }
    }
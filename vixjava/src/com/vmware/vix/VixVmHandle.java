@@ -35,16 +35,27 @@ import java.util.ArrayList;
 import java.util.Collections;
 
 import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.LongByReference;
 import com.sun.jna.ptr.PointerByReference;
+import com.vmware.vix.resilience.RetryPolicy;
+import com.vmware.vix.resilience.VixCall;
+import com.vmware.vix.trace.Span;
+import com.vmware.vix.trace.Tracer;
 import com.vmware.vix.util.GuestFileUtil;
 
 /**
  * Class representing a VIX VM. Contains wrappers for VixVM_* functions.
+ * <p/>
+ * Operations are retried according to the RetryPolicy of the VixHostHandle the
+ * VM was opened through, or the default policy, and run through the
+ * CircuitBreaker and ConcurrencyLimiter of that host.
  */
 @SuppressWarnings("serial")
 public class VixVmHandle extends VixHandle {
 
    private final VixLibrary mVix = VixLibrary.INSTANCE;
+   private VixHostHandle mHostHandle;
+   private String mVmxPath;
 
    /**
     * Constructor.
@@ -60,6 +71,144 @@ public class VixVmHandle extends VixHandle {
       super(val);
    }
 
+   /**
+    * Get the host this VM was opened through.
+    *
+    * @return Handle for the host; <code>null</code> if this VM handle was not
+    *         obtained with {@link VixHostHandle#openVm(String)}.
+    */
+   public VixHostHandle getHostHandle() {
+      return mHostHandle;
+   }
+
+   /**
+    * Get the path of this VM's .vmx file, which identifies the VM on its
+    * host. The path is read from VIX once and then remembered.
+    *
+    * @return VMX path
+    * @throws VixException
+    */
+   public String getVmxPath() throws VixException {
+      if (mVmxPath == null) {
+         PointerByReference pathRef = new PointerByReference();
+         VixError err =
+               mVix.Vix_GetProperties(this,
+                                      VixPropertyID.VIX_PROPERTY_VM_VMX_PATHNAME,
+                                      pathRef,
+                                      VixPropertyID.VIX_PROPERTY_NONE);
+         VixUtils.checkError(err);
+         mVmxPath = pathRef.getValue().getString(0);
+         mVix.Vix_FreeBuffer(pathRef.getValue());
+      }
+      return mVmxPath;
+   }
+
+   /**
+    * Sets the host this VM was opened through.
+    *
+    * @param hostHandle
+    */
+   void setHostHandle(VixHostHandle hostHandle) {
+      mHostHandle = hostHandle;
+   }
+
+   /**
+    * Sets the VMX path this VM was opened with, saving a lookup in
+    * {@link #getVmxPath()}.
+    *
+    * @param vmxPath
+    */
+   void setVmxPath(String vmxPath) {
+      mVmxPath = vmxPath;
+   }
+
+   /**
+    * Starts a trace span for an operation on this VM, carrying the host and
+    * VMX path if they are known.
+    *
+    * @param name
+    *           Name of the operation.
+    * @return Span, to be ended by the caller.
+    */
+   private Span startSpan(String name) {
+      Span span = Tracer.getDefault().startSpan(name);
+      if (span.isRecording()) {
+         if (mHostHandle != null) {
+            span.setAttribute("host", mHostHandle.getHostName());
+         }
+         span.setAttribute("vmx", mVmxPath);
+      }
+      return span;
+   }
+
+   /**
+    * Runs an idempotent operation on this VM.
+    *
+    * @see #execute(VixCall, boolean)
+    */
+   private <T> T execute(VixCall<T> call) throws VixException {
+      return execute(call, true);
+   }
+
+   /**
+    * Runs an operation on this VM under the retry policy and circuit breaker
+    * of the host this VM was opened through, if known.
+    *
+    * @param call
+    *           Operation to run.
+    * @param idempotent
+    *           Whether the operation may be repeated after a connection
+    *           error.
+    * @return Result of the operation.
+    * @throws VixException
+    */
+   private <T> T execute(VixCall<T> call, boolean idempotent)
+         throws VixException {
+      return execute(call, idempotent, true);
+   }
+
+   /**
+    * Runs an operation on this VM under the retry policy and circuit breaker
+    * of the host this VM was opened through, if known, and under its
+    * concurrency limiter if <code>limited</code>.
+    *
+    * @param call
+    *           Operation to run.
+    * @param idempotent
+    *           Whether the operation may be repeated after a connection
+    *           error.
+    * @param limited
+    *           Whether the operation is short enough to count against the
+    *           concurrency limit of the host.
+    * @return Result of the operation.
+    * @throws VixException
+    */
+   private <T> T execute(VixCall<T> call, boolean idempotent, boolean limited)
+         throws VixException {
+      if (mHostHandle == null) {
+         return RetryPolicy.getDefault().execute(call, idempotent);
+      }
+      return mHostHandle.execute(call, idempotent, limited);
+   }
+
+   /**
+    * Runs an operation on this VM once, through the circuit breaker of the
+    * host but neither the retry policy nor the concurrency limiter, for
+    * operations whose failures take long enough that repeating them would
+    * multiply the caller's wait.
+    *
+    * @param call
+    *           Operation to run.
+    * @return Result of the operation.
+    * @throws VixException
+    */
+   private <T> T executeOnce(VixCall<T> call) throws VixException {
+      if (mHostHandle == null) {
+         return call.call();
+      }
+      return mHostHandle.executeOnce(call);
+   }
+
    /**
     * Copies the given file on the guest to the specified location on the client
     * machine. File paths must be fully specified (no variables).
@@ -70,17 +219,33 @@ public class VixVmHandle extends VixHandle {
     *           Absolute path for file's destination on the client.
     * @throws VixException
     */
-   public void copyFileFromGuestToHost(String srcFile, String destFile)
-         throws VixException {
-      VixHandle jobHandle =
-            mVix.VixVM_CopyFileFromGuestToHost(this,
-                                               srcFile,
-                                               destFile,
-                                               0,
-                                               VixHandle.VIX_INVALID_HANDLE,
-                                               null,
-                                               null);
-      VixUtils.waitForJob(jobHandle, true);
+   public void copyFileFromGuestToHost(
+         final String srcFile,
+         final String destFile) throws VixException {
+      Span span = startSpan("copyFileFromGuestToHost")
+            .setAttribute("src", srcFile)
+            .setAttribute("dest", destFile);
+      try {
+         execute(new VixCall<Void>() {
+            public Void call() throws VixException {
+               VixHandle jobHandle =
+                     mVix.VixVM_CopyFileFromGuestToHost(VixVmHandle.this,
+                                                        srcFile,
+                                                        destFile,
+                                                        0,
+                                                        VixHandle.VIX_INVALID_HANDLE,
+                                                        null,
+                                                        null);
+               VixUtils.waitForJob(jobHandle, true);
+               return null;
+            }
+         }, true, false);
+      } catch (VixException e) {
+         span.setException(e);
+         throw e;
+      } finally {
+         span.end();
+      }
    }
 
    /**
@@ -93,17 +258,33 @@ public class VixVmHandle extends VixHandle {
     *           Absolute path for file's destination on the guest.
     * @throws VixException
     */
-   public void copyFileFromHostToGuest(String srcFile, String destFile)
-         throws VixException {
-      VixHandle jobHandle =
-            mVix.VixVM_CopyFileFromHostToGuest(this,
-                                               srcFile,
-                                               destFile,
-                                               0,
-                                               VixHandle.VIX_INVALID_HANDLE,
-                                               null,
-                                               null);
-      VixUtils.waitForJob(jobHandle, true);
+   public void copyFileFromHostToGuest(
+         final String srcFile,
+         final String destFile) throws VixException {
+      Span span = startSpan("copyFileFromHostToGuest")
+            .setAttribute("src", srcFile)
+            .setAttribute("dest", destFile);
+      try {
+         execute(new VixCall<Void>() {
+            public Void call() throws VixException {
+               VixHandle jobHandle =
+                     mVix.VixVM_CopyFileFromHostToGuest(VixVmHandle.this,
+                                                        srcFile,
+                                                        destFile,
+                                                        0,
+                                                        VixHandle.VIX_INVALID_HANDLE,
+                                                        null,
+                                                        null);
+               VixUtils.waitForJob(jobHandle, true);
+               return null;
+            }
+         }, true, false);
+      } catch (VixException e) {
+         span.setException(e);
+         throw e;
+      } finally {
+         span.end();
+      }
    }
 
    /**
@@ -116,14 +297,20 @@ public class VixVmHandle extends VixHandle {
     *           The path to the directory to be created.
     * @throws VixException
     */
-   public void createDirectoryInGuest(String dirPath) throws VixException {
-      VixHandle jobHandle =
-            mVix.VixVM_CreateDirectoryInGuest(this,
-                                              dirPath,
-                                              VIX_INVALID_HANDLE,
-                                              null,
-                                              null);
-      VixUtils.waitForJob(jobHandle, true);
+   public void createDirectoryInGuest(final String dirPath)
+         throws VixException {
+      execute(new VixCall<Void>() {
+         public Void call() throws VixException {
+            VixHandle jobHandle =
+                  mVix.VixVM_CreateDirectoryInGuest(VixVmHandle.this,
+                                                    dirPath,
+                                                    VIX_INVALID_HANDLE,
+                                                    null,
+                                                    null);
+            VixUtils.waitForJob(jobHandle, true);
+            return null;
+         }
+      }, false);
    }
 
    /**
@@ -134,26 +321,31 @@ public class VixVmHandle extends VixHandle {
     * @return Path to the temporary file which was created in the guest.
     * @throws VixException
     */
-   public String createTempFileInGuest(int options) throws VixException {
-      VixHandle jobHandle =
-            mVix.VixVM_CreateTempFileInGuest(this,
-                                             options,
-                                             VIX_INVALID_HANDLE,
-                                             null,
-                                             null);
+   public String createTempFileInGuest(final int options)
+         throws VixException {
+      return execute(new VixCall<String>() {
+         public String call() throws VixException {
+            VixHandle jobHandle =
+                  mVix.VixVM_CreateTempFileInGuest(VixVmHandle.this,
+                                                   options,
+                                                   VIX_INVALID_HANDLE,
+                                                   null,
+                                                   null);
 
-      /*
-       * Get the location of the temp file which was created.
-       */
-      PointerByReference valPtr = new PointerByReference();
-      VixError err =
-            mVix.VixJob_Wait(jobHandle,
-                             VixPropertyID.VIX_PROPERTY_JOB_RESULT_ITEM_NAME,
-                             valPtr,
-                             VixPropertyID.VIX_PROPERTY_NONE);
-      mVix.Vix_ReleaseHandle(jobHandle);
-      VixUtils.checkError(err);
-      return valPtr.getValue().getString(0);
+            /*
+             * Get the location of the temp file which was created.
+             */
+            PointerByReference valPtr = new PointerByReference();
+            VixError err =
+                  mVix.VixJob_Wait(jobHandle,
+                                   VixPropertyID.VIX_PROPERTY_JOB_RESULT_ITEM_NAME,
+                                   valPtr,
+                                   VixPropertyID.VIX_PROPERTY_NONE);
+            mVix.Vix_ReleaseHandle(jobHandle);
+            VixUtils.checkError(err);
+            return valPtr.getValue().getString(0);
+         }
+      }, false);
    }
 
    /**
@@ -166,15 +358,20 @@ public class VixVmHandle extends VixHandle {
     *           Must be 0.
     * @throws VixException
     */
-   public void deleteDirectoryInGuest(String dirPath, int options)
+   public void deleteDirectoryInGuest(final String dirPath, final int options)
          throws VixException {
-      VixHandle jobHandle =
-            mVix.VixVM_DeleteDirectoryInGuest(this,
-                                              dirPath,
-                                              options,
-                                              null,
-                                              null);
-      VixUtils.waitForJob(jobHandle, true);
+      execute(new VixCall<Void>() {
+         public Void call() throws VixException {
+            VixHandle jobHandle =
+                  mVix.VixVM_DeleteDirectoryInGuest(VixVmHandle.this,
+                                                    dirPath,
+                                                    options,
+                                                    null,
+                                                    null);
+            VixUtils.waitForJob(jobHandle, true);
+            return null;
+         }
+      }, false);
    }
 
    /**
@@ -184,10 +381,18 @@ public class VixVmHandle extends VixHandle {
     *           The absolute path to the file to be deleted.
     * @throws VixException
     */
-   public void deleteFileInGuest(String filePath) throws VixException {
-      VixHandle jobHandle =
-            mVix.VixVM_DeleteFileInGuest(this, filePath, null, null);
-      VixUtils.waitForJob(jobHandle, true);
+   public void deleteFileInGuest(final String filePath) throws VixException {
+      execute(new VixCall<Void>() {
+         public Void call() throws VixException {
+            VixHandle jobHandle =
+                  mVix.VixVM_DeleteFileInGuest(VixVmHandle.this,
+                                               filePath,
+                                               null,
+                                               null);
+            VixUtils.waitForJob(jobHandle, true);
+            return null;
+         }
+      }, false);
    }
 
    /**
@@ -199,10 +404,18 @@ public class VixVmHandle extends VixHandle {
     *         exists; <code>false</code> otherwise.
     * @throws VixException
     */
-   public boolean directoryExistsInGuest(String dirPath) throws VixException {
-      VixHandle jobHandle =
-            mVix.VixVM_DirectoryExistsInGuest(this, dirPath, null, null);
-      return guestObjectExists(jobHandle);
+   public boolean directoryExistsInGuest(final String dirPath)
+         throws VixException {
+      return execute(new VixCall<Boolean>() {
+         public Boolean call() throws VixException {
+            VixHandle jobHandle =
+                  mVix.VixVM_DirectoryExistsInGuest(VixVmHandle.this,
+                                                    dirPath,
+                                                    null,
+                                                    null);
+            return guestObjectExists(jobHandle);
+         }
+      });
    }
 
    /**
@@ -215,10 +428,18 @@ public class VixVmHandle extends VixHandle {
     *         otherwise.
     * @throws VixException
     */
-   public boolean fileExistsInGuest(String filePath) throws VixException {
-      VixHandle jobHandle =
-            mVix.VixVM_FileExistsInGuest(this, filePath, null, null);
-      return guestObjectExists(jobHandle);
+   public boolean fileExistsInGuest(final String filePath)
+         throws VixException {
+      return execute(new VixCall<Boolean>() {
+         public Boolean call() throws VixException {
+            VixHandle jobHandle =
+                  mVix.VixVM_FileExistsInGuest(VixVmHandle.this,
+                                               filePath,
+                                               null,
+                                               null);
+            return guestObjectExists(jobHandle);
+         }
+      });
    }
 
    /**
@@ -298,8 +519,20 @@ public class VixVmHandle extends VixHandle {
     * @throws VixException
     */
    public ArrayList<String> listDirectoryInGuest(
-         String dirPath,
-         boolean recurse) throws VixException {
+         final String dirPath,
+         final boolean recurse) throws VixException {
+      return execute(new VixCall<ArrayList<String>>() {
+         public ArrayList<String> call() throws VixException {
+            return listDirectory(dirPath, recurse);
+         }
+      });
+   }
+
+   /**
+    * Lists a directory for {@link #listDirectoryInGuest(String, boolean)}.
+    */
+   private ArrayList<String> listDirectory(String dirPath, boolean recurse)
+         throws VixException {
       String pathSeparator = getPathSeparatorFromPath(dirPath);
       ArrayList<String> files = new ArrayList<String>();
       VixHandle jobHandle =
@@ -329,9 +562,8 @@ public class VixVmHandle extends VixHandle {
              * its subdirectories.
              */
             joinedPath = dirPath + pathSeparator + fileName;
-            if (GuestFileUtil.isDirectory(this, joinedPath) && recurse) {
-               files.addAll(listDirectoryInGuest(joinedPath,
-                                                 recurse));
+            if (recurse && GuestFileUtil.isDirectory(this, joinedPath)) {
+               files.addAll(listDirectory(joinedPath, recurse));
             } else {
                files.add(joinedPath);
             }
@@ -353,15 +585,32 @@ public class VixVmHandle extends VixHandle {
     *           {@link VixConstants#VIX_LOGIN_IN_GUEST_REQUIRE_INTERACTIVE_ENVIRONMENT}
     * @throws VixException
     */
-   public void loginInGuest(String username, String password, int options) throws VixException {
-      VixHandle jobHandle =
-         mVix.VixVM_LoginInGuest(this,
-                                username,
-                                password,
-                                options,
-                                null,
-                                null);
-      VixUtils.waitForJob(jobHandle, true);
+   public void loginInGuest(
+         final String username,
+         final String password,
+         final int options) throws VixException {
+      Span span = startSpan("loginInGuest")
+            .setAttribute("user", username);
+      try {
+         execute(new VixCall<Void>() {
+            public Void call() throws VixException {
+               VixHandle jobHandle =
+                     mVix.VixVM_LoginInGuest(VixVmHandle.this,
+                                             username,
+                                             password,
+                                             options,
+                                             null,
+                                             null);
+               VixUtils.waitForJob(jobHandle, true);
+               return null;
+            }
+         });
+      } catch (VixException e) {
+         span.setException(e);
+         throw e;
+      } finally {
+         span.end();
+      }
    }
 
    /**
@@ -370,8 +619,14 @@ public class VixVmHandle extends VixHandle {
     * @throws VixException
     */
    public void logoutFromGuest() throws VixException {
-      VixHandle jobHandle = mVix.VixVM_LogoutFromGuest(this, null, null);
-      VixUtils.waitForJob(jobHandle, true);
+      execute(new VixCall<Void>() {
+         public Void call() throws VixException {
+            VixHandle jobHandle =
+                  mVix.VixVM_LogoutFromGuest(VixVmHandle.this, null, null);
+            VixUtils.waitForJob(jobHandle, true);
+            return null;
+         }
+      });
    }
 
    /**
@@ -384,32 +639,175 @@ public class VixVmHandle extends VixHandle {
     *           <ul>
     *           <li>VixConstants.VIX_VM_GUEST_VARIABLE</li>
     *           <li>VixConstants.VIX_VM_CONFIG_RUNTIME_ONLY</li>
-    *           <li>VIX_GUEST_ENVIRONMENT_VARIABLE</li>
+    *           <li>VixConstants.VIX_GUEST_ENVIRONMENT_VARIABLE</li>
     *           </ul>
-    * @return Value of the variable
+    * @return Value of the variable; <code>null</code> if the job failed with
+    *         VIX_E_NOT_FOUND or VIX_E_OBJECT_NOT_FOUND.
     * @throws VixException
+    *            If the variable could not be read for any other reason, such
+    *            as the VM not being found.
+    */
+   public String readVariable(final String varName, final int varType)
+         throws VixException {
+      return execute(new VixCall<String>() {
+         public String call() throws VixException {
+            return readVariable(VixVmHandle.this, varName, varType);
+         }
+      });
+   }
+
+   /**
+    * Reads a variable of any VM handle; shared with VixUtils. A variable
+    * which does not exist is read as <code>null</code>, see
+    * VixUtils.isVariableNotFound(); any other error is thrown.
     */
-   public String readVariable(String varName, int varType) throws VixException {
+   static String readVariable(VixHandle vmHandle, String varName, int varType)
+         throws VixException {
+      VixLibrary vix = VixLibrary.INSTANCE;
       VixHandle jobHandle =
-            mVix.VixVM_ReadVariable(this,
-                                    varType,
-                                    varName,
-                                    0,
-                                    null,
-                                    null);
+            vix.VixVM_ReadVariable(vmHandle,
+                                   varType,
+                                   varName,
+                                   0,
+                                   null,
+                                   null);
       PointerByReference valPtr = new PointerByReference();
-      mVix.VixJob_Wait(jobHandle,
-                       VixPropertyID.VIX_PROPERTY_JOB_RESULT_VM_VARIABLE_STRING,
-                       valPtr,
-                       VixPropertyID.VIX_PROPERTY_NONE);
-      mVix.Vix_ReleaseHandle(jobHandle);
+      VixError err =
+            vix.VixJob_Wait(jobHandle,
+                            VixPropertyID.VIX_PROPERTY_JOB_RESULT_VM_VARIABLE_STRING,
+                            valPtr,
+                            VixPropertyID.VIX_PROPERTY_NONE);
+      vix.Vix_ReleaseHandle(jobHandle);
+      if (VixUtils.isVariableNotFound(err)) {
+         return null;
+      }
+      VixUtils.checkError(err);
       if (valPtr.getValue() != null) {
-         return valPtr.getValue().getString(0);
+         String value = valPtr.getValue().getString(0);
+         vix.Vix_FreeBuffer(valPtr.getValue());
+         return value;
       } else {
          return null;
       }
    }
 
+   /**
+    * Set the value of a GuestVariable.
+    *
+    * @param varName
+    *           Name of the variable.
+    * @param value
+    *           Value to set.
+    * @throws VixException
+    */
+   public void setGuestVariable(String varName, String value)
+         throws VixException {
+      writeVariable(varName, value, VixConstants.VIX_VM_GUEST_VARIABLE);
+   }
+
+   /**
+    * Writes a variable to the VM state.
+    *
+    * @param varName
+    *           Name of the variable.
+    * @param value
+    *           Value to write.
+    * @param varType
+    *           One of:
+    *           <ul>
+    *           <li>VixConstants.VIX_VM_GUEST_VARIABLE</li>
+    *           <li>VixConstants.VIX_VM_CONFIG_RUNTIME_ONLY</li>
+    *           <li>VixConstants.VIX_GUEST_ENVIRONMENT_VARIABLE</li>
+    *           </ul>
+    * @throws VixException
+    * @see com.vmware.vix.util.GuestVariableWriter
+    */
+   public void writeVariable(
+         final String varName,
+         final String value,
+         final int varType) throws VixException {
+      execute(new VixCall<Void>() {
+         public Void call() throws VixException {
+            VixHandle jobHandle =
+                  mVix.VixVM_WriteVariable(VixVmHandle.this,
+                                           varType,
+                                           varName,
+                                           value,
+                                           0,
+                                           null,
+                                           null);
+            VixUtils.waitForJob(jobHandle, true);
+            return null;
+         }
+      });
+   }
+
+   /**
+    * Runs a program in the guest. The program runs with the privileges of the
+    * user logged in with VixVM_LoginInGuest().
+    *
+    * @param programName
+    *           Full path of the program in the guest.
+    * @param commandLineArgs
+    *           Arguments for the program, or <code>null</code>.
+    * @param returnImmediately
+    *           Whether method should return as soon as program starts.
+    * @return pid, exit code and elapsed time of the program; exit code and
+    *         elapsed time will be zero if <code>returnImmediately</code> is
+    *         <code>true</code>.
+    * @throws VixException
+    * @see com.vmware.vix.util.GuestProgram
+    */
+   public GuestProgramResult runProgramInGuest(
+         final String programName,
+         final String commandLineArgs,
+         boolean returnImmediately) throws VixException {
+      Span span = startSpan("runProgramInGuest")
+            .setAttribute("program", programName);
+      try {
+         final VixRunProgramOptions options =
+               returnImmediately ? VixRunProgramOptions.VIX_RUNPROGRAM_RETURN_IMMEDIATELY
+                     : VixRunProgramOptions.NONE;
+         GuestProgramResult result = execute(new VixCall<GuestProgramResult>() {
+            public GuestProgramResult call() throws VixException {
+               VixHandle jobHandle =
+                     mVix.VixVM_RunProgramInGuest(VixVmHandle.this,
+                                                  programName,
+                                                  commandLineArgs,
+                                                  options,
+                                                  VixHandle.VIX_INVALID_HANDLE,
+                                                  null,
+                                                  null);
+               LongByReference pid = new LongByReference();
+               IntByReference exitCode = new IntByReference();
+               IntByReference elapsedTime = new IntByReference();
+               VixError err =
+                     mVix.VixJob_Wait(jobHandle,
+                                      VixPropertyID.VIX_PROPERTY_JOB_RESULT_PROCESS_ID,
+                                      pid,
+                                      VixPropertyID.VIX_PROPERTY_JOB_RESULT_GUEST_PROGRAM_EXIT_CODE,
+                                      exitCode,
+                                      VixPropertyID.VIX_PROPERTY_JOB_RESULT_GUEST_PROGRAM_ELAPSED_TIME,
+                                      elapsedTime,
+                                      VixPropertyID.VIX_PROPERTY_NONE);
+               jobHandle.release();
+               VixUtils.checkError(err);
+               return new GuestProgramResult(pid.getValue(),
+                                             exitCode.getValue(),
+                                             elapsedTime.getValue());
+            }
+         }, false, returnImmediately);
+         span.setAttribute("pid", result.getPid())
+               .setAttribute("exitCode", result.getExitCode());
+         return result;
+      } catch (VixException e) {
+         span.setException(e);
+         throw e;
+      } finally {
+         span.end();
+      }
+   }
+
    /**
     * Runs a script inside of the guest. Environment variables may be used in
     * the script, assuming that the interpreter will have access to these
@@ -428,29 +826,44 @@ public class VixVmHandle extends VixHandle {
     * @throws VixException
     */
    public int runScriptInGuest(
-         String interpreter,
-         String scriptText,
+         final String interpreter,
+         final String scriptText,
          boolean returnImmediately) throws VixException {
-      VixRunProgramOptions options =
-            returnImmediately ? VixRunProgramOptions.VIX_RUNPROGRAM_RETURN_IMMEDIATELY
-                  : VixRunProgramOptions.NONE;
-      VixHandle jobHandle =
-            mVix.VixVM_RunScriptInGuest(this,
-                                        interpreter,
-                                        scriptText,
-                                        options,
-                                        VixHandle.VIX_INVALID_HANDLE,
-                                        null,
-                                        null);
-      IntByReference exitCode = new IntByReference();
-      VixError err =
-            mVix.VixJob_Wait(jobHandle,
-                             VixPropertyID.VIX_PROPERTY_JOB_RESULT_GUEST_PROGRAM_EXIT_CODE,
-                             exitCode,
-                             VixPropertyID.VIX_PROPERTY_NONE);
-      jobHandle.release();
-      VixUtils.checkError(err);
-      return exitCode.getValue();
+      Span span = startSpan("runScriptInGuest")
+            .setAttribute("interpreter", interpreter);
+      try {
+         final VixRunProgramOptions options =
+               returnImmediately ? VixRunProgramOptions.VIX_RUNPROGRAM_RETURN_IMMEDIATELY
+                     : VixRunProgramOptions.NONE;
+         int exitCode = execute(new VixCall<Integer>() {
+            public Integer call() throws VixException {
+               VixHandle jobHandle =
+                     mVix.VixVM_RunScriptInGuest(VixVmHandle.this,
+                                                 interpreter,
+                                                 scriptText,
+                                                 options,
+                                                 VixHandle.VIX_INVALID_HANDLE,
+                                                 null,
+                                                 null);
+               IntByReference exitCode = new IntByReference();
+               VixError err =
+                     mVix.VixJob_Wait(jobHandle,
+                                      VixPropertyID.VIX_PROPERTY_JOB_RESULT_GUEST_PROGRAM_EXIT_CODE,
+                                      exitCode,
+                                      VixPropertyID.VIX_PROPERTY_NONE);
+               jobHandle.release();
+               VixUtils.checkError(err);
+               return exitCode.getValue();
+            }
+         }, false, returnImmediately);
+         span.setAttribute("exitCode", exitCode);
+         return exitCode;
+      } catch (VixException e) {
+         span.setException(e);
+         throw e;
+      } finally {
+         span.end();
+      }
    }
 
    /**
@@ -463,10 +876,22 @@ public class VixVmHandle extends VixHandle {
     * @throws VixException
     *            If tools does not start within the specified timeout.
     */
-   public void waitForToolsInGuest(int timeout) throws VixException {
-      VixHandle jobHandle =
-            mVix.VixVM_WaitForToolsInGuest(this, timeout, null, null);
-      VixUtils.waitForJob(jobHandle, true);
+   public void waitForToolsInGuest(final int timeout) throws VixException {
+      /*
+       * Not retried, so that a timeout fails after the given time rather
+       * than a multiple of it.
+       */
+      executeOnce(new VixCall<Void>() {
+         public Void call() throws VixException {
+            VixHandle jobHandle =
+                  mVix.VixVM_WaitForToolsInGuest(VixVmHandle.this,
+                                                 timeout,
+                                                 null,
+                                                 null);
+            VixUtils.waitForJob(jobHandle, true);
+            return null;
+         }
+      });
    }
 
    /**
@@ -477,19 +902,7 @@ public class VixVmHandle extends VixHandle {
     * @return Either a Windows or Linux path separator depending on the path.
     */
    private String getPathSeparatorFromPath(String filePath) {
-      String windowsSeparator = "\\";
-      String linuxSeparator = "/";
-
-      if (filePath.matches("^[a-zA-Z]:")) {
-         /*
-          * This is definitely a Windows path. Matches a Windows drive.
-          */
-         return windowsSeparator;
-      } else if (filePath.contains(windowsSeparator)) {
-         return windowsSeparator;
-      } else {
-         return linuxSeparator;
-      }
+      return GuestFileUtil.getPathSeparator(filePath);
    }
 
    /**
@@ -0,0 +1,565 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.examples;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.vmware.vix.VixConstants;
+import com.vmware.vix.VixException;
+import com.vmware.vix.VixLibraryFactory;
+import com.vmware.vix.VixUtils;
+import com.vmware.vix.VixVSphereHandle;
+import com.vmware.vix.VixVmHandle;
+import com.vmware.vix.metrics.LatencyHistogram;
+import com.vmware.vix.resilience.ConcurrencyLimiter;
+import com.vmware.vix.util.GuestShell;
+import com.vmware.vix.util.ProcessInfo;
+
+/**
+ * Command line load generator which drives a weighted mix of VIX operations
+ * against the running VMs of a host, or against the simulated VIX library,
+ * and reports throughput and latency percentiles per operation.
+ * <p/>
+ * Operations are issued by a fixed number of worker threads, either as fast
+ * as they complete or at a target rate. At a target rate each operation is
+ * timed from when it was scheduled to start rather than when a worker got to
+ * it, so a slow host shows up as latency instead of silently lowering the
+ * rate.
+ * <p/>
+ * Example against the simulator:
+ *
+ * <pre>
+ * java -Dvix.sim.latency=logNormal:20:0.5 com.vmware.vix.examples.LoadGenerator
+ *      -simulated -concurrency 32 -duration 60
+ * </pre>
+ *
+ * With <code>-Dvix.limiter=true</code> the workers are throttled by the
+ * adaptive ConcurrencyLimiter of the host, and the limit it settled on is
+ * reported at the end.
+ * <p/>
+ * Run without arguments for the list of options.
+ */
+public class LoadGenerator {
+
+   /**
+    * Operations in the mix.
+    */
+   private enum Operation {
+      OPEN("open") {
+         @Override
+         void run(LoadGenerator gen, Target target, int worker)
+               throws VixException {
+            gen.mHost.openVm(target.mVmxPath).release();
+         }
+      },
+      READ_VARIABLE("readVariable") {
+         @Override
+         void run(LoadGenerator gen, Target target, int worker)
+               throws VixException {
+            target.mVm.readVariable("ip", VixConstants.VIX_VM_GUEST_VARIABLE);
+         }
+      },
+      FILE_EXISTS("fileExists") {
+         @Override
+         void run(LoadGenerator gen, Target target, int worker)
+               throws VixException {
+            target.mVm.fileExistsInGuest(target.getScratchFile(worker));
+         }
+      },
+      LIST_DIRECTORY("listDirectory") {
+         @Override
+         void run(LoadGenerator gen, Target target, int worker)
+               throws VixException {
+            target.mVm.listDirectoryInGuest(target.mGuestDir);
+         }
+      },
+      COPY("copy") {
+         @Override
+         void run(LoadGenerator gen, Target target, int worker)
+               throws VixException {
+            target.mVm.copyFileFromHostToGuest(gen.mCopySource.getAbsolutePath(),
+                                               target.getScratchFile(worker));
+         }
+      },
+      RUN_SCRIPT("runScript") {
+         @Override
+         void run(LoadGenerator gen, Target target, int worker)
+               throws VixException {
+            target.mVm.runScriptInGuest(target.mShell.getInterpreter(),
+                                        gen.mScript,
+                                        false);
+         }
+      },
+      LIST_PROCESSES("listProcesses") {
+         @Override
+         void run(LoadGenerator gen, Target target, int worker)
+               throws VixException {
+            ProcessInfo.list(target.mVm);
+         }
+      };
+
+      final String mName;
+
+      Operation(String name) {
+         mName = name;
+      }
+
+      abstract void run(LoadGenerator gen, Target target, int worker)
+            throws VixException;
+
+      static Operation forName(String name) {
+         for (Operation op : values()) {
+            if (op.mName.equalsIgnoreCase(name)) {
+               return op;
+            }
+         }
+         throw new IllegalArgumentException("Unknown operation " + name);
+      }
+   }
+
+   /**
+    * VM operations are run against, opened and logged in once.
+    */
+   private static class Target {
+
+      final String mVmxPath;
+      final VixVmHandle mVm;
+      final String mGuestDir;
+      final GuestShell mShell;
+
+      Target(String vmxPath, VixVmHandle vm, String guestDir) {
+         mVmxPath = vmxPath;
+         mVm = vm;
+         mGuestDir = guestDir;
+         mShell = GuestShell.forPath(guestDir);
+      }
+
+      String getScratchFile(int worker) {
+         return mGuestDir + mShell.getSeparator() + "vix-load-" + worker
+               + ".dat";
+      }
+   }
+
+   /**
+    * Results of one operation.
+    */
+   private static class Stats {
+
+      final LatencyHistogram mLatency = new LatencyHistogram();
+      final AtomicLong mErrors = new AtomicLong();
+      final ConcurrentHashMap<String, AtomicLong> mErrorCounts =
+            new ConcurrentHashMap<String, AtomicLong>();
+
+      void recordError(Exception e) {
+         mErrors.incrementAndGet();
+         String name;
+         if (e instanceof VixException && ((VixException) e).getError() != null) {
+            name = VixUtils.getErrorName(((VixException) e).getError());
+         } else {
+            name = e.getClass().getSimpleName();
+         }
+         AtomicLong count = mErrorCounts.get(name);
+         if (count == null) {
+            AtomicLong existing = mErrorCounts.putIfAbsent(name, count = new AtomicLong());
+            if (existing != null) {
+               count = existing;
+            }
+         }
+         count.incrementAndGet();
+      }
+   }
+
+   private static final String DEFAULT_MIX =
+         "open=1,readVariable=4,fileExists=4,listDirectory=2,copy=1,runScript=1,listProcesses=1";
+
+   private String mHostName;
+   private String mUser = "root";
+   private String mPassword = "";
+   private String mGuestUser;
+   private String mGuestPassword;
+   private String mGuestDir;
+   private boolean mSimulated;
+   private int mVmCount = Integer.MAX_VALUE;
+   private int mConcurrency = 8;
+   private double mRate;
+   private int mDurationSeconds = 30;
+   private int mWarmupSeconds = 5;
+   private int mCopySize = 64 * 1024;
+   private String mScript = "echo vix";
+   private String mMix = DEFAULT_MIX;
+
+   private VixVSphereHandle mHost;
+   private File mCopySource;
+   private final List<Target> mTargets = new ArrayList<Target>();
+   private Operation[] mOperations;
+   private int[] mCumulativeWeights;
+   private final Map<Operation, Stats> mStats =
+         new TreeMap<Operation, Stats>();
+   private final AtomicLong mNextSlot = new AtomicLong();
+   private final AtomicLong mCompleted = new AtomicLong();
+   private long mStartNanos;
+   private long mMeasureNanos;
+   private long mEndNanos;
+
+   /**
+    * Main entry point for execution.
+    *
+    * @param args
+    *           Options; run without arguments for usage.
+    */
+   public static void main(String[] args) {
+      LoadGenerator gen = new LoadGenerator();
+      try {
+         gen.parseArgs(args);
+      } catch (IllegalArgumentException e) {
+         System.err.println(e.getMessage());
+         usage();
+         System.exit(2);
+      }
+      try {
+         gen.run();
+      } catch (Exception e) {
+         System.err.println(e);
+         e.printStackTrace();
+         System.exit(1);
+      }
+   }
+
+   private static void usage() {
+      System.err.println("Usage: LoadGenerator (-host <url> | -simulated) [options]\n"
+            + "  -host <url>            vSphere host or vCenter, https://<host>/sdk\n"
+            + "  -user <user>           host user (default root)\n"
+            + "  -password <password>   host password\n"
+            + "  -simulated             use the simulated VIX library\n"
+            + "  -guestUser <user>      guest user (default: host user)\n"
+            + "  -guestPassword <pw>    guest password (default: host password)\n"
+            + "  -guestDir <path>       guest directory for list/copy/fileExists\n"
+            + "                         (default C:\\Windows\\Temp or /tmp)\n"
+            + "  -vms <n>               number of running VMs to use (default all)\n"
+            + "  -concurrency <n>       worker threads (default 8)\n"
+            + "  -rate <ops/s>          target rate (default: as fast as possible)\n"
+            + "  -duration <s>          measured run time (default 30)\n"
+            + "  -warmup <s>            unmeasured run time before that (default 5)\n"
+            + "  -copySize <bytes>      size of the copied file (default 65536)\n"
+            + "  -script <text>         script for runScript (default: echo vix)\n"
+            + "  -mix <op=weight,...>   operation mix, default\n"
+            + "                         " + DEFAULT_MIX);
+   }
+
+   private void parseArgs(String[] args) {
+      for (int i = 0; i < args.length; i++) {
+         String name = args[i];
+         if (name.equals("-simulated")) {
+            mSimulated = true;
+            continue;
+         }
+         if (i + 1 >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + name);
+         }
+         String value = args[++i];
+         if (name.equals("-host")) {
+            mHostName = value;
+         } else if (name.equals("-user")) {
+            mUser = value;
+         } else if (name.equals("-password")) {
+            mPassword = value;
+         } else if (name.equals("-guestUser")) {
+            mGuestUser = value;
+         } else if (name.equals("-guestPassword")) {
+            mGuestPassword = value;
+         } else if (name.equals("-guestDir")) {
+            mGuestDir = value;
+         } else if (name.equals("-vms")) {
+            mVmCount = Integer.parseInt(value);
+         } else if (name.equals("-concurrency")) {
+            mConcurrency = Integer.parseInt(value);
+         } else if (name.equals("-rate")) {
+            mRate = Double.parseDouble(value);
+         } else if (name.equals("-duration")) {
+            mDurationSeconds = Integer.parseInt(value);
+         } else if (name.equals("-warmup")) {
+            mWarmupSeconds = Integer.parseInt(value);
+         } else if (name.equals("-copySize")) {
+            mCopySize = Integer.parseInt(value);
+         } else if (name.equals("-script")) {
+            mScript = value;
+         } else if (name.equals("-mix")) {
+            mMix = value;
+         } else {
+            throw new IllegalArgumentException("Unknown option " + name);
+         }
+      }
+      if (mHostName == null && !mSimulated) {
+         throw new IllegalArgumentException("Either -host or -simulated is required.");
+      }
+      if (mConcurrency < 1 || mDurationSeconds < 1 || mWarmupSeconds < 0) {
+         throw new IllegalArgumentException("Invalid concurrency, duration or warmup.");
+      }
+      parseMix();
+   }
+
+   private void parseMix() {
+      List<Operation> ops = new ArrayList<Operation>();
+      List<Integer> weights = new ArrayList<Integer>();
+      int total = 0;
+      for (String part : mMix.split(",")) {
+         String[] pair = part.trim().split("=");
+         int weight = pair.length > 1 ? Integer.parseInt(pair[1].trim()) : 1;
+         if (weight > 0) {
+            total += weight;
+            ops.add(Operation.forName(pair[0].trim()));
+            weights.add(total);
+         }
+      }
+      if (ops.isEmpty()) {
+         throw new IllegalArgumentException("The mix has no operations.");
+      }
+      mOperations = ops.toArray(new Operation[ops.size()]);
+      mCumulativeWeights = new int[weights.size()];
+      for (int i = 0; i < mCumulativeWeights.length; i++) {
+         mCumulativeWeights[i] = weights.get(i);
+      }
+      for (Operation op : mOperations) {
+         mStats.put(op, new Stats());
+      }
+   }
+
+   private void run() throws VixException, IOException, InterruptedException {
+      if (mSimulated
+            && System.getProperty(VixLibraryFactory.LIBRARY_PROPERTY) == null) {
+         // Must be set before the first use of VixLibrary.INSTANCE.
+         System.setProperty(VixLibraryFactory.LIBRARY_PROPERTY,
+                            VixLibraryFactory.SIMULATED);
+      }
+      String guestUser = mGuestUser != null ? mGuestUser : mUser;
+      String guestPassword = mGuestPassword != null ? mGuestPassword : mPassword;
+
+      System.out.println("Connecting to host...");
+      mHost = new VixVSphereHandle(mHostName != null ? mHostName : "simulator",
+                                   mUser,
+                                   mPassword);
+      try {
+         for (String vmxPath : mHost.getRunningVms()) {
+            if (mTargets.size() >= mVmCount) {
+               break;
+            }
+            VixVmHandle vm = mHost.openVm(vmxPath);
+            vm.loginInGuest(guestUser, guestPassword, 0);
+            String guestDir = mGuestDir;
+            if (guestDir == null) {
+               guestDir = vm.directoryExistsInGuest("C:\\Windows\\Temp") ? "C:\\Windows\\Temp"
+                     : "/tmp";
+            }
+            mTargets.add(new Target(vmxPath, vm, guestDir));
+         }
+         if (mTargets.isEmpty()) {
+            System.err.println("No running VMs were found!");
+            return;
+         }
+         mCopySource = createCopySource();
+         System.out.println("Running against " + mTargets.size() + " VMs with "
+               + mConcurrency + " workers"
+               + (mRate > 0 ? " at " + mRate + " ops/s" : "") + " for "
+               + mWarmupSeconds + "s warmup + " + mDurationSeconds + "s...");
+         runWorkers();
+         report();
+      } finally {
+         for (Target target : mTargets) {
+            try {
+               target.mVm.logoutFromGuest();
+            } catch (VixException e) {
+               System.err.println("Logout from " + target.mVmxPath + " failed: "
+                     + e);
+            }
+            target.mVm.release();
+         }
+         if (mCopySource != null) {
+            mCopySource.delete();
+         }
+         mHost.disconnect();
+      }
+   }
+
+   private File createCopySource() throws IOException {
+      File file = File.createTempFile("vix-load", ".dat");
+      file.deleteOnExit();
+      byte[] data = new byte[Math.min(mCopySize, 1 << 20)];
+      new Random().nextBytes(data);
+      OutputStream out = new FileOutputStream(file);
+      try {
+         for (int left = mCopySize; left > 0; left -= data.length) {
+            out.write(data, 0, Math.min(left, data.length));
+         }
+      } finally {
+         out.close();
+      }
+      return file;
+   }
+
+   private void runWorkers() throws InterruptedException {
+      mStartNanos = System.nanoTime();
+      mMeasureNanos = mStartNanos + TimeUnit.SECONDS.toNanos(mWarmupSeconds);
+      mEndNanos = mMeasureNanos + TimeUnit.SECONDS.toNanos(mDurationSeconds);
+      ExecutorService workers = Executors.newFixedThreadPool(mConcurrency);
+      for (int i = 0; i < mConcurrency; i++) {
+         final int worker = i;
+         workers.execute(new Runnable() {
+            public void run() {
+               work(worker);
+            }
+         });
+      }
+      workers.shutdown();
+      long last = 0;
+      while (!workers.awaitTermination(5, TimeUnit.SECONDS)) {
+         long completed = mCompleted.get();
+         System.out.printf("%5ds %10d ops %10.1f ops/s\n",
+                           TimeUnit.NANOSECONDS.toSeconds(System.nanoTime()
+                                 - mStartNanos),
+                           completed,
+                           (completed - last) / 5.0);
+         last = completed;
+      }
+   }
+
+   private void work(int worker) {
+      Random random = new Random();
+      int total = mCumulativeWeights[mCumulativeWeights.length - 1];
+      while (true) {
+         long intended;
+         if (mRate > 0) {
+            intended = mStartNanos
+                  + (long) (mNextSlot.getAndIncrement() * 1e9 / mRate);
+            if (intended >= mEndNanos) {
+               return;
+            }
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0) {
+               LockSupport.parkNanos(wait);
+            }
+         } else {
+            intended = System.nanoTime();
+            if (intended >= mEndNanos) {
+               return;
+            }
+         }
+         int pick = random.nextInt(total);
+         int index = 0;
+         while (mCumulativeWeights[index] <= pick) {
+            index++;
+         }
+         Operation op = mOperations[index];
+         Target target = mTargets.get(random.nextInt(mTargets.size()));
+         Stats stats = mStats.get(op);
+         try {
+            op.run(this, target, worker);
+            if (intended >= mMeasureNanos) {
+               stats.mLatency.record(System.nanoTime() - intended);
+            }
+         } catch (Exception e) {
+            if (intended >= mMeasureNanos) {
+               stats.mLatency.record(System.nanoTime() - intended);
+               stats.recordError(e);
+            }
+         }
+         mCompleted.incrementAndGet();
+      }
+   }
+
+   private void report() {
+      double seconds = (mEndNanos - mMeasureNanos) / 1e9;
+      System.out.println();
+      System.out.printf("%-14s %9s %7s %9s %9s %9s %9s %9s\n",
+                        "operation",
+                        "count",
+                        "errors",
+                        "ops/s",
+                        "p50 ms",
+                        "p99 ms",
+                        "p999 ms",
+                        "max ms");
+      long errors = 0;
+      for (Map.Entry<Operation, Stats> entry : mStats.entrySet()) {
+         LatencyHistogram latency = entry.getValue().mLatency;
+         long opErrors = entry.getValue().mErrors.get();
+         printRow(entry.getKey().mName, latency, opErrors, seconds);
+         errors += opErrors;
+      }
+      long count = 0;
+      for (Stats stats : mStats.values()) {
+         count += stats.mLatency.getCount();
+      }
+      System.out.printf("%-14s %9d %7d %9.1f\n", "total", count, errors, count
+            / seconds);
+      ConcurrencyLimiter limiter = mHost.getConcurrencyLimiter();
+      if (limiter != null) {
+         System.out.println("Adaptive concurrency limit: " + limiter.getLimit()
+               + " (" + limiter.getIncreases() + " increases, "
+               + limiter.getDecreases() + " decreases)");
+      }
+      for (Map.Entry<Operation, Stats> entry : mStats.entrySet()) {
+         for (Map.Entry<String, AtomicLong> error : entry.getValue().mErrorCounts
+               .entrySet()) {
+            System.out.println(entry.getKey().mName + ": " + error.getValue()
+                  + " x " + error.getKey());
+         }
+      }
+   }
+
+   private static void printRow(
+         String name,
+         LatencyHistogram latency,
+         long errors,
+         double seconds) {
+      System.out.printf("%-14s %9d %7d %9.1f %9.2f %9.2f %9.2f %9.2f\n",
+                        name,
+                        latency.getCount(),
+                        errors,
+                        latency.getCount() / seconds,
+                        latency.getPercentile(0.5) / 1e6,
+                        latency.getPercentile(0.99) / 1e6,
+                        latency.getPercentile(0.999) / 1e6,
+                        latency.getMax() / 1e6);
+   }
+}
@@ -0,0 +1,253 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package com.vmware.vix.examples;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.vmware.vix.VixConstants;
+import com.vmware.vix.VixError;
+import com.vmware.vix.VixException;
+import com.vmware.vix.VixLibrary;
+import com.vmware.vix.VixLibraryFactory;
+import com.vmware.vix.VixVSphereHandle;
+import com.vmware.vix.VixVmHandle;
+import com.vmware.vix.resilience.CircuitBreaker;
+import com.vmware.vix.resilience.CircuitOpenException;
+import com.vmware.vix.resilience.ConcurrencyLimiter;
+import com.vmware.vix.resilience.RetryPolicy;
+import com.vmware.vix.resilience.VixCall;
+import com.vmware.vix.simulator.Latency;
+import com.vmware.vix.simulator.SimulatedVixLibrary;
+import com.vmware.vix.simulator.SimulatorConfig;
+
+/**
+ * Self-check of the circuit breaker and the adaptive concurrency limiter,
+ * driven by the simulated VIX library with scheduled connection failures.
+ * <p/>
+ * The breaker of the simulated host is taken from closed to open by
+ * consecutive connection failures, and then through half open back to open
+ * by a failing probe and to closed by a successful one, during which a
+ * second operation must be refused. The limiter must raise its limit under
+ * saturating load and lower it on a connection failure.
+ * <p/>
+ * Each check is printed; the exit status is 1 if any failed.
+ *
+ * <pre>
+ * java com.vmware.vix.examples.ResilienceCheck
+ * </pre>
+ */
+public class ResilienceCheck {
+
+   private static final String FUNCTION = "VixVM_ReadVariable";
+   private static final int FAILURES = 3;
+   private static final long COOL_DOWN_SECONDS = 1;
+   private static final long COOL_DOWN_MILLIS = COOL_DOWN_SECONDS * 1000;
+   private static final long PROBE_MILLIS = 500;
+
+   private final SimulatorConfig mConfig;
+   private final VixVmHandle mVm;
+   private int mFailed;
+
+   private ResilienceCheck(SimulatorConfig config, VixVmHandle vm) {
+      mConfig = config;
+      mVm = vm;
+   }
+
+   /**
+    * Main entry point for execution.
+    *
+    * @param args
+    *           Not used.
+    */
+   public static void main(String[] args) {
+      // Must be set before the first use of VixLibrary.INSTANCE.
+      System.setProperty(VixLibraryFactory.LIBRARY_PROPERTY,
+                         VixLibraryFactory.SIMULATED);
+      System.setProperty(CircuitBreaker.FAILURES_PROPERTY,
+                         Integer.toString(FAILURES));
+      System.setProperty(CircuitBreaker.COOL_DOWN_PROPERTY,
+                         Long.toString(COOL_DOWN_SECONDS));
+
+      VixVSphereHandle host = null;
+      int failed;
+      try {
+         host = new VixVSphereHandle("resilience-check", "root", "");
+         // A single attempt, so that every failure reaches the breaker.
+         host.setRetryPolicy(new RetryPolicy().setMaxAttempts(1));
+         VixVmHandle vm = host.openVm(host.getRunningVms().get(0));
+         SimulatorConfig config =
+               ((SimulatedVixLibrary) VixLibrary.INSTANCE).getConfig();
+         ResilienceCheck check = new ResilienceCheck(config, vm);
+         check.checkBreaker(host.getCircuitBreaker());
+         check.checkLimiter();
+         failed = check.mFailed;
+      } catch (Exception e) {
+         e.printStackTrace();
+         failed = 1;
+      } finally {
+         if (host != null) {
+            host.disconnect();
+         }
+      }
+      System.out.println(failed == 0 ? "All checks passed" : failed
+            + " check(s) failed");
+      System.exit(failed == 0 ? 0 : 1);
+   }
+
+   private void checkBreaker(CircuitBreaker breaker) throws Exception {
+      System.out.println("Circuit breaker, " + FAILURES + " failures, "
+            + COOL_DOWN_MILLIS + " ms cool-down");
+      check(breaker.getCurrentState() == CircuitBreaker.State.CLOSED,
+            "starts closed");
+
+      for (int i = 0; i < FAILURES; i++) {
+         mConfig.failNext(FUNCTION, VixError.VIX_E_HOST_TCP_CONN_LOST);
+      }
+      for (int i = 0; i < FAILURES; i++) {
+         check(is(read(), VixError.VIX_E_HOST_TCP_CONN_LOST),
+               "connection failure " + (i + 1) + " is passed on");
+         check(breaker.getCurrentState() == (i + 1 < FAILURES
+                     ? CircuitBreaker.State.CLOSED : CircuitBreaker.State.OPEN),
+               "state after failure " + (i + 1) + " is "
+                     + breaker.getCurrentState());
+      }
+      long rejected = breaker.getRejectedCalls();
+      check(read() == null && breaker.getRejectedCalls() == rejected + 1,
+            "open breaker refuses operations");
+
+      Thread.sleep(COOL_DOWN_MILLIS);
+      check(breaker.getCurrentState() == CircuitBreaker.State.HALF_OPEN,
+            "half open after the cool-down");
+      mConfig.failNext(FUNCTION, VixError.VIX_E_HOST_TCP_CONN_LOST);
+      check(is(read(), VixError.VIX_E_HOST_TCP_CONN_LOST)
+                  && breaker.getCurrentState() == CircuitBreaker.State.OPEN,
+            "failed probe opens the breaker again");
+
+      Thread.sleep(COOL_DOWN_MILLIS);
+      mConfig.setLatency(FUNCTION, Latency.fixed(PROBE_MILLIS));
+      final VixError[] probeResult = new VixError[1];
+      Thread probe = new Thread() {
+         @Override
+         public void run() {
+            probeResult[0] = read();
+         }
+      };
+      probe.start();
+      Thread.sleep(PROBE_MILLIS / 5);
+      rejected = breaker.getRejectedCalls();
+      check(read() == null && breaker.getRejectedCalls() == rejected + 1,
+            "only one probe is let through");
+      probe.join();
+      mConfig.setLatency(FUNCTION, Latency.none());
+      check(is(probeResult[0], VixError.VIX_OK)
+                  && breaker.getCurrentState() == CircuitBreaker.State.CLOSED,
+            "successful probe closes the breaker");
+   }
+
+   private void checkLimiter() throws Exception {
+      final ConcurrencyLimiter limiter =
+            new ConcurrencyLimiter("resilience-check", 4, 1, 64);
+      System.out.println("Concurrency limiter, limit " + limiter.getLimit());
+      mConfig.setLatency(FUNCTION, Latency.fixed(5));
+
+      List<Thread> workers = new ArrayList<Thread>();
+      for (int i = 0; i < 2 * limiter.getLimit(); i++) {
+         Thread worker = new Thread() {
+            @Override
+            public void run() {
+               for (int j = 0; j < 50; j++) {
+                  read(limiter);
+               }
+            }
+         };
+         worker.start();
+         workers.add(worker);
+      }
+      for (Thread worker : workers) {
+         worker.join();
+      }
+      int raised = limiter.getLimit();
+      check(raised > 4 && limiter.getIncreases() > 0,
+            "saturating load raises the limit to " + raised);
+
+      mConfig.failNext(FUNCTION, VixError.VIX_E_HOST_TCP_CONN_LOST);
+      check(is(read(limiter), VixError.VIX_E_HOST_TCP_CONN_LOST),
+            "connection failure is passed on");
+      check(limiter.getLimit() < raised && limiter.getDecreases() > 0,
+            "connection failure lowers the limit to " + limiter.getLimit());
+      mConfig.setLatency(FUNCTION, Latency.none());
+   }
+
+   /**
+    * Reads a variable of the VM.
+    *
+    * @return Error of the operation; VIX_OK on success, <code>null</code> if
+    *         it was refused by the breaker.
+    */
+   private VixError read() {
+      try {
+         mVm.readVariable("ip", VixConstants.VIX_VM_GUEST_VARIABLE);
+         return VixError.VIX_OK;
+      } catch (CircuitOpenException e) {
+         return null;
+      } catch (VixException e) {
+         return e.getError();
+      }
+   }
+
+   private VixError read(ConcurrencyLimiter limiter) {
+      try {
+         return limiter.execute(new VixCall<VixError>() {
+            public VixError call() throws VixException {
+               mVm.readVariable("ip", VixConstants.VIX_VM_GUEST_VARIABLE);
+               return VixError.VIX_OK;
+            }
+         });
+      } catch (VixException e) {
+         return e.getError();
+      }
+   }
+
+   /**
+    * Compares errors by code; VixType.equals() only takes other VixTypes.
+    */
+   private static boolean is(VixError error, VixError expected) {
+      return error != null && error.intValue() == expected.intValue();
+   }
+
+   private void check(boolean passed, String description) {
+      System.out.println((passed ? "  ok    " : "  FAIL  ") + description);
+      if (!passed) {
+         mFailed++;
+      }
+   }
+}
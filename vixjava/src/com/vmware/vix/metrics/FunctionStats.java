@@ -0,0 +1,213 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vmware.vix.VixError;
+import com.vmware.vix.VixUtils;
+
+/**
+ * Metrics of one VIX function: calls, call latency, errors by VixError and,
+ * for functions which start jobs, jobs in flight and end-to-end job latency.
+ */
+public class FunctionStats implements FunctionStatsMXBean {
+
+   private static final double NANOS_PER_MILLI = 1000000.0;
+
+   private final String mFunction;
+   private final AtomicLong mCalls = new AtomicLong();
+   private final LatencyHistogram mCallLatency = new LatencyHistogram();
+   private final LatencyHistogram mJobLatency = new LatencyHistogram();
+   private final AtomicInteger mInFlightJobs = new AtomicInteger();
+   private final ConcurrentHashMap<Integer, AtomicLong> mErrors =
+         new ConcurrentHashMap<Integer, AtomicLong>();
+
+   /**
+    * Constructor.
+    *
+    * @param function
+    *           Name of the VIX function.
+    */
+   public FunctionStats(String function) {
+      mFunction = function;
+   }
+
+   /**
+    * Records a call of the function.
+    *
+    * @param nanos
+    *           Time spent in the call.
+    */
+   public void recordCall(long nanos) {
+      mCalls.incrementAndGet();
+      mCallLatency.record(nanos);
+   }
+
+   /**
+    * Records an error returned by the function or by one of its jobs.
+    *
+    * @param error
+    *           Error other than VIX_OK.
+    */
+   public void recordError(VixError error) {
+      Integer code = error.intValue();
+      AtomicLong count = mErrors.get(code);
+      if (count == null) {
+         count = new AtomicLong();
+         AtomicLong existing = mErrors.putIfAbsent(code, count);
+         if (existing != null) {
+            count = existing;
+         }
+      }
+      count.incrementAndGet();
+   }
+
+   /**
+    * Records the start of a job.
+    */
+   public void jobStarted() {
+      mInFlightJobs.incrementAndGet();
+   }
+
+   /**
+    * Records the end of a job.
+    *
+    * @param nanos
+    *           Time from submitting the job to seeing it complete; negative if
+    *           the job was abandoned without being seen to complete.
+    */
+   public void jobEnded(long nanos) {
+      mInFlightJobs.decrementAndGet();
+      if (nanos >= 0) {
+         mJobLatency.record(nanos);
+      }
+   }
+
+   public String getFunction() {
+      return mFunction;
+   }
+
+   public long getCalls() {
+      return mCalls.get();
+   }
+
+   public long getErrors() {
+      long errors = 0;
+      for (AtomicLong count : mErrors.values()) {
+         errors += count.get();
+      }
+      return errors;
+   }
+
+   public Map<String, Long> getErrorCounts() {
+      Map<String, Long> counts = new TreeMap<String, Long>();
+      for (Map.Entry<Integer, AtomicLong> e : mErrors.entrySet()) {
+         counts.put(VixUtils.getErrorName(new VixError(e.getKey())),
+                    e.getValue().get());
+      }
+      return counts;
+   }
+
+   public double getMeanCallMillis() {
+      return mCallLatency.getMean() / NANOS_PER_MILLI;
+   }
+
+   public double getP99CallMillis() {
+      return mCallLatency.getPercentile(0.99) / NANOS_PER_MILLI;
+   }
+
+   public double getMaxCallMillis() {
+      return mCallLatency.getMax() / NANOS_PER_MILLI;
+   }
+
+   public int getInFlightJobs() {
+      return mInFlightJobs.get();
+   }
+
+   public long getCompletedJobs() {
+      return mJobLatency.getCount();
+   }
+
+   public double getMeanJobMillis() {
+      return mJobLatency.getMean() / NANOS_PER_MILLI;
+   }
+
+   public double getP50JobMillis() {
+      return mJobLatency.getPercentile(0.5) / NANOS_PER_MILLI;
+   }
+
+   public double getP99JobMillis() {
+      return mJobLatency.getPercentile(0.99) / NANOS_PER_MILLI;
+   }
+
+   public double getP999JobMillis() {
+      return mJobLatency.getPercentile(0.999) / NANOS_PER_MILLI;
+   }
+
+   public double getMaxJobMillis() {
+      return mJobLatency.getMax() / NANOS_PER_MILLI;
+   }
+
+   /**
+    * Get the histogram of time spent in calls of the function.
+    */
+   public LatencyHistogram getCallLatency() {
+      return mCallLatency;
+   }
+
+   /**
+    * Get the histogram of end-to-end job time.
+    */
+   public LatencyHistogram getJobLatency() {
+      return mJobLatency;
+   }
+
+   /**
+    * Get the number of errors by VixError value.
+    */
+   Map<Integer, AtomicLong> getErrorsByCode() {
+      return mErrors;
+   }
+
+   /**
+    * Clears all counts except jobs in flight.
+    */
+   public void reset() {
+      mCalls.set(0);
+      mCallLatency.reset();
+      mJobLatency.reset();
+      mErrors.clear();
+   }
+}
@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.metrics;
+
+/**
+ * Snapshot of a live VIX handle tracked by a {@link HandleRegistry}.
+ */
+public class HandleInfo {
+
+   private final int mHandle;
+   private final String mType;
+   private final String mHost;
+   private final long mCreatedMillis;
+   private final long mAgeMillis;
+   private final int mReferences;
+   private final String mCreationSite;
+   private final String mStackTrace;
+
+   /**
+    * Constructor.
+    */
+   HandleInfo(int handle,
+              String type,
+              String host,
+              long createdMillis,
+              long ageMillis,
+              int references,
+              String creationSite,
+              String stackTrace) {
+      mHandle = handle;
+      mType = type;
+      mHost = host;
+      mCreatedMillis = createdMillis;
+      mAgeMillis = ageMillis;
+      mReferences = references;
+      mCreationSite = creationSite;
+      mStackTrace = stackTrace;
+   }
+
+   /**
+    * Get the value of the handle.
+    */
+   public int getHandle() {
+      return mHandle;
+   }
+
+   /**
+    * Get the name of the VixHandleType, such as
+    * <code>VIX_HANDLETYPE_VM</code>.
+    */
+   public String getType() {
+      return mType;
+   }
+
+   /**
+    * Get the host the handle belongs to.
+    *
+    * @return Host name given to VixHost_Connect(); <code>null</code> if not
+    *         known.
+    */
+   public String getHost() {
+      return mHost;
+   }
+
+   /**
+    * Get the time the handle was created, in milliseconds since the epoch.
+    */
+   public long getCreatedMillis() {
+      return mCreatedMillis;
+   }
+
+   /**
+    * Get the age of the handle when this snapshot was taken.
+    */
+   public long getAgeMillis() {
+      return mAgeMillis;
+   }
+
+   /**
+    * Get the number of times the handle was obtained and not yet released.
+    */
+   public int getReferences() {
+      return mReferences;
+   }
+
+   /**
+    * Get the first frame of the creating call outside of the VIX classes.
+    *
+    * @return Frame such as <code>com.example.Deploy.run(Deploy.java:42)</code>;
+    *         <code>null</code> if stack traces are not captured.
+    */
+   public String getCreationSite() {
+      return mCreationSite;
+   }
+
+   /**
+    * Get the stack trace of the creating call, one frame per line.
+    *
+    * @return Stack trace; <code>null</code> if stack traces are not captured.
+    */
+   public String getStackTrace() {
+      return mStackTrace;
+   }
+
+   @Override
+   public String toString() {
+      return mType + " " + mHandle + (mHost != null ? " on " + mHost : "")
+            + ", age " + (mAgeMillis / 1000) + "s"
+            + (mCreationSite != null ? ", created at " + mCreationSite : "");
+   }
+}
@@ -0,0 +1,488 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.vmware.vix.VixHandleType;
+import com.vmware.vix.VixLibrary;
+
+/**
+ * Inventory of the live VIX handles obtained through an
+ * {@link #instrument(VixLibrary) instrumented} VixLibrary: job handles
+ * returned by VIX functions and handles returned through VixHandleByReference
+ * arguments, such as job results and snapshots. Each handle is recorded with
+ * its VixHandleType, the host it belongs to, its age and the stack of the call
+ * that created it, and is forgotten once Vix_ReleaseHandle() has been called
+ * for it as often as it was obtained.
+ * <p/>
+ * A watchdog started with {@link #startWatchdog(long)} reports handles older
+ * than a threshold on System.err, once per handle.
+ * <p/>
+ * Setting the system property <code>vix.handles=true</code> makes
+ * com.vmware.vix.VixLibraryFactory instrument VixLibrary.INSTANCE with the
+ * {@link #getDefault() default registry} and register it with the platform
+ * MBean server as <code>com.vmware.vix:type=HandleRegistry</code>.
+ * <code>vix.handles.leakThreshold=&lt;seconds&gt;</code> also starts the
+ * watchdog.
+ */
+public class HandleRegistry implements HandleRegistryMXBean {
+
+   public static final String HANDLES_PROPERTY = "vix.handles";
+   public static final String LEAK_THRESHOLD_PROPERTY =
+         "vix.handles.leakThreshold";
+
+   private static final String[] INTERNAL_PREFIXES =
+         { "com.vmware.vix.", "java.", "javax.", "sun.", "com.sun." };
+
+   /**
+    * Live handle.
+    */
+   static final class Entry {
+
+      final int mHandle;
+      final String mType;
+      final String mHost;
+      final long mCreatedMillis = System.currentTimeMillis();
+      final long mCreatedNanos = System.nanoTime();
+      final StackTraceElement[] mStack;
+      int mReferences = 1;
+      boolean mReported;
+
+      Entry(int handle, String type, String host, StackTraceElement[] stack) {
+         mHandle = handle;
+         mType = type;
+         mHost = host;
+         mStack = stack;
+      }
+
+      long getAgeMillis(long now) {
+         return (now - mCreatedNanos) / 1000000;
+      }
+   }
+
+   private static HandleRegistry mDefault;
+   private static Map<Integer, String> mTypeNames;
+
+   private final ConcurrentHashMap<Integer, Entry> mHandles =
+         new ConcurrentHashMap<Integer, Entry>();
+   private final AtomicLong mCreated = new AtomicLong();
+   private final AtomicLong mReleased = new AtomicLong();
+   private final AtomicLong mReportedLeaks = new AtomicLong();
+   private volatile boolean mCaptureStacks = true;
+   private ScheduledExecutorService mWatchdog;
+   private ScheduledFuture<?> mWatchdogTask;
+   private long mLeakThresholdMillis;
+
+   /**
+    * Get the registry VixLibraryFactory fills when
+    * <code>vix.handles=true</code>.
+    *
+    * @return Default registry.
+    */
+   public static synchronized HandleRegistry getDefault() {
+      if (mDefault == null) {
+         mDefault = new HandleRegistry();
+      }
+      return mDefault;
+   }
+
+   /**
+    * Wraps a VixLibrary so that the handles obtained through the wrapper are
+    * tracked by this registry.
+    *
+    * @param vix
+    *           Library to wrap.
+    * @return Wrapper.
+    */
+   public VixLibrary instrument(VixLibrary vix) {
+      return (VixLibrary) Proxy.newProxyInstance(VixLibrary.class.getClassLoader(),
+                                                 new Class<?>[] { VixLibrary.class },
+                                                 new HandleTrackingInvocationHandler(vix,
+                                                                                     this));
+   }
+
+   /**
+    * Registers this registry with the platform MBean server.
+    *
+    * @throws JMException
+    */
+   public void registerMBean() throws JMException {
+      registerMBean(ManagementFactory.getPlatformMBeanServer());
+   }
+
+   /**
+    * Registers this registry with an MBean server.
+    *
+    * @param server
+    * @throws JMException
+    */
+   public void registerMBean(MBeanServer server) throws JMException {
+      server.registerMBean(this, new ObjectName(VixMetrics.DOMAIN
+            + ":type=HandleRegistry"));
+   }
+
+   /**
+    * Sets whether the stack of the creating call is recorded for each handle.
+    * Capturing stacks costs a few microseconds per handle; without them
+    * creation sites are not known.
+    *
+    * @param captureStacks
+    *           <code>true</code> (the default) to record stacks.
+    */
+   public void setCaptureStackTraces(boolean captureStacks) {
+      mCaptureStacks = captureStacks;
+   }
+
+   /**
+    * Starts a daemon thread reporting handles older than the threshold. Each
+    * handle is reported once. Replaces a watchdog started before.
+    *
+    * @param thresholdMillis
+    *           Age above which handles are reported as suspected leaks.
+    */
+   public synchronized void startWatchdog(long thresholdMillis) {
+      stopWatchdog();
+      if (mWatchdog == null) {
+         mWatchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+               Thread thread = new Thread(r, "VIX handle watchdog");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+      }
+      mLeakThresholdMillis = thresholdMillis;
+      long period = Math.max(1000, thresholdMillis / 2);
+      mWatchdogTask = mWatchdog.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            reportLeaks();
+         }
+      }, period, period, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Stops the watchdog, if running.
+    */
+   public synchronized void stopWatchdog() {
+      if (mWatchdogTask != null) {
+         mWatchdogTask.cancel(false);
+         mWatchdogTask = null;
+      }
+      mLeakThresholdMillis = 0;
+   }
+
+   /**
+    * Reports the handles which have passed the leak threshold since the last
+    * check.
+    *
+    * @return Handles reported.
+    */
+   public List<HandleInfo> reportLeaks() {
+      long threshold;
+      synchronized (this) {
+         threshold = mLeakThresholdMillis;
+      }
+      List<HandleInfo> leaks = new ArrayList<HandleInfo>();
+      if (threshold <= 0) {
+         return leaks;
+      }
+      long now = System.nanoTime();
+      for (Entry entry : mHandles.values()) {
+         boolean report = false;
+         synchronized (entry) {
+            if (!entry.mReported && entry.getAgeMillis(now) > threshold) {
+               entry.mReported = true;
+               report = true;
+            }
+         }
+         if (report) {
+            HandleInfo info = toInfo(entry, now);
+            leaks.add(info);
+            mReportedLeaks.incrementAndGet();
+            System.err.println("Possible VIX handle leak: " + info);
+         }
+      }
+      return leaks;
+   }
+
+   /**
+    * Records a handle obtained from VIX.
+    *
+    * @param handle
+    *           Value of the handle.
+    * @param type
+    *           Type of the handle.
+    * @param host
+    *           Host the handle belongs to, or <code>null</code>.
+    */
+   void handleCreated(int handle, VixHandleType type, String host) {
+      mCreated.incrementAndGet();
+      Entry entry = mHandles.get(handle);
+      if (entry != null) {
+         synchronized (entry) {
+            if (entry.mReferences > 0) {
+               entry.mReferences++;
+               return;
+            }
+         }
+      }
+      StackTraceElement[] stack =
+            mCaptureStacks ? new Throwable().getStackTrace() : null;
+      mHandles.put(handle, new Entry(handle, getTypeName(type), host, stack));
+   }
+
+   /**
+    * Records a call of Vix_ReleaseHandle().
+    *
+    * @param handle
+    *           Value of the handle.
+    */
+   void handleReleased(int handle) {
+      Entry entry = mHandles.get(handle);
+      if (entry == null) {
+         return;
+      }
+      mReleased.incrementAndGet();
+      synchronized (entry) {
+         if (--entry.mReferences > 0) {
+            return;
+         }
+      }
+      mHandles.remove(handle, entry);
+   }
+
+   /**
+    * Get the host a live handle belongs to.
+    *
+    * @return Host name; <code>null</code> if the handle is not tracked or its
+    *         host is not known.
+    */
+   String getHost(int handle) {
+      Entry entry = mHandles.get(handle);
+      return entry != null ? entry.mHost : null;
+   }
+
+   public int getLiveHandleCount() {
+      return mHandles.size();
+   }
+
+   public Map<String, Integer> getLiveHandleCounts() {
+      Map<String, Integer> counts = new TreeMap<String, Integer>();
+      for (Entry entry : mHandles.values()) {
+         Integer count = counts.get(entry.mType);
+         counts.put(entry.mType, count != null ? count + 1 : 1);
+      }
+      return counts;
+   }
+
+   public long getCreatedHandles() {
+      return mCreated.get();
+   }
+
+   public long getReleasedHandles() {
+      return mReleased.get();
+   }
+
+   public List<HandleInfo> getLiveHandles() {
+      return getHandlesOlderThan(-1);
+   }
+
+   public List<HandleInfo> getHandlesOlderThan(long ageMillis) {
+      long now = System.nanoTime();
+      List<HandleInfo> handles = new ArrayList<HandleInfo>();
+      for (Entry entry : mHandles.values()) {
+         if (entry.getAgeMillis(now) > ageMillis) {
+            handles.add(toInfo(entry, now));
+         }
+      }
+      Collections.sort(handles, new Comparator<HandleInfo>() {
+         public int compare(HandleInfo a, HandleInfo b) {
+            return a.getAgeMillis() > b.getAgeMillis() ? -1
+                  : a.getAgeMillis() < b.getAgeMillis() ? 1 : 0;
+         }
+      });
+      return handles;
+   }
+
+   public synchronized long getLeakThresholdMillis() {
+      return mLeakThresholdMillis;
+   }
+
+   public long getReportedLeaks() {
+      return mReportedLeaks.get();
+   }
+
+   public String getLeakReport() {
+      Map<String, List<HandleInfo>> groups =
+            new HashMap<String, List<HandleInfo>>();
+      for (HandleInfo info : getLiveHandles()) {
+         String key = info.getType() + " created at "
+               + (info.getCreationSite() != null ? info.getCreationSite()
+                     : "unknown site");
+         List<HandleInfo> group = groups.get(key);
+         if (group == null) {
+            group = new ArrayList<HandleInfo>();
+            groups.put(key, group);
+         }
+         group.add(info);
+      }
+      List<Map.Entry<String, List<HandleInfo>>> sorted =
+            new ArrayList<Map.Entry<String, List<HandleInfo>>>(groups.entrySet());
+      Collections.sort(sorted, new Comparator<Map.Entry<String, List<HandleInfo>>>() {
+         public int compare(
+               Map.Entry<String, List<HandleInfo>> a,
+               Map.Entry<String, List<HandleInfo>> b) {
+            return b.getValue().size() - a.getValue().size();
+         }
+      });
+      StringBuilder report = new StringBuilder();
+      report.append(mHandles.size()).append(" live VIX handles\n");
+      for (Map.Entry<String, List<HandleInfo>> group : sorted) {
+         // Handles are sorted oldest first.
+         HandleInfo oldest = group.getValue().get(0);
+         report.append(group.getValue().size()).append(" x ")
+               .append(group.getKey()).append(", oldest ")
+               .append(oldest.getAgeMillis() / 1000).append("s");
+         if (oldest.getHost() != null) {
+            report.append(" on ").append(oldest.getHost());
+         }
+         report.append('\n');
+      }
+      return report.toString();
+   }
+
+   /**
+    * Forgets all tracked handles.
+    */
+   public void reset() {
+      mHandles.clear();
+      mCreated.set(0);
+      mReleased.set(0);
+      mReportedLeaks.set(0);
+   }
+
+   private static HandleInfo toInfo(Entry entry, long now) {
+      String site = null;
+      String stack = null;
+      if (entry.mStack != null) {
+         /*
+          * Skip the frames of the registry and the proxy, then take the
+          * first caller outside the VIX classes as the creation site.
+          */
+         int first = 0;
+         for (int i = 0; i < entry.mStack.length; i++) {
+            if (isTracking(entry.mStack[i])) {
+               first = i + 1;
+            }
+         }
+         StringBuilder trace = new StringBuilder();
+         for (int i = first; i < entry.mStack.length; i++) {
+            StackTraceElement frame = entry.mStack[i];
+            if (site == null && !isInternal(frame)) {
+               site = frame.toString();
+            }
+            trace.append(frame).append('\n');
+         }
+         if (site == null && first < entry.mStack.length) {
+            site = entry.mStack[first].toString();
+         }
+         stack = trace.toString();
+      }
+      int references;
+      synchronized (entry) {
+         references = entry.mReferences;
+      }
+      return new HandleInfo(entry.mHandle,
+                            entry.mType,
+                            entry.mHost,
+                            entry.mCreatedMillis,
+                            entry.getAgeMillis(now),
+                            references,
+                            site,
+                            stack);
+   }
+
+   private static boolean isTracking(StackTraceElement frame) {
+      String className = frame.getClassName();
+      return className.equals(HandleRegistry.class.getName())
+            || className.equals(HandleTrackingInvocationHandler.class.getName())
+            || className.contains("$Proxy");
+   }
+
+   private static boolean isInternal(StackTraceElement frame) {
+      for (String prefix : INTERNAL_PREFIXES) {
+         if (frame.getClassName().startsWith(prefix)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private static synchronized String getTypeName(VixHandleType type) {
+      if (mTypeNames == null) {
+         mTypeNames = new HashMap<Integer, String>();
+         for (Field field : VixHandleType.class.getFields()) {
+            if (Modifier.isStatic(field.getModifiers())
+                  && field.getType().equals(VixHandleType.class)) {
+               try {
+                  mTypeNames.put(((VixHandleType) field.get(null)).intValue(),
+                                 field.getName());
+               } catch (IllegalAccessException e) {
+                  // Public constant; cannot happen.
+               }
+            }
+         }
+      }
+      String name = mTypeNames.get(type.intValue());
+      return name != null ? name : String.valueOf(type.longValue());
+   }
+}
@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.metrics;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMX view of the live VIX handles tracked by a HandleRegistry.
+ */
+public interface HandleRegistryMXBean {
+
+   int getLiveHandleCount();
+
+   /**
+    * Get the number of live handles by VixHandleType name.
+    */
+   Map<String, Integer> getLiveHandleCounts();
+
+   long getCreatedHandles();
+
+   long getReleasedHandles();
+
+   List<HandleInfo> getLiveHandles();
+
+   /**
+    * Get the live handles created more than the given time ago, oldest first.
+    */
+   List<HandleInfo> getHandlesOlderThan(long ageMillis);
+
+   /**
+    * Get the age above which the watchdog reports handles as suspected
+    * leaks; zero if the watchdog is not running.
+    */
+   long getLeakThresholdMillis();
+
+   /**
+    * Get the number of handles the watchdog has reported so far.
+    */
+   long getReportedLeaks();
+
+   /**
+    * Get a report of live handles grouped by type and creation site.
+    */
+   String getLeakReport();
+}
@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.metrics;
+
+import java.lang.reflect.Method;
+
+import com.vmware.vix.ForwardingInvocationHandler;
+import com.vmware.vix.VixHandle;
+import com.vmware.vix.VixHandleByReference;
+import com.vmware.vix.VixHandleType;
+import com.vmware.vix.VixLibrary;
+
+/**
+ * Proxy handler which forwards VixLibrary calls and records the handles they
+ * return in a HandleRegistry.
+ * <p/>
+ * Handles returned by a function, which are job handles, and handles written
+ * to VixHandleByReference arguments are recorded. A new handle belongs to the
+ * host of the handle the function was called on; handles of VixHost_Connect()
+ * jobs belong to the host being connected to.
+ * <p/>
+ * A job with a callback may complete, and have its handle released by the
+ * callback, before the submitting call returns. Its handle is therefore
+ * recorded by whichever comes first, its first event or the return of the
+ * call, before the caller's callback can release it.
+ */
+class HandleTrackingInvocationHandler
+      extends ForwardingInvocationHandler<HandleTrackingInvocationHandler.TrackedCall> {
+
+   /**
+    * Call whose handles are recorded.
+    */
+   static final class TrackedCall {
+
+      final String mHost;
+      boolean mJobRecorded;
+
+      TrackedCall(String host) {
+         mHost = host;
+      }
+   }
+
+   private final HandleRegistry mRegistry;
+
+   /**
+    * Constructor.
+    *
+    * @param delegate
+    *           Library the calls are forwarded to.
+    * @param registry
+    *           Where the handles are recorded.
+    */
+   HandleTrackingInvocationHandler(VixLibrary delegate, HandleRegistry registry) {
+      super(delegate, "Handle tracking");
+      mRegistry = registry;
+   }
+
+   @Override
+   protected TrackedCall callStarted(
+         Method method,
+         Object[] args,
+         boolean startsJob) {
+      String function = method.getName();
+      if (function.equals("Vix_ReleaseHandle")) {
+         mRegistry.handleReleased(((VixHandle) args[0]).intValue());
+         return null;
+      }
+      String host = null;
+      if (function.equals("VixHost_Connect")) {
+         host = (String) args[2];
+      } else if (args != null && args.length > 0
+            && args[0] instanceof VixHandle) {
+         host = mRegistry.getHost(((VixHandle) args[0]).intValue());
+      }
+      return new TrackedCall(host);
+   }
+
+   @Override
+   protected void callEnded(
+         TrackedCall call,
+         Method method,
+         Object[] args,
+         Object result,
+         Throwable exception) {
+      if (exception != null) {
+         return;
+      }
+      if (result instanceof VixHandle) {
+         jobCreated(call, ((VixHandle) result).intValue());
+      }
+      if (args != null) {
+         for (Object arg : args) {
+            if (arg instanceof VixHandleByReference) {
+               created(((VixHandleByReference) arg).getValue().intValue(),
+                       call.mHost);
+            } else if (arg instanceof Object[]) {
+               // Varargs of VixJob_Wait() and Vix_GetProperties().
+               for (Object vararg : (Object[]) arg) {
+                  if (vararg instanceof VixHandleByReference) {
+                     created(((VixHandleByReference) vararg).getValue()
+                           .intValue(), call.mHost);
+                  }
+               }
+            }
+         }
+      }
+   }
+
+   @Override
+   protected void eventDelivered(
+         TrackedCall call,
+         int handle,
+         int eventType,
+         int moreEventInfo) {
+      jobCreated(call, handle);
+   }
+
+   /**
+    * Records the handle returned by a call once, holding the call so that
+    * its callback cannot release the handle meanwhile.
+    */
+   private void jobCreated(TrackedCall call, int handle) {
+      synchronized (call) {
+         if (!call.mJobRecorded) {
+            call.mJobRecorded = true;
+            created(handle, call.mHost);
+         }
+      }
+   }
+
+   private void created(int handle, String host) {
+      if (handle != VixHandle.VIX_INVALID_HANDLE.intValue()) {
+         VixHandleType type = mDelegate.Vix_GetHandleType(new VixHandle(handle));
+         mRegistry.handleCreated(handle, type, host);
+      }
+   }
+}
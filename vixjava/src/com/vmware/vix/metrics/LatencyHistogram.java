@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations with logarithmic buckets: eight buckets
+ * per power of two microseconds, so percentiles are accurate to within about
+ * 12%, from one microsecond to several days. Recording is a few atomic
+ * increments and never allocates.
+ */
+public class LatencyHistogram {
+
+   private static final int SUB_BUCKET_BITS = 3;
+   private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+   private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+   private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+   private final AtomicLong mCount = new AtomicLong();
+   private final AtomicLong mSum = new AtomicLong();
+   private final AtomicLong mMax = new AtomicLong();
+
+   /**
+    * Records a duration.
+    *
+    * @param nanos
+    *           Duration in nanoseconds; negative values count as zero.
+    */
+   public void record(long nanos) {
+      nanos = Math.max(0, nanos);
+      mCounts.incrementAndGet(getBucket(nanos / 1000));
+      mCount.incrementAndGet();
+      mSum.addAndGet(nanos);
+      long max;
+      while (nanos > (max = mMax.get()) && !mMax.compareAndSet(max, nanos)) {
+      }
+   }
+
+   /**
+    * Get the number of recorded durations.
+    */
+   public long getCount() {
+      return mCount.get();
+   }
+
+   /**
+    * Get the sum of the recorded durations in nanoseconds.
+    */
+   public long getSum() {
+      return mSum.get();
+   }
+
+   /**
+    * Get the longest recorded duration in nanoseconds.
+    */
+   public long getMax() {
+      return mMax.get();
+   }
+
+   /**
+    * Get the mean of the recorded durations.
+    *
+    * @return Mean in nanoseconds; 0 if nothing was recorded.
+    */
+   public double getMean() {
+      long count = getCount();
+      return count > 0 ? (double) getSum() / count : 0;
+   }
+
+   /**
+    * Get a percentile of the recorded durations.
+    *
+    * @param quantile
+    *           Quantile between 0 and 1, for example 0.99 for the 99th
+    *           percentile.
+    * @return Upper bound of the bucket holding the percentile in nanoseconds,
+    *         but no more than the maximum; 0 if nothing was recorded.
+    */
+   public long getPercentile(double quantile) {
+      long count = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+         count += mCounts.get(i);
+      }
+      long rank = (long) Math.ceil(quantile * count);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS && count > 0; i++) {
+         seen += mCounts.get(i);
+         if (seen >= rank && seen > 0) {
+            return Math.min(getUpperBound(i) * 1000, getMax());
+         }
+      }
+      return 0;
+   }
+
+   /**
+    * Get the number of recorded durations no longer than a limit. Buckets
+    * reaching past the limit are left out, so the result may be lower than
+    * the exact count by up to one bucket.
+    *
+    * @param nanos
+    *           Limit in nanoseconds.
+    * @return Number of durations.
+    */
+   public long getCountAtOrBelow(long nanos) {
+      long count = 0;
+      for (int i = 0; i < BUCKETS && getUpperBound(i) * 1000 <= nanos; i++) {
+         count += mCounts.get(i);
+      }
+      return count;
+   }
+
+   /**
+    * Removes all recorded durations.
+    */
+   public void reset() {
+      for (int i = 0; i < BUCKETS; i++) {
+         mCounts.set(i, 0);
+      }
+      mCount.set(0);
+      mSum.set(0);
+      mMax.set(0);
+   }
+
+   /**
+    * Get the bucket of a duration in microseconds. Durations below
+    * SUB_BUCKETS have a bucket each; above that each power of two is split
+    * into SUB_BUCKETS buckets.
+    */
+   private static int getBucket(long micros) {
+      if (micros < SUB_BUCKETS) {
+         return (int) micros;
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(micros);
+      int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+      return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+   }
+
+   /**
+    * Get the largest duration in microseconds that falls in a bucket.
+    */
+   private static long getUpperBound(int bucket) {
+      if (bucket < SUB_BUCKETS) {
+         return bucket;
+      }
+      int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+      long sub = bucket % SUB_BUCKETS;
+      if (exponent >= 52) {
+         return Long.MAX_VALUE / 1000;
+      }
+      return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+   }
+}
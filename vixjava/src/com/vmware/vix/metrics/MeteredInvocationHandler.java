@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.metrics;
+
+import java.lang.reflect.Method;
+
+import com.vmware.vix.ForwardingInvocationHandler;
+import com.vmware.vix.VixError;
+import com.vmware.vix.VixLibrary;
+
+/**
+ * Proxy handler which forwards VixLibrary calls and records them in
+ * VixMetrics.
+ * <p/>
+ * A job is followed from the call which submits it until VixJob_Wait()
+ * returns for it, its completion callback is made or VixJob_CheckCompletion()
+ * reports it complete, whichever comes first. Errors of a job are counted
+ * against the function which submitted it.
+ */
+class MeteredInvocationHandler
+      extends ForwardingInvocationHandler<MeteredInvocationHandler.MeteredCall> {
+
+   /**
+    * Call being recorded, and the job it submitted, if any.
+    */
+   static final class MeteredCall {
+
+      final FunctionStats mStats;
+      final boolean mJob;
+      final long mStart = System.nanoTime();
+
+      MeteredCall(FunctionStats stats, boolean job) {
+         mStats = stats;
+         mJob = job;
+      }
+   }
+
+   private final VixMetrics mMetrics;
+
+   /**
+    * Constructor.
+    *
+    * @param delegate
+    *           Library the calls are forwarded to.
+    * @param metrics
+    *           Where the calls are recorded.
+    */
+   MeteredInvocationHandler(VixLibrary delegate, VixMetrics metrics) {
+      super(delegate, "Metered");
+      mMetrics = metrics;
+   }
+
+   @Override
+   protected MeteredCall callStarted(
+         Method method,
+         Object[] args,
+         boolean startsJob) {
+      FunctionStats stats = mMetrics.getStats(method.getName());
+      if (startsJob) {
+         stats.jobStarted();
+      }
+      return new MeteredCall(stats, startsJob);
+   }
+
+   @Override
+   protected void callEnded(
+         MeteredCall call,
+         Method method,
+         Object[] args,
+         Object result,
+         Throwable exception) {
+      call.mStats.recordCall(System.nanoTime() - call.mStart);
+      if (exception != null) {
+         if (call.mJob) {
+            call.mStats.jobEnded(-1);
+         }
+         return;
+      }
+      String function = method.getName();
+      /*
+       * VixJob_Wait and VixJob_GetError report the error of a job, which is
+       * counted against the function that submitted it.
+       */
+      if (result instanceof VixError
+            && !function.equals("VixJob_Wait")
+            && !function.equals("VixJob_GetError")) {
+         VixError error = (VixError) result;
+         if (!error.equals(VixError.VIX_OK)) {
+            call.mStats.recordError(error);
+         }
+      }
+   }
+
+   @Override
+   protected void jobEnded(MeteredCall call, VixError error) {
+      call.mStats.jobEnded(error != null ? System.nanoTime() - call.mStart : -1);
+      if (error != null && !error.equals(VixError.VIX_OK)) {
+         call.mStats.recordError(error);
+      }
+   }
+}
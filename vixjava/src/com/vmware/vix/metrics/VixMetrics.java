@@ -0,0 +1,304 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.metrics;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.vmware.vix.VixError;
+import com.vmware.vix.VixLibrary;
+import com.vmware.vix.VixUtils;
+
+/**
+ * Per-function metrics of VIX calls: call counts and latency, errors by
+ * VixError, jobs in flight and end-to-end job latency from submission until
+ * the job is seen to complete.
+ * <p/>
+ * Metrics are collected by a VixLibrary wrapped with
+ * {@link #instrument(VixLibrary)}. Setting the system property
+ * <code>vix.metrics=true</code> makes com.vmware.vix.VixLibraryFactory wrap
+ * VixLibrary.INSTANCE with the {@link #getDefault() default metrics} and
+ * register them with the platform MBean server, as
+ * <code>com.vmware.vix:type=VixMetrics</code> and one
+ * <code>com.vmware.vix:type=FunctionStats,name=&lt;function&gt;</code> per
+ * VIX function called.
+ */
+public class VixMetrics implements VixMetricsMXBean {
+
+   public static final String METRICS_PROPERTY = "vix.metrics";
+   public static final String DOMAIN = "com.vmware.vix";
+
+   /**
+    * Upper bounds of the Prometheus histogram buckets in seconds.
+    */
+   private static final double[] BUCKETS =
+         { 0.0001, 0.0005, 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30,
+          60, 300 };
+
+   private static VixMetrics mDefault;
+
+   private final ConcurrentHashMap<String, FunctionStats> mFunctions =
+         new ConcurrentHashMap<String, FunctionStats>();
+   private MBeanServer mServer;
+
+   /**
+    * Get the metrics VixLibraryFactory collects when
+    * <code>vix.metrics=true</code>.
+    *
+    * @return Default metrics.
+    */
+   public static synchronized VixMetrics getDefault() {
+      if (mDefault == null) {
+         mDefault = new VixMetrics();
+      }
+      return mDefault;
+   }
+
+   /**
+    * Wraps a VixLibrary so that all calls through the wrapper are recorded
+    * in these metrics.
+    *
+    * @param vix
+    *           Library to wrap.
+    * @return Wrapper.
+    */
+   public VixLibrary instrument(VixLibrary vix) {
+      return (VixLibrary) Proxy.newProxyInstance(VixLibrary.class.getClassLoader(),
+                                                 new Class<?>[] { VixLibrary.class },
+                                                 new MeteredInvocationHandler(vix,
+                                                                              this));
+   }
+
+   /**
+    * Registers these metrics with the platform MBean server.
+    *
+    * @throws JMException
+    */
+   public void registerMBeans() throws JMException {
+      registerMBeans(ManagementFactory.getPlatformMBeanServer());
+   }
+
+   /**
+    * Registers these metrics with an MBean server. Functions called later are
+    * registered as they are first called.
+    *
+    * @param server
+    * @throws JMException
+    */
+   public synchronized void registerMBeans(MBeanServer server)
+         throws JMException {
+      server.registerMBean(this, new ObjectName(DOMAIN + ":type=VixMetrics"));
+      mServer = server;
+      for (FunctionStats stats : mFunctions.values()) {
+         registerMBean(stats);
+      }
+   }
+
+   /**
+    * Get the metrics of a function, creating them on first use.
+    *
+    * @param function
+    *           Name of the VIX function.
+    * @return Metrics of the function.
+    */
+   public FunctionStats getStats(String function) {
+      FunctionStats stats = mFunctions.get(function);
+      if (stats == null) {
+         stats = new FunctionStats(function);
+         FunctionStats existing = mFunctions.putIfAbsent(function, stats);
+         if (existing != null) {
+            return existing;
+         }
+         synchronized (this) {
+            if (mServer != null) {
+               registerMBean(stats);
+            }
+         }
+      }
+      return stats;
+   }
+
+   /**
+    * Get the metrics of all functions called so far.
+    *
+    * @return Metrics ordered by function name.
+    */
+   public List<FunctionStats> getAllStats() {
+      return new ArrayList<FunctionStats>(new TreeMap<String, FunctionStats>(mFunctions).values());
+   }
+
+   public String[] getFunctions() {
+      return new TreeMap<String, FunctionStats>(mFunctions).keySet()
+            .toArray(new String[0]);
+   }
+
+   public long getCalls() {
+      long calls = 0;
+      for (FunctionStats stats : mFunctions.values()) {
+         calls += stats.getCalls();
+      }
+      return calls;
+   }
+
+   public long getErrors() {
+      long errors = 0;
+      for (FunctionStats stats : mFunctions.values()) {
+         errors += stats.getErrors();
+      }
+      return errors;
+   }
+
+   public int getInFlightJobs() {
+      int jobs = 0;
+      for (FunctionStats stats : mFunctions.values()) {
+         jobs += stats.getInFlightJobs();
+      }
+      return jobs;
+   }
+
+   public void reset() {
+      for (FunctionStats stats : mFunctions.values()) {
+         stats.reset();
+      }
+   }
+
+   public String toPrometheus() {
+      StringWriter out = new StringWriter();
+      try {
+         writePrometheus(out);
+      } catch (IOException e) {
+         // Cannot happen with a StringWriter.
+      }
+      return out.toString();
+   }
+
+   /**
+    * Writes all metrics in the Prometheus text exposition format.
+    *
+    * @param out
+    *           Where to write the metrics.
+    * @throws IOException
+    */
+   public void writePrometheus(Writer out) throws IOException {
+      List<FunctionStats> all = getAllStats();
+      out.write("# HELP vix_calls_total Calls of VIX functions.\n");
+      out.write("# TYPE vix_calls_total counter\n");
+      for (FunctionStats stats : all) {
+         writeSample(out, "vix_calls_total", stats, null, stats.getCalls());
+      }
+      out.write("# HELP vix_errors_total Errors returned by VIX functions and their jobs.\n");
+      out.write("# TYPE vix_errors_total counter\n");
+      for (FunctionStats stats : all) {
+         for (Map.Entry<Integer, AtomicLong> e : stats.getErrorsByCode()
+               .entrySet()) {
+            String name = VixUtils.getErrorName(new VixError(e.getKey()));
+            writeSample(out,
+                        "vix_errors_total",
+                        stats,
+                        "error=\"" + name + "\"",
+                        e.getValue().get());
+         }
+      }
+      out.write("# HELP vix_jobs_in_flight VIX jobs submitted and not yet seen to complete.\n");
+      out.write("# TYPE vix_jobs_in_flight gauge\n");
+      for (FunctionStats stats : all) {
+         if (stats.getInFlightJobs() != 0 || stats.getCompletedJobs() > 0) {
+            writeSample(out,
+                        "vix_jobs_in_flight",
+                        stats,
+                        null,
+                        stats.getInFlightJobs());
+         }
+      }
+      out.write("# HELP vix_call_seconds Time spent in calls of VIX functions.\n");
+      out.write("# TYPE vix_call_seconds histogram\n");
+      for (FunctionStats stats : all) {
+         writeHistogram(out, "vix_call_seconds", stats, stats.getCallLatency());
+      }
+      out.write("# HELP vix_job_seconds Time from submitting a VIX job to its completion.\n");
+      out.write("# TYPE vix_job_seconds histogram\n");
+      for (FunctionStats stats : all) {
+         if (stats.getCompletedJobs() > 0) {
+            writeHistogram(out, "vix_job_seconds", stats, stats.getJobLatency());
+         }
+      }
+   }
+
+   private void registerMBean(FunctionStats stats) {
+      try {
+         mServer.registerMBean(stats, new ObjectName(DOMAIN
+               + ":type=FunctionStats,name=" + stats.getFunction()));
+      } catch (JMException e) {
+         // Metrics are still collected, just not visible through JMX.
+      }
+   }
+
+   private static void writeHistogram(
+         Writer out,
+         String name,
+         FunctionStats stats,
+         LatencyHistogram histogram) throws IOException {
+      long count = histogram.getCount();
+      for (double bound : BUCKETS) {
+         writeSample(out,
+                     name + "_bucket",
+                     stats,
+                     "le=\"" + bound + "\"",
+                     histogram.getCountAtOrBelow((long) (bound * 1e9)));
+      }
+      writeSample(out, name + "_bucket", stats, "le=\"+Inf\"", count);
+      out.write(name + "_sum{function=\"" + stats.getFunction() + "\"} "
+            + histogram.getSum() / 1e9 + "\n");
+      writeSample(out, name + "_count", stats, null, count);
+   }
+
+   private static void writeSample(
+         Writer out,
+         String name,
+         FunctionStats stats,
+         String labels,
+         long value) throws IOException {
+      out.write(name + "{function=\"" + stats.getFunction() + "\""
+            + (labels != null ? "," + labels : "") + "} " + value + "\n");
+   }
+}
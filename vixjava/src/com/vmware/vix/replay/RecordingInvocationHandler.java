@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.replay;
+
+import java.lang.reflect.Method;
+
+import com.vmware.vix.ForwardingInvocationHandler;
+import com.vmware.vix.VixLibrary;
+
+/**
+ * Proxy handler which forwards VixLibrary calls and writes them to a
+ * TraceRecorder. Callbacks of jobs are wrapped so that the events VIX
+ * delivers are recorded too.
+ */
+class RecordingInvocationHandler
+      extends ForwardingInvocationHandler<RecordingInvocationHandler.RecordedCall> {
+
+   /**
+    * Call being recorded.
+    */
+   static final class RecordedCall {
+
+      final long mSequence;
+      final boolean mJob;
+      final long mStart;
+
+      RecordedCall(long sequence, boolean job, long start) {
+         mSequence = sequence;
+         mJob = job;
+         mStart = start;
+      }
+   }
+
+   private final TraceRecorder mRecorder;
+
+   /**
+    * Constructor.
+    *
+    * @param delegate
+    *           Library the calls are forwarded to.
+    * @param recorder
+    *           Where the calls are recorded.
+    */
+   RecordingInvocationHandler(VixLibrary delegate, TraceRecorder recorder) {
+      super(delegate, "Recording");
+      mRecorder = recorder;
+   }
+
+   @Override
+   protected RecordedCall callStarted(
+         Method method,
+         Object[] args,
+         boolean startsJob) {
+      long sequence = mRecorder.nextSequence();
+      return new RecordedCall(sequence, startsJob, mRecorder.now());
+   }
+
+   @Override
+   protected void callEnded(
+         RecordedCall call,
+         Method method,
+         Object[] args,
+         Object result,
+         Throwable exception) {
+      if (exception == null) {
+         mRecorder.writeCall(call.mSequence,
+                             method.getName(),
+                             call.mJob,
+                             call.mStart,
+                             mRecorder.now() - call.mStart,
+                             args,
+                             result);
+      }
+   }
+
+   @Override
+   protected void eventDelivered(
+         RecordedCall call,
+         int handle,
+         int eventType,
+         int moreEventInfo) {
+      mRecorder.writeEvent(call.mSequence,
+                           mRecorder.now(),
+                           eventType,
+                           handle,
+                           moreEventInfo);
+   }
+}
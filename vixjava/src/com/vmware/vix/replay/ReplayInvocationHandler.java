@@ -0,0 +1,364 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.replay;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.lang.reflect.Constructor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.LongByReference;
+import com.sun.jna.ptr.PointerByReference;
+import com.vmware.vix.VixError;
+import com.vmware.vix.VixEventProc;
+import com.vmware.vix.VixHandle;
+import com.vmware.vix.VixHandleByReference;
+import com.vmware.vix.VixPropertyTypeByReference;
+import com.vmware.vix.VixType;
+
+/**
+ * Stub VixLibrary which answers calls from a recorded trace.
+ * <p/>
+ * Each call is matched with the next recorded call of the same function on
+ * the same handle, falling back to the next recorded call of the function.
+ * The stub takes the recorded time, scaled, and then returns the recorded
+ * result and output arguments. Jobs complete after their recorded job time,
+ * scaled. At that point VixJob_Wait() returns and the recorded callback
+ * events are delivered. Calls which were not recorded return immediately with
+ * VIX_OK, an invalid handle or zero.
+ */
+class ReplayInvocationHandler implements InvocationHandler {
+
+   /**
+    * Job handed out by the stub.
+    */
+   private static final class Job {
+
+      final long mDeadline;
+      final CountDownLatch mEventsDelivered;
+
+      Job(long deadline, int events) {
+         mDeadline = deadline;
+         mEventsDelivered = new CountDownLatch(events);
+      }
+   }
+
+   private final double mTimeScale;
+   private final Map<String, ArrayDeque<TraceCall>> mByTarget =
+         new HashMap<String, ArrayDeque<TraceCall>>();
+   private final Map<String, ArrayDeque<TraceCall>> mByFunction =
+         new HashMap<String, ArrayDeque<TraceCall>>();
+   private final Set<TraceCall> mAnswered =
+         Collections.newSetFromMap(new IdentityHashMap<TraceCall, Boolean>());
+
+   private final ConcurrentHashMap<Long, Job> mJobs =
+         new ConcurrentHashMap<Long, Job>();
+   private final ConcurrentHashMap<Class<?>, Constructor<?>> mConstructors =
+         new ConcurrentHashMap<Class<?>, Constructor<?>>();
+
+   /*
+    * Strings returned through PointerByReference, kept until
+    * Vix_FreeBuffer() is called for them.
+    */
+   private final ConcurrentHashMap<Pointer, Memory> mBuffers =
+         new ConcurrentHashMap<Pointer, Memory>();
+   private final ScheduledExecutorService mCallbacks =
+         Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+               Thread thread = new Thread(r, "VIX replay callbacks");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+
+   /**
+    * Constructor.
+    *
+    * @param calls
+    *           Recorded calls, ordered by start time.
+    * @param timeScale
+    *           Factor applied to recorded times; 1 for the original timing.
+    */
+   ReplayInvocationHandler(List<TraceCall> calls, double timeScale) {
+      mTimeScale = timeScale;
+      for (TraceCall call : calls) {
+         queue(mByTarget, getKey(call.getFunction(), call.getTarget())).add(call);
+         queue(mByFunction, call.getFunction()).add(call);
+      }
+   }
+
+   public Object invoke(Object proxy, Method method, Object[] args)
+         throws Throwable {
+      if (method.getDeclaringClass().equals(Object.class)) {
+         return invokeObjectMethod(proxy, method, args);
+      }
+      String function = method.getName();
+      long target = -1;
+      if (args != null && args.length > 0 && args[0] instanceof VixType) {
+         target = ((VixType) args[0]).longValue();
+      }
+      if (function.equals("Vix_FreeBuffer")) {
+         if (args[0] != null) {
+            mBuffers.remove(args[0]);
+         }
+         return null;
+      }
+      TraceCall call = next(function, target);
+      if (call == null) {
+         return getDefault(method.getReturnType());
+      }
+
+      Job job = mJobs.get(target);
+      if (function.equals("VixJob_Wait") && job != null) {
+         // Like VIX, deliver the events of a job before Wait returns.
+         sleepUntil(job.mDeadline);
+         job.mEventsDelivered.await();
+      } else if (function.equals("VixJob_CheckCompletion") && job != null) {
+         ((IntByReference) args[1]).setValue(System.nanoTime() >= job.mDeadline ? 1 : 0);
+         return VixError.VIX_OK;
+      } else {
+         sleepUntil(System.nanoTime() + scale(call.getDurationNanos()));
+      }
+      setOutputs(args, call.getRecordedArguments());
+      Object result = copy(call.getResult());
+
+      if (call.isJob() && result instanceof VixType) {
+         long jobNanos =
+               call.getJobEndNanos() >= 0 ? call.getJobEndNanos()
+                     - call.getStartNanos() : call.getDurationNanos();
+         VixEventProc callback = getCallback(method, args);
+         job = new Job(System.nanoTime() + scale(jobNanos),
+                       callback != null ? call.getEvents().size() : 0);
+         mJobs.put(((VixType) result).longValue(), job);
+         if (callback != null) {
+            scheduleEvents(call, callback, job);
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Copies a recorded VIX type, so that callers get an object of their own
+    * created after VixLibrary.INSTANCE was set.
+    */
+   private Object copy(Object value) throws Exception {
+      if (!(value instanceof VixType)) {
+         return value;
+      }
+      Constructor<?> constructor = mConstructors.get(value.getClass());
+      if (constructor == null) {
+         constructor = value.getClass().getConstructor(long.class);
+         mConstructors.put(value.getClass(), constructor);
+      }
+      return constructor.newInstance(((VixType) value).longValue());
+   }
+
+   /**
+    * Takes the next recorded call of a function on a handle, or of the
+    * function on any handle if there is none. Calls are in both queues and
+    * are skipped in one once taken from the other.
+    */
+   private TraceCall next(String function, long target) {
+      synchronized (mByTarget) {
+         TraceCall call = poll(mByTarget.get(getKey(function, target)));
+         if (call == null) {
+            call = poll(mByFunction.get(function));
+         }
+         if (call != null) {
+            mAnswered.add(call);
+         }
+         return call;
+      }
+   }
+
+   private TraceCall poll(ArrayDeque<TraceCall> calls) {
+      if (calls != null) {
+         TraceCall call;
+         while ((call = calls.poll()) != null) {
+            if (!mAnswered.contains(call)) {
+               return call;
+            }
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Delivers the recorded events of a job to its callback, spread out as
+    * recorded and ending at the deadline of the job.
+    */
+   private void scheduleEvents(
+         TraceCall call,
+         final VixEventProc callback,
+         final Job job) {
+      long jobEnd = call.getJobEndNanos();
+      // One time base keeps events with equal timestamps in recorded order.
+      long now = System.nanoTime();
+      for (final TraceEvent event : call.getEvents()) {
+         long delay = job.mDeadline - now;
+         if (jobEnd >= 0) {
+            delay -= scale(jobEnd - event.getNanos());
+         }
+         mCallbacks.schedule(new Runnable() {
+            public void run() {
+               try {
+                  callback.callback(event.getHandle(),
+                                    event.getEventType(),
+                                    event.getMoreEventInfo(),
+                                    null);
+               } catch (RuntimeException e) {
+                  System.err.println("VIX replay callback failed: " + e);
+               } finally {
+                  job.mEventsDelivered.countDown();
+               }
+            }
+         }, Math.max(0, delay), TimeUnit.NANOSECONDS);
+      }
+   }
+
+   /**
+    * Copies recorded output values into the caller's output arguments.
+    */
+   private void setOutputs(Object[] args, Object[] recorded) {
+      if (args == null) {
+         return;
+      }
+      for (int i = 0; i < args.length && i < recorded.length; i++) {
+         Object arg = args[i];
+         Object value = recorded[i];
+         if (arg instanceof Object[] && value instanceof Object[]) {
+            setOutputs((Object[]) arg, (Object[]) value);
+         } else if (value instanceof TraceCall.Ref) {
+            setOutput(arg, ((TraceCall.Ref) value).mValue);
+         }
+      }
+   }
+
+   private void setOutput(Object arg, Object value) {
+      if (arg instanceof IntByReference && value instanceof Long) {
+         ((IntByReference) arg).setValue(((Long) value).intValue());
+      } else if (arg instanceof LongByReference && value instanceof Long) {
+         ((LongByReference) arg).setValue((Long) value);
+      } else if (arg instanceof VixHandleByReference && value instanceof Long) {
+         ((VixHandleByReference) arg).setValue(((Long) value).intValue());
+      } else if (arg instanceof VixPropertyTypeByReference
+            && value instanceof Long) {
+         ((VixPropertyTypeByReference) arg).setValue(((Long) value).intValue());
+      } else if (arg instanceof PointerByReference) {
+         if (value instanceof String) {
+            byte[] bytes = ((String) value).getBytes();
+            Memory memory = new Memory(bytes.length + 1);
+            memory.write(0, bytes, 0, bytes.length);
+            memory.setByte(bytes.length, (byte) 0);
+            mBuffers.put(memory, memory);
+            ((PointerByReference) arg).setValue(memory);
+         } else {
+            ((PointerByReference) arg).setValue(null);
+         }
+      }
+   }
+
+   private static VixEventProc getCallback(Method method, Object[] args) {
+      Class<?>[] types = method.getParameterTypes();
+      for (int i = 0; i < types.length; i++) {
+         if (types[i].equals(VixEventProc.class)) {
+            return (VixEventProc) args[i];
+         }
+      }
+      return null;
+   }
+
+   private long scale(long nanos) {
+      return (long) (nanos * mTimeScale);
+   }
+
+   private static void sleepUntil(long deadline) {
+      long wait;
+      while ((wait = deadline - System.nanoTime()) > 0) {
+         LockSupport.parkNanos(wait);
+      }
+   }
+
+   private static Object getDefault(Class<?> type) {
+      if (type.equals(VixError.class)) {
+         return VixError.VIX_OK;
+      } else if (type.equals(VixHandle.class)) {
+         return new VixHandle(0);
+      } else if (type.equals(int.class)) {
+         return 0;
+      } else if (type.equals(long.class)) {
+         return 0L;
+      } else if (type.equals(boolean.class)) {
+         return false;
+      }
+      return null;
+   }
+
+   private static String getKey(String function, long target) {
+      return function + ":" + target;
+   }
+
+   private static ArrayDeque<TraceCall> queue(
+         Map<String, ArrayDeque<TraceCall>> queues,
+         String key) {
+      ArrayDeque<TraceCall> queue = queues.get(key);
+      if (queue == null) {
+         queue = new ArrayDeque<TraceCall>();
+         queues.put(key, queue);
+      }
+      return queue;
+   }
+
+   private Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+      String name = method.getName();
+      if (name.equals("equals")) {
+         return proxy == args[0];
+      } else if (name.equals("hashCode")) {
+         return System.identityHashCode(proxy);
+      }
+      return "Replayed VIX trace";
+   }
+}
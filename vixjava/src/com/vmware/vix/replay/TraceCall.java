@@ -0,0 +1,251 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.replay;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.vmware.vix.VixType;
+
+/**
+ * Call recorded by a TraceRecorder.
+ * <p/>
+ * Arguments and results are decoded to Integer, Long, Boolean, String, the
+ * recorded VixType subclass or Object[] for variable arguments. Output
+ * arguments, callbacks and pointers are decoded to placeholder objects whose
+ * toString() describes them.
+ */
+public class TraceCall {
+
+   /**
+    * Placeholder for a recorded output argument, callback or pointer.
+    */
+   static final class Ref {
+
+      final int mTag;
+      final Object mValue;
+
+      Ref(int tag, Object value) {
+         mTag = tag;
+         mValue = value;
+      }
+
+      @Override
+      public String toString() {
+         switch (mTag) {
+         case TraceFormat.CALLBACK:
+            return "<callback>";
+         case TraceFormat.OPAQUE:
+            return "<pointer>";
+         case TraceFormat.STRING_REF:
+            return mValue != null ? "&\"" + mValue + "\"" : "&null";
+         default:
+            return "&" + mValue;
+         }
+      }
+   }
+
+   private final long mSequence;
+   private final long mThread;
+   private final String mFunction;
+   private final boolean mJob;
+   private final long mStartNanos;
+   private final long mDurationNanos;
+   private final Object[] mArguments;
+   private final Object mResult;
+   private final List<TraceEvent> mEvents = new ArrayList<TraceEvent>(0);
+   private long mJobEndNanos = -1;
+
+   TraceCall(long sequence,
+             long thread,
+             String function,
+             boolean job,
+             long startNanos,
+             long durationNanos,
+             Object[] arguments,
+             Object result) {
+      mSequence = sequence;
+      mThread = thread;
+      mFunction = function;
+      mJob = job;
+      mStartNanos = startNanos;
+      mDurationNanos = durationNanos;
+      mArguments = arguments;
+      mResult = result;
+   }
+
+   /**
+    * Get the order in which the call was made.
+    */
+   public long getSequence() {
+      return mSequence;
+   }
+
+   /**
+    * Get the id of the thread which made the call.
+    */
+   public long getThread() {
+      return mThread;
+   }
+
+   /**
+    * Get the name of the VixLibrary function.
+    */
+   public String getFunction() {
+      return mFunction;
+   }
+
+   /**
+    * Whether the function submits a job.
+    */
+   public boolean isJob() {
+      return mJob;
+   }
+
+   /**
+    * Get the time the call was made, in nanoseconds since the start of the
+    * recording.
+    */
+   public long getStartNanos() {
+      return mStartNanos;
+   }
+
+   /**
+    * Get the time spent in the call.
+    */
+   public long getDurationNanos() {
+      return mDurationNanos;
+   }
+
+   /**
+    * Get the time at which the job submitted by this call was seen to
+    * complete: in its callback, when VixJob_Wait() returned for it or when
+    * VixJob_CheckCompletion() reported it complete.
+    *
+    * @return Nanoseconds since the start of the recording; -1 if this call
+    *         did not submit a job or its completion was not seen.
+    */
+   public long getJobEndNanos() {
+      return mJobEndNanos;
+   }
+
+   /**
+    * Get the arguments as they were when the call returned.
+    */
+   public Object[] getArguments() {
+      return mArguments.clone();
+   }
+
+   /**
+    * Get the value returned by the call; <code>null</code> for void
+    * functions.
+    */
+   public Object getResult() {
+      return mResult;
+   }
+
+   /**
+    * Get the callback events of the job submitted by this call.
+    */
+   public List<TraceEvent> getEvents() {
+      return Collections.unmodifiableList(mEvents);
+   }
+
+   /**
+    * Get the handle the call was made on.
+    *
+    * @return Value of the first argument if it is a VIX handle or other VIX
+    *         type; -1 otherwise.
+    */
+   long getTarget() {
+      if (mArguments.length > 0 && mArguments[0] instanceof VixType) {
+         return ((VixType) mArguments[0]).longValue();
+      }
+      return -1;
+   }
+
+   Object[] getRecordedArguments() {
+      return mArguments;
+   }
+
+   void addEvent(TraceEvent event) {
+      mEvents.add(event);
+   }
+
+   void jobSeenComplete(long nanos) {
+      if (mJobEndNanos < 0 || nanos < mJobEndNanos) {
+         mJobEndNanos = nanos;
+      }
+   }
+
+   @Override
+   public String toString() {
+      StringBuilder s = new StringBuilder();
+      s.append(mStartNanos / 1000).append("us [").append(mThread).append("] ")
+            .append(mFunction).append('(');
+      appendValues(s, mArguments);
+      s.append(')');
+      if (mResult != null) {
+         s.append(" = ");
+         appendValue(s, mResult);
+      }
+      s.append(" in ").append(mDurationNanos / 1000).append("us");
+      if (mJobEndNanos >= 0) {
+         s.append(", job ").append((mJobEndNanos - mStartNanos) / 1000)
+               .append("us");
+      }
+      return s.toString();
+   }
+
+   private static void appendValues(StringBuilder s, Object[] values) {
+      for (int i = 0; i < values.length; i++) {
+         if (i > 0) {
+            s.append(", ");
+         }
+         appendValue(s, values[i]);
+      }
+   }
+
+   private static void appendValue(StringBuilder s, Object value) {
+      if (value instanceof Object[]) {
+         s.append('[');
+         appendValues(s, (Object[]) value);
+         s.append(']');
+      } else if (value instanceof String) {
+         s.append('"').append(value).append('"');
+      } else if (value instanceof VixType) {
+         s.append(value.getClass().getSimpleName()).append(':')
+               .append(((VixType) value).longValue());
+      } else {
+         s.append(value);
+      }
+   }
+}
@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.replay;
+
+/**
+ * Callback event recorded for a job.
+ */
+public class TraceEvent {
+
+   private final long mNanos;
+   private final int mEventType;
+   private final int mHandle;
+   private final int mMoreEventInfo;
+
+   TraceEvent(long nanos, int eventType, int handle, int moreEventInfo) {
+      mNanos = nanos;
+      mEventType = eventType;
+      mHandle = handle;
+      mMoreEventInfo = moreEventInfo;
+   }
+
+   /**
+    * Get the time of the event in nanoseconds since the start of the
+    * recording.
+    */
+   public long getNanos() {
+      return mNanos;
+   }
+
+   /**
+    * Get the VixEventType value.
+    */
+   public int getEventType() {
+      return mEventType;
+   }
+
+   /**
+    * Get the job handle passed to the callback.
+    */
+   public int getHandle() {
+      return mHandle;
+   }
+
+   /**
+    * Get the moreEventInfo handle passed to the callback, such as the found
+    * item of a VIX_EVENTTYPE_FIND_ITEM event.
+    */
+   public int getMoreEventInfo() {
+      return mMoreEventInfo;
+   }
+}
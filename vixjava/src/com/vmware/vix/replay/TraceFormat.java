@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.replay;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Constants and primitive encodings of the binary VIX trace format written by
+ * TraceRecorder and read by TraceReader.
+ * <p/>
+ * A trace starts with the magic number, the format version and the wall
+ * clock time of the start of the recording in milliseconds. Records follow,
+ * each starting with a tag byte:
+ * <ul>
+ * <li>{@link #STRING}: string id, UTF string. Defines a string before its
+ * first use; function names, arguments and class names refer to strings by
+ * id.</li>
+ * <li>{@link #CALL}: sequence number, thread id, function name id, start and
+ * duration in nanoseconds since the start of the recording, number of
+ * arguments, the arguments after the call returned, so that output
+ * arguments carry what VIX wrote to them, and the result.</li>
+ * <li>{@link #EVENT}: sequence number of the call which submitted the job,
+ * time, event type, job handle and moreEventInfo of a callback made by
+ * VIX.</li>
+ * </ul>
+ * Integers are written as zigzag encoded variable length quantities.
+ */
+final class TraceFormat {
+
+   static final int MAGIC = 0x56495854; // "VIXT"
+   static final int VERSION = 1;
+
+   static final int STRING = 1;
+   static final int CALL = 2;
+   static final int EVENT = 3;
+
+   /*
+    * Value tags.
+    */
+   static final int NULL = 0;
+   static final int INT = 1;
+   static final int LONG = 2;
+   static final int BOOLEAN = 3;
+   static final int STRING_VALUE = 4;
+   static final int VIX_TYPE = 5;
+   static final int ARRAY = 6;
+   static final int CALLBACK = 7;
+   static final int OPAQUE = 8;
+   static final int INT_REF = 9;
+   static final int LONG_REF = 10;
+   static final int STRING_REF = 11;
+   static final int HANDLE_REF = 12;
+   static final int PROPERTY_TYPE_REF = 13;
+
+   private TraceFormat() {
+   }
+
+   static void writeVarLong(DataOutput out, long value) throws IOException {
+      long zigzag = (value << 1) ^ (value >> 63);
+      while ((zigzag & ~0x7FL) != 0) {
+         out.writeByte((int) ((zigzag & 0x7F) | 0x80));
+         zigzag >>>= 7;
+      }
+      out.writeByte((int) zigzag);
+   }
+
+   static long readVarLong(DataInput in) throws IOException {
+      long zigzag = 0;
+      int shift = 0;
+      int b;
+      do {
+         if (shift > 63) {
+            throw new IOException("Malformed variable length integer");
+         }
+         b = in.readUnsignedByte();
+         zigzag |= (long) (b & 0x7F) << shift;
+         shift += 7;
+      } while ((b & 0x80) != 0);
+      return (zigzag >>> 1) ^ -(zigzag & 1);
+   }
+
+   static int readVarInt(DataInput in) throws IOException {
+      return (int) readVarLong(in);
+   }
+}
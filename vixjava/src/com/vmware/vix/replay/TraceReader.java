@@ -0,0 +1,275 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.replay;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vmware.vix.VixEventType;
+import com.vmware.vix.VixType;
+
+/**
+ * Reads a trace written by TraceRecorder.
+ */
+public class TraceReader {
+
+   private static final int JOB_COMPLETED =
+         VixEventType.VIX_EVENTTYPE_JOB_COMPLETED.intValue();
+
+   private final DataInputStream mIn;
+   private final List<String> mStrings = new ArrayList<String>();
+   private final Map<String, Class<?>> mClasses = new HashMap<String, Class<?>>();
+   private long mStartMillis;
+
+   /**
+    * Constructor.
+    *
+    * @param in
+    *           Stream to read the trace from.
+    */
+   public TraceReader(InputStream in) {
+      mIn = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+   }
+
+   /**
+    * Get the wall clock time at which the recording started.
+    *
+    * @return Milliseconds since the epoch; valid after {@link #read()}.
+    */
+   public long getStartMillis() {
+      return mStartMillis;
+   }
+
+   /**
+    * Reads the whole trace. A trace cut short, for example because the
+    * recording process died, is read up to its last complete record.
+    *
+    * @return Calls ordered by start time, with their callback events and job
+    *         completion times.
+    * @throws IOException
+    *            If the stream is not a VIX trace or cannot be read.
+    */
+   public List<TraceCall> read() throws IOException {
+      if (mIn.readInt() != TraceFormat.MAGIC) {
+         throw new IOException("Not a VIX trace");
+      }
+      int version = mIn.readShort();
+      if (version != TraceFormat.VERSION) {
+         throw new IOException("Unsupported VIX trace version " + version);
+      }
+      mStartMillis = mIn.readLong();
+
+      List<TraceCall> calls = new ArrayList<TraceCall>();
+      Map<Long, List<TraceEvent>> events = new HashMap<Long, List<TraceEvent>>();
+      try {
+         int tag;
+         while ((tag = mIn.read()) >= 0) {
+            switch (tag) {
+            case TraceFormat.STRING:
+               readString();
+               break;
+            case TraceFormat.CALL:
+               calls.add(readCall());
+               break;
+            case TraceFormat.EVENT:
+               long sequence = TraceFormat.readVarLong(mIn);
+               TraceEvent event =
+                     new TraceEvent(TraceFormat.readVarLong(mIn),
+                                    TraceFormat.readVarInt(mIn),
+                                    TraceFormat.readVarInt(mIn),
+                                    TraceFormat.readVarInt(mIn));
+               List<TraceEvent> list = events.get(sequence);
+               if (list == null) {
+                  list = new ArrayList<TraceEvent>();
+                  events.put(sequence, list);
+               }
+               list.add(event);
+               break;
+            default:
+               throw new IOException("Unknown record " + tag + " in VIX trace");
+            }
+         }
+      } catch (EOFException e) {
+         // Trace cut short; keep the complete records.
+      }
+
+      Collections.sort(calls, new Comparator<TraceCall>() {
+         public int compare(TraceCall a, TraceCall b) {
+            return a.getStartNanos() < b.getStartNanos() ? -1
+                  : a.getStartNanos() > b.getStartNanos() ? 1 : 0;
+         }
+      });
+      linkJobs(calls, events);
+      return calls;
+   }
+
+   /**
+    * Attaches callback events to the calls which submitted the jobs and works
+    * out when each job was seen to complete.
+    */
+   private static void linkJobs(
+         List<TraceCall> calls,
+         Map<Long, List<TraceEvent>> events) {
+      Map<Long, TraceCall> jobs = new HashMap<Long, TraceCall>();
+      for (TraceCall call : calls) {
+         if (call.isJob()) {
+            List<TraceEvent> callEvents = events.get(call.getSequence());
+            if (callEvents != null) {
+               for (TraceEvent event : callEvents) {
+                  call.addEvent(event);
+                  if (event.getEventType() == JOB_COMPLETED) {
+                     call.jobSeenComplete(event.getNanos());
+                  }
+               }
+            }
+            if (call.getResult() instanceof VixType) {
+               jobs.put(((VixType) call.getResult()).longValue(), call);
+            }
+            continue;
+         }
+         String function = call.getFunction();
+         long end = call.getStartNanos() + call.getDurationNanos();
+         if (function.equals("VixJob_Wait")) {
+            TraceCall job = jobs.get(call.getTarget());
+            if (job != null) {
+               job.jobSeenComplete(end);
+            }
+         } else if (function.equals("VixJob_CheckCompletion")) {
+            Object completed = call.getRecordedArguments()[1];
+            if (completed instanceof TraceCall.Ref
+                  && !Long.valueOf(0).equals(((TraceCall.Ref) completed).mValue)) {
+               TraceCall job = jobs.get(call.getTarget());
+               if (job != null) {
+                  job.jobSeenComplete(end);
+               }
+            }
+         }
+      }
+   }
+
+   private void readString() throws IOException {
+      int id = TraceFormat.readVarInt(mIn);
+      byte[] bytes = new byte[TraceFormat.readVarInt(mIn)];
+      mIn.readFully(bytes);
+      if (id != mStrings.size()) {
+         throw new IOException("Unexpected string id " + id + " in VIX trace");
+      }
+      mStrings.add(new String(bytes, "UTF-8"));
+   }
+
+   private String getString(int id) throws IOException {
+      if (id < 0 || id >= mStrings.size()) {
+         throw new IOException("Undefined string " + id + " in VIX trace");
+      }
+      return mStrings.get(id);
+   }
+
+   private TraceCall readCall() throws IOException {
+      long sequence = TraceFormat.readVarLong(mIn);
+      long thread = TraceFormat.readVarLong(mIn);
+      String function = getString(TraceFormat.readVarInt(mIn));
+      boolean job = mIn.readBoolean();
+      long start = TraceFormat.readVarLong(mIn);
+      long duration = TraceFormat.readVarLong(mIn);
+      Object[] args = new Object[TraceFormat.readVarInt(mIn)];
+      for (int i = 0; i < args.length; i++) {
+         args[i] = readValue();
+      }
+      Object result = readValue();
+      return new TraceCall(sequence,
+                           thread,
+                           function,
+                           job,
+                           start,
+                           duration,
+                           args,
+                           result);
+   }
+
+   private Object readValue() throws IOException {
+      int tag = mIn.readUnsignedByte();
+      switch (tag) {
+      case TraceFormat.NULL:
+         return null;
+      case TraceFormat.INT:
+         return TraceFormat.readVarInt(mIn);
+      case TraceFormat.LONG:
+         return TraceFormat.readVarLong(mIn);
+      case TraceFormat.BOOLEAN:
+         return mIn.readBoolean();
+      case TraceFormat.STRING_VALUE:
+         return getString(TraceFormat.readVarInt(mIn));
+      case TraceFormat.VIX_TYPE:
+         return newVixType(getString(TraceFormat.readVarInt(mIn)),
+                           TraceFormat.readVarLong(mIn));
+      case TraceFormat.ARRAY:
+         Object[] array = new Object[TraceFormat.readVarInt(mIn)];
+         for (int i = 0; i < array.length; i++) {
+            array[i] = readValue();
+         }
+         return array;
+      case TraceFormat.CALLBACK:
+      case TraceFormat.OPAQUE:
+         return new TraceCall.Ref(tag, null);
+      case TraceFormat.STRING_REF:
+         return new TraceCall.Ref(tag, readValue());
+      case TraceFormat.INT_REF:
+      case TraceFormat.LONG_REF:
+      case TraceFormat.HANDLE_REF:
+      case TraceFormat.PROPERTY_TYPE_REF:
+         return new TraceCall.Ref(tag, TraceFormat.readVarLong(mIn));
+      default:
+         throw new IOException("Unknown value " + tag + " in VIX trace");
+      }
+   }
+
+   private VixType newVixType(String className, long value) throws IOException {
+      try {
+         Class<?> type = mClasses.get(className);
+         if (type == null) {
+            type = Class.forName(className);
+            mClasses.put(className, type);
+         }
+         return (VixType) type.getConstructor(long.class).newInstance(value);
+      } catch (Exception e) {
+         throw new IOException("Cannot create " + className + " from VIX trace: "
+               + e);
+      }
+   }
+}
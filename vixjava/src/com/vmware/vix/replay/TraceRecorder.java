@@ -0,0 +1,283 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.replay;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.LongByReference;
+import com.sun.jna.ptr.PointerByReference;
+import com.vmware.vix.VixEventProc;
+import com.vmware.vix.VixHandleByReference;
+import com.vmware.vix.VixLibrary;
+import com.vmware.vix.VixPropertyTypeByReference;
+import com.vmware.vix.VixType;
+
+/**
+ * Records every call made through an {@link #instrument(VixLibrary)
+ * instrumented} VixLibrary, with its arguments, result, output arguments and
+ * timing, along with the callbacks VIX makes for jobs, to a compact binary
+ * trace. Traces are read back with TraceReader and replayed with
+ * TraceReplayer.
+ * <p/>
+ * Strings are written once and referred to by id afterwards, and numbers are
+ * written as variable length integers, so a call typically takes a few dozen
+ * bytes. Pointers other than the strings VIX returns through
+ * PointerByReference arguments are not recorded.
+ * <p/>
+ * Setting the system property <code>vix.record=&lt;file&gt;</code> makes
+ * com.vmware.vix.VixLibraryFactory record all calls made through
+ * VixLibrary.INSTANCE to that file, which is closed when the JVM exits.
+ */
+public class TraceRecorder implements Closeable {
+
+   public static final String RECORD_PROPERTY = "vix.record";
+
+   private final long mStartNanos = System.nanoTime();
+   private final Map<String, Integer> mStrings = new HashMap<String, Integer>();
+   private final ByteArrayOutputStream mBuffer = new ByteArrayOutputStream(256);
+   private final DataOutputStream mRecord = new DataOutputStream(mBuffer);
+   private DataOutputStream mOut;
+   private long mSequence;
+
+   /**
+    * Constructor. Writes the header of the trace.
+    *
+    * @param out
+    *           Stream to write the trace to; closed by {@link #close()}.
+    * @throws IOException
+    */
+   public TraceRecorder(OutputStream out) throws IOException {
+      mOut = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+      mOut.writeInt(TraceFormat.MAGIC);
+      mOut.writeShort(TraceFormat.VERSION);
+      mOut.writeLong(System.currentTimeMillis());
+   }
+
+   /**
+    * Wraps a VixLibrary so that all calls through the wrapper are recorded.
+    *
+    * @param vix
+    *           Library to wrap.
+    * @return Wrapper.
+    */
+   public VixLibrary instrument(VixLibrary vix) {
+      return (VixLibrary) Proxy.newProxyInstance(VixLibrary.class.getClassLoader(),
+                                                 new Class<?>[] { VixLibrary.class },
+                                                 new RecordingInvocationHandler(vix,
+                                                                                this));
+   }
+
+   /**
+    * Flushes buffered records to the stream.
+    *
+    * @throws IOException
+    */
+   public synchronized void flush() throws IOException {
+      if (mOut != null) {
+         mOut.flush();
+      }
+   }
+
+   /**
+    * Stops recording and closes the stream.
+    *
+    * @throws IOException
+    */
+   public synchronized void close() throws IOException {
+      if (mOut != null) {
+         try {
+            mOut.close();
+         } finally {
+            mOut = null;
+         }
+      }
+   }
+
+   /**
+    * Get the time since the start of the recording.
+    */
+   long now() {
+      return System.nanoTime() - mStartNanos;
+   }
+
+   /**
+    * Get the sequence number for a call about to be made.
+    */
+   synchronized long nextSequence() {
+      return mSequence++;
+   }
+
+   /**
+    * Writes a call record.
+    */
+   synchronized void writeCall(
+         long sequence,
+         String function,
+         boolean job,
+         long start,
+         long duration,
+         Object[] args,
+         Object result) {
+      if (mOut == null) {
+         return;
+      }
+      try {
+         mBuffer.reset();
+         TraceFormat.writeVarLong(mRecord, sequence);
+         TraceFormat.writeVarLong(mRecord, Thread.currentThread().getId());
+         TraceFormat.writeVarLong(mRecord, getStringId(function));
+         mRecord.writeBoolean(job);
+         TraceFormat.writeVarLong(mRecord, start);
+         TraceFormat.writeVarLong(mRecord, duration);
+         int count = args != null ? args.length : 0;
+         TraceFormat.writeVarLong(mRecord, count);
+         for (int i = 0; i < count; i++) {
+            writeValue(args[i]);
+         }
+         writeValue(result);
+         mOut.writeByte(TraceFormat.CALL);
+         mBuffer.writeTo(mOut);
+      } catch (IOException e) {
+         stop(e);
+      }
+   }
+
+   /**
+    * Writes a callback event record.
+    */
+   synchronized void writeEvent(
+         long sequence,
+         long time,
+         int eventType,
+         int handle,
+         int moreEventInfo) {
+      if (mOut == null) {
+         return;
+      }
+      try {
+         mOut.writeByte(TraceFormat.EVENT);
+         TraceFormat.writeVarLong(mOut, sequence);
+         TraceFormat.writeVarLong(mOut, time);
+         TraceFormat.writeVarLong(mOut, eventType);
+         TraceFormat.writeVarLong(mOut, handle);
+         TraceFormat.writeVarLong(mOut, moreEventInfo);
+      } catch (IOException e) {
+         stop(e);
+      }
+   }
+
+   private void stop(IOException e) {
+      System.err.println("Unable to write VIX trace, recording stopped: " + e);
+      try {
+         mOut.close();
+      } catch (IOException ignored) {
+      }
+      mOut = null;
+   }
+
+   /**
+    * Get the id of a string, writing its definition to the trace when it is
+    * first used.
+    */
+   private int getStringId(String s) throws IOException {
+      Integer id = mStrings.get(s);
+      if (id == null) {
+         id = mStrings.size();
+         mStrings.put(s, id);
+         mOut.writeByte(TraceFormat.STRING);
+         TraceFormat.writeVarLong(mOut, id);
+         byte[] bytes = s.getBytes("UTF-8");
+         TraceFormat.writeVarLong(mOut, bytes.length);
+         mOut.write(bytes);
+      }
+      return id;
+   }
+
+   private void writeValue(Object value) throws IOException {
+      DataOutputStream out = mRecord;
+      if (value == null) {
+         out.writeByte(TraceFormat.NULL);
+      } else if (value instanceof Integer) {
+         out.writeByte(TraceFormat.INT);
+         TraceFormat.writeVarLong(out, (Integer) value);
+      } else if (value instanceof Long) {
+         out.writeByte(TraceFormat.LONG);
+         TraceFormat.writeVarLong(out, (Long) value);
+      } else if (value instanceof Boolean) {
+         out.writeByte(TraceFormat.BOOLEAN);
+         out.writeBoolean((Boolean) value);
+      } else if (value instanceof String) {
+         out.writeByte(TraceFormat.STRING_VALUE);
+         TraceFormat.writeVarLong(out, getStringId((String) value));
+      } else if (value instanceof VixType) {
+         out.writeByte(TraceFormat.VIX_TYPE);
+         TraceFormat.writeVarLong(out, getStringId(value.getClass().getName()));
+         TraceFormat.writeVarLong(out, ((VixType) value).longValue());
+      } else if (value instanceof Object[]) {
+         Object[] array = (Object[]) value;
+         out.writeByte(TraceFormat.ARRAY);
+         TraceFormat.writeVarLong(out, array.length);
+         for (Object element : array) {
+            writeValue(element);
+         }
+      } else if (value instanceof VixEventProc) {
+         out.writeByte(TraceFormat.CALLBACK);
+      } else if (value instanceof IntByReference) {
+         out.writeByte(TraceFormat.INT_REF);
+         TraceFormat.writeVarLong(out, ((IntByReference) value).getValue());
+      } else if (value instanceof LongByReference) {
+         out.writeByte(TraceFormat.LONG_REF);
+         TraceFormat.writeVarLong(out, ((LongByReference) value).getValue());
+      } else if (value instanceof PointerByReference) {
+         PointerByReference ref = (PointerByReference) value;
+         out.writeByte(TraceFormat.STRING_REF);
+         writeValue(ref.getValue() != null ? ref.getValue().getString(0) : null);
+      } else if (value instanceof VixHandleByReference) {
+         out.writeByte(TraceFormat.HANDLE_REF);
+         TraceFormat.writeVarLong(out, ((VixHandleByReference) value).getValue()
+               .longValue());
+      } else if (value instanceof VixPropertyTypeByReference) {
+         out.writeByte(TraceFormat.PROPERTY_TYPE_REF);
+         TraceFormat.writeVarLong(out, ((VixPropertyTypeByReference) value).getValue()
+               .longValue());
+      } else {
+         out.writeByte(TraceFormat.OPAQUE);
+      }
+   }
+}
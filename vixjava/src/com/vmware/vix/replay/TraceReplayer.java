@@ -0,0 +1,383 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.replay;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.LockSupport;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.LongByReference;
+import com.sun.jna.ptr.PointerByReference;
+import com.vmware.vix.VixEventProc;
+import com.vmware.vix.VixHandleByReference;
+import com.vmware.vix.VixLibrary;
+import com.vmware.vix.VixLibraryFactory;
+import com.vmware.vix.VixPropertyTypeByReference;
+import com.vmware.vix.metrics.LatencyHistogram;
+
+/**
+ * Replays VIX traces written by TraceRecorder.
+ * <p/>
+ * {@link #createBackend(List, double)} builds a stub VixLibrary which answers
+ * calls with the recorded results after the recorded times, scaled. Code
+ * which made the recording can be run against the stub offline with
+ * <code>-Dvix.library=replay -Dvix.replay.file=&lt;trace&gt;</code>, and
+ * optionally <code>-Dvix.replay.scale=&lt;factor&gt;</code>, through
+ * com.vmware.vix.VixLibraryFactory. It then sees the latencies of the
+ * recorded session.
+ * <p/>
+ * {@link #replay(VixLibrary, double)} instead issues the recorded calls
+ * itself. There is one thread per recorded thread, and each call starts at
+ * its recorded time, scaled. The replayed latency of every function is then
+ * reported next to the recorded latency. Run as a program, it replays a trace
+ * through VixLibrary.INSTANCE, which is the stub unless
+ * <code>vix.library</code> says otherwise:
+ *
+ * <pre>
+ * java com.vmware.vix.replay.TraceReplayer &lt;trace&gt; [-scale &lt;factor&gt;] [-dump]
+ * </pre>
+ */
+public class TraceReplayer {
+
+   public static final String REPLAY = "replay";
+   public static final String REPLAY_FILE_PROPERTY = "vix.replay.file";
+   public static final String REPLAY_SCALE_PROPERTY = "vix.replay.scale";
+
+   /*
+    * Stands in for recorded callbacks; the events reach it but are of no
+    * interest, since the recorded calls made from callbacks are replayed
+    * from their own threads.
+    */
+   private static final VixEventProc IGNORE_EVENTS = new VixEventProc() {
+      public void callback(
+            int handle,
+            int eventType,
+            int moreEventInfo,
+            Pointer clientData) {
+      }
+   };
+
+   private final List<TraceCall> mCalls;
+   private final Map<String, LatencyHistogram> mRecorded =
+         new TreeMap<String, LatencyHistogram>();
+   private final Map<String, LatencyHistogram> mReplayed =
+         new TreeMap<String, LatencyHistogram>();
+
+   /**
+    * Constructor.
+    *
+    * @param calls
+    *           Recorded calls, as returned by TraceReader.
+    */
+   public TraceReplayer(List<TraceCall> calls) {
+      mCalls = calls;
+      for (TraceCall call : calls) {
+         getHistogram(mRecorded, call.getFunction()).record(call.getDurationNanos());
+         getHistogram(mReplayed, call.getFunction());
+      }
+   }
+
+   /**
+    * Reads a trace file.
+    *
+    * @param file
+    *           Trace written by TraceRecorder.
+    * @return Recorded calls ordered by start time.
+    * @throws IOException
+    */
+   public static List<TraceCall> read(File file) throws IOException {
+      InputStream in = new FileInputStream(file);
+      try {
+         return new TraceReader(in).read();
+      } finally {
+         in.close();
+      }
+   }
+
+   /**
+    * Creates a stub VixLibrary answering calls from a trace.
+    *
+    * @param calls
+    *           Recorded calls.
+    * @param timeScale
+    *           Factor applied to recorded times: 1 for the original timing,
+    *           0.5 for twice as fast, 0 for no delays.
+    * @return Stub.
+    */
+   public static VixLibrary createBackend(List<TraceCall> calls, double timeScale) {
+      return (VixLibrary) Proxy.newProxyInstance(VixLibrary.class.getClassLoader(),
+                                                 new Class<?>[] { VixLibrary.class },
+                                                 new ReplayInvocationHandler(calls,
+                                                                             timeScale));
+   }
+
+   /**
+    * Creates the stub for the trace named by the <code>vix.replay.file</code>
+    * system property, scaled by <code>vix.replay.scale</code>.
+    *
+    * @return Stub.
+    * @throws IOException
+    */
+   public static VixLibrary createBackendFromProperties() throws IOException {
+      String path = System.getProperty(REPLAY_FILE_PROPERTY);
+      if (path == null) {
+         throw new IOException(REPLAY_FILE_PROPERTY + " is not set");
+      }
+      double scale =
+            Double.parseDouble(System.getProperty(REPLAY_SCALE_PROPERTY, "1"));
+      return createBackend(read(new File(path)), scale);
+   }
+
+   /**
+    * Issues the recorded calls against a VixLibrary, one thread per recorded
+    * thread, each call at its recorded start time, scaled. Blocks until all
+    * calls have been made.
+    *
+    * @param vix
+    *           Library to call, typically a stub from
+    *           {@link #createBackend(List, double)}.
+    * @param timeScale
+    *           Factor applied to recorded start times.
+    * @throws InterruptedException
+    */
+   public void replay(final VixLibrary vix, final double timeScale)
+         throws InterruptedException {
+      final Map<String, Method> methods = new HashMap<String, Method>();
+      for (Method method : VixLibrary.class.getMethods()) {
+         methods.put(method.getName(), method);
+      }
+      Map<Long, List<TraceCall>> threads = new LinkedHashMap<Long, List<TraceCall>>();
+      for (TraceCall call : mCalls) {
+         List<TraceCall> calls = threads.get(call.getThread());
+         if (calls == null) {
+            calls = new ArrayList<TraceCall>();
+            threads.put(call.getThread(), calls);
+         }
+         calls.add(call);
+      }
+      final long start = System.nanoTime();
+      List<Thread> workers = new ArrayList<Thread>();
+      for (final Map.Entry<Long, List<TraceCall>> thread : threads.entrySet()) {
+         Thread worker = new Thread("VIX replay " + thread.getKey()) {
+            @Override
+            public void run() {
+               for (TraceCall call : thread.getValue()) {
+                  long due = start + (long) (call.getStartNanos() * timeScale);
+                  long wait;
+                  while ((wait = due - System.nanoTime()) > 0) {
+                     LockSupport.parkNanos(wait);
+                  }
+                  invoke(vix, methods.get(call.getFunction()), call);
+               }
+            }
+         };
+         worker.setDaemon(true);
+         worker.start();
+         workers.add(worker);
+      }
+      for (Thread worker : workers) {
+         worker.join();
+      }
+   }
+
+   private void invoke(VixLibrary vix, Method method, TraceCall call) {
+      if (method == null) {
+         System.err.println("Skipping unknown VIX function " + call.getFunction());
+         return;
+      }
+      Object[] args = toArguments(call.getRecordedArguments());
+      long start = System.nanoTime();
+      try {
+         method.invoke(vix, args);
+      } catch (InvocationTargetException e) {
+         System.err.println(call.getFunction() + " failed in replay: "
+               + e.getCause());
+      } catch (IllegalAccessException e) {
+         throw new IllegalStateException(e);
+      } catch (IllegalArgumentException e) {
+         System.err.println("Cannot replay " + call + ": " + e);
+         return;
+      }
+      LatencyHistogram replayed;
+      synchronized (mReplayed) {
+         replayed = mReplayed.get(call.getFunction());
+      }
+      replayed.record(System.nanoTime() - start);
+   }
+
+   /**
+    * Rebuilds call arguments from recorded ones, with fresh output arguments.
+    */
+   private static Object[] toArguments(Object[] recorded) {
+      Object[] args = new Object[recorded.length];
+      for (int i = 0; i < recorded.length; i++) {
+         Object value = recorded[i];
+         if (value instanceof Object[]) {
+            args[i] = toArguments((Object[]) value);
+         } else if (value instanceof TraceCall.Ref) {
+            switch (((TraceCall.Ref) value).mTag) {
+            case TraceFormat.CALLBACK:
+               args[i] = IGNORE_EVENTS;
+               break;
+            case TraceFormat.INT_REF:
+               args[i] = new IntByReference();
+               break;
+            case TraceFormat.LONG_REF:
+               args[i] = new LongByReference();
+               break;
+            case TraceFormat.STRING_REF:
+               args[i] = new PointerByReference();
+               break;
+            case TraceFormat.HANDLE_REF:
+               args[i] = new VixHandleByReference();
+               break;
+            case TraceFormat.PROPERTY_TYPE_REF:
+               args[i] = new VixPropertyTypeByReference();
+               break;
+            default:
+               args[i] = null;
+            }
+         } else {
+            args[i] = value;
+         }
+      }
+      return args;
+   }
+
+   /**
+    * Prints recorded and replayed call latency per function.
+    *
+    * @param out
+    *           Where to print.
+    */
+   public void printReport(PrintStream out) {
+      out.printf("%-36s %8s %12s %12s %12s %12s\n",
+                 "function",
+                 "calls",
+                 "recorded ms",
+                 "replayed ms",
+                 "rec p99 ms",
+                 "rep p99 ms");
+      for (Map.Entry<String, LatencyHistogram> entry : mRecorded.entrySet()) {
+         LatencyHistogram recorded = entry.getValue();
+         LatencyHistogram replayed = mReplayed.get(entry.getKey());
+         out.printf("%-36s %8d %12.3f %12.3f %12.3f %12.3f\n",
+                    entry.getKey(),
+                    recorded.getCount(),
+                    recorded.getMean() / 1e6,
+                    replayed.getMean() / 1e6,
+                    recorded.getPercentile(0.99) / 1e6,
+                    replayed.getPercentile(0.99) / 1e6);
+      }
+   }
+
+   private static LatencyHistogram getHistogram(
+         Map<String, LatencyHistogram> histograms,
+         String function) {
+      synchronized (histograms) {
+         LatencyHistogram histogram = histograms.get(function);
+         if (histogram == null) {
+            histogram = new LatencyHistogram();
+            histograms.put(function, histogram);
+         }
+         return histogram;
+      }
+   }
+
+   /**
+    * Main entry point for execution.
+    *
+    * @param args
+    *           Trace file, then <code>-scale &lt;factor&gt;</code> to scale
+    *           recorded times and <code>-dump</code> to print the calls
+    *           instead of replaying them.
+    */
+   public static void main(String[] args) {
+      if (args.length < 1) {
+         System.err.println("Usage: TraceReplayer <trace> [-scale <factor>] [-dump]");
+         System.exit(2);
+      }
+      String path = args[0];
+      double scale = 1;
+      boolean dump = false;
+      for (int i = 1; i < args.length; i++) {
+         if (args[i].equals("-scale") && i + 1 < args.length) {
+            scale = Double.parseDouble(args[++i]);
+         } else if (args[i].equals("-dump")) {
+            dump = true;
+         } else {
+            System.err.println("Unknown option " + args[i]);
+            System.exit(2);
+         }
+      }
+      if (System.getProperty(VixLibraryFactory.LIBRARY_PROPERTY) == null) {
+         /*
+          * Must be set before the first use of VixLibrary.INSTANCE, which
+          * reading the trace already leads to.
+          */
+         System.setProperty(VixLibraryFactory.LIBRARY_PROPERTY, REPLAY);
+         System.setProperty(REPLAY_FILE_PROPERTY, path);
+         System.setProperty(REPLAY_SCALE_PROPERTY, String.valueOf(scale));
+      }
+      try {
+         List<TraceCall> calls = read(new File(path));
+         if (dump) {
+            for (TraceCall call : calls) {
+               System.out.println(call);
+            }
+            return;
+         }
+         System.out.println("Replaying " + calls.size() + " calls...");
+         TraceReplayer replayer = new TraceReplayer(calls);
+         long start = System.nanoTime();
+         replayer.replay(VixLibrary.INSTANCE, scale);
+         System.out.printf("Replayed in %.3fs\n", (System.nanoTime() - start) / 1e9);
+         replayer.printReport(System.out);
+      } catch (Exception e) {
+         System.err.println(e);
+         e.printStackTrace();
+         System.exit(1);
+      }
+   }
+}
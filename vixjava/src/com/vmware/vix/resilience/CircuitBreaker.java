@@ -0,0 +1,331 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.resilience;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.vmware.vix.VixError;
+import com.vmware.vix.VixErrorCategory;
+import com.vmware.vix.VixException;
+import com.vmware.vix.metrics.VixMetrics;
+
+/**
+ * Circuit breaker for the operations against one VIX host. When a host goes
+ * down, every operation blocks in VixHost_Connect() or a job wait until it
+ * fails with a connection error. After {@link #getFailureThreshold()}
+ * consecutive connection failures the breaker opens and refuses operations
+ * with a {@link CircuitOpenException} at once. Once
+ * {@link #getCoolDownMillis()} have passed the breaker is half open and lets
+ * a single probe through: if it reaches the host the breaker closes,
+ * otherwise it opens for another cool-down.
+ * <p/>
+ * Only errors of the category VixErrorCategory.CONNECTION count as failures;
+ * any other error shows that the host is answering.
+ * Operations nested in an operation of the same breaker on the same thread
+ * run unchecked and are accounted for by the outer operation.
+ * <p/>
+ * com.vmware.vix.VixHostHandle and com.vmware.vix.VixVmHandle run their
+ * operations through the breaker of their host, see {@link #forHost(String)}.
+ * The defaults are set with the system properties
+ * <code>vix.breaker.failures</code> (5; zero disables the breakers) and
+ * <code>vix.breaker.coolDown</code> (30 seconds). With
+ * <code>vix.metrics=true</code> each breaker is registered with the platform
+ * MBean server as <code>com.vmware.vix:type=CircuitBreaker,name=&lt;host&gt;</code>.
+ */
+public class CircuitBreaker implements CircuitBreakerMXBean {
+
+   public static final String FAILURES_PROPERTY = "vix.breaker.failures";
+   public static final String COOL_DOWN_PROPERTY = "vix.breaker.coolDown";
+
+   /**
+    * State of a breaker.
+    */
+   public enum State {
+      /**
+       * Operations run normally.
+       */
+      CLOSED,
+
+      /**
+       * Operations are refused until the cool-down has passed.
+       */
+      OPEN,
+
+      /**
+       * A probe is allowed through to test the host.
+       */
+      HALF_OPEN
+   }
+
+   private static final ConcurrentHashMap<String, CircuitBreaker> mBreakers =
+         new ConcurrentHashMap<String, CircuitBreaker>();
+
+   private final String mHost;
+   private final int mFailureThreshold;
+   private final long mCoolDownNanos;
+   private final ThreadLocal<Boolean> mInCall = new ThreadLocal<Boolean>();
+   private State mState = State.CLOSED;
+   private int mConsecutiveFailures;
+   private long mOpenedNanos;
+   private boolean mProbing;
+   private long mTimesOpened;
+   private long mRejected;
+
+   /**
+    * Constructor.
+    *
+    * @param host
+    *           Name of the host, used in messages.
+    * @param failureThreshold
+    *           Consecutive connection failures after which the breaker
+    *           opens; zero or less to never open.
+    * @param coolDownMillis
+    *           Time the breaker stays open before letting a probe through.
+    */
+   public CircuitBreaker(String host, int failureThreshold, long coolDownMillis) {
+      mHost = host;
+      mFailureThreshold = failureThreshold;
+      mCoolDownNanos = coolDownMillis * 1000000;
+   }
+
+   /**
+    * Get the breaker shared by all handles connected to a host, creating it
+    * with the defaults from the system properties on first use.
+    *
+    * @param host
+    *           Host name or URL, as passed to VixHost_Connect().
+    * @return Breaker for the host.
+    */
+   public static CircuitBreaker forHost(String host) {
+      CircuitBreaker breaker = mBreakers.get(host);
+      if (breaker == null) {
+         breaker =
+               new CircuitBreaker(host,
+                                  Integer.getInteger(FAILURES_PROPERTY, 5),
+                                  Long.getLong(COOL_DOWN_PROPERTY, 30) * 1000);
+         CircuitBreaker existing = mBreakers.putIfAbsent(host, breaker);
+         if (existing != null) {
+            return existing;
+         }
+         if (Boolean.getBoolean(VixMetrics.METRICS_PROPERTY)) {
+            breaker.registerMBean();
+         }
+      }
+      return breaker;
+   }
+
+   /**
+    * Tests whether an error means that the host could not be reached, as
+    * opposed to the host refusing or failing the operation.
+    *
+    * @param err
+    *           Error of an operation; may be <code>null</code>.
+    * @return <code>true</code> for connection-level errors.
+    */
+   public static boolean isConnectionFailure(VixError err) {
+      return VixErrorCategory.of(err) == VixErrorCategory.CONNECTION;
+   }
+
+   /**
+    * Runs an operation unless the breaker is open.
+    *
+    * @param call
+    *           Operation against the host of this breaker.
+    * @return Result of the operation.
+    * @throws CircuitOpenException
+    *            If the breaker is open.
+    * @throws VixException
+    *            If the operation failed.
+    */
+   public <T> T execute(VixCall<T> call) throws VixException {
+      if (mFailureThreshold <= 0 || mInCall.get() != null) {
+         return call.call();
+      }
+      boolean probe = acquire();
+      boolean reachedHost = false;
+      boolean failed = false;
+      mInCall.set(Boolean.TRUE);
+      try {
+         T result = call.call();
+         reachedHost = true;
+         return result;
+      } catch (VixException e) {
+         failed = isConnectionFailure(e.getError());
+         reachedHost = !failed;
+         throw e;
+      } finally {
+         mInCall.remove();
+         release(probe, reachedHost, failed);
+      }
+   }
+
+   /**
+    * Admits an operation or throws.
+    *
+    * @return Whether the operation is the probe of a half open breaker.
+    */
+   private synchronized boolean acquire() throws CircuitOpenException {
+      if (mState == State.CLOSED) {
+         return false;
+      }
+      long waited = System.nanoTime() - mOpenedNanos;
+      if (mState == State.OPEN && waited >= mCoolDownNanos) {
+         mState = State.HALF_OPEN;
+      }
+      if (mState == State.HALF_OPEN && !mProbing) {
+         mProbing = true;
+         return true;
+      }
+      mRejected++;
+      throw new CircuitOpenException(mHost,
+                                     Math.max(0, mCoolDownNanos - waited) / 1000000);
+   }
+
+   /**
+    * Accounts for the outcome of an admitted operation. An operation which
+    * neither reached the host nor failed to connect, such as one throwing a
+    * RuntimeException, is not counted.
+    */
+   private synchronized void release(
+         boolean probe,
+         boolean reachedHost,
+         boolean failed) {
+      if (probe) {
+         mProbing = false;
+      }
+      if (reachedHost) {
+         if (probe || mState == State.CLOSED) {
+            mState = State.CLOSED;
+            mConsecutiveFailures = 0;
+         }
+      } else if (failed) {
+         if (probe) {
+            open();
+         } else if (mState == State.CLOSED
+               && ++mConsecutiveFailures >= mFailureThreshold) {
+            open();
+         }
+      }
+   }
+
+   private void open() {
+      mState = State.OPEN;
+      mOpenedNanos = System.nanoTime();
+      mTimesOpened++;
+      System.err.println("VIX host " + mHost
+            + " unreachable; failing operations for "
+            + mCoolDownNanos / 1000000 + " ms");
+   }
+
+   /**
+    * Get the state of the breaker.
+    *
+    * @return State; an open breaker whose cool-down has passed is reported
+    *         as half open.
+    */
+   public synchronized State getCurrentState() {
+      if (mState == State.OPEN
+            && System.nanoTime() - mOpenedNanos >= mCoolDownNanos) {
+         return State.HALF_OPEN;
+      }
+      return mState;
+   }
+
+   /**
+    * Get the time until an open breaker lets a probe through.
+    *
+    * @return Milliseconds; zero unless the breaker is open.
+    */
+   public synchronized long getRemainingCoolDownMillis() {
+      if (mState != State.OPEN) {
+         return 0;
+      }
+      return Math.max(0, mCoolDownNanos - (System.nanoTime() - mOpenedNanos)) / 1000000;
+   }
+
+   /**
+    * Registers this breaker with the platform MBean server; failures are
+    * reported on System.err.
+    */
+   public void registerMBean() {
+      try {
+         ManagementFactory.getPlatformMBeanServer()
+               .registerMBean(this,
+                              new ObjectName(VixMetrics.DOMAIN
+                                    + ":type=CircuitBreaker,name="
+                                    + ObjectName.quote(mHost)));
+      } catch (JMException e) {
+         System.err.println("Unable to register circuit breaker MBean for "
+               + mHost + ": " + e);
+      }
+   }
+
+   public String getHost() {
+      return mHost;
+   }
+
+   public String getState() {
+      return getCurrentState().name();
+   }
+
+   public synchronized int getConsecutiveFailures() {
+      return mConsecutiveFailures;
+   }
+
+   public int getFailureThreshold() {
+      return mFailureThreshold;
+   }
+
+   public long getCoolDownMillis() {
+      return mCoolDownNanos / 1000000;
+   }
+
+   public synchronized long getTimesOpened() {
+      return mTimesOpened;
+   }
+
+   public synchronized long getRejectedCalls() {
+      return mRejected;
+   }
+
+   public synchronized void reset() {
+      mState = State.CLOSED;
+      mConsecutiveFailures = 0;
+   }
+
+   @Override
+   public String toString() {
+      return "CircuitBreaker[" + mHost + ", " + getState() + "]";
+   }
+}
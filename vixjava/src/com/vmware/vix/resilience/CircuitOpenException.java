@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.resilience;
+
+import com.vmware.vix.VixErrorCategory;
+import com.vmware.vix.VixException;
+
+/**
+ * Thrown instead of running an operation while the circuit breaker of its
+ * host is open, that is while the host is considered unreachable.
+ */
+@SuppressWarnings("serial")
+public class CircuitOpenException extends VixException {
+
+   private final String mHost;
+   private final long mRetryAfterMillis;
+
+   /**
+    * Constructor.
+    *
+    * @param host
+    *           Host whose circuit is open.
+    * @param retryAfterMillis
+    *           Time until the breaker lets a probe through.
+    */
+   public CircuitOpenException(String host, long retryAfterMillis) {
+      super("Circuit open for VIX host " + host + "; next probe in "
+            + retryAfterMillis + " ms");
+      mHost = host;
+      mRetryAfterMillis = retryAfterMillis;
+   }
+
+   /**
+    * @return {@link VixErrorCategory#CONNECTION}
+    */
+   @Override
+   public VixErrorCategory getCategory() {
+      return VixErrorCategory.CONNECTION;
+   }
+
+   /**
+    * Get the host whose circuit is open.
+    *
+    * @return Host name or URL.
+    */
+   public String getHost() {
+      return mHost;
+   }
+
+   /**
+    * Get the time until the breaker lets a probe through.
+    *
+    * @return Milliseconds; zero if a probe is already in progress.
+    */
+   public long getRetryAfterMillis() {
+      return mRetryAfterMillis;
+   }
+}
@@ -0,0 +1,363 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.resilience;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.vmware.vix.VixError;
+import com.vmware.vix.VixErrorCategory;
+import com.vmware.vix.VixException;
+import com.vmware.vix.metrics.VixMetrics;
+
+/**
+ * Adaptive limit on the number of concurrent operations against one VIX
+ * host, using additive increase and multiplicative decrease (AIMD).
+ * Operations beyond the limit wait for a slot.
+ * <p/>
+ * Each completed operation adjusts the limit:
+ * <ul>
+ * <li>A connection error, see VixErrorCategory, VIX_E_OBJECT_IS_BUSY, or
+ * recent latency exceeding the long-term average by the tolerance factor is
+ * taken as a sign of overload. Other errors, such as a locked file or
+ * VMware Tools not running in one guest, say nothing about the host. The limit is multiplied by the backoff ratio, at
+ * most once per recent average latency, so that a burst of slow operations
+ * counts once.</li>
+ * <li>Otherwise, if at least half the limit was in use, the limit grows by
+ * 1/limit, that is by about one per round of operations.</li>
+ * </ul>
+ * Latencies are exponentially weighted moving averages over all operations
+ * against the host, so operations whose duration depends on the guest or
+ * the amount of data, such as waiting for VMware Tools, running a program
+ * to completion or copying a file, should not be run through the limiter.
+ * Operations nested in an operation of the same limiter on
+ * the same thread do not take another slot.
+ * <p/>
+ * Setting the system property <code>vix.limiter=true</code> makes
+ * com.vmware.vix.VixHostHandle and com.vmware.vix.VixVmHandle run their
+ * operations, other than the long ones above, through the limiter of their
+ * host, see {@link #forHost(String)}.
+ * <code>vix.limiter.initial</code> (8), <code>vix.limiter.min</code> (1) and
+ * <code>vix.limiter.max</code> (64) set the bounds. With
+ * <code>vix.metrics=true</code> each limiter is registered with the platform
+ * MBean server as
+ * <code>com.vmware.vix:type=ConcurrencyLimiter,name=&lt;host&gt;</code>.
+ */
+public class ConcurrencyLimiter implements ConcurrencyLimiterMXBean {
+
+   public static final String LIMITER_PROPERTY = "vix.limiter";
+   public static final String INITIAL_PROPERTY = "vix.limiter.initial";
+   public static final String MIN_PROPERTY = "vix.limiter.min";
+   public static final String MAX_PROPERTY = "vix.limiter.max";
+
+   private static final ConcurrentHashMap<String, ConcurrencyLimiter> mLimiters =
+         new ConcurrentHashMap<String, ConcurrencyLimiter>();
+
+   /*
+    * Weights of a new sample in the recent and long-term latency averages,
+    * and the number of samples before latency is used as a signal.
+    */
+   private static final double SHORT_WEIGHT = 0.2;
+   private static final double LONG_WEIGHT = 0.02;
+   private static final int WARM_UP_SAMPLES = 20;
+
+   private final String mHost;
+   private final int mMinLimit;
+   private final int mMaxLimit;
+   private final ThreadLocal<Boolean> mInCall = new ThreadLocal<Boolean>();
+   private double mBackoffRatio = 0.7;
+   private double mTolerance = 2.0;
+   private double mLimit;
+   private int mInFlight;
+   private int mWaiting;
+   private double mShortNanos;
+   private double mLongNanos;
+   private long mSamples;
+   private long mLastDecreaseNanos;
+   private long mIncreases;
+   private long mDecreases;
+   private long mOverloadErrors;
+
+   /**
+    * Constructor.
+    *
+    * @param host
+    *           Name of the host, used in messages.
+    * @param initialLimit
+    *           Limit to start with.
+    * @param minLimit
+    *           Lowest limit, at least 1.
+    * @param maxLimit
+    *           Highest limit.
+    */
+   public ConcurrencyLimiter(
+         String host,
+         int initialLimit,
+         int minLimit,
+         int maxLimit) {
+      if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit
+            || initialLimit > maxLimit) {
+         throw new IllegalArgumentException("Invalid concurrency limits");
+      }
+      mHost = host;
+      mLimit = initialLimit;
+      mMinLimit = minLimit;
+      mMaxLimit = maxLimit;
+      mLastDecreaseNanos = System.nanoTime();
+   }
+
+   /**
+    * Tells whether the handles run their operations through limiters.
+    *
+    * @return Value of the <code>vix.limiter</code> system property.
+    */
+   public static boolean isEnabled() {
+      return Boolean.getBoolean(LIMITER_PROPERTY);
+   }
+
+   /**
+    * Get the limiter shared by all handles connected to a host, creating it
+    * with the bounds from the system properties on first use.
+    *
+    * @param host
+    *           Host name or URL, as passed to VixHost_Connect().
+    * @return Limiter for the host.
+    */
+   public static ConcurrencyLimiter forHost(String host) {
+      ConcurrencyLimiter limiter = mLimiters.get(host);
+      if (limiter == null) {
+         limiter =
+               new ConcurrencyLimiter(host,
+                                      Integer.getInteger(INITIAL_PROPERTY, 8),
+                                      Integer.getInteger(MIN_PROPERTY, 1),
+                                      Integer.getInteger(MAX_PROPERTY, 64));
+         ConcurrencyLimiter existing = mLimiters.putIfAbsent(host, limiter);
+         if (existing != null) {
+            return existing;
+         }
+         if (Boolean.getBoolean(VixMetrics.METRICS_PROPERTY)) {
+            limiter.registerMBean();
+         }
+      }
+      return limiter;
+   }
+
+   /**
+    * Sets the factor the limit is multiplied by on overload.
+    *
+    * @param backoffRatio
+    *           Between 0 and 1; 0.7 by default.
+    */
+   public synchronized void setBackoffRatio(double backoffRatio) {
+      if (backoffRatio <= 0 || backoffRatio >= 1) {
+         throw new IllegalArgumentException("backoffRatio must be between 0 and 1");
+      }
+      mBackoffRatio = backoffRatio;
+   }
+
+   /**
+    * Sets how many times the long-term average latency recent latency may
+    * reach before it is taken as overload.
+    *
+    * @param tolerance
+    *           Greater than 1; 2 by default.
+    */
+   public synchronized void setTolerance(double tolerance) {
+      if (tolerance <= 1) {
+         throw new IllegalArgumentException("tolerance must be greater than 1");
+      }
+      mTolerance = tolerance;
+   }
+
+   /**
+    * Runs an operation once a slot is free.
+    *
+    * @param call
+    *           Operation against the host of this limiter.
+    * @return Result of the operation.
+    * @throws VixException
+    *            If the operation failed, or the thread was interrupted while
+    *            waiting for a slot.
+    */
+   public <T> T execute(VixCall<T> call) throws VixException {
+      if (mInCall.get() != null) {
+         return call.call();
+      }
+      acquire();
+      boolean hostError = false;
+      long start = System.nanoTime();
+      mInCall.set(Boolean.TRUE);
+      try {
+         return call.call();
+      } catch (VixException e) {
+         hostError = isHostError(e);
+         throw e;
+      } finally {
+         mInCall.remove();
+         release(System.nanoTime() - start, hostError);
+      }
+   }
+
+   /**
+    * Tells whether an error is a sign that the host itself is overloaded.
+    */
+   private static boolean isHostError(VixException e) {
+      VixError error = e.getError();
+      return e.getCategory() == VixErrorCategory.CONNECTION
+            || (error != null && error.intValue() == VixError.VIX_E_OBJECT_IS_BUSY.intValue());
+   }
+
+   private synchronized void acquire() throws VixException {
+      mWaiting++;
+      try {
+         while (mInFlight >= (int) mLimit) {
+            wait();
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new VixException("Interrupted while waiting to run a VIX "
+               + "operation on " + mHost, e);
+      } finally {
+         mWaiting--;
+      }
+      mInFlight++;
+   }
+
+   /**
+    * Gives back a slot and adjusts the limit to the outcome of the
+    * operation.
+    */
+   private synchronized void release(long nanos, boolean hostError) {
+      boolean saturated = mInFlight * 2 >= mLimit;
+      mInFlight--;
+      boolean overload;
+      if (hostError) {
+         mOverloadErrors++;
+         overload = true;
+      } else {
+         if (mSamples++ == 0) {
+            mShortNanos = nanos;
+            mLongNanos = nanos;
+         } else {
+            mShortNanos += (nanos - mShortNanos) * SHORT_WEIGHT;
+            mLongNanos += (nanos - mLongNanos) * LONG_WEIGHT;
+         }
+         overload =
+               mSamples > WARM_UP_SAMPLES && mShortNanos > mLongNanos * mTolerance;
+      }
+
+      int before = (int) mLimit;
+      long now = System.nanoTime();
+      if (overload) {
+         if (now - mLastDecreaseNanos >= mShortNanos) {
+            mLimit = Math.max(mMinLimit, mLimit * mBackoffRatio);
+            mLastDecreaseNanos = now;
+         }
+      } else if (saturated) {
+         mLimit = Math.min(mMaxLimit, mLimit + 1 / mLimit);
+      }
+      if ((int) mLimit > before) {
+         mIncreases++;
+      } else if ((int) mLimit < before) {
+         mDecreases++;
+      }
+      notifyAll();
+   }
+
+   /**
+    * Registers this limiter with the platform MBean server; failures are
+    * reported on System.err.
+    */
+   public void registerMBean() {
+      try {
+         ManagementFactory.getPlatformMBeanServer()
+               .registerMBean(this,
+                              new ObjectName(VixMetrics.DOMAIN
+                                    + ":type=ConcurrencyLimiter,name="
+                                    + ObjectName.quote(mHost)));
+      } catch (JMException e) {
+         System.err.println("Unable to register concurrency limiter MBean for "
+               + mHost + ": " + e);
+      }
+   }
+
+   public String getHost() {
+      return mHost;
+   }
+
+   public synchronized int getLimit() {
+      return (int) mLimit;
+   }
+
+   public int getMinLimit() {
+      return mMinLimit;
+   }
+
+   public int getMaxLimit() {
+      return mMaxLimit;
+   }
+
+   public synchronized int getInFlight() {
+      return mInFlight;
+   }
+
+   public synchronized int getWaiting() {
+      return mWaiting;
+   }
+
+   public synchronized double getShortLatencyMillis() {
+      return mShortNanos / 1e6;
+   }
+
+   public synchronized double getLongLatencyMillis() {
+      return mLongNanos / 1e6;
+   }
+
+   public synchronized long getIncreases() {
+      return mIncreases;
+   }
+
+   public synchronized long getDecreases() {
+      return mDecreases;
+   }
+
+   public synchronized long getOverloadErrors() {
+      return mOverloadErrors;
+   }
+
+   @Override
+   public synchronized String toString() {
+      return "ConcurrencyLimiter[" + mHost + ", limit " + (int) mLimit
+            + ", in flight " + mInFlight + "]";
+   }
+}
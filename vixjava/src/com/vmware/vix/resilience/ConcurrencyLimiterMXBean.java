@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.resilience;
+
+/**
+ * JMX view of the ConcurrencyLimiter of a VIX host.
+ */
+public interface ConcurrencyLimiterMXBean {
+
+   String getHost();
+
+   /**
+    * Get the number of operations currently let through at once.
+    */
+   int getLimit();
+
+   int getMinLimit();
+
+   int getMaxLimit();
+
+   int getInFlight();
+
+   /**
+    * Get the number of threads waiting for a slot.
+    */
+   int getWaiting();
+
+   /**
+    * Get the recent average latency of operations.
+    */
+   double getShortLatencyMillis();
+
+   /**
+    * Get the long-term average latency of operations, which recent latency
+    * is compared against.
+    */
+   double getLongLatencyMillis();
+
+   long getIncreases();
+
+   long getDecreases();
+
+   /**
+    * Get the number of operations which failed with a connection error or
+    * VIX_E_OBJECT_IS_BUSY.
+    */
+   long getOverloadErrors();
+}
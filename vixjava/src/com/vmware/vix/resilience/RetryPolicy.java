@@ -0,0 +1,293 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.resilience;
+
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vmware.vix.VixErrorCategory;
+import com.vmware.vix.VixException;
+
+/**
+ * Retries operations failing with a retryable VixErrorCategory, waiting with
+ * exponential backoff and jitter between attempts. The wait before attempt n
+ * is <code>initialDelay * multiplier^(n - 2)</code>, capped at
+ * <code>maxDelay</code>, of which a random fraction up to
+ * <code>jitter</code> is left out so that clients failing together do not
+ * retry together.
+ * <p/>
+ * Operations which are not idempotent, such as running a program, are only
+ * retried on {@link VixErrorCategory#TRANSIENT} errors, which mean that the
+ * operation was not carried out; after a connection error it may have run.
+ * {@link CircuitOpenException}s are never retried. Operations nested in an
+ * operation being retried on the same thread are run once; a failure is
+ * retried by the outer operation.
+ * <p/>
+ * com.vmware.vix.VixHostHandle and com.vmware.vix.VixVmHandle run their
+ * operations through {@link #getDefault()} unless given another policy. Its
+ * settings are read from the system properties
+ * <code>vix.retry.attempts</code> (3; 1 disables retries),
+ * <code>vix.retry.delay</code> (100 ms), <code>vix.retry.maxDelay</code>
+ * (5000 ms) and <code>vix.retry.jitter</code> (0.5).
+ */
+public class RetryPolicy {
+
+   public static final String ATTEMPTS_PROPERTY = "vix.retry.attempts";
+   public static final String DELAY_PROPERTY = "vix.retry.delay";
+   public static final String MAX_DELAY_PROPERTY = "vix.retry.maxDelay";
+   public static final String JITTER_PROPERTY = "vix.retry.jitter";
+
+   private static final ThreadLocal<Boolean> mInCall = new ThreadLocal<Boolean>();
+   private static RetryPolicy mDefault;
+
+   private final Random mRandom = new Random();
+   private final AtomicLong mRetries = new AtomicLong();
+   private final AtomicLong mExhausted = new AtomicLong();
+   private volatile int mMaxAttempts = 3;
+   private volatile long mInitialDelayMillis = 100;
+   private volatile long mMaxDelayMillis = 5000;
+   private volatile double mMultiplier = 2;
+   private volatile double mJitter = 0.5;
+   private volatile Set<VixErrorCategory> mRetryOn =
+         EnumSet.of(VixErrorCategory.CONNECTION, VixErrorCategory.TRANSIENT);
+
+   /**
+    * Get the policy used by the handles unless given another one.
+    *
+    * @return Default policy, configured from the system properties.
+    */
+   public static synchronized RetryPolicy getDefault() {
+      if (mDefault == null) {
+         mDefault =
+               new RetryPolicy().setMaxAttempts(Integer.getInteger(ATTEMPTS_PROPERTY,
+                                                                   3))
+                     .setInitialDelay(Long.getLong(DELAY_PROPERTY, 100))
+                     .setMaxDelay(Long.getLong(MAX_DELAY_PROPERTY, 5000))
+                     .setJitter(Double.parseDouble(System.getProperty(JITTER_PROPERTY,
+                                                                      "0.5")));
+      }
+      return mDefault;
+   }
+
+   /**
+    * Sets the number of times an operation is attempted in total.
+    *
+    * @param maxAttempts
+    *           At least 1.
+    * @return This policy.
+    */
+   public RetryPolicy setMaxAttempts(int maxAttempts) {
+      if (maxAttempts < 1) {
+         throw new IllegalArgumentException("maxAttempts must be at least 1");
+      }
+      mMaxAttempts = maxAttempts;
+      return this;
+   }
+
+   /**
+    * Sets the wait before the first retry.
+    *
+    * @param millis
+    * @return This policy.
+    */
+   public RetryPolicy setInitialDelay(long millis) {
+      mInitialDelayMillis = millis;
+      return this;
+   }
+
+   /**
+    * Sets the longest wait between two attempts.
+    *
+    * @param millis
+    * @return This policy.
+    */
+   public RetryPolicy setMaxDelay(long millis) {
+      mMaxDelayMillis = millis;
+      return this;
+   }
+
+   /**
+    * Sets the factor by which the wait grows with each retry.
+    *
+    * @param multiplier
+    *           At least 1.
+    * @return This policy.
+    */
+   public RetryPolicy setMultiplier(double multiplier) {
+      mMultiplier = multiplier;
+      return this;
+   }
+
+   /**
+    * Sets the largest fraction of a wait which is randomly left out.
+    *
+    * @param jitter
+    *           Between 0 (fixed waits) and 1 (waits anywhere between zero and
+    *           the full backoff).
+    * @return This policy.
+    */
+   public RetryPolicy setJitter(double jitter) {
+      if (jitter < 0 || jitter > 1) {
+         throw new IllegalArgumentException("jitter must be between 0 and 1");
+      }
+      mJitter = jitter;
+      return this;
+   }
+
+   /**
+    * Sets the error categories which are retried for idempotent operations.
+    *
+    * @param categories
+    *           Categories; CONNECTION and TRANSIENT by default.
+    * @return This policy.
+    */
+   public RetryPolicy setRetryOn(Set<VixErrorCategory> categories) {
+      mRetryOn = EnumSet.copyOf(categories);
+      return this;
+   }
+
+   /**
+    * Runs an idempotent operation.
+    *
+    * @see #execute(VixCall, boolean)
+    */
+   public <T> T execute(VixCall<T> call) throws VixException {
+      return execute(call, true);
+   }
+
+   /**
+    * Runs an operation, retrying it while it fails with a retryable error.
+    *
+    * @param call
+    *           Operation to run.
+    * @param idempotent
+    *           Whether the operation may safely be repeated after a failure
+    *           which leaves open whether it took effect.
+    * @return Result of the operation.
+    * @throws VixException
+    *            Error of the last attempt.
+    */
+   public <T> T execute(VixCall<T> call, boolean idempotent)
+         throws VixException {
+      if (mMaxAttempts == 1 || mInCall.get() != null) {
+         return call.call();
+      }
+      mInCall.set(Boolean.TRUE);
+      try {
+         for (int attempt = 1;; attempt++) {
+            try {
+               return call.call();
+            } catch (VixException e) {
+               if (!shouldRetry(e, idempotent)) {
+                  throw e;
+               }
+               if (attempt >= mMaxAttempts) {
+                  mExhausted.incrementAndGet();
+                  throw e;
+               }
+               mRetries.incrementAndGet();
+               sleep(getDelayMillis(attempt), e);
+            }
+         }
+      } finally {
+         mInCall.remove();
+      }
+   }
+
+   /**
+    * Determines whether a failed operation is attempted again.
+    *
+    * @param e
+    *           Failure of the operation.
+    * @param idempotent
+    *           Whether the operation may be repeated after a connection error.
+    * @return <code>true</code> to retry, attempts permitting.
+    */
+   protected boolean shouldRetry(VixException e, boolean idempotent) {
+      if (e instanceof CircuitOpenException) {
+         return false;
+      }
+      VixErrorCategory category = e.getCategory();
+      if (!idempotent && category != VixErrorCategory.TRANSIENT) {
+         return false;
+      }
+      return mRetryOn.contains(category);
+   }
+
+   /**
+    * Get the wait after a failed attempt, including jitter.
+    *
+    * @param attempt
+    *           Number of the failed attempt, starting at 1.
+    * @return Milliseconds.
+    */
+   public long getDelayMillis(int attempt) {
+      double backoff =
+            Math.min(mMaxDelayMillis,
+                     mInitialDelayMillis * Math.pow(mMultiplier, attempt - 1));
+      double fraction;
+      synchronized (mRandom) {
+         fraction = mRandom.nextDouble();
+      }
+      return (long) (backoff * (1 - mJitter * fraction));
+   }
+
+   private static void sleep(long millis, VixException cause)
+         throws VixException {
+      try {
+         Thread.sleep(millis);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new VixException("Interrupted while waiting to retry: "
+               + cause.getMessage(), cause);
+      }
+   }
+
+   /**
+    * Get the number of retries made under this policy.
+    *
+    * @return Retries, not counting first attempts.
+    */
+   public long getRetries() {
+      return mRetries.get();
+   }
+
+   /**
+    * Get the number of operations which still failed with a retryable error
+    * after the last attempt.
+    *
+    * @return Operations which exhausted their attempts.
+    */
+   public long getExhausted() {
+      return mExhausted.get();
+   }
+}
@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.simulator;
+
+import java.util.Random;
+
+/**
+ * Distribution of the time simulated VIX jobs take to complete.
+ */
+public abstract class Latency {
+
+   /**
+    * Samples a job duration.
+    *
+    * @param random
+    *           Source of randomness.
+    * @return Duration in milliseconds, never negative.
+    */
+   public abstract long sampleMillis(Random random);
+
+   /**
+    * Latency of jobs which complete straight away.
+    *
+    * @return Latency of zero.
+    */
+   public static Latency none() {
+      return fixed(0);
+   }
+
+   /**
+    * Latency which is always the same.
+    *
+    * @param millis
+    *           Duration in milliseconds.
+    * @return The latency.
+    */
+   public static Latency fixed(final long millis) {
+      return new Latency() {
+         @Override
+         public long sampleMillis(Random random) {
+            return millis;
+         }
+
+         @Override
+         public String toString() {
+            return "fixed:" + millis;
+         }
+      };
+   }
+
+   /**
+    * Latency uniformly distributed in a range.
+    *
+    * @param minMillis
+    *           Shortest duration in milliseconds.
+    * @param maxMillis
+    *           Longest duration in milliseconds.
+    * @return The latency.
+    */
+   public static Latency uniform(final long minMillis, final long maxMillis) {
+      return new Latency() {
+         @Override
+         public long sampleMillis(Random random) {
+            return minMillis
+                  + (long) (random.nextDouble() * (maxMillis - minMillis));
+         }
+
+         @Override
+         public String toString() {
+            return "uniform:" + minMillis + "," + maxMillis;
+         }
+      };
+   }
+
+   /**
+    * Exponentially distributed latency.
+    *
+    * @param meanMillis
+    *           Mean duration in milliseconds.
+    * @return The latency.
+    */
+   public static Latency exponential(final double meanMillis) {
+      return new Latency() {
+         @Override
+         public long sampleMillis(Random random) {
+            return Math.round(-meanMillis * Math.log(1 - random.nextDouble()));
+         }
+
+         @Override
+         public String toString() {
+            return "exponential:" + meanMillis;
+         }
+      };
+   }
+
+   /**
+    * Log-normally distributed latency, which has the long tail typical of
+    * jobs against a loaded host.
+    *
+    * @param medianMillis
+    *           Median duration in milliseconds.
+    * @param sigma
+    *           Standard deviation of the logarithm of the duration; 0.5 gives
+    *           a 99th percentile of about three times the median.
+    * @return The latency.
+    */
+   public static Latency logNormal(final double medianMillis, final double sigma) {
+      return new Latency() {
+         @Override
+         public long sampleMillis(Random random) {
+            return Math.round(medianMillis
+                  * Math.exp(sigma * random.nextGaussian()));
+         }
+
+         @Override
+         public String toString() {
+            return "lognormal:" + medianMillis + "," + sigma;
+         }
+      };
+   }
+
+   /**
+    * Parses a latency specification: <code>none</code>,
+    * <code>fixed:MS</code>, <code>uniform:MIN,MAX</code>,
+    * <code>exponential:MEAN</code> or <code>lognormal:MEDIAN,SIGMA</code>.
+    *
+    * @param spec
+    *           Latency specification.
+    * @return The latency.
+    * @throws IllegalArgumentException
+    *            If the specification is not valid.
+    */
+   public static Latency parse(String spec) {
+      String[] parts = spec.trim().split("[:,]");
+      try {
+         String kind = parts[0].toLowerCase();
+         if (kind.equals("none")) {
+            return none();
+         } else if (kind.equals("fixed")) {
+            return fixed(Long.parseLong(parts[1]));
+         } else if (kind.equals("uniform")) {
+            return uniform(Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+         } else if (kind.equals("exponential")) {
+            return exponential(Double.parseDouble(parts[1]));
+         } else if (kind.equals("lognormal")) {
+            return logNormal(Double.parseDouble(parts[1]),
+                             Double.parseDouble(parts[2]));
+         }
+      } catch (RuntimeException e) {
+         throw new IllegalArgumentException("Invalid latency " + spec, e);
+      }
+      throw new IllegalArgumentException("Invalid latency " + spec);
+   }
+}
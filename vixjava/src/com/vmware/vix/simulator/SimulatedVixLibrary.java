@@ -0,0 +1,1849 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.simulator;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.LongByReference;
+import com.sun.jna.ptr.PointerByReference;
+import com.vmware.vix.VixCloneType;
+import com.vmware.vix.VixConstants;
+import com.vmware.vix.VixError;
+import com.vmware.vix.VixEventProc;
+import com.vmware.vix.VixEventType;
+import com.vmware.vix.VixException;
+import com.vmware.vix.VixFindItemType;
+import com.vmware.vix.VixHandle;
+import com.vmware.vix.VixHandleByReference;
+import com.vmware.vix.VixHandleType;
+import com.vmware.vix.VixHostOptions;
+import com.vmware.vix.VixLibrary;
+import com.vmware.vix.VixMsgSharedFolderOptions;
+import com.vmware.vix.VixPropertyID;
+import com.vmware.vix.VixPropertyType;
+import com.vmware.vix.VixPropertyTypeByReference;
+import com.vmware.vix.VixPumpEventsOptions;
+import com.vmware.vix.VixRunProgramOptions;
+import com.vmware.vix.VixServiceProvider;
+import com.vmware.vix.VixToolsState;
+import com.vmware.vix.VixUtils;
+import com.vmware.vix.VixVMDeleteOptions;
+import com.vmware.vix.VixVMOpenOptions;
+import com.vmware.vix.VixVMPowerOpOptions;
+import com.vmware.vix.VixVmHandle;
+
+/**
+ * Pure Java implementation of VixLibrary which simulates a host with VMs,
+ * their guest filesystems, processes, variables and snapshots, so that code
+ * using the VIX API can be tested and benchmarked without vixAllProducts and
+ * a live host. Select it with <code>-Dvix.library=simulated</code>, see
+ * com.vmware.vix.VixLibraryFactory.
+ * <p/>
+ * Jobs complete asynchronously after a latency taken from the
+ * {@link SimulatorConfig}, which may also make jobs fail. The work of a job is
+ * done when it is submitted, so its effects may be visible before it
+ * completes. Completion callbacks are made from simulator threads, as the
+ * native library makes them from its own threads.
+ * <p/>
+ * All hosts connected to share one inventory of VMs. By default it holds the
+ * powered on VMs <code>[datastore1] vm-N/vm-N.vmx</code>, alternately with
+ * POSIX and Windows guests; their number is set with the
+ * <code>vix.sim.vms</code> system property (default 4). Guest logins accept
+ * any non-empty user name unless restricted with
+ * {@link SimulatedVm#setCredentials(String, String)}. Programs and scripts
+ * exit with code 0 unless a {@link SimulatedVm.ProgramHandler} is set.
+ * <p/>
+ * Shared folders, recording and replay and screen captures are not
+ * supported, as on ESX, and fail with VIX_E_NOT_SUPPORTED.
+ */
+public class SimulatedVixLibrary implements VixLibrary {
+
+   /**
+    * Work done by a job when it is submitted.
+    */
+   private interface Operation {
+      void run(Job job) throws VixException;
+   }
+
+   /**
+    * Object behind a VIX handle.
+    */
+   private abstract static class Handle {
+
+      abstract VixHandleType getType();
+
+      /**
+       * Get the properties of this handle by VixPropertyID value.
+       */
+      Map<Integer, Object> getProperties() {
+         return Collections.emptyMap();
+      }
+   }
+
+   private static final class Job extends Handle {
+
+      final String mFunction;
+      final VixEventProc mCallback;
+      final Pointer mClientData;
+      final CountDownLatch mDone = new CountDownLatch(1);
+      final Map<Integer, Object> mProperties =
+            Collections.synchronizedMap(new HashMap<Integer, Object>());
+      final List<Map<Integer, Object>> mRows =
+            new ArrayList<Map<Integer, Object>>();
+      final List<String> mFoundItems = new ArrayList<String>();
+      volatile VixError mError = VixError.VIX_OK;
+      long mBytes;
+      boolean mTimed;
+
+      Job(String function, VixEventProc callback, Pointer clientData) {
+         mFunction = function;
+         mCallback = callback;
+         mClientData = clientData;
+      }
+
+      @Override
+      VixHandleType getType() {
+         return VixHandleType.VIX_HANDLETYPE_JOB;
+      }
+
+      @Override
+      Map<Integer, Object> getProperties() {
+         return mProperties;
+      }
+
+      void set(VixPropertyID id, Object value) {
+         mProperties.put(id.intValue(), value);
+      }
+
+      Map<Integer, Object> addRow() {
+         Map<Integer, Object> row = new HashMap<Integer, Object>();
+         mRows.add(row);
+         return row;
+      }
+   }
+
+   private static final class Host extends Handle {
+
+      final VixServiceProvider mHostType;
+      final String mHostName;
+
+      Host(VixServiceProvider hostType, String hostName) {
+         mHostType = hostType;
+         mHostName = hostName;
+      }
+
+      @Override
+      VixHandleType getType() {
+         return VixHandleType.VIX_HANDLETYPE_HOST;
+      }
+
+      @Override
+      Map<Integer, Object> getProperties() {
+         Map<Integer, Object> props = new HashMap<Integer, Object>();
+         props.put(VixPropertyID.VIX_PROPERTY_HOST_HOSTTYPE.intValue(),
+                   mHostType != null ? mHostType.intValue() : 0);
+         props.put(VixPropertyID.VIX_PROPERTY_HOST_API_VERSION.intValue(), 1);
+         return props;
+      }
+   }
+
+   /**
+    * Handle for a VM; guest logins belong to the handle.
+    */
+   private static final class VmRef extends Handle {
+
+      final SimulatedVm mVm;
+      private String mUsername;
+      private int mLoginBootCount;
+
+      VmRef(SimulatedVm vm) {
+         mVm = vm;
+      }
+
+      @Override
+      VixHandleType getType() {
+         return VixHandleType.VIX_HANDLETYPE_VM;
+      }
+
+      @Override
+      Map<Integer, Object> getProperties() {
+         Map<Integer, Object> props = new HashMap<Integer, Object>();
+         VixToolsState tools =
+               mVm.isToolsRunning() ? VixToolsState.VIX_TOOLSSTATE_RUNNING
+                                    : VixToolsState.VIX_TOOLSSTATE_UNKNOWN;
+         props.put(VixPropertyID.VIX_PROPERTY_VM_VMX_PATHNAME.intValue(),
+                   mVm.getVmxPath());
+         props.put(VixPropertyID.VIX_PROPERTY_VM_POWER_STATE.intValue(),
+                   mVm.getPowerState());
+         props.put(VixPropertyID.VIX_PROPERTY_VM_TOOLS_STATE.intValue(),
+                   tools.intValue());
+         props.put(VixPropertyID.VIX_PROPERTY_VM_IS_RUNNING.intValue(),
+                   mVm.isPoweredOn());
+         props.put(VixPropertyID.VIX_PROPERTY_VM_NUM_VCPUS.intValue(), 2);
+         props.put(VixPropertyID.VIX_PROPERTY_VM_MEMORY_SIZE.intValue(), 2048);
+         props.put(VixPropertyID.VIX_PROPERTY_VM_READ_ONLY.intValue(), false);
+         props.put(VixPropertyID.VIX_PROPERTY_VM_IN_VMTEAM.intValue(), false);
+         props.put(VixPropertyID.VIX_PROPERTY_VM_IS_RECORDING.intValue(), false);
+         props.put(VixPropertyID.VIX_PROPERTY_VM_IS_REPLAYING.intValue(), false);
+         props.put(VixPropertyID.VIX_PROPERTY_VM_SUPPORTED_FEATURES.intValue(), 0);
+         return props;
+      }
+
+      synchronized void login(String username) {
+         mUsername = username;
+         mLoginBootCount = mVm.getBootCount();
+      }
+
+      synchronized void logout() {
+         mUsername = null;
+      }
+
+      /**
+       * Get the user logged in through this handle.
+       *
+       * @return User name; <code>null</code> if there is no valid login.
+       */
+      synchronized String getUsername() {
+         return mLoginBootCount == mVm.getBootCount() ? mUsername : null;
+      }
+   }
+
+   private static final class SnapshotRef extends Handle {
+
+      final SimulatedVm mVm;
+      final SimulatedVm.Snapshot mSnapshot;
+
+      SnapshotRef(SimulatedVm vm, SimulatedVm.Snapshot snapshot) {
+         mVm = vm;
+         mSnapshot = snapshot;
+      }
+
+      @Override
+      VixHandleType getType() {
+         return VixHandleType.VIX_HANDLETYPE_SNAPSHOT;
+      }
+
+      @Override
+      Map<Integer, Object> getProperties() {
+         Map<Integer, Object> props = new HashMap<Integer, Object>();
+         props.put(VixPropertyID.VIX_PROPERTY_SNAPSHOT_DISPLAYNAME.intValue(),
+                   mSnapshot.mName != null ? mSnapshot.mName : "");
+         props.put(VixPropertyID.VIX_PROPERTY_SNAPSHOT_DESCRIPTION.intValue(),
+                   mSnapshot.mDescription != null ? mSnapshot.mDescription : "");
+         props.put(VixPropertyID.VIX_PROPERTY_SNAPSHOT_POWERSTATE.intValue(),
+                   mSnapshot.mPoweredOn ? 0x0008 : 0x0002);
+         props.put(VixPropertyID.VIX_PROPERTY_SNAPSHOT_IS_REPLAYABLE.intValue(),
+                   false);
+         return props;
+      }
+   }
+
+   /**
+    * Handle passed to VIX_EVENTTYPE_FIND_ITEM callbacks.
+    */
+   private static final class FoundItem extends Handle {
+
+      final String mLocation;
+
+      FoundItem(String location) {
+         mLocation = location;
+      }
+
+      @Override
+      VixHandleType getType() {
+         return VixHandleType.VIX_HANDLETYPE_METADATA_CONTAINER;
+      }
+
+      @Override
+      Map<Integer, Object> getProperties() {
+         return Collections.<Integer, Object> singletonMap(
+               VixPropertyID.VIX_PROPERTY_FOUND_ITEM_LOCATION.intValue(),
+               mLocation);
+      }
+   }
+
+   private static final class PropertyList extends Handle {
+
+      final Map<Integer, Object> mProperties = new HashMap<Integer, Object>();
+
+      @Override
+      VixHandleType getType() {
+         return VixHandleType.VIX_HANDLETYPE_PROPERTY_LIST;
+      }
+
+      @Override
+      Map<Integer, Object> getProperties() {
+         return mProperties;
+      }
+   }
+
+   private static final int NONE = VixPropertyID.VIX_PROPERTY_NONE.intValue();
+
+   private final SimulatorConfig mConfig;
+   private final Map<String, SimulatedVm> mVms =
+         new LinkedHashMap<String, SimulatedVm>();
+   private final Map<Integer, Handle> mHandles =
+         new ConcurrentHashMap<Integer, Handle>();
+   private final AtomicInteger mNextHandle = new AtomicInteger();
+   private final ScheduledExecutorService mScheduler;
+
+   /*
+    * Strings returned through a PointerByReference stay allocated for as long
+    * as the reference, which also covers callers that never call
+    * Vix_FreeBuffer().
+    */
+   private final Map<Object, Memory> mBuffers =
+         Collections.synchronizedMap(new WeakHashMap<Object, Memory>());
+
+   /**
+    * Constructor used by VixLibraryFactory, with settings and the number of
+    * VMs read from system properties.
+    */
+   public SimulatedVixLibrary() {
+      this(new SimulatorConfig(), Integer.getInteger("vix.sim.vms", 4));
+   }
+
+   /**
+    * Constructor.
+    *
+    * @param config
+    *           Latency and failure settings.
+    * @param vmCount
+    *           Number of VMs in the default inventory.
+    */
+   public SimulatedVixLibrary(SimulatorConfig config, int vmCount) {
+      mConfig = config;
+      final AtomicInteger threads = new AtomicInteger();
+      mScheduler =
+            new ScheduledThreadPoolExecutor(Math.max(4, Runtime.getRuntime()
+                  .availableProcessors()), new ThreadFactory() {
+               public Thread newThread(Runnable r) {
+                  Thread t =
+                        new Thread(r, "vix-simulator-"
+                              + threads.incrementAndGet());
+                  t.setDaemon(true);
+                  return t;
+               }
+            });
+      for (int i = 1; i <= vmCount; i++) {
+         SimulatedVm vm =
+               new SimulatedVm("[datastore1] vm-" + i + "/vm-" + i + ".vmx",
+                               i % 2 == 0);
+         vm.setVariable(VixConstants.VIX_VM_GUEST_VARIABLE,
+                        "ip",
+                        "10.0." + (i / 250) + "." + (i % 250 + 1));
+         vm.powerOn();
+         addVm(vm);
+      }
+   }
+
+   /**
+    * Get the latency and failure settings, which may be changed at any time.
+    */
+   public SimulatorConfig getConfig() {
+      return mConfig;
+   }
+
+   /**
+    * Adds a VM to the inventory, replacing any VM with the same .vmx path.
+    *
+    * @param vm
+    */
+   public void addVm(SimulatedVm vm) {
+      synchronized (mVms) {
+         mVms.put(vm.getVmxPath(), vm);
+      }
+   }
+
+   /**
+    * Get a VM of the inventory.
+    *
+    * @param vmxPath
+    * @return VM; <code>null</code> if there is none with that path.
+    */
+   public SimulatedVm getVm(String vmxPath) {
+      synchronized (mVms) {
+         return mVms.get(vmxPath);
+      }
+   }
+
+   /**
+    * Get all VMs of the inventory.
+    */
+   public List<SimulatedVm> getVms() {
+      synchronized (mVms) {
+         return new ArrayList<SimulatedVm>(mVms.values());
+      }
+   }
+
+   /**
+    * Removes a VM from the inventory.
+    *
+    * @param vmxPath
+    */
+   public void removeVm(String vmxPath) {
+      synchronized (mVms) {
+         mVms.remove(vmxPath);
+      }
+   }
+
+   /**
+    * Get the number of live handles, for finding handle leaks.
+    */
+   public int getHandleCount() {
+      return mHandles.size();
+   }
+
+   /*
+    * Hosts
+    */
+
+   public VixHandle VixHost_Connect(
+         int apiVersion,
+         final VixServiceProvider hostType,
+         final String hostName,
+         int hostPort,
+         String userName,
+         String password,
+         VixHostOptions options,
+         VixHandle propertyListHandle,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixHost_Connect", callbackProc, clientData, new Operation() {
+         public void run(Job job) {
+            setResultHandle(job, new Host(hostType, hostName));
+         }
+      });
+   }
+
+   public void VixHost_Disconnect(VixHandle hostHandle) {
+   }
+
+   public VixHandle VixHost_FindItems(
+         final VixHandle hostHandle,
+         final VixFindItemType searchType,
+         VixHandle searchCriteria,
+         int timeout,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixHost_FindItems", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            lookup(hostHandle, Host.class);
+            boolean running =
+                  searchType.equals(VixFindItemType.VIX_FIND_RUNNING_VMS);
+            for (SimulatedVm vm : getVms()) {
+               if (vm.isRegistered() && (!running || vm.isPoweredOn())) {
+                  job.mFoundItems.add(vm.getVmxPath());
+               }
+            }
+         }
+      });
+   }
+
+   public VixVmHandle VixHost_OpenVM(
+         VixHandle hostHandle,
+         String vmxFilePathName,
+         VixVMOpenOptions options,
+         VixHandle propertyListHandle,
+         VixEventProc callbackproc,
+         Pointer clientData) {
+      return new VixVmHandle(openVm("VixHost_OpenVM",
+                                    hostHandle,
+                                    vmxFilePathName,
+                                    callbackproc,
+                                    clientData).longValue());
+   }
+
+   public VixHandle VixVM_Open(
+         VixHandle hostHandle,
+         String vmxFilePathName,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return openVm("VixVM_Open",
+                    hostHandle,
+                    vmxFilePathName,
+                    callbackProc,
+                    clientData);
+   }
+
+   public VixHandle VixHost_RegisterVM(
+         final VixHandle hostHandle,
+         final String vmxFilePath,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixHost_RegisterVM", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            lookup(hostHandle, Host.class);
+            getInventoryVm(vmxFilePath).setRegistered(true);
+         }
+      });
+   }
+
+   public VixHandle VixHost_UnregisterVM(
+         final VixHandle hostHandle,
+         final String vmxFilePath,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixHost_UnregisterVM", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            lookup(hostHandle, Host.class);
+            SimulatedVm vm = getInventoryVm(vmxFilePath);
+            if (vm.isPoweredOn()) {
+               throw new VixException(VixError.VIX_E_VM_IS_RUNNING);
+            }
+            vm.setRegistered(false);
+         }
+      });
+   }
+
+   /*
+    * Jobs
+    */
+
+   public VixError VixJob_CheckCompletion(
+         VixHandle jobHandle,
+         IntByReference complete) {
+      Job job = (Job) mHandles.get(jobHandle.intValue());
+      if (job == null) {
+         return VixError.VIX_E_INVALID_HANDLE;
+      }
+      complete.setValue(job.mDone.getCount() == 0 ? 1 : 0);
+      return VixError.VIX_OK;
+   }
+
+   public VixError VixJob_GetError(VixHandle jobHandle) {
+      Handle handle = mHandles.get(jobHandle.intValue());
+      if (!(handle instanceof Job)) {
+         return VixError.VIX_E_INVALID_HANDLE;
+      }
+      return ((Job) handle).mError;
+   }
+
+   public VixError VixJob_GetNthProperties(
+         VixHandle jobHandle,
+         int index,
+         VixPropertyID propertyID,
+         Object... args) {
+      Handle handle = mHandles.get(jobHandle.intValue());
+      if (!(handle instanceof Job)) {
+         return VixError.VIX_E_INVALID_HANDLE;
+      }
+      Job job = (Job) handle;
+      if (index < 0 || index >= job.mRows.size()) {
+         return VixError.VIX_E_INVALID_ARG;
+      }
+      return getProperties(job.mRows.get(index), propertyID, args);
+   }
+
+   public int VixJob_GetNumProperties(
+         VixHandle jobHandle,
+         VixPropertyID resultPropertyID) {
+      Handle handle = mHandles.get(jobHandle.intValue());
+      if (!(handle instanceof Job)) {
+         return 0;
+      }
+      int count = 0;
+      for (Map<Integer, Object> row : ((Job) handle).mRows) {
+         if (row.containsKey(resultPropertyID.intValue())) {
+            count++;
+         }
+      }
+      return count;
+   }
+
+   public VixError VixJob_Wait(
+         VixHandle vixHandle,
+         VixPropertyID propertyID,
+         Object... moreProperties) {
+      Handle handle = mHandles.get(vixHandle.intValue());
+      if (!(handle instanceof Job)) {
+         return VixError.VIX_E_INVALID_HANDLE;
+      }
+      Job job = (Job) handle;
+      boolean interrupted = false;
+      while (true) {
+         try {
+            job.mDone.await();
+            break;
+         } catch (InterruptedException e) {
+            interrupted = true;
+         }
+      }
+      if (interrupted) {
+         Thread.currentThread().interrupt();
+      }
+      if (!job.mError.equals(VixError.VIX_OK)) {
+         return job.mError;
+      }
+      return getProperties(job.mProperties, propertyID, moreProperties);
+   }
+
+   public VixError VixPropertyList_AllocPropertyList(
+         VixHandle vixHandle,
+         VixHandleByReference resultHandle,
+         VixPropertyID firstPropertyID,
+         Object... moreProperties) {
+      PropertyList list = new PropertyList();
+      VixPropertyID id = firstPropertyID;
+      int i = 0;
+      while (id != null && id.intValue() != NONE) {
+         if (i >= moreProperties.length) {
+            return VixError.VIX_E_INVALID_ARG;
+         }
+         list.mProperties.put(id.intValue(), moreProperties[i++]);
+         id = i < moreProperties.length ? (VixPropertyID) moreProperties[i++]
+                                        : null;
+      }
+      resultHandle.setValue(register(list));
+      return VixError.VIX_OK;
+   }
+
+   /*
+    * Snapshots
+    */
+
+   public VixError VixSnapshot_GetChild(
+         VixHandle parentSnapshotHandle,
+         int index,
+         VixHandleByReference childSnapshotHandle) {
+      try {
+         SnapshotRef parent = lookup(parentSnapshotHandle, SnapshotRef.class);
+         synchronized (parent.mVm) {
+            List<SimulatedVm.Snapshot> children = parent.mSnapshot.mChildren;
+            if (index < 0 || index >= children.size()) {
+               return VixError.VIX_E_INVALID_ARG;
+            }
+            childSnapshotHandle.setValue(register(new SnapshotRef(parent.mVm,
+                                                                  children.get(index))));
+         }
+         return VixError.VIX_OK;
+      } catch (VixException e) {
+         return e.getError();
+      }
+   }
+
+   public VixError VixSnapshot_GetNumChildren(
+         VixHandle parentSnapshotHandle,
+         IntByReference numChildSnapshots) {
+      try {
+         SnapshotRef parent = lookup(parentSnapshotHandle, SnapshotRef.class);
+         synchronized (parent.mVm) {
+            numChildSnapshots.setValue(parent.mSnapshot.mChildren.size());
+         }
+         return VixError.VIX_OK;
+      } catch (VixException e) {
+         return e.getError();
+      }
+   }
+
+   public VixError VixSnapshot_GetParent(
+         VixHandle snapshotHandle,
+         VixHandleByReference parentSnapshotHandle) {
+      try {
+         SnapshotRef child = lookup(snapshotHandle, SnapshotRef.class);
+         SimulatedVm.Snapshot parent;
+         synchronized (child.mVm) {
+            parent = child.mSnapshot.mParent;
+         }
+         parentSnapshotHandle.setValue(parent != null
+               ? register(new SnapshotRef(child.mVm, parent)) : 0);
+         return VixError.VIX_OK;
+      } catch (VixException e) {
+         return e.getError();
+      }
+   }
+
+   public VixError VixVM_GetCurrentSnapshot(
+         VixHandle vmHandle,
+         VixHandleByReference snapshotHandle) {
+      try {
+         VmRef vm = lookup(vmHandle, VmRef.class);
+         SimulatedVm.Snapshot snapshot = vm.mVm.getCurrentSnapshot();
+         if (snapshot == null) {
+            return VixError.VIX_E_SNAPSHOT_NOTFOUND;
+         }
+         snapshotHandle.setValue(register(new SnapshotRef(vm.mVm, snapshot)));
+         return VixError.VIX_OK;
+      } catch (VixException e) {
+         return e.getError();
+      }
+   }
+
+   public VixError VixVM_GetNamedSnapshot(
+         VixHandle vmHandle,
+         String name,
+         VixHandleByReference snapshotHandle) {
+      try {
+         VmRef vm = lookup(vmHandle, VmRef.class);
+         SimulatedVm.Snapshot snapshot = vm.mVm.findSnapshot(name);
+         if (snapshot == null) {
+            return VixError.VIX_E_SNAPSHOT_NOTFOUND;
+         }
+         snapshotHandle.setValue(register(new SnapshotRef(vm.mVm, snapshot)));
+         return VixError.VIX_OK;
+      } catch (VixException e) {
+         return e.getError();
+      }
+   }
+
+   public VixError VixVM_GetNumRootSnapshots(
+         VixHandle vmHandle,
+         IntByReference result) {
+      try {
+         result.setValue(lookup(vmHandle, VmRef.class).mVm.getRootSnapshots()
+               .size());
+         return VixError.VIX_OK;
+      } catch (VixException e) {
+         return e.getError();
+      }
+   }
+
+   public VixError VixVM_GetRootSnapshot(
+         VixHandle vmHandle,
+         int index,
+         VixHandleByReference snapshotHandle) {
+      try {
+         VmRef vm = lookup(vmHandle, VmRef.class);
+         List<SimulatedVm.Snapshot> roots = vm.mVm.getRootSnapshots();
+         if (index < 0 || index >= roots.size()) {
+            return VixError.VIX_E_INVALID_ARG;
+         }
+         snapshotHandle.setValue(register(new SnapshotRef(vm.mVm,
+                                                          roots.get(index))));
+         return VixError.VIX_OK;
+      } catch (VixException e) {
+         return e.getError();
+      }
+   }
+
+   public VixHandle VixVM_CreateSnapshot(
+         final VixHandle vmHandle,
+         final String name,
+         final String description,
+         int options,
+         VixHandle propertyListHandle,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_CreateSnapshot", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            SimulatedVm vm = lookup(vmHandle, VmRef.class).mVm;
+            setResultHandle(job,
+                            new SnapshotRef(vm, vm.createSnapshot(name,
+                                                                  description)));
+         }
+      });
+   }
+
+   public VixHandle VixVM_RemoveSnapshot(
+         final VixHandle vmHandle,
+         final VixHandle snapshotHandle,
+         int options,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_RemoveSnapshot", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            SimulatedVm vm = lookup(vmHandle, VmRef.class).mVm;
+            vm.removeSnapshot(lookup(snapshotHandle, SnapshotRef.class).mSnapshot);
+         }
+      });
+   }
+
+   public VixHandle VixVM_RevertToSnapshot(
+         final VixHandle vmHandle,
+         final VixHandle snapshotHandle,
+         int options,
+         VixHandle propertyListHandle,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_RevertToSnapshot", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            SimulatedVm vm = lookup(vmHandle, VmRef.class).mVm;
+            vm.revertToSnapshot(lookup(snapshotHandle, SnapshotRef.class).mSnapshot);
+         }
+      });
+   }
+
+   /*
+    * VM power and configuration
+    */
+
+   public VixHandle VixVM_PowerOn(
+         final VixHandle vmHandle,
+         VixVMPowerOpOptions powerOnOptions,
+         VixHandle propertyListHandle,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_PowerOn", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            lookup(vmHandle, VmRef.class).mVm.powerOn();
+         }
+      });
+   }
+
+   public VixHandle VixVM_PowerOff(
+         final VixHandle vmHandle,
+         VixVMPowerOpOptions powerOffOptions,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_PowerOff", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            SimulatedVm vm = getRunningVm(vmHandle);
+            vm.powerOff();
+         }
+      });
+   }
+
+   public VixHandle VixVM_Reset(
+         final VixHandle vmHandle,
+         VixVMPowerOpOptions powerOnOptions,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_Reset", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            getRunningVm(vmHandle).reset();
+         }
+      });
+   }
+
+   public VixHandle VixVM_Suspend(
+         final VixHandle vmHandle,
+         VixVMPowerOpOptions powerOffOptions,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_Suspend", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            getRunningVm(vmHandle).suspend();
+         }
+      });
+   }
+
+   public VixHandle VixVM_Pause(
+         final VixHandle vmHandle,
+         int options,
+         VixHandle propertyListHandle,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_Pause", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            getRunningVm(vmHandle).setPaused(true);
+         }
+      });
+   }
+
+   public VixHandle VixVM_Unpause(
+         final VixHandle vmHandle,
+         int options,
+         VixHandle propertyListHandle,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_Unpause", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            getRunningVm(vmHandle).setPaused(false);
+         }
+      });
+   }
+
+   public VixHandle VixVM_WaitForToolsInGuest(
+         final VixHandle vmHandle,
+         int timeoutInSeconds,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_WaitForToolsInGuest", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            if (!lookup(vmHandle, VmRef.class).mVm.isToolsRunning()) {
+               throw new VixException(VixError.VIX_E_TIMEOUT_WAITING_FOR_TOOLS);
+            }
+         }
+      });
+   }
+
+   public VixHandle VixVM_InstallTools(
+         final VixHandle vmHandle,
+         int options,
+         String commandLineArgs,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_InstallTools", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            getRunningVm(vmHandle).setToolsInstalled(true);
+         }
+      });
+   }
+
+   public VixHandle VixVM_UpgradeVirtualHardware(
+         final VixHandle vmHandle,
+         int options,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_UpgradeVirtualHardware", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            if (lookup(vmHandle, VmRef.class).mVm.isPoweredOn()) {
+               throw new VixException(VixError.VIX_E_VM_IS_RUNNING);
+            }
+         }
+      });
+   }
+
+   public VixHandle VixVM_Clone(
+         final VixHandle vmHandle,
+         VixHandle snapshotHandle,
+         VixCloneType cloneType,
+         final String destConfigPathName,
+         int options,
+         VixHandle propertyListHandle,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_Clone", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            SimulatedVm vm = lookup(vmHandle, VmRef.class).mVm;
+            synchronized (mVms) {
+               if (mVms.containsKey(destConfigPathName)) {
+                  throw new VixException(VixError.VIX_E_FILE_ALREADY_EXISTS);
+               }
+               SimulatedVm clone = vm.copy(destConfigPathName);
+               addVm(clone);
+               setResultHandle(job, new VmRef(clone));
+            }
+         }
+      });
+   }
+
+   public VixHandle VixVM_Delete(
+         final VixHandle vmHandle,
+         VixVMDeleteOptions deleteOptions,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_Delete", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            SimulatedVm vm = lookup(vmHandle, VmRef.class).mVm;
+            if (vm.isPoweredOn()) {
+               throw new VixException(VixError.VIX_E_VM_IS_RUNNING);
+            }
+            removeVm(vm.getVmxPath());
+         }
+      });
+   }
+
+   public VixHandle VixVM_ReadVariable(
+         final VixHandle vmHandle,
+         final int variableType,
+         final String name,
+         int options,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_ReadVariable", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            SimulatedVm vm = getVariableVm(vmHandle, variableType);
+            job.set(VixPropertyID.VIX_PROPERTY_JOB_RESULT_VM_VARIABLE_STRING,
+                    vm.getVariable(variableType, name));
+         }
+      });
+   }
+
+   public VixHandle VixVM_WriteVariable(
+         final VixHandle vmHandle,
+         final int variableType,
+         final String valueName,
+         final String value,
+         int options,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_WriteVariable", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            getVariableVm(vmHandle, variableType).setVariable(variableType,
+                                                              valueName,
+                                                              value);
+         }
+      });
+   }
+
+   /*
+    * Guest authentication
+    */
+
+   public VixHandle VixVM_LoginInGuest(
+         final VixHandle vmHandle,
+         final String userName,
+         final String password,
+         int options,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_LoginInGuest", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            VmRef vm = lookup(vmHandle, VmRef.class);
+            vm.mVm.login(userName, password);
+            vm.login(userName);
+         }
+      });
+   }
+
+   public VixHandle VixVM_LogoutFromGuest(
+         final VixHandle vmHandle,
+         VixEventProc callbackproc,
+         Pointer clientData) {
+      return submit("VixVM_LogoutFromGuest", callbackproc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            lookup(vmHandle, VmRef.class).logout();
+         }
+      });
+   }
+
+   /*
+    * Guest files
+    */
+
+   public VixHandle VixVM_CopyFileFromGuestToHost(
+         final VixHandle vmHandle,
+         final String guestPathName,
+         final String hostPathName,
+         int options,
+         VixHandle propertyListHandle,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_CopyFileFromGuestToHost", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            byte[] data = getGuest(vmHandle).mVm.getFile(guestPathName).mData;
+            writeHostFile(hostPathName, data);
+            job.mBytes = data.length;
+         }
+      });
+   }
+
+   public VixHandle VixVM_CopyFileFromHostToGuest(
+         final VixHandle vmHandle,
+         final String hostPathName,
+         final String guestPathName,
+         int options,
+         VixHandle propertyListHandle,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_CopyFileFromHostToGuest", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            SimulatedVm vm = getGuest(vmHandle).mVm;
+            byte[] data = readHostFile(hostPathName);
+            vm.putFile(guestPathName, data);
+            job.mBytes = data.length;
+         }
+      });
+   }
+
+   public VixHandle VixVM_CreateDirectoryInGuest(
+         final VixHandle vmHandle,
+         final String pathName,
+         VixHandle propertyListHandle,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_CreateDirectoryInGuest", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            getGuest(vmHandle).mVm.createDirectory(pathName);
+         }
+      });
+   }
+
+   public VixHandle VixVM_CreateTempFileInGuest(
+         final VixHandle vmHandle,
+         int options,
+         VixHandle propertyListHandle,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_CreateTempFileInGuest", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            job.set(VixPropertyID.VIX_PROPERTY_JOB_RESULT_ITEM_NAME,
+                    getGuest(vmHandle).mVm.createTempFile());
+         }
+      });
+   }
+
+   public VixHandle VixVM_DeleteDirectoryInGuest(
+         final VixHandle vmHandle,
+         final String pathName,
+         int options,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_DeleteDirectoryInGuest", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            getGuest(vmHandle).mVm.deleteDirectory(pathName);
+         }
+      });
+   }
+
+   public VixHandle VixVM_DeleteFileInGuest(
+         final VixHandle vmHandle,
+         final String guestPathName,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_DeleteFileInGuest", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            getGuest(vmHandle).mVm.deleteFile(guestPathName);
+         }
+      });
+   }
+
+   public VixHandle VixVM_DirectoryExistsInGuest(
+         final VixHandle vmHandle,
+         final String pathName,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_DirectoryExistsInGuest", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            job.set(VixPropertyID.VIX_PROPERTY_JOB_RESULT_GUEST_OBJECT_EXISTS,
+                    isEntry(getGuest(vmHandle).mVm, pathName, true));
+         }
+      });
+   }
+
+   public VixHandle VixVM_FileExistsInGuest(
+         final VixHandle vmHandle,
+         final String guestPathName,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_FileExistsInGuest", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            job.set(VixPropertyID.VIX_PROPERTY_JOB_RESULT_GUEST_OBJECT_EXISTS,
+                    isEntry(getGuest(vmHandle).mVm, guestPathName, false));
+         }
+      });
+   }
+
+   public VixHandle VixVM_GetFileInfoInGuest(
+         final VixHandle vmHandle,
+         final String pathname,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_GetFileInfoInGuest", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            SimulatedVm.Entry entry = getGuest(vmHandle).mVm.getEntry(pathname);
+            job.set(VixPropertyID.VIX_PROPERTY_JOB_RESULT_FILE_SIZE,
+                    entry.getSize());
+            job.set(VixPropertyID.VIX_PROPERTY_JOB_RESULT_FILE_FLAGS,
+                    entry.getFlags());
+            job.set(VixPropertyID.VIX_PROPERTY_JOB_RESULT_FILE_MOD_TIME,
+                    entry.mModTime);
+         }
+      });
+   }
+
+   public VixHandle VixVM_ListDirectoryInGuest(
+         final VixHandle vmHandle,
+         final String pathName,
+         int options,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_ListDirectoryInGuest", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            Map<String, SimulatedVm.Entry> children =
+                  getGuest(vmHandle).mVm.list(pathName);
+            for (Map.Entry<String, SimulatedVm.Entry> e : children.entrySet()) {
+               Map<Integer, Object> row = job.addRow();
+               SimulatedVm.Entry entry = e.getValue();
+               row.put(VixPropertyID.VIX_PROPERTY_JOB_RESULT_ITEM_NAME.intValue(),
+                       e.getKey());
+               row.put(VixPropertyID.VIX_PROPERTY_JOB_RESULT_FILE_SIZE.intValue(),
+                       entry.getSize());
+               row.put(VixPropertyID.VIX_PROPERTY_JOB_RESULT_FILE_FLAGS.intValue(),
+                       entry.getFlags());
+               row.put(VixPropertyID.VIX_PROPERTY_JOB_RESULT_FILE_MOD_TIME.intValue(),
+                       entry.mModTime);
+            }
+         }
+      });
+   }
+
+   public VixHandle VixVM_RenameFileInGuest(
+         final VixHandle vmHandle,
+         final String oldName,
+         final String newName,
+         int options,
+         VixHandle propertyListHandle,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_RenameFileInGuest", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            getGuest(vmHandle).mVm.rename(oldName, newName);
+         }
+      });
+   }
+
+   /*
+    * Guest processes
+    */
+
+   public VixHandle VixVM_ListProcessesInGuest(
+         final VixHandle vmHandle,
+         int options,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_ListProcessesInGuest", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            for (SimulatedVm.GuestProcess p : getGuest(vmHandle).mVm.getProcesses()) {
+               Map<Integer, Object> row = job.addRow();
+               row.put(VixPropertyID.VIX_PROPERTY_JOB_RESULT_ITEM_NAME.intValue(),
+                       p.mName);
+               row.put(VixPropertyID.VIX_PROPERTY_JOB_RESULT_PROCESS_ID.intValue(),
+                       p.mPid);
+               row.put(VixPropertyID.VIX_PROPERTY_JOB_RESULT_PROCESS_OWNER.intValue(),
+                       p.mOwner);
+               row.put(VixPropertyID.VIX_PROPERTY_JOB_RESULT_PROCESS_COMMAND.intValue(),
+                       p.mCommand);
+               row.put(VixPropertyID.VIX_PROPERTY_JOB_RESULT_PROCESS_START_TIME.intValue(),
+                       p.mStartTime);
+               row.put(VixPropertyID.VIX_PROPERTY_JOB_RESULT_PROCESS_BEING_DEBUGGED.intValue(),
+                       false);
+            }
+         }
+      });
+   }
+
+   public VixHandle VixVM_KillProcessInGuest(
+         final VixHandle vmHandle,
+         final long pid,
+         int options,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_KillProcessInGuest", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            getGuest(vmHandle).mVm.killProcess(pid);
+         }
+      });
+   }
+
+   public VixHandle VixVM_RunProgramInGuest(
+         final VixHandle vmHandle,
+         final String guestProgramName,
+         final String commandLineArgs,
+         final VixRunProgramOptions options,
+         VixHandle propertyListHandle,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_RunProgramInGuest", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            String command = guestProgramName;
+            if (commandLineArgs != null && commandLineArgs.length() > 0) {
+               command += " " + commandLineArgs;
+            }
+            runInGuest(job,
+                       getGuest(vmHandle),
+                       guestProgramName,
+                       commandLineArgs,
+                       command,
+                       options);
+         }
+      });
+   }
+
+   public VixHandle VixVM_RunScriptInGuest(
+         final VixHandle vmHandle,
+         final String interpreter,
+         final String scriptText,
+         final VixRunProgramOptions options,
+         VixHandle propertyListHandle,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_RunScriptInGuest", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            VmRef vm = getGuest(vmHandle);
+            String command = interpreter;
+            if (command == null || command.length() == 0) {
+               command = vm.mVm.isWindows() ? "cmd.exe" : "/bin/sh";
+            }
+            runInGuest(job, vm, interpreter, scriptText, command, options);
+         }
+      });
+   }
+
+   @Deprecated
+   public VixHandle VixVM_OpenUrlInGuest(
+         final VixHandle vmHandle,
+         String url,
+         int windowState,
+         VixHandle propertyListHandle,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit("VixVM_OpenUrlInGuest", callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            getGuest(vmHandle);
+         }
+      });
+   }
+
+   /*
+    * Unsupported functions
+    */
+
+   public VixHandle VixVM_AddSharedFodler(
+         VixHandle vmHandle,
+         String shareName,
+         String hostPathName,
+         int flags,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return unsupported("VixVM_AddSharedFolder", callbackProc, clientData);
+   }
+
+   public VixHandle VixVM_EnableSharedFolders(
+         VixHandle vmHandle,
+         boolean enabled,
+         int options,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return unsupported("VixVM_EnableSharedFolders", callbackProc, clientData);
+   }
+
+   public VixHandle VixVM_GetNumSharedFolders(
+         VixHandle vmHandle,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return unsupported("VixVM_GetNumSharedFolders", callbackProc, clientData);
+   }
+
+   public VixHandle VixVM_GetSharedFolderState(
+         VixHandle vmHandle,
+         int index,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return unsupported("VixVM_GetSharedFolderState", callbackProc, clientData);
+   }
+
+   public VixHandle VixVM_RemoveSharedFolder(
+         VixHandle vmHandle,
+         String shareName,
+         int flags,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return unsupported("VixVM_RemoveSharedFolder", callbackProc, clientData);
+   }
+
+   public VixHandle VixVM_SetSharedFolderState(
+         VixHandle vmHandle,
+         String shareName,
+         String hostPathName,
+         VixMsgSharedFolderOptions flags,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return unsupported("VixVM_SetSharedFolderState", callbackProc, clientData);
+   }
+
+   public VixHandle VixVM_BeginRecording(
+         VixHandle vmHandle,
+         String name,
+         String description,
+         int options,
+         VixHandle propertyListHandle,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return unsupported("VixVM_BeginRecording", callbackProc, clientData);
+   }
+
+   public VixHandle VixVM_EndRecording(
+         VixHandle vmHandle,
+         int options,
+         VixHandle propertyListHandle,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return unsupported("VixVM_EndRecording", callbackProc, clientData);
+   }
+
+   public VixHandle VixVM_BeginReplay(
+         VixHandle vmHandle,
+         VixHandle snapshotHandle,
+         int options,
+         VixHandle propertyListHandle,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return unsupported("VixVM_BeginReplay", callbackProc, clientData);
+   }
+
+   public VixHandle VixVM_EndReplay(
+         VixHandle vmHandle,
+         int options,
+         VixHandle propertyListHandle,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return unsupported("VixVM_EndReplay", callbackProc, clientData);
+   }
+
+   public VixHandle VixVM_CaptureScreenImage(
+         VixHandle vmHandle,
+         int captureType,
+         VixHandle additionalProperties,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return unsupported("VixVM_CaptureScreenImage", callbackProc, clientData);
+   }
+
+   /*
+    * Handles and properties
+    */
+
+   public void Vix_FreeBuffer(Pointer p) {
+      /*
+       * Buffers are released with the PointerByReference they were returned
+       * through.
+       */
+   }
+
+   public String Vix_GetErrorText(VixError vixError, String locale) {
+      return VixUtils.getErrorName(vixError);
+   }
+
+   public VixHandleType Vix_GetHandleType(VixHandle handle) {
+      Handle h = mHandles.get(handle.intValue());
+      return h != null ? h.getType() : VixHandleType.VIX_HANDLETYPE_NONE;
+   }
+
+   public VixError Vix_GetProperties(
+         VixHandle handle,
+         VixPropertyID firstPropertyID,
+         Object... moreProps) {
+      Handle h = mHandles.get(handle.intValue());
+      if (h == null) {
+         return VixError.VIX_E_INVALID_HANDLE;
+      }
+      return getProperties(h.getProperties(), firstPropertyID, moreProps);
+   }
+
+   public VixError Vix_GetPropertyType(
+         VixHandle handle,
+         VixPropertyID propertyID,
+         VixPropertyTypeByReference propertyType) {
+      Handle h = mHandles.get(handle.intValue());
+      if (h == null) {
+         return VixError.VIX_E_INVALID_HANDLE;
+      }
+      Object value = h.getProperties().get(propertyID.intValue());
+      VixPropertyType type;
+      if (value == null) {
+         return VixError.VIX_E_UNRECOGNIZED_PROPERTY;
+      } else if (value instanceof String) {
+         type = VixPropertyType.VIX_PROPERTYTYPE_STRING;
+      } else if (value instanceof Boolean) {
+         type = VixPropertyType.VIX_PROPERTYTYPE_BOOL;
+      } else if (value instanceof VixHandle) {
+         type = VixPropertyType.VIX_PROPERTYTYPE_HANDLE;
+      } else if (value instanceof Long) {
+         type = VixPropertyType.VIX_PROPERTYTYPE_INT64;
+      } else {
+         type = VixPropertyType.VIX_PROPERTYTYPE_INTEGER;
+      }
+      propertyType.setValue(type.intValue());
+      return VixError.VIX_OK;
+   }
+
+   public void Vix_PumpEvents(VixHandle hostHandle, VixPumpEventsOptions options) {
+   }
+
+   public void Vix_ReleaseHandle(VixHandle vixHandle) {
+      if (vixHandle != null) {
+         mHandles.remove(vixHandle.intValue());
+      }
+   }
+
+   /*
+    * Implementation
+    */
+
+   /**
+    * Submits a job: decides whether it fails, does its work and schedules its
+    * completion after its latency.
+    *
+    * @return Job handle.
+    */
+   private VixHandle submit(
+         String function,
+         VixEventProc callbackProc,
+         Pointer clientData,
+         Operation operation) {
+      final Job job = new Job(function, callbackProc, clientData);
+      final int handle = register(job);
+      VixError failure = mConfig.sampleFailure(function);
+      if (failure != null) {
+         job.mError = failure;
+      } else {
+         try {
+            operation.run(job);
+         } catch (VixException e) {
+            job.mError =
+                  e.getError() != null ? e.getError() : VixError.VIX_E_FAIL;
+         }
+      }
+      long delay = mConfig.sampleMillis(function, job.mBytes);
+      if (job.mTimed) {
+         job.set(VixPropertyID.VIX_PROPERTY_JOB_RESULT_GUEST_PROGRAM_ELAPSED_TIME,
+                 (int) (delay / 1000));
+      }
+      mScheduler.schedule(new Runnable() {
+         public void run() {
+            complete(handle, job);
+         }
+      }, delay, TimeUnit.MILLISECONDS);
+      return new VixHandle(handle);
+   }
+
+   /**
+    * Submits a job which fails with VIX_E_NOT_SUPPORTED.
+    */
+   private VixHandle unsupported(
+         String function,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit(function, callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            throw new VixException(VixError.VIX_E_NOT_SUPPORTED);
+         }
+      });
+   }
+
+   /**
+    * Reports found items and completion of a job to its callback and wakes
+    * threads waiting for it.
+    */
+   private void complete(int handle, Job job) {
+      try {
+         if (job.mError.equals(VixError.VIX_OK)) {
+            for (String location : job.mFoundItems) {
+               int item = register(new FoundItem(location));
+               try {
+                  callback(job,
+                           handle,
+                           VixEventType.VIX_EVENTTYPE_FIND_ITEM,
+                           item);
+               } finally {
+                  mHandles.remove(item);
+               }
+            }
+         }
+      } finally {
+         job.mDone.countDown();
+      }
+      callback(job, handle, VixEventType.VIX_EVENTTYPE_JOB_COMPLETED, 0);
+   }
+
+   private void callback(
+         Job job,
+         int handle,
+         VixEventType eventType,
+         int moreEventInfo) {
+      if (job.mCallback == null) {
+         return;
+      }
+      try {
+         job.mCallback.callback(handle,
+                                eventType.intValue(),
+                                moreEventInfo,
+                                job.mClientData);
+      } catch (RuntimeException e) {
+         System.err.println("Unexpected exception in callback of "
+               + job.mFunction + ": " + e);
+         e.printStackTrace();
+      }
+   }
+
+   private int register(Handle handle) {
+      int id = mNextHandle.incrementAndGet();
+      mHandles.put(id, handle);
+      return id;
+   }
+
+   private void setResultHandle(Job job, Handle handle) {
+      job.set(VixPropertyID.VIX_PROPERTY_JOB_RESULT_HANDLE,
+              new VixHandle(register(handle)));
+   }
+
+   /**
+    * Looks up a handle of the given kind.
+    */
+   private <T extends Handle> T lookup(VixHandle handle, Class<T> kind)
+         throws VixException {
+      Handle h = handle != null ? mHandles.get(handle.intValue()) : null;
+      if (h == null) {
+         throw new VixException(VixError.VIX_E_INVALID_HANDLE);
+      }
+      if (!kind.isInstance(h)) {
+         throw new VixException(VixError.VIX_E_NOT_SUPPORTED_ON_HANDLE_TYPE);
+      }
+      return kind.cast(h);
+   }
+
+   private SimulatedVm getInventoryVm(String vmxPath) throws VixException {
+      SimulatedVm vm = getVm(vmxPath);
+      if (vm == null) {
+         throw new VixException(VixError.VIX_E_VM_NOT_FOUND);
+      }
+      return vm;
+   }
+
+   private SimulatedVm getRunningVm(VixHandle vmHandle) throws VixException {
+      SimulatedVm vm = lookup(vmHandle, VmRef.class).mVm;
+      if (!vm.isPoweredOn()) {
+         throw new VixException(VixError.VIX_E_VM_NOT_RUNNING);
+      }
+      return vm;
+   }
+
+   /**
+    * Looks up a VM handle for a guest operation, which needs running tools
+    * and a guest login through the handle.
+    */
+   private VmRef getGuest(VixHandle vmHandle) throws VixException {
+      VmRef vm = lookup(vmHandle, VmRef.class);
+      vm.mVm.checkToolsRunning();
+      if (vm.getUsername() == null) {
+         throw new VixException(VixError.VIX_E_GUEST_USER_PERMISSIONS);
+      }
+      return vm;
+   }
+
+   /**
+    * Looks up a VM handle for reading or writing a variable. Guest variables
+    * need running tools and environment variables a guest login.
+    */
+   private SimulatedVm getVariableVm(VixHandle vmHandle, int variableType)
+         throws VixException {
+      if (variableType == VixConstants.VIX_GUEST_ENVIRONMENT_VARIABLE) {
+         return getGuest(vmHandle).mVm;
+      }
+      SimulatedVm vm = lookup(vmHandle, VmRef.class).mVm;
+      if (variableType == VixConstants.VIX_VM_GUEST_VARIABLE) {
+         vm.checkToolsRunning();
+      } else if (variableType != VixConstants.VIX_VM_CONFIG_RUNTIME_ONLY) {
+         throw new VixException(VixError.VIX_E_INVALID_ARG);
+      }
+      return vm;
+   }
+
+   private VixHandle openVm(
+         String function,
+         final VixHandle hostHandle,
+         final String vmxPath,
+         VixEventProc callbackProc,
+         Pointer clientData) {
+      return submit(function, callbackProc, clientData, new Operation() {
+         public void run(Job job) throws VixException {
+            lookup(hostHandle, Host.class);
+            SimulatedVm vm = getInventoryVm(vmxPath);
+            if (!vm.isRegistered()) {
+               throw new VixException(VixError.VIX_E_VM_NOT_FOUND);
+            }
+            setResultHandle(job, new VmRef(vm));
+         }
+      });
+   }
+
+   private static boolean isEntry(SimulatedVm vm, String path, boolean directory) {
+      try {
+         return vm.getEntry(path).mDirectory == directory;
+      } catch (VixException e) {
+         return false;
+      }
+   }
+
+   /**
+    * Runs a program through the guest's ProgramHandler. Programs started with
+    * VIX_RUNPROGRAM_RETURN_IMMEDIATELY stay in the process list until the
+    * handler has run, after a further job latency.
+    */
+   private void runInGuest(
+         Job job,
+         VmRef vmRef,
+         final String program,
+         final String arguments,
+         String command,
+         VixRunProgramOptions options) throws VixException {
+      final SimulatedVm vm = vmRef.mVm;
+      final SimulatedVm.ProgramHandler handler = vm.getProgramHandler();
+      String name =
+            command.substring(Math.max(command.lastIndexOf('/'),
+                                       command.lastIndexOf('\\')) + 1);
+      int space = name.indexOf(' ');
+      if (space > 0) {
+         name = name.substring(0, space);
+      }
+      final long pid = vm.startProcess(name, vmRef.getUsername(), command);
+      job.set(VixPropertyID.VIX_PROPERTY_JOB_RESULT_PROCESS_ID, pid);
+      if (options != null
+            && (options.intValue() & VixRunProgramOptions.VIX_RUNPROGRAM_RETURN_IMMEDIATELY.intValue()) != 0) {
+         /*
+          * Like VIX, report zero rather than leave the properties out.
+          */
+         job.set(VixPropertyID.VIX_PROPERTY_JOB_RESULT_GUEST_PROGRAM_EXIT_CODE, 0);
+         job.set(VixPropertyID.VIX_PROPERTY_JOB_RESULT_GUEST_PROGRAM_ELAPSED_TIME, 0);
+         mScheduler.schedule(new Runnable() {
+            public void run() {
+               try {
+                  handler.run(vm, program, arguments);
+               } catch (VixException e) {
+                  // The program failed; nobody is waiting for it.
+               } finally {
+                  vm.endProcess(pid);
+               }
+            }
+         }, mConfig.sampleMillis(job.mFunction, 0), TimeUnit.MILLISECONDS);
+         return;
+      }
+      try {
+         job.set(VixPropertyID.VIX_PROPERTY_JOB_RESULT_GUEST_PROGRAM_EXIT_CODE,
+                 handler.run(vm, program, arguments));
+         job.mTimed = true;
+      } finally {
+         vm.endProcess(pid);
+      }
+   }
+
+   /**
+    * Copies the requested properties into the references passed by the
+    * caller.
+    *
+    * @param values
+    *           Properties by VixPropertyID value.
+    * @param first
+    *           First property.
+    * @param more
+    *           Reference for the first property, then pairs of further
+    *           properties and references, ending with VIX_PROPERTY_NONE.
+    */
+   private VixError getProperties(
+         Map<Integer, Object> values,
+         VixPropertyID first,
+         Object[] more) {
+      VixPropertyID id = first;
+      int i = 0;
+      while (id != null && id.intValue() != NONE) {
+         if (i >= more.length) {
+            return VixError.VIX_E_INVALID_ARG;
+         }
+         Object value = values.get(id.intValue());
+         if (value == null) {
+            return VixError.VIX_E_UNRECOGNIZED_PROPERTY;
+         }
+         if (!setReference(more[i++], value)) {
+            return VixError.VIX_E_TYPE_MISMATCH;
+         }
+         if (i >= more.length || !(more[i] instanceof VixPropertyID)) {
+            return VixError.VIX_E_INVALID_ARG;
+         }
+         id = (VixPropertyID) more[i++];
+      }
+      return VixError.VIX_OK;
+   }
+
+   /**
+    * Stores a property value in a reference passed by the caller.
+    *
+    * @return <code>false</code> if the reference cannot hold the value.
+    */
+   private boolean setReference(Object ref, Object value) {
+      if (value instanceof Boolean) {
+         value = ((Boolean) value).booleanValue() ? 1 : 0;
+      }
+      if (ref instanceof PointerByReference) {
+         if (!(value instanceof String)) {
+            return false;
+         }
+         String s = (String) value;
+         Memory buffer = new Memory(s.getBytes().length + 1);
+         buffer.setString(0, s);
+         mBuffers.put(ref, buffer);
+         ((PointerByReference) ref).setValue(buffer);
+      } else if (!(value instanceof Number)) {
+         return false;
+      } else if (ref instanceof IntByReference) {
+         ((IntByReference) ref).setValue(((Number) value).intValue());
+      } else if (ref instanceof LongByReference) {
+         ((LongByReference) ref).setValue(((Number) value).longValue());
+      } else if (ref instanceof VixHandleByReference) {
+         ((VixHandleByReference) ref).setValue(((Number) value).intValue());
+      } else {
+         return false;
+      }
+      return true;
+   }
+
+   private static byte[] readHostFile(String path) throws VixException {
+      File file = new File(path);
+      if (!file.isFile()) {
+         throw new VixException(VixError.VIX_E_FILE_NOT_FOUND);
+      }
+      try {
+         InputStream in = new FileInputStream(file);
+         try {
+            byte[] data = new byte[(int) file.length()];
+            int n = 0;
+            while (n < data.length) {
+               int read = in.read(data, n, data.length - n);
+               if (read < 0) {
+                  break;
+               }
+               n += read;
+            }
+            return data;
+         } finally {
+            in.close();
+         }
+      } catch (IOException e) {
+         throw new VixException(VixError.VIX_E_FILE_ACCESS_ERROR);
+      }
+   }
+
+   private static void writeHostFile(String path, byte[] data)
+         throws VixException {
+      try {
+         OutputStream out = new FileOutputStream(path);
+         try {
+            out.write(data);
+         } finally {
+            out.close();
+         }
+      } catch (IOException e) {
+         throw new VixException(VixError.VIX_E_FILE_ACCESS_ERROR);
+      }
+   }
+}
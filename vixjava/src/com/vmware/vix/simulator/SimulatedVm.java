@@ -0,0 +1,926 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.simulator;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.vmware.vix.VixConstants;
+import com.vmware.vix.VixError;
+import com.vmware.vix.VixException;
+import com.vmware.vix.VixPowerState;
+
+/**
+ * State of a VM in a SimulatedVixLibrary: power state, guest filesystem,
+ * guest processes, variables and snapshots. Tests may set up and inspect this
+ * state directly; all methods are thread safe.
+ * <p/>
+ * Guest paths must be absolute. Paths of Windows guests start with a drive
+ * letter, may use either separator and are compared without regard to case.
+ */
+public class SimulatedVm {
+
+   /**
+    * Runs programs and scripts in the simulated guest. Scripts are passed
+    * with the interpreter as the program and the script text as the
+    * arguments; the handler may modify the guest, for example to create the
+    * files a script would write.
+    */
+   public interface ProgramHandler {
+
+      /**
+       * Runs a program in the guest.
+       *
+       * @param vm
+       *           VM the program runs in.
+       * @param program
+       *           Program or script interpreter; <code>null</code> for the
+       *           default interpreter.
+       * @param arguments
+       *           Command line arguments or script text.
+       * @return Exit code of the program.
+       * @throws VixException
+       *            To fail the job which started the program.
+       */
+      int run(SimulatedVm vm, String program, String arguments)
+            throws VixException;
+   }
+
+   /**
+    * File or directory in the guest. Entries are immutable so that snapshots
+    * can share them.
+    */
+   static final class Entry {
+
+      final boolean mDirectory;
+      final byte[] mData;
+      final long mModTime;
+
+      Entry(boolean directory, byte[] data) {
+         mDirectory = directory;
+         mData = data;
+         mModTime = System.currentTimeMillis() / 1000;
+      }
+
+      long getSize() {
+         return mData != null ? mData.length : 0;
+      }
+
+      int getFlags() {
+         return mDirectory ? VixConstants.VIX_FILE_ATTRIBUTES_DIRECTORY : 0;
+      }
+   }
+
+   /**
+    * Process running in the guest.
+    */
+   static final class GuestProcess {
+
+      final long mPid;
+      final String mName;
+      final String mOwner;
+      final String mCommand;
+      final int mStartTime;
+
+      GuestProcess(long pid, String name, String owner, String command) {
+         mPid = pid;
+         mName = name;
+         mOwner = owner;
+         mCommand = command;
+         mStartTime = (int) (System.currentTimeMillis() / 1000);
+      }
+   }
+
+   /**
+    * Snapshot of the VM, holding the guest files, variables and power state
+    * at the time it was taken.
+    */
+   static final class Snapshot {
+
+      final String mName;
+      final String mDescription;
+      Snapshot mParent;
+      final List<Snapshot> mChildren = new ArrayList<Snapshot>();
+      final TreeMap<String, Entry> mFiles;
+      final Map<Integer, Map<String, String>> mVariables;
+      final boolean mPoweredOn;
+
+      Snapshot(String name, String description, SimulatedVm vm) {
+         mName = name;
+         mDescription = description;
+         mFiles = vm.copyFiles();
+         mVariables = vm.copyVariables();
+         mPoweredOn = vm.mPoweredOn;
+      }
+   }
+
+   private static final ProgramHandler EXIT_ZERO = new ProgramHandler() {
+      public int run(SimulatedVm vm, String program, String arguments) {
+         return 0;
+      }
+   };
+
+   private final String mVmxPath;
+   private final boolean mWindows;
+   private final String mSeparator;
+   private final Comparator<String> mPathOrder;
+   private TreeMap<String, Entry> mFiles;
+   private Map<Integer, Map<String, String>> mVariables;
+   private final TreeMap<Long, GuestProcess> mProcesses =
+         new TreeMap<Long, GuestProcess>();
+   private final List<Snapshot> mRootSnapshots = new ArrayList<Snapshot>();
+   private Snapshot mCurrentSnapshot;
+   private boolean mPoweredOn;
+   private boolean mPaused;
+   private boolean mSuspended;
+   private boolean mToolsInstalled = true;
+   private boolean mRegistered = true;
+   private int mBootCount;
+   private long mNextPid;
+   private int mNextTempFile;
+   private String mUsername;
+   private String mPassword;
+   private ProgramHandler mProgramHandler = EXIT_ZERO;
+
+   /**
+    * Constructor for a powered off VM with an empty guest filesystem apart
+    * from a few standard directories.
+    *
+    * @param vmxPath
+    *           Path of the VM's .vmx file, which identifies it on the host.
+    * @param windows
+    *           <code>true</code> for a Windows guest; <code>false</code> for a
+    *           POSIX guest.
+    */
+   public SimulatedVm(String vmxPath, boolean windows) {
+      mVmxPath = vmxPath;
+      mWindows = windows;
+      mSeparator = windows ? "\\" : "/";
+      mPathOrder = windows ? String.CASE_INSENSITIVE_ORDER : null;
+      mFiles = new TreeMap<String, Entry>(mPathOrder);
+      mVariables = new HashMap<Integer, Map<String, String>>();
+      String[] dirs =
+            windows ? new String[] { "C:\\", "C:\\Users", "C:\\Windows",
+                                    "C:\\Windows\\Temp" }
+                    : new String[] { "/", "/etc", "/home", "/tmp", "/var",
+                                    "/var/log" };
+      for (String dir : dirs) {
+         mFiles.put(dir, new Entry(true, null));
+      }
+      setVariable(VixConstants.VIX_VM_CONFIG_RUNTIME_ONLY,
+                  "displayName",
+                  getDefaultName(vmxPath));
+      if (windows) {
+         setVariable(VixConstants.VIX_GUEST_ENVIRONMENT_VARIABLE,
+                     "PATH",
+                     "C:\\Windows\\system32;C:\\Windows");
+         setVariable(VixConstants.VIX_GUEST_ENVIRONMENT_VARIABLE,
+                     "SystemRoot",
+                     "C:\\Windows");
+         setVariable(VixConstants.VIX_GUEST_ENVIRONMENT_VARIABLE,
+                     "TEMP",
+                     "C:\\Windows\\Temp");
+      } else {
+         setVariable(VixConstants.VIX_GUEST_ENVIRONMENT_VARIABLE,
+                     "PATH",
+                     "/usr/local/bin:/usr/bin:/bin");
+         setVariable(VixConstants.VIX_GUEST_ENVIRONMENT_VARIABLE,
+                     "SHELL",
+                     "/bin/sh");
+         setVariable(VixConstants.VIX_GUEST_ENVIRONMENT_VARIABLE,
+                     "TMPDIR",
+                     "/tmp");
+      }
+   }
+
+   /**
+    * Get the path of the VM's .vmx file.
+    */
+   public String getVmxPath() {
+      return mVmxPath;
+   }
+
+   /**
+    * Get whether the guest runs Windows.
+    */
+   public boolean isWindows() {
+      return mWindows;
+   }
+
+   /**
+    * Powers on the VM and starts the guest's system processes.
+    */
+   public synchronized void powerOn() {
+      if (!mPoweredOn) {
+         mPoweredOn = true;
+         mSuspended = false;
+         boot();
+      }
+   }
+
+   /**
+    * Powers off the VM. Guest processes and logins are lost.
+    */
+   public synchronized void powerOff() {
+      mPoweredOn = false;
+      mPaused = false;
+      mProcesses.clear();
+      mBootCount++;
+   }
+
+   /**
+    * Suspends the VM. Guest logins are lost.
+    */
+   public synchronized void suspend() {
+      if (mPoweredOn) {
+         powerOff();
+         mSuspended = true;
+      }
+   }
+
+   /**
+    * Restarts the guest of a powered on VM. Guest processes and logins are
+    * lost.
+    */
+   public synchronized void reset() {
+      if (mPoweredOn) {
+         mProcesses.clear();
+         boot();
+      }
+   }
+
+   /**
+    * Pauses or unpauses the VM.
+    *
+    * @param paused
+    */
+   public synchronized void setPaused(boolean paused) {
+      mPaused = paused && mPoweredOn;
+   }
+
+   /**
+    * Sets whether VMware Tools are installed in the guest. Guest operations
+    * fail with VIX_E_TOOLS_NOT_RUNNING without them.
+    *
+    * @param installed
+    */
+   public synchronized void setToolsInstalled(boolean installed) {
+      mToolsInstalled = installed;
+   }
+
+   /**
+    * Get whether the VM is powered on.
+    */
+   public synchronized boolean isPoweredOn() {
+      return mPoweredOn;
+   }
+
+   /**
+    * Get whether VMware Tools are running in the guest.
+    */
+   public synchronized boolean isToolsRunning() {
+      return mPoweredOn && mToolsInstalled && !mPaused;
+   }
+
+   /**
+    * Get the VIX power state of the VM.
+    *
+    * @return Bitwise OR of VixPowerState values.
+    */
+   public synchronized int getPowerState() {
+      int state;
+      if (mPaused) {
+         state = VixPowerState.VIX_POWERSTATE_PAUSED.intValue();
+      } else if (mPoweredOn) {
+         state = VixPowerState.VIX_POWERSTATE_POWERED_ON.intValue();
+      } else if (mSuspended) {
+         state = VixPowerState.VIX_POWERSTATE_SUSPENDED.intValue();
+      } else {
+         state = VixPowerState.VIX_POWERSTATE_POWERED_OFF.intValue();
+      }
+      if (isToolsRunning()) {
+         state |= VixPowerState.VIX_POWERSTATE_TOOLS_RUNNING.intValue();
+      }
+      return state;
+   }
+
+   /**
+    * Restricts guest logins to a single account. By default any non-empty
+    * user name is accepted with any password.
+    *
+    * @param username
+    * @param password
+    */
+   public synchronized void setCredentials(String username, String password) {
+      mUsername = username;
+      mPassword = password;
+   }
+
+   /**
+    * Sets the handler which runs programs and scripts in the guest. The
+    * default handler does nothing and exits with code 0.
+    *
+    * @param handler
+    */
+   public synchronized void setProgramHandler(ProgramHandler handler) {
+      mProgramHandler = handler != null ? handler : EXIT_ZERO;
+   }
+
+   /**
+    * Sets a variable of the VM.
+    *
+    * @param type
+    *           VixConstants.VIX_VM_GUEST_VARIABLE,
+    *           VIX_VM_CONFIG_RUNTIME_ONLY or VIX_GUEST_ENVIRONMENT_VARIABLE.
+    * @param name
+    * @param value
+    *           Value; <code>null</code> to remove the variable.
+    */
+   public synchronized void setVariable(int type, String name, String value) {
+      Map<String, String> vars = mVariables.get(type);
+      if (vars == null) {
+         vars = newVariableMap(type);
+         mVariables.put(type, vars);
+      }
+      if (value != null) {
+         vars.put(name, value);
+      } else {
+         vars.remove(name);
+      }
+   }
+
+   /**
+    * Get a variable of the VM.
+    *
+    * @param type
+    * @param name
+    * @return Value; empty if the variable is not set, as with VIX.
+    */
+   public synchronized String getVariable(int type, String name) {
+      Map<String, String> vars = mVariables.get(type);
+      String value = vars != null ? vars.get(name) : null;
+      return value != null ? value : "";
+   }
+
+   /**
+    * Writes a file in the guest, replacing any existing file. Missing parent
+    * directories are created.
+    *
+    * @param path
+    *           Absolute guest path.
+    * @param data
+    *           Contents of the file.
+    * @throws VixException
+    *            If the path is a directory.
+    */
+   public synchronized void writeFile(String path, byte[] data)
+         throws VixException {
+      path = normalize(path);
+      Entry entry = mFiles.get(path);
+      if (entry != null && entry.mDirectory) {
+         throw new VixException(VixError.VIX_E_NOT_A_FILE);
+      }
+      String parent = getParent(path);
+      if (parent != null && !mFiles.containsKey(parent)) {
+         createDirectories(parent);
+      }
+      mFiles.put(path, new Entry(false, data.clone()));
+   }
+
+   /**
+    * Reads a file in the guest.
+    *
+    * @param path
+    *           Absolute guest path.
+    * @return Contents of the file.
+    * @throws VixException
+    *            If the file does not exist.
+    */
+   public synchronized byte[] readFile(String path) throws VixException {
+      return getFile(normalize(path)).mData.clone();
+   }
+
+   /**
+    * Creates a directory in the guest, including missing parent directories.
+    *
+    * @param path
+    *           Absolute guest path.
+    * @throws VixException
+    *            If a file is in the way.
+    */
+   public synchronized void createDirectories(String path) throws VixException {
+      path = normalize(path);
+      Entry entry = mFiles.get(path);
+      if (entry == null) {
+         String parent = getParent(path);
+         if (parent != null) {
+            createDirectories(parent);
+         }
+         mFiles.put(path, new Entry(true, null));
+      } else if (!entry.mDirectory) {
+         throw new VixException(VixError.VIX_E_NOT_A_DIRECTORY);
+      }
+   }
+
+   /**
+    * Get whether a file or directory exists in the guest.
+    *
+    * @param path
+    *           Absolute guest path.
+    */
+   public synchronized boolean exists(String path) {
+      try {
+         return mFiles.containsKey(normalize(path));
+      } catch (VixException e) {
+         return false;
+      }
+   }
+
+   /**
+    * Starts a process in the guest.
+    *
+    * @param name
+    *           Name of the program.
+    * @param owner
+    *           User running the process.
+    * @param command
+    *           Command line of the process.
+    * @return Process id.
+    */
+   public synchronized long startProcess(
+         String name,
+         String owner,
+         String command) {
+      long pid = mNextPid++;
+      mProcesses.put(pid, new GuestProcess(pid, name, owner, command));
+      return pid;
+   }
+
+   /**
+    * Ends a process in the guest.
+    *
+    * @param pid
+    *           Process id.
+    * @return <code>true</code> if the process was running.
+    */
+   public synchronized boolean endProcess(long pid) {
+      return mProcesses.remove(pid) != null;
+   }
+
+   /*
+    * Operations for SimulatedVixLibrary. These check the VM state the way
+    * VIX does, and report failures as the VixError VIX would return.
+    */
+
+   /**
+    * Checks that guest operations are possible.
+    */
+   synchronized void checkToolsRunning() throws VixException {
+      if (!mPoweredOn) {
+         throw new VixException(VixError.VIX_E_VM_NOT_RUNNING);
+      }
+      if (!isToolsRunning()) {
+         throw new VixException(VixError.VIX_E_TOOLS_NOT_RUNNING);
+      }
+   }
+
+   /**
+    * Checks guest credentials.
+    */
+   synchronized void login(String username, String password)
+         throws VixException {
+      checkToolsRunning();
+      if (username == null || username.length() == 0
+            || (mUsername != null && !(mUsername.equals(username)
+                  && mPassword.equals(password)))) {
+         throw new VixException(VixError.VIX_E_CANNOT_AUTHENTICATE_WITH_GUEST);
+      }
+   }
+
+   /**
+    * Get the number of times the guest was started or stopped; a guest login
+    * is only valid for the boot it was made in.
+    */
+   synchronized int getBootCount() {
+      return mBootCount;
+   }
+
+   synchronized boolean isRegistered() {
+      return mRegistered;
+   }
+
+   synchronized void setRegistered(boolean registered) {
+      mRegistered = registered;
+   }
+
+   synchronized ProgramHandler getProgramHandler() {
+      return mProgramHandler;
+   }
+
+   synchronized Entry getEntry(String path) throws VixException {
+      Entry entry = mFiles.get(normalize(path));
+      if (entry == null) {
+         throw new VixException(VixError.VIX_E_FILE_NOT_FOUND);
+      }
+      return entry;
+   }
+
+   /**
+    * Gets a file, failing for directories.
+    */
+   synchronized Entry getFile(String path) throws VixException {
+      Entry entry = getEntry(path);
+      if (entry.mDirectory) {
+         throw new VixException(VixError.VIX_E_NOT_A_FILE);
+      }
+      return entry;
+   }
+
+   /**
+    * Writes a file whose directory must exist, as VIX copies do.
+    */
+   synchronized void putFile(String path, byte[] data) throws VixException {
+      path = normalize(path);
+      checkParent(path);
+      Entry entry = mFiles.get(path);
+      if (entry != null && entry.mDirectory) {
+         throw new VixException(VixError.VIX_E_NOT_A_FILE);
+      }
+      mFiles.put(path, new Entry(false, data));
+   }
+
+   /**
+    * Creates a single directory, as VixVM_CreateDirectoryInGuest() does.
+    */
+   synchronized void createDirectory(String path) throws VixException {
+      path = normalize(path);
+      if (mFiles.containsKey(path)) {
+         throw new VixException(VixError.VIX_E_FILE_ALREADY_EXISTS);
+      }
+      checkParent(path);
+      mFiles.put(path, new Entry(true, null));
+   }
+
+   synchronized void deleteFile(String path) throws VixException {
+      path = normalize(path);
+      getFile(path);
+      mFiles.remove(path);
+   }
+
+   /**
+    * Deletes a directory with all its contents.
+    */
+   synchronized void deleteDirectory(String path) throws VixException {
+      path = normalize(path);
+      if (!getEntry(path).mDirectory) {
+         throw new VixException(VixError.VIX_E_NOT_A_DIRECTORY);
+      }
+      getDescendants(path).clear();
+      mFiles.remove(path);
+   }
+
+   /**
+    * Renames a file or a directory with all its contents. Existing files are
+    * replaced.
+    */
+   synchronized void rename(String oldPath, String newPath)
+         throws VixException {
+      oldPath = normalize(oldPath);
+      newPath = normalize(newPath);
+      Entry entry = getEntry(oldPath);
+      Entry target = mFiles.get(newPath);
+      if (target != null && (target.mDirectory || entry.mDirectory)) {
+         throw new VixException(VixError.VIX_E_FILE_ALREADY_EXISTS);
+      }
+      checkParent(newPath);
+      if (entry.mDirectory) {
+         if (newPath.startsWith(oldPath + mSeparator)) {
+            throw new VixException(VixError.VIX_E_INVALID_ARG);
+         }
+         SortedMap<String, Entry> descendants = getDescendants(oldPath);
+         Map<String, Entry> moved = new TreeMap<String, Entry>(descendants);
+         descendants.clear();
+         for (Map.Entry<String, Entry> e : moved.entrySet()) {
+            mFiles.put(newPath + e.getKey().substring(oldPath.length()),
+                       e.getValue());
+         }
+      }
+      mFiles.remove(oldPath);
+      mFiles.put(newPath, entry);
+   }
+
+   /**
+    * Lists the files and directories directly in a directory.
+    *
+    * @return Names and entries, in name order.
+    */
+   synchronized Map<String, Entry> list(String path) throws VixException {
+      path = normalize(path);
+      if (!getEntry(path).mDirectory) {
+         throw new VixException(VixError.VIX_E_NOT_A_DIRECTORY);
+      }
+      String prefix = getChildPrefix(path);
+      Map<String, Entry> children = new TreeMap<String, Entry>(mPathOrder);
+      for (Map.Entry<String, Entry> e : getDescendants(path).entrySet()) {
+         String name = e.getKey().substring(prefix.length());
+         if (name.indexOf(mSeparator) < 0) {
+            children.put(name, e.getValue());
+         }
+      }
+      return children;
+   }
+
+   /**
+    * Creates an empty file in the guest's temporary directory.
+    *
+    * @return Path of the file.
+    */
+   synchronized String createTempFile() throws VixException {
+      String dir = mWindows ? "C:\\Windows\\Temp" : "/tmp";
+      createDirectories(dir);
+      String path;
+      do {
+         path = dir + mSeparator + "vmware" + mNextTempFile++ + ".tmp";
+      } while (mFiles.containsKey(path));
+      mFiles.put(path, new Entry(false, new byte[0]));
+      return path;
+   }
+
+   synchronized List<GuestProcess> getProcesses() {
+      return new ArrayList<GuestProcess>(mProcesses.values());
+   }
+
+   synchronized void killProcess(long pid) throws VixException {
+      if (!endProcess(pid)) {
+         throw new VixException(VixError.VIX_E_NO_SUCH_PROCESS);
+      }
+   }
+
+   synchronized List<Snapshot> getRootSnapshots() {
+      return new ArrayList<Snapshot>(mRootSnapshots);
+   }
+
+   synchronized Snapshot getCurrentSnapshot() {
+      return mCurrentSnapshot;
+   }
+
+   /**
+    * Finds a snapshot by display name.
+    *
+    * @return Snapshot; <code>null</code> if there is none with that name.
+    */
+   synchronized Snapshot findSnapshot(String name) {
+      List<Snapshot> pending = new ArrayList<Snapshot>(mRootSnapshots);
+      while (!pending.isEmpty()) {
+         Snapshot snapshot = pending.remove(0);
+         if (snapshot.mName.equals(name)) {
+            return snapshot;
+         }
+         pending.addAll(snapshot.mChildren);
+      }
+      return null;
+   }
+
+   /**
+    * Takes a snapshot as a child of the current snapshot, which it replaces.
+    */
+   synchronized Snapshot createSnapshot(String name, String description) {
+      Snapshot snapshot = new Snapshot(name, description, this);
+      snapshot.mParent = mCurrentSnapshot;
+      if (mCurrentSnapshot != null) {
+         mCurrentSnapshot.mChildren.add(snapshot);
+      } else {
+         mRootSnapshots.add(snapshot);
+      }
+      mCurrentSnapshot = snapshot;
+      return snapshot;
+   }
+
+   /**
+    * Restores the state saved in a snapshot. Guest processes and logins are
+    * lost.
+    */
+   synchronized void revertToSnapshot(Snapshot snapshot) throws VixException {
+      checkSnapshot(snapshot);
+      mFiles = new TreeMap<String, Entry>(snapshot.mFiles);
+      mVariables = copyVariables(snapshot.mVariables);
+      powerOff();
+      if (snapshot.mPoweredOn) {
+         powerOn();
+      }
+      mCurrentSnapshot = snapshot;
+   }
+
+   /**
+    * Removes a snapshot; its children move to its parent.
+    */
+   synchronized void removeSnapshot(Snapshot snapshot) throws VixException {
+      checkSnapshot(snapshot);
+      List<Snapshot> siblings =
+            snapshot.mParent != null ? snapshot.mParent.mChildren
+                                     : mRootSnapshots;
+      siblings.remove(snapshot);
+      for (Snapshot child : snapshot.mChildren) {
+         child.mParent = snapshot.mParent;
+         siblings.add(child);
+      }
+      if (mCurrentSnapshot == snapshot) {
+         mCurrentSnapshot = snapshot.mParent;
+      }
+   }
+
+   /**
+    * Creates a powered off full clone of this VM, without snapshots.
+    */
+   synchronized SimulatedVm copy(String vmxPath) {
+      SimulatedVm clone = new SimulatedVm(vmxPath, mWindows);
+      clone.mFiles = copyFiles();
+      clone.mVariables = copyVariables();
+      clone.setVariable(VixConstants.VIX_VM_CONFIG_RUNTIME_ONLY,
+                        "displayName",
+                        getDefaultName(vmxPath));
+      clone.mToolsInstalled = mToolsInstalled;
+      clone.mUsername = mUsername;
+      clone.mPassword = mPassword;
+      clone.mProgramHandler = mProgramHandler;
+      return clone;
+   }
+
+   TreeMap<String, Entry> copyFiles() {
+      return new TreeMap<String, Entry>(mFiles);
+   }
+
+   Map<Integer, Map<String, String>> copyVariables() {
+      return copyVariables(mVariables);
+   }
+
+   private Map<Integer, Map<String, String>> copyVariables(
+         Map<Integer, Map<String, String>> variables) {
+      Map<Integer, Map<String, String>> copy =
+            new HashMap<Integer, Map<String, String>>();
+      for (Map.Entry<Integer, Map<String, String>> e : variables.entrySet()) {
+         Map<String, String> vars = newVariableMap(e.getKey());
+         vars.putAll(e.getValue());
+         copy.put(e.getKey(), vars);
+      }
+      return copy;
+   }
+
+   private Map<String, String> newVariableMap(int type) {
+      if (mWindows && type == VixConstants.VIX_GUEST_ENVIRONMENT_VARIABLE) {
+         return new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+      }
+      return new HashMap<String, String>();
+   }
+
+   private void checkSnapshot(Snapshot snapshot) throws VixException {
+      Snapshot root = snapshot;
+      while (root.mParent != null) {
+         root = root.mParent;
+      }
+      if (!mRootSnapshots.contains(root)) {
+         throw new VixException(VixError.VIX_E_SNAPSHOT_NOTFOUND);
+      }
+   }
+
+   /**
+    * Starts the guest's system processes and invalidates logins.
+    */
+   private void boot() {
+      mBootCount++;
+      mNextPid = mWindows ? 4 : 1;
+      if (mWindows) {
+         startProcess("System", "NT AUTHORITY\\SYSTEM", "System");
+         mNextPid = 400;
+         startProcess("services.exe",
+                      "NT AUTHORITY\\SYSTEM",
+                      "C:\\Windows\\system32\\services.exe");
+         startProcess("vmtoolsd.exe",
+                      "NT AUTHORITY\\SYSTEM",
+                      "\"C:\\Program Files\\VMware\\VMware Tools\\vmtoolsd.exe\"");
+         startProcess("explorer.exe",
+                      "Administrator",
+                      "C:\\Windows\\explorer.exe");
+      } else {
+         startProcess("init", "root", "/sbin/init");
+         mNextPid = 300;
+         startProcess("sshd", "root", "/usr/sbin/sshd -D");
+         startProcess("vmtoolsd", "root", "/usr/sbin/vmtoolsd");
+         startProcess("crond", "root", "/usr/sbin/crond -n");
+      }
+      mNextPid = 1000;
+   }
+
+   /**
+    * Brings a guest path into the form used as key of mFiles.
+    */
+   private String normalize(String path) throws VixException {
+      if (path == null) {
+         throw new VixException(VixError.VIX_E_INVALID_ARG);
+      }
+      if (mWindows) {
+         path = path.replace('/', '\\');
+         if (path.length() < 3 || !Character.isLetter(path.charAt(0))
+               || path.charAt(1) != ':' || path.charAt(2) != '\\') {
+            throw new VixException(VixError.VIX_E_FILE_NAME_INVALID);
+         }
+      } else if (!path.startsWith("/")) {
+         throw new VixException(VixError.VIX_E_FILE_NAME_INVALID);
+      }
+      int rootLength = getRootLength();
+      while (path.length() > rootLength && path.endsWith(mSeparator)) {
+         path = path.substring(0, path.length() - 1);
+      }
+      return path;
+   }
+
+   private int getRootLength() {
+      return mWindows ? 3 : 1;
+   }
+
+   /**
+    * Get the parent of a normalized path.
+    *
+    * @return Parent path; <code>null</code> for the root directory.
+    */
+   private String getParent(String path) {
+      int rootLength = getRootLength();
+      if (path.length() <= rootLength) {
+         return null;
+      }
+      int index = path.lastIndexOf(mSeparator);
+      return path.substring(0, Math.max(index, rootLength));
+   }
+
+   private void checkParent(String path) throws VixException {
+      String parent = getParent(path);
+      if (parent == null) {
+         throw new VixException(VixError.VIX_E_INVALID_ARG);
+      }
+      Entry entry = mFiles.get(parent);
+      if (entry == null) {
+         throw new VixException(VixError.VIX_E_FILE_NOT_FOUND);
+      }
+      if (!entry.mDirectory) {
+         throw new VixException(VixError.VIX_E_NOT_A_DIRECTORY);
+      }
+   }
+
+   private String getChildPrefix(String path) {
+      return path.length() == getRootLength() ? path : path + mSeparator;
+   }
+
+   /**
+    * Get a live view of all entries below a directory.
+    */
+   private SortedMap<String, Entry> getDescendants(String path) {
+      String prefix = getChildPrefix(path);
+      /*
+       * Every path starting with the prefix sorts before the prefix with its
+       * last character incremented.
+       */
+      String end =
+            prefix.substring(0, prefix.length() - 1)
+                  + (char) (prefix.charAt(prefix.length() - 1) + 1);
+      return mFiles.subMap(prefix, end);
+   }
+
+   private static String getDefaultName(String vmxPath) {
+      String name = vmxPath.substring(Math.max(vmxPath.lastIndexOf('/'),
+                                               vmxPath.lastIndexOf('\\')) + 1);
+      return name.endsWith(".vmx") ? name.substring(0, name.length() - 4)
+                                   : name;
+   }
+}
@@ -0,0 +1,242 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.simulator;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Random;
+
+import com.vmware.vix.VixError;
+
+/**
+ * Latency and failure settings of a SimulatedVixLibrary.
+ * <p/>
+ * Settings apply per VIX function, named as in VixLibrary (for example
+ * <code>VixVM_CopyFileFromHostToGuest</code>), with <code>*</code> as the
+ * default for functions without settings of their own. Settings may be
+ * changed while the simulator runs.
+ * <p/>
+ * The initial settings are read from system properties:
+ * <ul>
+ * <li><code>vix.sim.latency</code>: default latency, see
+ * {@link Latency#parse(String)}. Defaults to <code>none</code>.</li>
+ * <li><code>vix.sim.failureRate</code>: probability of any job failing.
+ * Defaults to 0.</li>
+ * <li><code>vix.sim.failureError</code>: error of the failures injected by
+ * <code>vix.sim.failureRate</code>, as the name of a VixError constant or a
+ * numeric code. Defaults to VIX_E_OBJECT_IS_BUSY, which the retry policy
+ * treats as transient.</li>
+ * <li><code>vix.sim.bandwidth</code>: file copy bandwidth in bytes per
+ * second, added to the latency of copies. Unlimited by default.</li>
+ * <li><code>vix.sim.seed</code>: seed for reproducible runs.</li>
+ * </ul>
+ */
+public class SimulatorConfig {
+
+   public static final String ALL = "*";
+
+   private final Random mRandom;
+   private final Map<String, Latency> mLatencies = new HashMap<String, Latency>();
+   private final Map<String, Double> mFailureRates = new HashMap<String, Double>();
+   private final Map<String, VixError> mFailureErrors =
+         new HashMap<String, VixError>();
+   private final Map<String, LinkedList<VixError>> mScheduledFailures =
+         new HashMap<String, LinkedList<VixError>>();
+   private long mBandwidth;
+
+   /**
+    * Constructor reading the initial settings from system properties.
+    */
+   public SimulatorConfig() {
+      String seed = System.getProperty("vix.sim.seed");
+      mRandom = seed != null ? new Random(Long.parseLong(seed)) : new Random();
+      setLatency(ALL, Latency.parse(System.getProperty("vix.sim.latency", "none")));
+      double rate = Double.parseDouble(System.getProperty("vix.sim.failureRate", "0"));
+      if (rate > 0) {
+         setFailureRate(ALL, rate,
+                        parseError(System.getProperty("vix.sim.failureError",
+                                                      "VIX_E_OBJECT_IS_BUSY")));
+      }
+      mBandwidth = Long.parseLong(System.getProperty("vix.sim.bandwidth", "0"));
+   }
+
+   /**
+    * Parses an error given as the name of a VixError constant, such as
+    * <code>VIX_E_HOST_TCP_CONN_LOST</code>, or as a numeric code.
+    *
+    * @param error
+    *           Name or code.
+    * @return The error.
+    * @throws IllegalArgumentException
+    *            If the name is not that of a VixError constant.
+    */
+   public static VixError parseError(String error) {
+      try {
+         return new VixError(Long.parseLong(error));
+      } catch (NumberFormatException e) {
+         // Not numeric, look it up by name.
+      }
+      try {
+         Field field = VixError.class.getField(error);
+         if (field.getType() == VixError.class
+               && Modifier.isStatic(field.getModifiers())) {
+            return (VixError) field.get(null);
+         }
+      } catch (NoSuchFieldException e) {
+         // Reported below.
+      } catch (IllegalAccessException e) {
+         // Reported below.
+      }
+      throw new IllegalArgumentException("Unknown VixError " + error);
+   }
+
+   /**
+    * Sets the latency of a VIX function.
+    *
+    * @param function
+    *           Name of the function, or {@link #ALL}.
+    * @param latency
+    *           Latency of its jobs.
+    */
+   public synchronized void setLatency(String function, Latency latency) {
+      mLatencies.put(function, latency);
+   }
+
+   /**
+    * Sets the probability of jobs of a VIX function failing.
+    *
+    * @param function
+    *           Name of the function, or {@link #ALL}.
+    * @param rate
+    *           Probability between 0 and 1.
+    * @param error
+    *           Error the failing jobs complete with.
+    */
+   public synchronized void setFailureRate(
+         String function,
+         double rate,
+         VixError error) {
+      mFailureRates.put(function, rate);
+      mFailureErrors.put(function, error);
+   }
+
+   /**
+    * Makes the next job of a VIX function fail. Scheduled failures are used
+    * up in order, before failure rates are considered.
+    *
+    * @param function
+    *           Name of the function, or {@link #ALL}.
+    * @param error
+    *           Error the job completes with.
+    */
+   public synchronized void failNext(String function, VixError error) {
+      LinkedList<VixError> failures = mScheduledFailures.get(function);
+      if (failures == null) {
+         failures = new LinkedList<VixError>();
+         mScheduledFailures.put(function, failures);
+      }
+      failures.add(error);
+   }
+
+   /**
+    * Sets the bandwidth of file copies between client and guest.
+    *
+    * @param bytesPerSecond
+    *           Bandwidth, or 0 for unlimited.
+    */
+   public synchronized void setBandwidth(long bytesPerSecond) {
+      mBandwidth = bytesPerSecond;
+   }
+
+   /**
+    * Removes all latencies and failures.
+    */
+   public synchronized void reset() {
+      mLatencies.clear();
+      mFailureRates.clear();
+      mFailureErrors.clear();
+      mScheduledFailures.clear();
+      mBandwidth = 0;
+      mLatencies.put(ALL, Latency.none());
+   }
+
+   /**
+    * Samples the duration of a job.
+    *
+    * @param function
+    *           Name of the VIX function.
+    * @param bytes
+    *           Number of bytes the job copies, or 0.
+    * @return Duration in milliseconds.
+    */
+   synchronized long sampleMillis(String function, long bytes) {
+      Latency latency = mLatencies.get(function);
+      if (latency == null) {
+         latency = mLatencies.get(ALL);
+      }
+      long millis = latency != null ? Math.max(0, latency.sampleMillis(mRandom)) : 0;
+      if (mBandwidth > 0) {
+         millis += bytes * 1000 / mBandwidth;
+      }
+      return millis;
+   }
+
+   /**
+    * Decides whether a job fails.
+    *
+    * @param function
+    *           Name of the VIX function.
+    * @return Error to fail the job with, or null.
+    */
+   synchronized VixError sampleFailure(String function) {
+      for (String key : new String[] { function, ALL }) {
+         LinkedList<VixError> failures = mScheduledFailures.get(key);
+         if (failures != null && !failures.isEmpty()) {
+            return failures.removeFirst();
+         }
+      }
+      String key = mFailureRates.containsKey(function) ? function : ALL;
+      Double rate = mFailureRates.get(key);
+      if (rate != null && mRandom.nextDouble() < rate) {
+         return mFailureErrors.get(key);
+      }
+      return null;
+   }
+
+   /**
+    * Get the random number source of the simulation.
+    */
+   Random getRandom() {
+      return mRandom;
+   }
+}
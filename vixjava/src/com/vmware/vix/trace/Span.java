@@ -0,0 +1,275 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.trace;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.vmware.vix.VixError;
+import com.vmware.vix.VixException;
+import com.vmware.vix.VixUtils;
+
+/**
+ * Timed operation traced by a {@link Tracer}. A span belongs to a trace, has
+ * an optional parent span and carries attributes such as the host or VMX path
+ * along with the result of the operation. It is written out when it ends.
+ * <p/>
+ * Spans returned by a disabled tracer do nothing, so callers need not check
+ * whether tracing is enabled.
+ */
+public final class Span {
+
+   private final Tracer mTracer;
+   private final String mName;
+   private final long mTraceId;
+   private final long mSpanId;
+   private final long mParentId;
+   private final Span mParent;
+   private final boolean mScoped;
+   private final long mStartMicros;
+   private final long mStartNanos;
+   private final String mThread;
+   private final Map<String, Object> mAttributes =
+         new LinkedHashMap<String, Object>();
+   private final AtomicBoolean mEnded = new AtomicBoolean();
+   private String mResult;
+   private long mDurationMicros;
+
+   /**
+    * Constructor for a span of a disabled tracer.
+    */
+   Span() {
+      mTracer = null;
+      mName = null;
+      mTraceId = 0;
+      mSpanId = 0;
+      mParentId = 0;
+      mParent = null;
+      mScoped = false;
+      mStartMicros = 0;
+      mStartNanos = 0;
+      mThread = null;
+   }
+
+   /**
+    * Constructor.
+    *
+    * @param tracer
+    *           Tracer the span is written to when it ends.
+    * @param name
+    *           Name of the operation.
+    * @param parent
+    *           Parent span; <code>null</code> to start a new trace.
+    * @param scoped
+    *           Whether the span is the current span of its thread until it
+    *           ends, after which the parent becomes current again.
+    * @param spanId
+    *           Identifier of the span.
+    */
+   Span(Tracer tracer, String name, Span parent, boolean scoped, long spanId) {
+      mTracer = tracer;
+      mName = name;
+      mSpanId = spanId;
+      if (parent != null && parent.isRecording()) {
+         mTraceId = parent.mTraceId;
+         mParentId = parent.mSpanId;
+      } else {
+         mTraceId = spanId;
+         mParentId = 0;
+      }
+      mParent = parent;
+      mScoped = scoped;
+      mStartMicros = System.currentTimeMillis() * 1000;
+      mStartNanos = System.nanoTime();
+      mThread = Thread.currentThread().getName();
+   }
+
+   /**
+    * Whether this span will be written when it ends.
+    *
+    * @return <code>false</code> if this span was returned by a disabled
+    *         tracer.
+    */
+   public boolean isRecording() {
+      return mTracer != null;
+   }
+
+   /**
+    * Get the name of the operation.
+    *
+    * @return Name; <code>null</code> if this span is not recording.
+    */
+   public String getName() {
+      return mName;
+   }
+
+   /**
+    * Get the identifier of the trace this span belongs to, which is the
+    * identifier of its root span.
+    *
+    * @return Trace identifier.
+    */
+   public long getTraceId() {
+      return mTraceId;
+   }
+
+   /**
+    * Get the identifier of this span.
+    *
+    * @return Span identifier.
+    */
+   public long getSpanId() {
+      return mSpanId;
+   }
+
+   /**
+    * Get the identifier of the parent span.
+    *
+    * @return Parent span identifier; zero for the root span of a trace.
+    */
+   public long getParentId() {
+      return mParentId;
+   }
+
+   /**
+    * Sets an attribute of the span. Values are written as JSON numbers,
+    * booleans or strings.
+    *
+    * @param key
+    *           Name of the attribute.
+    * @param value
+    *           Value of the attribute; <code>null</code> values are ignored.
+    * @return This span.
+    */
+   public Span setAttribute(String key, Object value) {
+      if (isRecording() && value != null) {
+         synchronized (mAttributes) {
+            mAttributes.put(key, value);
+         }
+      }
+      return this;
+   }
+
+   /**
+    * Get the attributes set on this span.
+    *
+    * @return Copy of the attributes.
+    */
+   public Map<String, Object> getAttributes() {
+      synchronized (mAttributes) {
+         return Collections.unmodifiableMap(new LinkedHashMap<String, Object>(mAttributes));
+      }
+   }
+
+   /**
+    * Sets the VIX result of the operation. Spans ending without a result are
+    * written with VIX_OK.
+    *
+    * @param error
+    *           Result of the operation.
+    * @return This span.
+    */
+   public Span setResult(VixError error) {
+      if (isRecording() && error != null) {
+         mResult = VixUtils.getErrorName(error);
+      }
+      return this;
+   }
+
+   /**
+    * Records the exception an operation failed with as its result.
+    *
+    * @param e
+    *           Exception thrown by the operation.
+    * @return This span.
+    */
+   public Span setException(Throwable e) {
+      if (isRecording()) {
+         if (e instanceof VixException && ((VixException) e).getError() != null) {
+            setResult(((VixException) e).getError());
+         } else {
+            mResult = e.getClass().getName();
+         }
+      }
+      return this;
+   }
+
+   /**
+    * Get the result of the operation.
+    *
+    * @return Name of the VixError or exception class; <code>null</code> if no
+    *         result has been set.
+    */
+   public String getResult() {
+      return mResult;
+   }
+
+   /**
+    * Get the duration of the span.
+    *
+    * @return Duration in microseconds; zero while the span has not ended.
+    */
+   public long getDurationMicros() {
+      return mDurationMicros;
+   }
+
+   /**
+    * Get the wall clock time at which the span started.
+    *
+    * @return Microseconds since the epoch.
+    */
+   public long getStartMicros() {
+      return mStartMicros;
+   }
+
+   /**
+    * Get the name of the thread which started the span.
+    *
+    * @return Thread name.
+    */
+   public String getThread() {
+      return mThread;
+   }
+
+   /**
+    * Ends the span and writes it out. Only the first call has any effect.
+    */
+   public void end() {
+      if (isRecording() && mEnded.compareAndSet(false, true)) {
+         mDurationMicros = (System.nanoTime() - mStartNanos) / 1000;
+         if (mScoped) {
+            mTracer.restore(this, mParent);
+         }
+         mTracer.write(this);
+      }
+   }
+}
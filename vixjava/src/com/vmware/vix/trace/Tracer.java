@@ -0,0 +1,299 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.trace;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.Random;
+
+import com.vmware.vix.VixLibrary;
+
+/**
+ * Lightweight tracing of VIX operations. The wrappers in com.vmware.vix start
+ * a span for each high level operation (connect, openVm, loginInGuest, file
+ * copies, running programs and scripts) and a VixLibrary wrapped with
+ * {@link #instrument(VixLibrary)} adds a child span for every native job,
+ * from its submission until the job is seen to complete.
+ * <p/>
+ * Ended spans are written as JSON objects, one per line, for example:
+ *
+ * <pre>
+ * {"name":"openVm","trace":"5f0c...","span":"5f0c...","start":1287500000000000,
+ *  "duration":8120,"thread":"main","result":"VIX_OK",
+ *  "attributes":{"host":"https://esx1/sdk","vmx":"[datastore1] vm-1/vm-1.vmx"}}
+ * </pre>
+ *
+ * Times are in microseconds. Setting the system property
+ * <code>vix.trace=&lt;file&gt;</code> enables the {@link #getDefault() default
+ * tracer}, appending to that file, and makes com.vmware.vix.VixLibraryFactory
+ * instrument VixLibrary.INSTANCE with it.
+ */
+public class Tracer {
+
+   public static final String TRACE_PROPERTY = "vix.trace";
+
+   /**
+    * Holds the default tracer, created when first used.
+    */
+   private static class DefaultHolder {
+
+      static final Tracer mDefault = createDefault();
+   }
+
+   private final ThreadLocal<Span> mCurrent = new ThreadLocal<Span>();
+   private final Random mRandom = new Random();
+   private final Span mDisabledSpan = new Span();
+   private volatile Writer mOutput;
+
+   /**
+    * Get the tracer used by the VIX wrappers. It is enabled if the
+    * <code>vix.trace</code> system property names a file to write to.
+    *
+    * @return Default tracer.
+    */
+   public static Tracer getDefault() {
+      return DefaultHolder.mDefault;
+   }
+
+   private static Tracer createDefault() {
+      Tracer tracer = new Tracer();
+      String path = System.getProperty(TRACE_PROPERTY);
+      if (path != null && path.length() > 0) {
+         try {
+            tracer.setOutput(new BufferedWriter(new FileWriter(path, true)));
+         } catch (IOException e) {
+            System.err.println("Unable to open VIX trace file " + path + ": "
+                  + e);
+         }
+      }
+      return tracer;
+   }
+
+   /**
+    * Sets where ended spans are written; <code>null</code> disables tracing.
+    * The writer is flushed after every span.
+    *
+    * @param output
+    *           Writer for the JSON lines.
+    */
+   public synchronized void setOutput(Writer output) {
+      mOutput = output;
+   }
+
+   /**
+    * Whether spans are being written.
+    *
+    * @return <code>true</code> if an output is set.
+    */
+   public boolean isEnabled() {
+      return mOutput != null;
+   }
+
+   /**
+    * Wraps a VixLibrary so that every job submitted through the wrapper gets
+    * a span, as a child of the span current in the submitting thread.
+    *
+    * @param vix
+    *           Library to wrap.
+    * @return Wrapper.
+    */
+   public VixLibrary instrument(VixLibrary vix) {
+      return (VixLibrary) Proxy.newProxyInstance(VixLibrary.class.getClassLoader(),
+                                                 new Class<?>[] { VixLibrary.class },
+                                                 new TracingInvocationHandler(vix,
+                                                                              this));
+   }
+
+   /**
+    * Starts a span as a child of the current span of this thread and makes it
+    * the current span until it ends. Spans must be ended on the thread that
+    * started them, typically in a finally block.
+    *
+    * @param name
+    *           Name of the operation.
+    * @return New span; a span which does nothing if tracing is disabled.
+    */
+   public Span startSpan(String name) {
+      if (!isEnabled()) {
+         return mDisabledSpan;
+      }
+      Span span = new Span(this, name, mCurrent.get(), true, nextId());
+      mCurrent.set(span);
+      return span;
+   }
+
+   /**
+    * Starts a span as a child of the given span without making it current.
+    * Such a span may be ended from any thread, for example from a VIX
+    * callback.
+    *
+    * @param name
+    *           Name of the operation.
+    * @param parent
+    *           Parent span; <code>null</code> to start a new trace.
+    * @return New span; a span which does nothing if tracing is disabled.
+    */
+   public Span startDetachedSpan(String name, Span parent) {
+      if (!isEnabled()) {
+         return mDisabledSpan;
+      }
+      return new Span(this, name, parent, false, nextId());
+   }
+
+   /**
+    * Get the current span of this thread.
+    *
+    * @return Innermost span started by this thread and not yet ended;
+    *         <code>null</code> if there is none.
+    */
+   public Span getCurrentSpan() {
+      return mCurrent.get();
+   }
+
+   /**
+    * Makes the parent of an ending span current again, if the span is still
+    * current.
+    */
+   void restore(Span span, Span parent) {
+      if (mCurrent.get() == span) {
+         if (parent != null) {
+            mCurrent.set(parent);
+         } else {
+            mCurrent.remove();
+         }
+      }
+   }
+
+   private long nextId() {
+      long id;
+      do {
+         id = mRandom.nextLong();
+      } while (id == 0);
+      return id;
+   }
+
+   /**
+    * Writes an ended span as a line of JSON.
+    */
+   synchronized void write(Span span) {
+      Writer output = mOutput;
+      if (output == null) {
+         return;
+      }
+      StringBuilder line = new StringBuilder(256);
+      line.append("{\"name\":");
+      appendString(line, span.getName());
+      line.append(",\"trace\":\"").append(toHex(span.getTraceId()));
+      line.append("\",\"span\":\"").append(toHex(span.getSpanId())).append('"');
+      if (span.getParentId() != 0) {
+         line.append(",\"parent\":\"").append(toHex(span.getParentId())).append('"');
+      }
+      line.append(",\"start\":").append(span.getStartMicros());
+      line.append(",\"duration\":").append(span.getDurationMicros());
+      line.append(",\"thread\":");
+      appendString(line, span.getThread());
+      line.append(",\"result\":");
+      appendString(line, span.getResult() != null ? span.getResult() : "VIX_OK");
+      Map<String, Object> attributes = span.getAttributes();
+      if (!attributes.isEmpty()) {
+         line.append(",\"attributes\":{");
+         boolean first = true;
+         for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+            if (!first) {
+               line.append(',');
+            }
+            first = false;
+            appendString(line, entry.getKey());
+            line.append(':');
+            appendValue(line, entry.getValue());
+         }
+         line.append('}');
+      }
+      line.append("}\n");
+      try {
+         output.write(line.toString());
+         output.flush();
+      } catch (IOException e) {
+         System.err.println("Unable to write VIX trace, tracing disabled: " + e);
+         mOutput = null;
+      }
+   }
+
+   private static String toHex(long id) {
+      String hex = Long.toHexString(id);
+      return "0000000000000000".substring(hex.length()) + hex;
+   }
+
+   private static void appendValue(StringBuilder line, Object value) {
+      if (value instanceof Boolean
+            || (value instanceof Number
+                  && !Double.isNaN(((Number) value).doubleValue())
+                  && !Double.isInfinite(((Number) value).doubleValue()))) {
+         line.append(value);
+      } else {
+         appendString(line, String.valueOf(value));
+      }
+   }
+
+   private static void appendString(StringBuilder line, String value) {
+      line.append('"');
+      for (int i = 0; i < value.length(); i++) {
+         char c = value.charAt(i);
+         switch (c) {
+         case '"':
+            line.append("\\\"");
+            break;
+         case '\\':
+            line.append("\\\\");
+            break;
+         case '\n':
+            line.append("\\n");
+            break;
+         case '\r':
+            line.append("\\r");
+            break;
+         case '\t':
+            line.append("\\t");
+            break;
+         default:
+            if (c < 0x20) {
+               line.append(String.format("\\u%04x", (int) c));
+            } else {
+               line.append(c);
+            }
+         }
+      }
+      line.append('"');
+   }
+}
@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.trace;
+
+import java.lang.reflect.Method;
+
+import com.vmware.vix.ForwardingInvocationHandler;
+import com.vmware.vix.VixError;
+import com.vmware.vix.VixLibrary;
+
+/**
+ * Proxy handler which forwards VixLibrary calls and starts a span for every
+ * job submitted. The span is a child of the span current in the submitting
+ * thread and ends when VixJob_Wait() returns for the job, its completion
+ * callback is made or VixJob_CheckCompletion() reports it complete.
+ */
+class TracingInvocationHandler extends ForwardingInvocationHandler<Span> {
+
+   private final Tracer mTracer;
+
+   /**
+    * Constructor.
+    *
+    * @param delegate
+    *           Library the calls are forwarded to.
+    * @param tracer
+    *           Tracer the job spans are written to.
+    */
+   TracingInvocationHandler(VixLibrary delegate, Tracer tracer) {
+      super(delegate, "Traced");
+      mTracer = tracer;
+   }
+
+   @Override
+   protected Span callStarted(Method method, Object[] args, boolean startsJob) {
+      if (!startsJob || !mTracer.isEnabled()) {
+         return null;
+      }
+      return mTracer.startDetachedSpan(method.getName(), mTracer.getCurrentSpan());
+   }
+
+   @Override
+   protected void callEnded(
+         Span span,
+         Method method,
+         Object[] args,
+         Object result,
+         Throwable exception) {
+      if (exception != null) {
+         span.setException(exception);
+         span.end();
+      }
+   }
+
+   @Override
+   protected void jobEnded(Span span, VixError error) {
+      if (error != null) {
+         span.setResult(error);
+      } else {
+         span.setAttribute("abandoned", Boolean.TRUE);
+      }
+      span.end();
+   }
+}
@@ -0,0 +1,479 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import com.vmware.vix.VixException;
+import com.vmware.vix.VixVmHandle;
+
+/**
+ * Transfers many small files between the client and a guest as a single
+ * compressed archive.
+ * <p/>
+ * Per-file copies cost a VIX round trip each, which dominates for trees of
+ * small files. In archive mode the files are packed on the sending side, the
+ * archive is copied with one VIX copy and unpacked on the receiving side, so a
+ * transfer takes a handful of round trips however many files it contains. POSIX
+ * guests use tar.gz and need tar; Windows guests use zip and need PowerShell
+ * with .NET 4.5 or later.
+ * <p/>
+ * The mode is chosen per transfer: archives are used when there are at least
+ * {@link #getMinFiles()} files averaging at most
+ * {@link #getMaxAverageSize()} bytes which share a common guest directory.
+ * Other transfers are handed to {@link GuestFileTransfer}.
+ */
+public class GuestArchiveTransfer {
+
+   public static final int DEFAULT_MIN_FILES = 50;
+   public static final long DEFAULT_MAX_AVERAGE_SIZE = 1024 * 1024;
+
+   private final GuestFileTransfer mTransfer;
+   private final int mMinFiles;
+   private final long mMaxAverageSize;
+
+   /**
+    * Constructor using a transfer manager and thresholds with default
+    * settings.
+    */
+   public GuestArchiveTransfer() {
+      this(new GuestFileTransfer(), DEFAULT_MIN_FILES, DEFAULT_MAX_AVERAGE_SIZE);
+   }
+
+   /**
+    * Constructor.
+    *
+    * @param transfer
+    *           Transfer manager used for per-file transfers.
+    * @param minFiles
+    *           Minimum number of files for archive mode.
+    * @param maxAverageSize
+    *           Maximum average file size in bytes for archive mode.
+    */
+   public GuestArchiveTransfer(
+         GuestFileTransfer transfer,
+         int minFiles,
+         long maxAverageSize) {
+      mTransfer = transfer;
+      mMinFiles = minFiles;
+      mMaxAverageSize = maxAverageSize;
+   }
+
+   /**
+    * Get the minimum number of files for archive mode.
+    *
+    * @return Number of files.
+    */
+   public int getMinFiles() {
+      return mMinFiles;
+   }
+
+   /**
+    * Get the maximum average file size for archive mode.
+    *
+    * @return Size in bytes.
+    */
+   public long getMaxAverageSize() {
+      return mMaxAverageSize;
+   }
+
+   /**
+    * Copies files from the client into the guest, as an archive if the
+    * thresholds are met. You must call VixVM_LoginInGuest() before calling
+    * this method.
+    *
+    * @param vmHandle
+    *           Handle for the VM to copy into.
+    * @param files
+    *           Map of absolute client paths to absolute guest destination
+    *           paths.
+    * @return Statistics and failures of the transfer. In archive mode the
+    *         archive either succeeds or fails as a whole, in which case an
+    *         exception is thrown.
+    * @throws VixException
+    */
+   public GuestFileTransfer.TransferResult copyFromHostToGuest(
+         VixVmHandle vmHandle,
+         Map<String, String> files) throws VixException {
+      long totalBytes = 0;
+      for (String hostPath : files.keySet()) {
+         totalBytes += new File(hostPath).length();
+      }
+      String guestRoot = getCommonParent(files.values());
+      if (guestRoot == null || !useArchive(files.size(), totalBytes)) {
+         return mTransfer.copyFromHostToGuest(vmHandle, files);
+      }
+
+      long start = System.nanoTime();
+      GuestShell shell = GuestShell.forPath(guestRoot);
+      Map<String, File> entries = new LinkedHashMap<String, File>();
+      for (Map.Entry<String, String> file : files.entrySet()) {
+         entries.put(getEntryName(guestRoot, file.getValue()),
+                     new File(file.getKey()));
+      }
+
+      File archive = createLocalArchive(shell);
+      try {
+         try {
+            writeArchive(shell, archive, entries);
+         } catch (IOException e) {
+            throw new VixException("Unable to create archive " + archive, e);
+         }
+         String guestArchive = vmHandle.createTempFileInGuest(0);
+         try {
+            vmHandle.copyFileFromHostToGuest(archive.getAbsolutePath(),
+                                             guestArchive);
+            GuestScript.run(vmHandle,
+                            shell,
+                            getExtractScript(shell, guestArchive, guestRoot),
+                            "extract archive into " + guestRoot);
+         } finally {
+            /*
+             * The extract script removes the archive, but not if the copy or
+             * the script failed early.
+             */
+            GuestScript.deleteQuietly(vmHandle, guestArchive);
+         }
+      } finally {
+         archive.delete();
+      }
+
+      GuestFileTransfer.TransferResult result =
+            new GuestFileTransfer.TransferResult();
+      for (File file : entries.values()) {
+         result.addFile(file.length());
+      }
+      mTransfer.finish(result, start);
+      return result;
+   }
+
+   /**
+    * Copies files from the guest to the client, as an archive if the
+    * thresholds are met. You must call VixVM_LoginInGuest() before calling
+    * this method.
+    *
+    * @param vmHandle
+    *           Handle for the VM to copy from.
+    * @param files
+    *           Map of absolute guest paths to absolute client destination
+    *           paths.
+    * @param totalBytes
+    *           Expected total size of the files, used to choose the mode;
+    *           pass 0 if unknown to decide on the number of files alone.
+    * @return Statistics and failures of the transfer.
+    * @throws VixException
+    */
+   public GuestFileTransfer.TransferResult copyFromGuestToHost(
+         VixVmHandle vmHandle,
+         Map<String, String> files,
+         long totalBytes) throws VixException {
+      String guestRoot = getCommonParent(files.keySet());
+      if (guestRoot == null || !useArchive(files.size(), totalBytes)) {
+         return mTransfer.copyFromGuestToHost(vmHandle, files);
+      }
+
+      long start = System.nanoTime();
+      GuestShell shell = GuestShell.forPath(guestRoot);
+      Map<String, File> destinations = new HashMap<String, File>();
+      for (Map.Entry<String, String> file : files.entrySet()) {
+         destinations.put(getEntryName(guestRoot, file.getKey()),
+                          new File(file.getValue()));
+      }
+
+      File archive = createLocalArchive(shell);
+      File list = null;
+      try {
+         /*
+          * The entries are handed over as a list file, since the command line
+          * could be too long for cmd.exe.
+          */
+         list = File.createTempFile("vix", ".lst");
+         writeList(list, shell, destinations.keySet());
+
+         String guestArchive = vmHandle.createTempFileInGuest(0);
+         String guestList = guestArchive + ".lst";
+         try {
+            vmHandle.copyFileFromHostToGuest(list.getAbsolutePath(), guestList);
+            GuestScript.run(vmHandle,
+                            shell,
+                            getCreateScript(shell, guestArchive, guestList, guestRoot),
+                            "archive files in " + guestRoot);
+            vmHandle.copyFileFromGuestToHost(guestArchive, archive.getAbsolutePath());
+         } finally {
+            GuestScript.deleteQuietly(vmHandle, guestArchive);
+            GuestScript.deleteQuietly(vmHandle, guestList);
+         }
+
+         GuestFileTransfer.TransferResult result =
+               new GuestFileTransfer.TransferResult();
+         readArchive(shell, archive, destinations);
+         for (Map.Entry<String, File> entry : destinations.entrySet()) {
+            if (entry.getValue().isFile()) {
+               result.addFile(entry.getValue().length());
+            } else {
+               result.addFailure(guestRoot + shell.getSeparator() + entry.getKey(),
+                                 new VixException("Missing from guest archive"));
+            }
+         }
+         mTransfer.finish(result, start);
+         return result;
+      } catch (IOException e) {
+         throw new VixException("Unable to transfer archive " + archive, e);
+      } finally {
+         archive.delete();
+         if (list != null) {
+            list.delete();
+         }
+      }
+   }
+
+   /**
+    * Decides whether a transfer should use an archive.
+    *
+    * @param fileCount
+    *           Number of files in the transfer.
+    * @param totalBytes
+    *           Total size of the files; 0 if unknown.
+    * @return <code>true</code> to use an archive.
+    */
+   protected boolean useArchive(int fileCount, long totalBytes) {
+      return fileCount >= mMinFiles
+            && (fileCount == 0 || totalBytes / fileCount <= mMaxAverageSize);
+   }
+
+   /**
+    * Gets the deepest guest directory containing all of the given paths.
+    *
+    * @param guestPaths
+    *           Absolute guest paths.
+    * @return Common directory; <code>null</code> if there is none.
+    */
+   static String getCommonParent(Collection<String> guestPaths) {
+      String common = null;
+      for (String path : guestPaths) {
+         String parent = GuestFileUtil.getParentPath(path);
+         if (common == null) {
+            common = parent;
+         }
+         while (common != null && !isWithin(path, common)) {
+            common = GuestFileUtil.getParentPath(common);
+         }
+         if (common == null) {
+            return null;
+         }
+      }
+      return common;
+   }
+
+   private static boolean isWithin(String path, String dir) {
+      String separator = GuestFileUtil.getPathSeparator(dir);
+      String prefix = dir.endsWith(separator) ? dir : dir + separator;
+      return path.startsWith(prefix);
+   }
+
+   /**
+    * Gets the archive entry name of a guest path, relative to the archive
+    * root and always '/' separated.
+    */
+   private static String getEntryName(String guestRoot, String guestPath) {
+      String separator = GuestFileUtil.getPathSeparator(guestRoot);
+      int start = guestRoot.endsWith(separator) ? guestRoot.length()
+            : guestRoot.length() + 1;
+      return guestPath.substring(start).replace('\\', '/');
+   }
+
+   private static File createLocalArchive(GuestShell shell) throws VixException {
+      try {
+         return File.createTempFile("vix", shell == GuestShell.WINDOWS ? ".zip"
+               : ".tar.gz");
+      } catch (IOException e) {
+         throw new VixException("Unable to create a temporary file", e);
+      }
+   }
+
+   private static void writeArchive(
+         GuestShell shell,
+         File archive,
+         Map<String, File> entries) throws IOException {
+      OutputStream out = new BufferedOutputStream(new FileOutputStream(archive));
+      try {
+         if (shell == GuestShell.WINDOWS) {
+            ZipOutputStream zip = new ZipOutputStream(out);
+            byte[] buffer = new byte[64 * 1024];
+            for (Map.Entry<String, File> entry : entries.entrySet()) {
+               ZipEntry zipEntry = new ZipEntry(entry.getKey());
+               zipEntry.setTime(entry.getValue().lastModified());
+               zip.putNextEntry(zipEntry);
+               InputStream in = new FileInputStream(entry.getValue());
+               try {
+                  int read;
+                  while ((read = in.read(buffer)) > 0) {
+                     zip.write(buffer, 0, read);
+                  }
+               } finally {
+                  in.close();
+               }
+               zip.closeEntry();
+            }
+            zip.finish();
+         } else {
+            GZIPOutputStream gzip = new GZIPOutputStream(out);
+            TarArchive.write(gzip, entries);
+            gzip.finish();
+         }
+      } finally {
+         out.close();
+      }
+   }
+
+   private static void readArchive(
+         GuestShell shell,
+         File archive,
+         Map<String, File> destinations) throws IOException {
+      InputStream in = new BufferedInputStream(new FileInputStream(archive));
+      try {
+         if (shell == GuestShell.WINDOWS) {
+            ZipInputStream zip = new ZipInputStream(in);
+            byte[] buffer = new byte[64 * 1024];
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+               File dest = destinations.get(entry.getName().replace('\\', '/'));
+               if (dest == null || entry.isDirectory()) {
+                  continue;
+               }
+               if (dest.getParentFile() != null) {
+                  dest.getParentFile().mkdirs();
+               }
+               OutputStream out = new FileOutputStream(dest);
+               try {
+                  int read;
+                  while ((read = zip.read(buffer)) > 0) {
+                     out.write(buffer, 0, read);
+                  }
+               } finally {
+                  out.close();
+               }
+            }
+         } else {
+            TarArchive.extract(new GZIPInputStream(in), destinations);
+         }
+      } finally {
+         in.close();
+      }
+   }
+
+   /**
+    * Writes archive entry names, one per line, using the guest's separator.
+    */
+   private static void writeList(
+         File list,
+         GuestShell shell,
+         Collection<String> entryNames) throws IOException {
+      Writer writer =
+            new OutputStreamWriter(new FileOutputStream(list), "UTF-8");
+      try {
+         for (String name : entryNames) {
+            writer.write(name.replace("/", shell.getSeparator()));
+            writer.write(shell == GuestShell.WINDOWS ? "\r\n" : "\n");
+         }
+      } finally {
+         writer.close();
+      }
+   }
+
+   private static String getExtractScript(
+         GuestShell shell,
+         String guestArchive,
+         String guestRoot) {
+      if (shell == GuestShell.WINDOWS) {
+         return powerShell("$z = [IO.Compression.ZipFile]::OpenRead(" + GuestShell.quotePowerShell(guestArchive) + "); "
+               + "try { foreach ($e in $z.Entries) { "
+               + "if ($e.Name -eq '') { continue }; "
+               + "$d = Join-Path " + GuestShell.quotePowerShell(guestRoot) + " $e.FullName; "
+               + "[void](New-Item -ItemType Directory -Force -Path (Split-Path $d)); "
+               + "[IO.Compression.ZipFileExtensions]::ExtractToFile($e, $d, $true) } } "
+               + "finally { $z.Dispose(); Remove-Item -LiteralPath " + GuestShell.quotePowerShell(guestArchive) + " }");
+      }
+      return "mkdir -p " + shell.quote(guestRoot) + " && tar -xzf "
+            + shell.quote(guestArchive) + " -C " + shell.quote(guestRoot) + "\n"
+            + "rc=$?\n"
+            + "rm -f " + shell.quote(guestArchive) + "\n"
+            + "exit $rc\n";
+   }
+
+   private static String getCreateScript(
+         GuestShell shell,
+         String guestArchive,
+         String guestList,
+         String guestRoot) {
+      if (shell == GuestShell.WINDOWS) {
+         /*
+          * ZipFile.Open() refuses to create over the existing temp file.
+          */
+         return powerShell("Remove-Item -LiteralPath " + GuestShell.quotePowerShell(guestArchive) + "; "
+               + "$z = [IO.Compression.ZipFile]::Open(" + GuestShell.quotePowerShell(guestArchive) + ", 'Create'); "
+               + "try { foreach ($f in Get-Content -LiteralPath " + GuestShell.quotePowerShell(guestList) + " -Encoding UTF8) { "
+               + "[void][IO.Compression.ZipFileExtensions]::CreateEntryFromFile($z, (Join-Path "
+               + GuestShell.quotePowerShell(guestRoot) + " $f), $f.Replace('\\', '/')) } } "
+               + "finally { $z.Dispose(); Remove-Item -LiteralPath " + GuestShell.quotePowerShell(guestList) + " }");
+      }
+      return "cd " + shell.quote(guestRoot) + " && tar -czf "
+            + shell.quote(guestArchive) + " -T " + shell.quote(guestList) + "\n"
+            + "rc=$?\n"
+            + "rm -f " + shell.quote(guestList) + "\n"
+            + "exit $rc\n";
+   }
+
+   /**
+    * Builds a cmd.exe script line running PowerShell with zip support loaded.
+    */
+   private static String powerShell(String statements) {
+      return GuestShell.powerShell("Add-Type -AssemblyName System.IO.Compression.FileSystem; "
+            + statements) + "\r\n";
+   }
+}
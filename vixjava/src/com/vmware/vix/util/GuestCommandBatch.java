@@ -0,0 +1,287 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.vmware.vix.VixException;
+import com.vmware.vix.VixVmHandle;
+
+/**
+ * Runs several guest commands in a single script.
+ * <p/>
+ * Every runScriptInGuest() call is a VIX round trip plus an interpreter start
+ * in the guest. A batch concatenates its commands into one script which writes
+ * a delimiter line with the exit code after each command, and splits the
+ * combined output back into one result per command. Running a batch takes
+ * the same four VIX calls regardless of the number of commands.
+ * <p/>
+ * Each command runs with standard error merged into standard output. On POSIX
+ * guests commands run in a subshell, so <code>cd</code> or <code>exit</code>
+ * do not affect the next command. On Windows guests they run in the batch
+ * script itself, so a command calling <code>exit</code> ends the batch; the
+ * remaining results are then marked as not completed. Windows commands are
+ * inserted into the script as they are: <code>%</code> is expanded as in any
+ * batch file, and a <code>)</code> outside quotes ends the block the command
+ * runs in.
+ *
+ * <pre>
+ * GuestCommandBatch batch = new GuestCommandBatch(GuestShell.POSIX);
+ * batch.add(&quot;uname -a&quot;);
+ * batch.add(&quot;df -k /&quot;);
+ * for (GuestCommandBatch.Result result : batch.run(vm)) {
+ *    System.out.println(result.getExitCode() + &quot;: &quot; + result.getOutput());
+ * }
+ * </pre>
+ */
+public class GuestCommandBatch {
+
+   private static final Random mRandom = new Random();
+
+   private final GuestShell mShell;
+   private final List<String> mCommands = new ArrayList<String>();
+
+   /**
+    * Constructor.
+    *
+    * @param shell
+    *           Shell of the guest the batch will run in.
+    */
+   public GuestCommandBatch(GuestShell shell) {
+      mShell = shell;
+   }
+
+   /**
+    * Adds a command to the batch.
+    *
+    * @param command
+    *           Command line, which may span several lines. It is not
+    *           escaped; on Windows guests write <code>%%</code> for a
+    *           literal percent sign and <code>^)</code> for a closing
+    *           parenthesis outside quotes.
+    * @return Index of the command's result in the list returned by run().
+    */
+   public int add(String command) {
+      mCommands.add(command);
+      return mCommands.size() - 1;
+   }
+
+   /**
+    * Get the number of commands in the batch.
+    *
+    * @return Number of commands.
+    */
+   public int size() {
+      return mCommands.size();
+   }
+
+   /**
+    * Runs the commands in the guest. You must call VixVM_LoginInGuest() before
+    * calling this method.
+    *
+    * @param vmHandle
+    *           Handle for the VM to run the batch in.
+    * @return One result per command, in the order they were added.
+    * @throws VixException
+    *            If the batch could not be run or its output not fetched.
+    *            Failing commands do not cause an exception.
+    */
+   public List<Result> run(VixVmHandle vmHandle) throws VixException {
+      if (mCommands.isEmpty()) {
+         return Collections.emptyList();
+      }
+      String marker = "--vix-batch-" + Long.toHexString(mRandom.nextLong()) + "--";
+      String guestOutput = vmHandle.createTempFileInGuest(0);
+      try {
+         vmHandle.runScriptInGuest(mShell.getInterpreter(),
+                                   getScript(marker, guestOutput),
+                                   false);
+         GuestFetchedFile output = GuestFetchedFile.fetch(vmHandle, guestOutput);
+         try {
+            return parse(marker, output.lines("UTF-8"));
+         } finally {
+            output.close();
+         }
+      } catch (IOException e) {
+         throw new VixException("Unable to read output of command batch", e);
+      } finally {
+         GuestScript.deleteQuietly(vmHandle, guestOutput);
+      }
+   }
+
+   /**
+    * Builds the script running all commands.
+    */
+   String getScript(String marker, String outputPath) {
+      String out = mShell.quote(outputPath);
+      String nl = mShell.getLineSeparator();
+      StringBuilder script = new StringBuilder();
+      if (mShell == GuestShell.POSIX) {
+         script.append("exec > ").append(out).append(" 2>&1").append(nl);
+         for (int i = 0; i < mCommands.size(); i++) {
+            script.append("echo '").append(marker).append(" begin ").append(i).append("'").append(nl);
+            script.append("(").append(nl);
+            script.append(mCommands.get(i)).append(nl);
+            script.append(")").append(nl);
+            script.append("echo \"").append(marker).append(" end ").append(i).append(" $?\"").append(nl);
+         }
+      } else {
+         /*
+          * Each line redirects on its own; wrapping the whole script in one
+          * block would expand %ERRORLEVEL% before any command had run.
+          * "(call )" resets ERRORLEVEL to 0, since commands such as
+          * "if exist x del x" leave it alone and would otherwise report the
+          * exit code of the previous command.
+          */
+         for (int i = 0; i < mCommands.size(); i++) {
+            script.append(">>").append(out).append(" echo ").append(marker).append(" begin ").append(i).append(nl);
+            script.append("(call )").append(nl);
+            script.append(">>").append(out).append(" 2>&1 (").append(nl);
+            script.append(mCommands.get(i)).append(nl);
+            script.append(")").append(nl);
+            script.append(">>").append(out).append(" echo ").append(marker).append(" end ").append(i).append(" %ERRORLEVEL%").append(nl);
+         }
+      }
+      return script.toString();
+   }
+
+   /**
+    * Splits the batch output into per-command results.
+    */
+   List<Result> parse(String marker, GuestFetchedFile.LineIterator lines) {
+      List<Result> results = new ArrayList<Result>();
+      for (String command : mCommands) {
+         results.add(new Result(command));
+      }
+      Result current = null;
+      StringBuilder output = new StringBuilder();
+      while (lines.hasNext()) {
+         String line = lines.next();
+         int pos = line.indexOf(marker);
+         if (pos < 0) {
+            if (current != null) {
+               output.append(line).append('\n');
+            }
+            continue;
+         }
+         /*
+          * Output without a trailing newline ends up in front of the marker.
+          */
+         if (current != null && pos > 0) {
+            output.append(line.substring(0, pos));
+         }
+         String[] fields = line.substring(pos + marker.length()).trim().split(" ");
+         int index;
+         try {
+            index = Integer.parseInt(fields[1]);
+         } catch (RuntimeException e) {
+            continue;
+         }
+         if (index < 0 || index >= results.size()) {
+            continue;
+         }
+         if (fields[0].equals("begin")) {
+            current = results.get(index);
+            output.setLength(0);
+         } else if (fields[0].equals("end") && current == results.get(index)) {
+            current.mOutput = output.toString();
+            try {
+               current.mExitCode = Integer.parseInt(fields[2]);
+               current.mCompleted = true;
+            } catch (RuntimeException e) {
+               // Leave the result as not completed.
+            }
+            current = null;
+         }
+      }
+      if (current != null) {
+         current.mOutput = output.toString();
+      }
+      return results;
+   }
+
+   /**
+    * Outcome of one command of a batch.
+    */
+   public static class Result {
+
+      private final String mCommand;
+      private int mExitCode = -1;
+      private String mOutput = "";
+      private boolean mCompleted;
+
+      Result(String command) {
+         mCommand = command;
+      }
+
+      /**
+       * Get the command this is the result of.
+       *
+       * @return Command line.
+       */
+      public String getCommand() {
+         return mCommand;
+      }
+
+      /**
+       * Get the exit code of the command.
+       *
+       * @return Exit code, or -1 if the command did not complete.
+       */
+      public int getExitCode() {
+         return mExitCode;
+      }
+
+      /**
+       * Get the output of the command.
+       *
+       * @return Standard output and error of the command, with lines
+       *         separated by '\n'.
+       */
+      public String getOutput() {
+         return mOutput;
+      }
+
+      /**
+       * Check whether the command ran to completion. A command does not
+       * complete when an earlier command ended the batch script.
+       *
+       * @return <code>true</code> if the command completed;
+       *         <code>false</code> otherwise.
+       */
+      public boolean isCompleted() {
+         return mCompleted;
+      }
+   }
+}
@@ -0,0 +1,448 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.vmware.vix.VixError;
+import com.vmware.vix.VixException;
+import com.vmware.vix.VixVmHandle;
+
+/**
+ * Uploads files to guests, skipping files whose content is already there.
+ * <p/>
+ * Client files are hashed (SHA-1) and compared with a manifest of guest file
+ * hashes which is cached on the client per VM. The manifest is checked
+ * against a listing of the destination directories, one VIX call per
+ * directory: while a guest file keeps the size and modification time
+ * recorded in the manifest its hash is trusted. Guest files are only hashed in
+ * the guest, with a single script for all of them, when they are not in the
+ * manifest or have changed but still have the size of the client file.
+ * Client hashes are cached as well, so uploading the same files to many VMs
+ * reads each file once.
+ */
+public class GuestDedupTransfer {
+
+   /*
+    * Keeps generated command lines well below the cmd.exe limit of 8191
+    * characters.
+    */
+   private static final int MAX_COMMAND_LENGTH = 6000;
+
+   private final GuestFileTransfer mTransfer;
+   private final File mCacheDir;
+   private final Map<String, GuestFileManifest> mManifests =
+         new HashMap<String, GuestFileManifest>();
+   private final Map<String, HostHash> mHostHashes =
+         new HashMap<String, HostHash>();
+
+   /**
+    * Constructor.
+    *
+    * @param transfer
+    *           Transfer manager used for the files which need copying.
+    * @param cacheDir
+    *           Client directory holding the per-VM manifests.
+    */
+   public GuestDedupTransfer(GuestFileTransfer transfer, File cacheDir) {
+      mTransfer = transfer;
+      mCacheDir = cacheDir;
+   }
+
+   /**
+    * Copies files from the client into the guest unless an identical file is
+    * already at the destination. You must call VixVM_LoginInGuest() before
+    * calling this method.
+    *
+    * @param vmHandle
+    *           Handle for the VM to copy into.
+    * @param files
+    *           Map of absolute client paths to absolute guest destination
+    *           paths.
+    * @return Outcome of the upload.
+    * @throws VixException
+    */
+   public DedupResult copyFromHostToGuest(
+         VixVmHandle vmHandle,
+         Map<String, String> files) throws VixException {
+      File manifestFile = getManifestFile(vmHandle.getVmxPath());
+      GuestFileManifest manifest = getManifest(manifestFile);
+
+      /*
+       * Uploads to the same VM share a manifest, so they take turns.
+       */
+      synchronized (manifest) {
+         DedupResult result = new DedupResult();
+         Map<String, String> hostHashes = new HashMap<String, String>();
+         Map<String, String> toCopy = new LinkedHashMap<String, String>();
+         Map<String, String> toHash = new LinkedHashMap<String, String>();
+         Map<String, GuestFileInfo> guestFiles =
+               listDestinations(vmHandle, files.values());
+
+         for (Map.Entry<String, String> file : files.entrySet()) {
+            String hostPath = file.getKey();
+            String guestPath = file.getValue();
+            String hostHash = getHostHash(new File(hostPath));
+            hostHashes.put(guestPath, hostHash);
+
+            GuestFileInfo info = guestFiles.get(guestPath);
+            if (info == null || info.isDirectory()
+                  || info.getSize() != new File(hostPath).length()) {
+               toCopy.put(hostPath, guestPath);
+               continue;
+            }
+            String guestHash = manifest.getHash(info);
+            if (guestHash == null) {
+               toHash.put(hostPath, guestPath);
+            } else if (guestHash.equals(hostHash)) {
+               result.mSkipped++;
+            } else {
+               toCopy.put(hostPath, guestPath);
+            }
+         }
+
+         if (!toHash.isEmpty()) {
+            Map<String, String> guestHashes =
+                  hashInGuest(vmHandle, toHash.values());
+            result.mGuestHashed = toHash.size();
+            for (Map.Entry<String, String> file : toHash.entrySet()) {
+               String guestPath = file.getValue();
+               String guestHash = guestHashes.get(guestPath);
+               if (guestHash != null && guestHash.equals(hostHashes.get(guestPath))) {
+                  GuestFileInfo info = guestFiles.get(guestPath);
+                  manifest.put(guestPath, guestHash, info.getSize(), info.getModTime());
+                  result.mSkipped++;
+               } else {
+                  toCopy.put(file.getKey(), guestPath);
+               }
+            }
+         }
+
+         result.mTransferResult = mTransfer.copyFromHostToGuest(vmHandle, toCopy);
+
+         /*
+          * Copying sets new modification times, which have to be read back
+          * for the manifest entries to be of use next time.
+          */
+         if (!toCopy.isEmpty()) {
+            Map<String, GuestFileInfo> copied =
+                  listDestinations(vmHandle, toCopy.values());
+            Map<String, VixException> failures =
+                  result.mTransferResult.getFailures();
+            for (String guestPath : toCopy.values()) {
+               GuestFileInfo info = copied.get(guestPath);
+               if (info == null || failures.containsKey(guestPath)) {
+                  manifest.remove(guestPath);
+               } else {
+                  manifest.put(guestPath,
+                               hostHashes.get(guestPath),
+                               info.getSize(),
+                               info.getModTime());
+               }
+            }
+         }
+
+         try {
+            manifest.save(manifestFile);
+         } catch (IOException e) {
+            throw new VixException("Unable to save manifest " + manifestFile, e);
+         }
+         return result;
+      }
+   }
+
+   /**
+    * Drops the cached manifest of a VM, for example after reverting it to a
+    * snapshot.
+    *
+    * @param vmHandle
+    *           Handle for the VM.
+    * @throws VixException
+    */
+   public void invalidate(VixVmHandle vmHandle) throws VixException {
+      File manifestFile = getManifestFile(vmHandle.getVmxPath());
+      synchronized (mManifests) {
+         mManifests.remove(manifestFile.getAbsolutePath());
+         manifestFile.delete();
+      }
+   }
+
+   /**
+    * Gets the manifest file of a VM, named after a hash of its VMX path.
+    */
+   private File getManifestFile(String vmxPath) {
+      return new File(mCacheDir, toHex(newDigest().digest(getBytes(vmxPath)))
+            + ".manifest");
+   }
+
+   private GuestFileManifest getManifest(File manifestFile) throws VixException {
+      synchronized (mManifests) {
+         GuestFileManifest manifest =
+               mManifests.get(manifestFile.getAbsolutePath());
+         if (manifest == null) {
+            try {
+               manifest = GuestFileManifest.load(manifestFile);
+            } catch (IOException e) {
+               throw new VixException("Unable to load manifest " + manifestFile, e);
+            }
+            mManifests.put(manifestFile.getAbsolutePath(), manifest);
+         }
+         return manifest;
+      }
+   }
+
+   /**
+    * Lists the directories containing the given guest paths.
+    *
+    * @return Map of guest paths to their attributes, for every entry of those
+    *         directories. Directories which do not exist are left out.
+    */
+   private Map<String, GuestFileInfo> listDestinations(
+         VixVmHandle vmHandle,
+         Collection<String> guestPaths) throws VixException {
+      Set<String> dirs = new LinkedHashSet<String>();
+      for (String guestPath : guestPaths) {
+         String parent = GuestFileUtil.getParentPath(guestPath);
+         if (parent != null) {
+            dirs.add(parent);
+         }
+      }
+      Map<String, GuestFileInfo> files = new HashMap<String, GuestFileInfo>();
+      for (String dir : dirs) {
+         try {
+            for (GuestFileInfo info : GuestFileUtil.listFiles(vmHandle, dir, false)) {
+               files.put(info.getPath(), info);
+            }
+         } catch (VixException e) {
+            if (!VixError.VIX_E_FILE_NOT_FOUND.equals(e.getError())
+                  && !VixError.VIX_E_NOT_A_DIRECTORY.equals(e.getError())) {
+               throw e;
+            }
+         }
+      }
+      return files;
+   }
+
+   /**
+    * Hashes files in the guest with sha1sum or Get-FileHash.
+    *
+    * @return Map of guest paths to hex encoded hashes. Files which could not
+    *         be hashed are left out.
+    */
+   private Map<String, String> hashInGuest(
+         VixVmHandle vmHandle,
+         Collection<String> guestPaths) throws VixException {
+      Map<String, String> hashes = new HashMap<String, String>();
+      GuestShell shell = GuestShell.forPath(guestPaths.iterator().next());
+      for (List<String> chunk : split(shell, guestPaths)) {
+         String output =
+               GuestScript.runForOutput(vmHandle,
+                                        shell,
+                                        getHashCommand(shell, chunk),
+                                        "hash files in guest");
+         for (String line : output.split("\r?\n")) {
+            if (line.length() > 42 && line.charAt(0) != '\\') {
+               hashes.put(line.substring(42), line.substring(0, 40).toLowerCase());
+            }
+         }
+      }
+      return hashes;
+   }
+
+   private static String getHashCommand(GuestShell shell, List<String> guestPaths) {
+      StringBuilder command = new StringBuilder();
+      if (shell == GuestShell.WINDOWS) {
+         for (String guestPath : guestPaths) {
+            command.append(command.length() == 0 ? "" : ",");
+            command.append(GuestShell.quotePowerShell(guestPath));
+         }
+         return GuestShell.powerShell("Get-FileHash -Algorithm SHA1 -ErrorAction SilentlyContinue -LiteralPath "
+               + command + " | ForEach-Object { $_.Hash.ToLower() + '  ' + $_.Path }");
+      }
+      command.append("sha1sum --");
+      for (String guestPath : guestPaths) {
+         command.append(' ').append(shell.quote(guestPath));
+      }
+      return command.append(" 2>/dev/null\nexit 0").toString();
+   }
+
+   /**
+    * Splits paths into groups whose command line stays short enough.
+    */
+   private static List<List<String>> split(
+         GuestShell shell,
+         Collection<String> guestPaths) {
+      List<List<String>> chunks = new ArrayList<List<String>>();
+      List<String> chunk = new ArrayList<String>();
+      int length = 0;
+      for (String guestPath : guestPaths) {
+         if (!chunk.isEmpty() && length + guestPath.length() > MAX_COMMAND_LENGTH) {
+            chunks.add(chunk);
+            chunk = new ArrayList<String>();
+            length = 0;
+         }
+         chunk.add(guestPath);
+         length += guestPath.length() + 4;
+      }
+      if (!chunk.isEmpty()) {
+         chunks.add(chunk);
+      }
+      return chunks;
+   }
+
+   /**
+    * Gets the hash of a client file, reusing the last hash while the file
+    * keeps its size and modification time.
+    */
+   private String getHostHash(File file) throws VixException {
+      String key = file.getAbsolutePath();
+      long size = file.length();
+      long modified = file.lastModified();
+      synchronized (mHostHashes) {
+         HostHash cached = mHostHashes.get(key);
+         if (cached != null && cached.mSize == size && cached.mModified == modified) {
+            return cached.mHash;
+         }
+      }
+
+      MessageDigest digest = newDigest();
+      try {
+         InputStream in = new FileInputStream(file);
+         try {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+               digest.update(buffer, 0, read);
+            }
+         } finally {
+            in.close();
+         }
+      } catch (IOException e) {
+         throw new VixException("Unable to read " + file, e);
+      }
+      String hash = toHex(digest.digest());
+      synchronized (mHostHashes) {
+         mHostHashes.put(key, new HostHash(hash, size, modified));
+      }
+      return hash;
+   }
+
+   private static MessageDigest newDigest() {
+      try {
+         return MessageDigest.getInstance("SHA-1");
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException("SHA-1 is not available", e);
+      }
+   }
+
+   private static byte[] getBytes(String text) {
+      try {
+         return text.getBytes("UTF-8");
+      } catch (IOException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   private static String toHex(byte[] bytes) {
+      StringBuilder hex = new StringBuilder(bytes.length * 2);
+      for (byte b : bytes) {
+         hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+         hex.append(Character.forDigit(b & 0xf, 16));
+      }
+      return hex.toString();
+   }
+
+   /**
+    * Hash of a client file along with the attributes it was taken at.
+    */
+   private static class HostHash {
+
+      private final String mHash;
+      private final long mSize;
+      private final long mModified;
+
+      HostHash(String hash, long size, long modified) {
+         mHash = hash;
+         mSize = size;
+         mModified = modified;
+      }
+   }
+
+   /**
+    * Outcome of an upload.
+    */
+   public static class DedupResult {
+
+      private GuestFileTransfer.TransferResult mTransferResult;
+      private int mSkipped;
+      private int mGuestHashed;
+
+      /**
+       * Get the result of copying the files which were not in the guest.
+       *
+       * @return Transfer result, including any files which failed to copy.
+       */
+      public GuestFileTransfer.TransferResult getTransferResult() {
+         return mTransferResult;
+      }
+
+      /**
+       * Get the number of files skipped because the guest already had them.
+       *
+       * @return Number of files skipped.
+       */
+      public int getSkipped() {
+         return mSkipped;
+      }
+
+      /**
+       * Get the number of guest files which had to be hashed in the guest
+       * because the manifest did not cover them.
+       *
+       * @return Number of files hashed in the guest.
+       */
+      public int getGuestHashed() {
+         return mGuestHashed;
+      }
+   }
+}
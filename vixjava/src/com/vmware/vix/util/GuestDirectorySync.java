@@ -0,0 +1,272 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.vmware.vix.VixException;
+import com.vmware.vix.VixVmHandle;
+
+/**
+ * Brings a guest directory in line with a directory tree on the client,
+ * copying only files which are new or have changed.
+ * <p/>
+ * The guest side is read with one listing per directory, which carries the
+ * size and modification time of every entry. A file is copied when it does
+ * not exist in the guest, its size differs, or the client copy was modified
+ * after the guest copy. Because a copied file gets the time of the copy as its
+ * guest modification time, the comparison assumes client and guest clocks are
+ * roughly in step.
+ */
+public class GuestDirectorySync {
+
+   private final GuestFileTransfer mTransfer;
+
+   /**
+    * Constructor using a transfer manager with the default limits.
+    */
+   public GuestDirectorySync() {
+      this(new GuestFileTransfer());
+   }
+
+   /**
+    * Constructor.
+    *
+    * @param transfer
+    *           Transfer manager used for the copies. Sharing one manager
+    *           between syncs keeps their combined load within its limits.
+    */
+   public GuestDirectorySync(GuestFileTransfer transfer) {
+      mTransfer = transfer;
+   }
+
+   /**
+    * Synchronizes a client directory tree into the guest. You must call
+    * VixVM_LoginInGuest() before calling this method.
+    *
+    * @param vmHandle
+    *           Handle for the VM to copy into.
+    * @param hostDir
+    *           Directory on the client.
+    * @param guestDir
+    *           Absolute path of the directory in the guest. Created if it does
+    *           not exist. Empty client directories are not created in the
+    *           guest.
+    * @param deleteExtras
+    *           <code>true</code> if guest files and directories which do not
+    *           exist on the client should be deleted.
+    * @return Outcome of the sync.
+    * @throws VixException
+    */
+   public SyncResult sync(
+         VixVmHandle vmHandle,
+         File hostDir,
+         String guestDir,
+         boolean deleteExtras) throws VixException {
+      if (!hostDir.isDirectory()) {
+         throw new VixException(hostDir + " is not a directory");
+      }
+      String separator = GuestFileUtil.getPathSeparator(guestDir);
+      String guestPrefix =
+            guestDir.endsWith(separator) ? guestDir : guestDir + separator;
+
+      /*
+       * Both sides are keyed by the path relative to their root, using the
+       * guest's separator.
+       */
+      Map<String, File> hostFiles = new LinkedHashMap<String, File>();
+      Map<String, File> hostDirs = new HashMap<String, File>();
+      collectHostFiles(hostDir, "", separator, hostFiles, hostDirs);
+
+      Map<String, GuestFileInfo> guestFiles =
+            new HashMap<String, GuestFileInfo>();
+      if (vmHandle.directoryExistsInGuest(guestDir)) {
+         for (GuestFileInfo info : GuestFileUtil.listFiles(vmHandle, guestDir, true)) {
+            guestFiles.put(info.getPath().substring(guestPrefix.length()), info);
+         }
+      } else if (hostFiles.isEmpty()) {
+         vmHandle.createDirectoryInGuest(guestDir);
+      }
+
+      SyncResult result = new SyncResult();
+      ArrayList<String> deletedDirs = new ArrayList<String>();
+      Map<String, String> toCopy = new LinkedHashMap<String, String>();
+      for (Map.Entry<String, File> entry : hostFiles.entrySet()) {
+         GuestFileInfo guestFile = guestFiles.get(entry.getKey());
+         if (isChanged(entry.getValue(), guestFile)) {
+            if (guestFile != null && guestFile.isDirectory()) {
+               vmHandle.deleteDirectoryInGuest(guestFile.getPath(), 0);
+               deletedDirs.add(entry.getKey() + separator);
+            }
+            toCopy.put(entry.getValue().getAbsolutePath(),
+                       guestPrefix + entry.getKey());
+         } else {
+            result.mUnchanged++;
+         }
+      }
+
+      if (deleteExtras) {
+         deleteExtras(vmHandle,
+                      guestFiles,
+                      hostFiles,
+                      hostDirs,
+                      separator,
+                      deletedDirs,
+                      result);
+      }
+
+      result.mTransferResult = mTransfer.copyFromHostToGuest(vmHandle, toCopy);
+      return result;
+   }
+
+   /**
+    * Decides whether a client file needs to be copied over the guest file.
+    *
+    * @param hostFile
+    *           File on the client.
+    * @param guestFile
+    *           Guest entry at the same relative path; <code>null</code> if
+    *           there is none.
+    * @return <code>true</code> if the file should be copied.
+    */
+   protected boolean isChanged(File hostFile, GuestFileInfo guestFile) {
+      if (guestFile == null || guestFile.isDirectory()) {
+         return true;
+      }
+      return hostFile.length() != guestFile.getSize()
+            || hostFile.lastModified() / 1000 > guestFile.getModTime();
+   }
+
+   /**
+    * Deletes guest entries that have no counterpart on the client. Only the
+    * topmost extra directory of a subtree is deleted.
+    */
+   private void deleteExtras(
+         VixVmHandle vmHandle,
+         Map<String, GuestFileInfo> guestFiles,
+         Map<String, File> hostFiles,
+         Map<String, File> hostDirs,
+         String separator,
+         ArrayList<String> deletedDirs,
+         SyncResult result) throws VixException {
+      for (Map.Entry<String, GuestFileInfo> entry : guestFiles.entrySet()) {
+         String relPath = entry.getKey();
+         GuestFileInfo info = entry.getValue();
+         if (isBelow(relPath, deletedDirs)) {
+            continue;
+         }
+         if (info.isDirectory() && !info.isSymbolicLink()) {
+            if (!hostDirs.containsKey(relPath) && !hostFiles.containsKey(relPath)) {
+               vmHandle.deleteDirectoryInGuest(info.getPath(), 0);
+               deletedDirs.add(relPath + separator);
+               result.mDeleted++;
+            }
+         } else if (!hostFiles.containsKey(relPath)) {
+            vmHandle.deleteFileInGuest(info.getPath());
+            result.mDeleted++;
+         }
+      }
+   }
+
+   private static boolean isBelow(String relPath, ArrayList<String> dirPrefixes) {
+      for (String prefix : dirPrefixes) {
+         if (relPath.startsWith(prefix)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Walks the client tree, recording files and directories by relative path.
+    */
+   private static void collectHostFiles(
+         File dir,
+         String relDir,
+         String separator,
+         Map<String, File> files,
+         Map<String, File> dirs) {
+      File[] children = dir.listFiles();
+      if (children == null) {
+         return;
+      }
+      for (File child : children) {
+         String relPath = relDir + child.getName();
+         if (child.isDirectory()) {
+            dirs.put(relPath, child);
+            collectHostFiles(child, relPath + separator, separator, files, dirs);
+         } else {
+            files.put(relPath, child);
+         }
+      }
+   }
+
+   /**
+    * Outcome of a sync.
+    */
+   public static class SyncResult {
+
+      private GuestFileTransfer.TransferResult mTransferResult;
+      private int mUnchanged;
+      private int mDeleted;
+
+      /**
+       * Get the result of copying the new and changed files.
+       *
+       * @return Transfer result, including any files which failed to copy.
+       */
+      public GuestFileTransfer.TransferResult getTransferResult() {
+         return mTransferResult;
+      }
+
+      /**
+       * Get the number of files which were already up to date.
+       *
+       * @return Number of files skipped.
+       */
+      public int getUnchanged() {
+         return mUnchanged;
+      }
+
+      /**
+       * Get the number of guest files and directories deleted because they
+       * did not exist on the client.
+       *
+       * @return Number of deleted entries.
+       */
+      public int getDeleted() {
+         return mDeleted;
+      }
+   }
+}
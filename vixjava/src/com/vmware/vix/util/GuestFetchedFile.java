@@ -0,0 +1,308 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.util;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.vmware.vix.VixException;
+import com.vmware.vix.VixVmHandle;
+
+/**
+ * A file fetched from a guest into a client staging file, read in place.
+ * <p/>
+ * The contents are exposed as channels, memory mapped buffers or a line
+ * iterator over the staging file so that large files, such as guest logs,
+ * never have to be held on the heap. Closing the fetched file closes
+ * everything opened on it and deletes the staging file:
+ *
+ * <pre>
+ * GuestFetchedFile log = GuestFetchedFile.fetch(vm, &quot;/var/log/messages&quot;);
+ * try {
+ *    GuestFetchedFile.LineIterator lines = log.lines(&quot;UTF-8&quot;);
+ *    while (lines.hasNext()) {
+ *       parse(lines.next());
+ *    }
+ * } finally {
+ *    log.close();
+ * }
+ * </pre>
+ *
+ * Buffers returned by map() stay valid after close() but must not be used,
+ * since their contents are no longer backed by a file. On Windows a file
+ * with live mappings cannot be deleted; it is then removed on exit.
+ */
+public class GuestFetchedFile implements Closeable {
+
+   private final File mStagingFile;
+   private final List<Closeable> mOpened = new ArrayList<Closeable>();
+   private boolean mClosed;
+
+   private GuestFetchedFile(File stagingFile) {
+      mStagingFile = stagingFile;
+   }
+
+   /**
+    * Fetches a guest file into a staging file in the default temp directory.
+    * You must call VixVM_LoginInGuest() before calling this method.
+    *
+    * @param vmHandle
+    *           Handle for the VM containing the file.
+    * @param guestPath
+    *           Absolute path of the file in the guest.
+    * @return The fetched file, which must be closed.
+    * @throws VixException
+    */
+   public static GuestFetchedFile fetch(VixVmHandle vmHandle, String guestPath)
+         throws VixException {
+      return fetch(vmHandle, guestPath, null);
+   }
+
+   /**
+    * Fetches a guest file into a staging file. You must call
+    * VixVM_LoginInGuest() before calling this method.
+    *
+    * @param vmHandle
+    *           Handle for the VM containing the file.
+    * @param guestPath
+    *           Absolute path of the file in the guest.
+    * @param stagingDir
+    *           Client directory for the staging file, or null for the
+    *           default temp directory.
+    * @return The fetched file, which must be closed.
+    * @throws VixException
+    */
+   public static GuestFetchedFile fetch(
+         VixVmHandle vmHandle,
+         String guestPath,
+         File stagingDir) throws VixException {
+      File stagingFile;
+      try {
+         stagingFile = File.createTempFile("vix", ".fetch", stagingDir);
+      } catch (IOException e) {
+         throw new VixException("Unable to create staging file", e);
+      }
+      boolean fetched = false;
+      try {
+         vmHandle.copyFileFromGuestToHost(guestPath,
+                                          stagingFile.getAbsolutePath());
+         fetched = true;
+      } finally {
+         if (!fetched) {
+            stagingFile.delete();
+         }
+      }
+      return new GuestFetchedFile(stagingFile);
+   }
+
+   /**
+    * Get the staging file. It is deleted when this object is closed.
+    *
+    * @return Client staging file.
+    */
+   public File getStagingFile() {
+      return mStagingFile;
+   }
+
+   /**
+    * Get the size of the fetched file.
+    *
+    * @return Size in bytes.
+    */
+   public long getSize() {
+      return mStagingFile.length();
+   }
+
+   /**
+    * Opens a channel for reading the file from the start. The channel is
+    * closed along with this object if not closed before.
+    *
+    * @return A new channel.
+    * @throws IOException
+    */
+   public synchronized ReadableByteChannel openChannel() throws IOException {
+      return open();
+   }
+
+   /**
+    * Maps the whole file into memory.
+    *
+    * @return A read-only buffer over the file.
+    * @throws IOException
+    *            If the file is larger than 2GB, in which case it must be
+    *            mapped in windows with map(long, long).
+    */
+   public MappedByteBuffer map() throws IOException {
+      long size = getSize();
+      if (size > Integer.MAX_VALUE) {
+         throw new IOException("File of " + size
+               + " bytes is too large to map at once");
+      }
+      return map(0, size);
+   }
+
+   /**
+    * Maps part of the file into memory.
+    *
+    * @param position
+    *           Offset of the first byte to map.
+    * @param size
+    *           Number of bytes to map, at most 2GB.
+    * @return A read-only buffer over the requested region.
+    * @throws IOException
+    */
+   public synchronized MappedByteBuffer map(long position, long size)
+         throws IOException {
+      FileChannel channel = open();
+      try {
+         return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+      } finally {
+         /*
+          * A mapping remains valid after its channel is closed.
+          */
+         channel.close();
+         mOpened.remove(channel);
+      }
+   }
+
+   /**
+    * Opens an iterator over the lines of the file, reading them as they are
+    * requested. The iterator is closed along with this object if not closed
+    * before.
+    *
+    * @param charsetName
+    *           Encoding of the file.
+    * @return A new line iterator.
+    * @throws IOException
+    */
+   public synchronized LineIterator lines(String charsetName) throws IOException {
+      LineIterator lines =
+            new LineIterator(new BufferedReader(new InputStreamReader(Channels.newInputStream(open()),
+                                                                      charsetName)));
+      mOpened.add(lines);
+      return lines;
+   }
+
+   /**
+    * Closes all channels and iterators opened on the file and deletes the
+    * staging file.
+    */
+   public synchronized void close() throws IOException {
+      if (mClosed) {
+         return;
+      }
+      mClosed = true;
+      IOException error = null;
+      for (Closeable opened : mOpened) {
+         try {
+            opened.close();
+         } catch (IOException e) {
+            error = e;
+         }
+      }
+      mOpened.clear();
+      if (!mStagingFile.delete() && mStagingFile.exists()) {
+         mStagingFile.deleteOnExit();
+      }
+      if (error != null) {
+         throw error;
+      }
+   }
+
+   private FileChannel open() throws IOException {
+      if (mClosed) {
+         throw new IOException("Fetched file is closed");
+      }
+      FileChannel channel = new RandomAccessFile(mStagingFile, "r").getChannel();
+      mOpened.add(channel);
+      return channel;
+   }
+
+   /**
+    * Iterator over the lines of a fetched file. Line terminators are not
+    * included. An I/O error while reading is thrown as an
+    * IllegalStateException wrapping the IOException.
+    */
+   public static class LineIterator implements Iterator<String>, Closeable {
+
+      private final BufferedReader mReader;
+      private String mNext;
+      private boolean mDone;
+
+      LineIterator(BufferedReader reader) {
+         mReader = reader;
+      }
+
+      public boolean hasNext() {
+         if (mNext == null && !mDone) {
+            try {
+               mNext = mReader.readLine();
+            } catch (IOException e) {
+               throw new IllegalStateException(e);
+            }
+            if (mNext == null) {
+               mDone = true;
+            }
+         }
+         return mNext != null;
+      }
+
+      public String next() {
+         if (!hasNext()) {
+            throw new NoSuchElementException();
+         }
+         String line = mNext;
+         mNext = null;
+         return line;
+      }
+
+      public void remove() {
+         throw new UnsupportedOperationException();
+      }
+
+      public void close() throws IOException {
+         mDone = true;
+         mNext = null;
+         mReader.close();
+      }
+   }
+}
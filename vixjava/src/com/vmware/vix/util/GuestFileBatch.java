@@ -0,0 +1,415 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+
+import com.vmware.vix.VixError;
+import com.vmware.vix.VixException;
+import com.vmware.vix.VixHandle;
+import com.vmware.vix.VixJobFuture;
+import com.vmware.vix.VixLibrary;
+import com.vmware.vix.VixVmHandle;
+
+/**
+ * Creates, deletes and renames many guest paths at once.
+ * <p/>
+ * Small batches are carried out with one VIX job per path, submitted
+ * asynchronously with a bounded number outstanding so the round trips
+ * overlap. Larger batches are carried out by a single guest script built
+ * with GuestCommandBatch, which costs a fixed four VIX calls plus one
+ * interpreter start regardless of the number of paths. Either way every
+ * path reports its own outcome.
+ * <p/>
+ * Creating a directory also creates its missing parents, and an existing
+ * directory is not an error. Deleting a path which does not exist is not an
+ * error either. You must call VixVM_LoginInGuest() before calling any method.
+ */
+public class GuestFileBatch {
+
+   public static final int DEFAULT_MAX_JOBS = 8;
+   public static final int DEFAULT_SCRIPT_THRESHOLD = 16;
+
+   private static final Set<Integer> mMissingErrors = new HashSet<Integer>();
+   static {
+      VixError[] errors = {
+            VixError.VIX_E_FILE_NOT_FOUND,
+            VixError.VIX_E_OBJECT_NOT_FOUND };
+      for (VixError error : errors) {
+         mMissingErrors.add(error.intValue());
+      }
+   }
+
+   private enum Operation {
+      MKDIR, DELETE_FILE, DELETE_DIRECTORY, RENAME
+   }
+
+   private final VixLibrary mVix = VixLibrary.INSTANCE;
+   private final int mMaxJobs;
+   private final int mScriptThreshold;
+
+   /**
+    * Constructor using the default limits.
+    */
+   public GuestFileBatch() {
+      this(DEFAULT_MAX_JOBS, DEFAULT_SCRIPT_THRESHOLD);
+   }
+
+   /**
+    * Constructor.
+    *
+    * @param maxJobs
+    *           Maximum number of jobs outstanding when paths are handled one
+    *           job each.
+    * @param scriptThreshold
+    *           Number of paths from which a guest script is used instead.
+    */
+   public GuestFileBatch(int maxJobs, int scriptThreshold) {
+      if (maxJobs < 1 || scriptThreshold < 1) {
+         throw new IllegalArgumentException("Invalid batch limits");
+      }
+      mMaxJobs = maxJobs;
+      mScriptThreshold = scriptThreshold;
+   }
+
+   /**
+    * Creates directories along with their missing parents.
+    *
+    * @param vmHandle
+    *           Handle for the VM.
+    * @param dirPaths
+    *           Absolute guest paths of the directories.
+    * @return Outcome per path.
+    * @throws VixException
+    *            If the batch could not be carried out at all.
+    */
+   public BatchResult createDirectories(
+         VixVmHandle vmHandle,
+         Collection<String> dirPaths) throws VixException {
+      return run(vmHandle, Operation.MKDIR, toMap(dirPaths));
+   }
+
+   /**
+    * Deletes files.
+    *
+    * @param vmHandle
+    *           Handle for the VM.
+    * @param filePaths
+    *           Absolute guest paths of the files.
+    * @return Outcome per path.
+    * @throws VixException
+    *            If the batch could not be carried out at all.
+    */
+   public BatchResult deleteFiles(
+         VixVmHandle vmHandle,
+         Collection<String> filePaths) throws VixException {
+      return run(vmHandle, Operation.DELETE_FILE, toMap(filePaths));
+   }
+
+   /**
+    * Deletes directories along with their contents.
+    *
+    * @param vmHandle
+    *           Handle for the VM.
+    * @param dirPaths
+    *           Absolute guest paths of the directories.
+    * @return Outcome per path.
+    * @throws VixException
+    *            If the batch could not be carried out at all.
+    */
+   public BatchResult deleteDirectories(
+         VixVmHandle vmHandle,
+         Collection<String> dirPaths) throws VixException {
+      return run(vmHandle, Operation.DELETE_DIRECTORY, toMap(dirPaths));
+   }
+
+   /**
+    * Renames or moves files and directories, replacing existing targets.
+    * Renames are not ordered, so a path must not be both a source and a
+    * target.
+    *
+    * @param vmHandle
+    *           Handle for the VM.
+    * @param renames
+    *           Map of absolute guest source paths to target paths.
+    * @return Outcome per source path.
+    * @throws VixException
+    *            If the batch could not be carried out at all.
+    */
+   public BatchResult rename(
+         VixVmHandle vmHandle,
+         Map<String, String> renames) throws VixException {
+      return run(vmHandle, Operation.RENAME, renames);
+   }
+
+   /**
+    * Decides whether a batch is carried out by a guest script. Subclasses may
+    * override this, for example to always use jobs on guests without a shell.
+    *
+    * @param count
+    *           Number of paths in the batch.
+    * @return <code>true</code> to use a guest script; <code>false</code> to
+    *         use one job per path.
+    */
+   protected boolean useScript(int count) {
+      return count >= mScriptThreshold;
+   }
+
+   private BatchResult run(
+         VixVmHandle vmHandle,
+         Operation operation,
+         Map<String, String> paths) throws VixException {
+      if (paths.isEmpty()) {
+         return new BatchResult(false);
+      }
+      if (useScript(paths.size())) {
+         return runScript(vmHandle, operation, paths);
+      }
+      return runJobs(vmHandle, operation, paths);
+   }
+
+   private BatchResult runScript(
+         VixVmHandle vmHandle,
+         Operation operation,
+         Map<String, String> paths) throws VixException {
+      GuestShell shell = GuestShell.forPath(paths.keySet().iterator().next());
+      GuestCommandBatch batch = new GuestCommandBatch(shell);
+      List<String> order = new ArrayList<String>();
+      for (Map.Entry<String, String> path : paths.entrySet()) {
+         batch.add(getCommand(shell, operation, path.getKey(), path.getValue()));
+         order.add(path.getKey());
+      }
+
+      BatchResult result = new BatchResult(true);
+      List<GuestCommandBatch.Result> commands = batch.run(vmHandle);
+      for (int i = 0; i < commands.size(); i++) {
+         GuestCommandBatch.Result command = commands.get(i);
+         if (command.isCompleted() && command.getExitCode() == 0) {
+            result.mCompleted++;
+         } else {
+            result.mFailures.put(order.get(i),
+                                 new VixException(command.getOutput().trim()
+                                       + " (exit code " + command.getExitCode()
+                                       + ")"));
+         }
+      }
+      return result;
+   }
+
+   private static String getCommand(
+         GuestShell shell,
+         Operation operation,
+         String path,
+         String target) {
+      String quoted = shell.quote(path);
+      if (shell == GuestShell.POSIX) {
+         switch (operation) {
+         case MKDIR:
+            return "mkdir -p -- " + quoted;
+         case DELETE_FILE:
+            return "rm -f -- " + quoted;
+         case DELETE_DIRECTORY:
+            return "rm -rf -- " + quoted;
+         default:
+            return "mv -f -- " + quoted + " " + shell.quote(target);
+         }
+      }
+      switch (operation) {
+      case MKDIR:
+         return "if not exist " + quoted + " mkdir " + quoted;
+      case DELETE_FILE:
+         return "if exist " + quoted + " del /f /q " + quoted;
+      case DELETE_DIRECTORY:
+         return "if exist " + quoted + " rmdir /s /q " + quoted;
+      default:
+         return "move /y " + quoted + " " + shell.quote(target);
+      }
+   }
+
+   private BatchResult runJobs(
+         VixVmHandle vmHandle,
+         final Operation operation,
+         Map<String, String> paths) throws VixException {
+      final Semaphore permits = new Semaphore(mMaxJobs);
+      Map<String, VixJobFuture<Void>> futures =
+            new LinkedHashMap<String, VixJobFuture<Void>>();
+      try {
+         for (Map.Entry<String, String> path : paths.entrySet()) {
+            permits.acquire();
+            VixJobFuture<Void> future = new VixJobFuture<Void>() {
+               @Override
+               protected void done() {
+                  permits.release();
+               }
+            };
+            submit(vmHandle, operation, path.getKey(), path.getValue(), future);
+            futures.put(path.getKey(), future);
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new VixException("Interrupted while changing guest files", e);
+      }
+
+      BatchResult result = new BatchResult(false);
+      for (Map.Entry<String, VixJobFuture<Void>> future : futures.entrySet()) {
+         try {
+            future.getValue().getResult();
+            result.mCompleted++;
+         } catch (VixException e) {
+            if (isIgnored(operation, e.getError())) {
+               result.mCompleted++;
+            } else {
+               result.mFailures.put(future.getKey(), e);
+            }
+         }
+      }
+      return result;
+   }
+
+   private void submit(
+         VixVmHandle vmHandle,
+         Operation operation,
+         String path,
+         String target,
+         VixJobFuture<Void> future) {
+      switch (operation) {
+      case MKDIR:
+         mVix.VixVM_CreateDirectoryInGuest(vmHandle,
+                                           path,
+                                           VixHandle.VIX_INVALID_HANDLE,
+                                           future,
+                                           null);
+         break;
+      case DELETE_FILE:
+         mVix.VixVM_DeleteFileInGuest(vmHandle, path, future, null);
+         break;
+      case DELETE_DIRECTORY:
+         mVix.VixVM_DeleteDirectoryInGuest(vmHandle, path, 0, future, null);
+         break;
+      default:
+         mVix.VixVM_RenameFileInGuest(vmHandle,
+                                      path,
+                                      target,
+                                      0,
+                                      VixHandle.VIX_INVALID_HANDLE,
+                                      future,
+                                      null);
+      }
+   }
+
+   /**
+    * Errors which mean the path is already as requested.
+    */
+   private static boolean isIgnored(Operation operation, VixError error) {
+      if (error == null) {
+         return false;
+      }
+      switch (operation) {
+      case MKDIR:
+         return error.equals(VixError.VIX_E_FILE_ALREADY_EXISTS)
+               || error.equals(VixError.VIX_E_ALREADY_EXISTS);
+      case DELETE_FILE:
+      case DELETE_DIRECTORY:
+         return mMissingErrors.contains(error.intValue());
+      default:
+         return false;
+      }
+   }
+
+   private static Map<String, String> toMap(Collection<String> paths) {
+      Map<String, String> map = new LinkedHashMap<String, String>();
+      for (String path : paths) {
+         map.put(path, null);
+      }
+      return map;
+   }
+
+   /**
+    * Outcome of a batch.
+    */
+   public static class BatchResult {
+
+      private final boolean mScripted;
+      private final Map<String, VixException> mFailures =
+            new LinkedHashMap<String, VixException>();
+      private int mCompleted;
+
+      BatchResult(boolean scripted) {
+         mScripted = scripted;
+      }
+
+      /**
+       * Check whether the batch was carried out by a guest script.
+       *
+       * @return <code>true</code> for a guest script; <code>false</code> for
+       *         one job per path.
+       */
+      public boolean isScripted() {
+         return mScripted;
+      }
+
+      /**
+       * Get the number of paths handled successfully.
+       *
+       * @return Number of successful paths.
+       */
+      public int getCompleted() {
+         return mCompleted;
+      }
+
+      /**
+       * Get the paths which failed.
+       *
+       * @return Map of paths to the errors handling them.
+       */
+      public Map<String, VixException> getFailures() {
+         return mFailures;
+      }
+
+      /**
+       * Throws the first failure, if any.
+       *
+       * @throws VixException
+       *            If any path failed.
+       */
+      public void checkErrors() throws VixException {
+         if (!mFailures.isEmpty()) {
+            throw mFailures.values().iterator().next();
+         }
+      }
+   }
+}
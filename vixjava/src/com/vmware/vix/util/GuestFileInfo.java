@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.util;
+
+import com.vmware.vix.VixConstants;
+
+/**
+ * Attributes of a file or directory in a guest, as returned by a directory
+ * listing.
+ */
+public class GuestFileInfo {
+
+   private final String mPath;
+   private final long mSize;
+   private final int mFlags;
+   private final long mModTime;
+
+   /**
+    * Constructor.
+    *
+    * @param path
+    *           Absolute path of the file in the guest.
+    * @param size
+    *           File size in bytes.
+    * @param flags
+    *           File attribute flags.
+    * @param modTime
+    *           Modification time in seconds since the epoch.
+    */
+   public GuestFileInfo(String path, long size, int flags, long modTime) {
+      mPath = path;
+      mSize = size;
+      mFlags = flags;
+      mModTime = modTime;
+   }
+
+   /**
+    * Get the absolute path of the file in the guest.
+    *
+    * @return Path
+    */
+   public String getPath() {
+      return mPath;
+   }
+
+   /**
+    * Get the name of the file without its directory.
+    *
+    * @return File name
+    */
+   public String getName() {
+      String separator = GuestFileUtil.getPathSeparator(mPath);
+      return mPath.substring(mPath.lastIndexOf(separator) + 1);
+   }
+
+   /**
+    * Get the size of the file.
+    *
+    * @return File size in bytes.
+    */
+   public long getSize() {
+      return mSize;
+   }
+
+   /**
+    * Get the file attribute flags.
+    *
+    * @return Combination of VixConstants.VIX_FILE_ATTRIBUTES_* flags.
+    */
+   public int getFlags() {
+      return mFlags;
+   }
+
+   /**
+    * Get the modification time of the file.
+    *
+    * @return Seconds since the epoch.
+    */
+   public long getModTime() {
+      return mModTime;
+   }
+
+   /**
+    * Tests whether this is a directory (or a symbolic link to one).
+    *
+    * @return <code>true</code> if this is a directory.
+    */
+   public boolean isDirectory() {
+      return (mFlags & VixConstants.VIX_FILE_ATTRIBUTES_DIRECTORY) != 0;
+   }
+
+   /**
+    * Tests whether this is a symbolic link.
+    *
+    * @return <code>true</code> if this is a symbolic link.
+    */
+   public boolean isSymbolicLink() {
+      return (mFlags & VixConstants.VIX_FILE_ATTRIBUTES_SYMLINK) != 0;
+   }
+
+   @Override
+   public String toString() {
+      return mPath;
+   }
+}
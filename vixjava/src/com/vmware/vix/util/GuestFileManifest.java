@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Content hashes of files in one guest, kept on the client. Each entry also
+ * records the size and modification time the guest reported for the file
+ * when the hash was taken, so a later directory listing tells whether the
+ * hash still applies without reading the file again.
+ * <p/>
+ * Instances are not thread safe.
+ */
+public class GuestFileManifest {
+
+   private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+
+   /**
+    * Loads a manifest saved with {@link #save(File)}.
+    *
+    * @param file
+    *           Manifest file on the client.
+    * @return The manifest; empty if the file does not exist.
+    * @throws IOException
+    */
+   public static GuestFileManifest load(File file) throws IOException {
+      GuestFileManifest manifest = new GuestFileManifest();
+      if (!file.exists()) {
+         return manifest;
+      }
+      BufferedReader reader =
+            new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                                                     "UTF-8"));
+      try {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            String[] fields = line.split("\t", 4);
+            if (fields.length == 4) {
+               manifest.put(fields[3],
+                            fields[0],
+                            Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2]));
+            }
+         }
+      } finally {
+         reader.close();
+      }
+      return manifest;
+   }
+
+   /**
+    * Writes the manifest to a file, replacing it atomically where the
+    * platform allows.
+    *
+    * @param file
+    *           Manifest file on the client.
+    * @throws IOException
+    */
+   public void save(File file) throws IOException {
+      File parent = file.getAbsoluteFile().getParentFile();
+      parent.mkdirs();
+      File temp = File.createTempFile(file.getName(), ".tmp", parent);
+      Writer writer =
+            new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+      try {
+         for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+            Entry value = entry.getValue();
+            writer.write(value.mHash + "\t" + value.mSize + "\t"
+                  + value.mModTime + "\t" + entry.getKey() + "\n");
+         }
+      } finally {
+         writer.close();
+      }
+      if (!temp.renameTo(file)) {
+         file.delete();
+         if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to write " + file);
+         }
+      }
+   }
+
+   /**
+    * Records the hash of a guest file.
+    *
+    * @param guestPath
+    *           Absolute path of the file in the guest.
+    * @param hash
+    *           Hex encoded content hash.
+    * @param size
+    *           Size reported by the guest.
+    * @param modTime
+    *           Modification time reported by the guest, in seconds since the
+    *           epoch.
+    */
+   public void put(String guestPath, String hash, long size, long modTime) {
+      mEntries.put(guestPath, new Entry(hash, size, modTime));
+   }
+
+   /**
+    * Forgets a guest file.
+    *
+    * @param guestPath
+    *           Absolute path of the file in the guest.
+    */
+   public void remove(String guestPath) {
+      mEntries.remove(guestPath);
+   }
+
+   /**
+    * Gets the recorded hash of a guest file if it still applies.
+    *
+    * @param info
+    *           Current attributes of the file from a guest listing.
+    * @return Hex encoded hash; <code>null</code> if the file is unknown or
+    *         has changed since it was hashed.
+    */
+   public String getHash(GuestFileInfo info) {
+      Entry entry = mEntries.get(info.getPath());
+      if (entry == null || entry.mSize != info.getSize()
+            || entry.mModTime != info.getModTime()) {
+         return null;
+      }
+      return entry.mHash;
+   }
+
+   /**
+    * Get the number of files in the manifest.
+    *
+    * @return Number of files.
+    */
+   public int size() {
+      return mEntries.size();
+   }
+
+   private static class Entry {
+
+      private final String mHash;
+      private final long mSize;
+      private final long mModTime;
+
+      Entry(String hash, long size, long modTime) {
+         mHash = hash;
+         mSize = size;
+         mModTime = modTime;
+      }
+   }
+}
@@ -0,0 +1,215 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.vmware.vix.VixConstants;
+import com.vmware.vix.VixException;
+import com.vmware.vix.VixVmHandle;
+
+/**
+ * Searches guest directories for files by name pattern, in the guest.
+ * <p/>
+ * Walking a directory tree from the client with GuestFileUtil.listFiles()
+ * takes one VIX call per directory. A search instead runs
+ * <code>find</code> or PowerShell <code>Get-ChildItem</code> in the guest,
+ * writing one line per match to a guest temp file which is fetched with a
+ * single copy. The matches are then read from the fetched file one at a
+ * time, so large result sets are not held in memory:
+ *
+ * <pre>
+ * GuestFileSearch.Results logs =
+ *       GuestFileSearch.search(vm, &quot;/var/log&quot;, &quot;*.log&quot;, true);
+ * try {
+ *    while (logs.hasNext()) {
+ *       GuestFileInfo log = logs.next();
+ *       ...
+ *    }
+ * } finally {
+ *    logs.close();
+ * }
+ * </pre>
+ *
+ * POSIX guests need GNU find. Directories which cannot be read are skipped.
+ * Paths containing line breaks are not supported.
+ */
+public class GuestFileSearch {
+
+   /**
+    * Searches a guest directory. You must call VixVM_LoginInGuest() before
+    * calling this method.
+    *
+    * @param vmHandle
+    *           Handle for the VM.
+    * @param dirPath
+    *           Absolute path of the directory to search.
+    * @param pattern
+    *           Shell wildcard pattern matched against file and directory
+    *           names, such as <code>*.log</code>.
+    * @param recurse
+    *           Whether to search subdirectories as well.
+    * @return Matching entries, which must be closed.
+    * @throws VixException
+    *            If the directory does not exist or the search failed.
+    */
+   public static Results search(
+         VixVmHandle vmHandle,
+         String dirPath,
+         String pattern,
+         boolean recurse) throws VixException {
+      GuestShell shell = GuestShell.forPath(dirPath);
+      String guestOutput = vmHandle.createTempFileInGuest(0);
+      try {
+         GuestScript.run(vmHandle,
+                         shell,
+                         getScript(shell, dirPath, pattern, recurse, guestOutput),
+                         "search " + dirPath);
+         GuestFetchedFile fetched = GuestFetchedFile.fetch(vmHandle, guestOutput);
+         try {
+            return new Results(fetched);
+         } catch (IOException e) {
+            try {
+               fetched.close();
+            } catch (IOException ignored) {
+            }
+            throw e;
+         }
+      } catch (IOException e) {
+         throw new VixException("Unable to read results of searching " + dirPath, e);
+      } finally {
+         GuestScript.deleteQuietly(vmHandle, guestOutput);
+      }
+   }
+
+   /**
+    * Builds the search script. Each match is written as a line of type (f, d
+    * or l), size, modification time in seconds and path, separated by tabs.
+    */
+   private static String getScript(
+         GuestShell shell,
+         String dirPath,
+         String pattern,
+         boolean recurse,
+         String outputPath) {
+      if (shell == GuestShell.POSIX) {
+         String dir = shell.quote(dirPath);
+         return "find " + dir + " -mindepth 1" + (recurse ? "" : " -maxdepth 1")
+               + " -name " + shell.quote(pattern)
+               + " -printf '%y\\t%s\\t%T@\\t%p\\n' > " + shell.quote(outputPath)
+               + " 2>/dev/null\n" + "test -d " + dir + "\n";
+      }
+      String dir = GuestShell.quotePowerShell(dirPath);
+      return GuestShell.powerShell("if (-not (Test-Path -LiteralPath " + dir
+            + " -PathType Container)) { exit 1 }; "
+            + "$epoch = New-Object DateTime 1970, 1, 1, 0, 0, 0, 'Utc'; "
+            + "$lines = Get-ChildItem -LiteralPath " + dir + " -Filter "
+            + GuestShell.quotePowerShell(pattern) + (recurse ? " -Recurse" : "")
+            + " -Force -ErrorAction SilentlyContinue | ForEach-Object { "
+            + "$type = 'f'; $size = 0; "
+            + "if ($_.Attributes -band [IO.FileAttributes]::ReparsePoint) { $type = 'l' } "
+            + "elseif ($_.PSIsContainer) { $type = 'd' } else { $size = $_.Length }; "
+            + "$time = [long](($_.LastWriteTimeUtc - $epoch).TotalSeconds); "
+            + "@($type, $size, $time, $_.FullName) -join [char]9 }; "
+            + "[IO.File]::WriteAllLines(" + GuestShell.quotePowerShell(outputPath)
+            + ", [string[]]@($lines))") + "\r\n";
+   }
+
+   /**
+    * Entries found by a search, read from the fetched result file as they are
+    * requested. Closing deletes the fetched file.
+    */
+   public static class Results implements Iterator<GuestFileInfo>, Closeable {
+
+      private final GuestFetchedFile mFile;
+      private final GuestFetchedFile.LineIterator mLines;
+      private GuestFileInfo mNext;
+
+      Results(GuestFetchedFile file) throws IOException {
+         mFile = file;
+         mLines = file.lines("UTF-8");
+      }
+
+      public boolean hasNext() {
+         while (mNext == null && mLines.hasNext()) {
+            mNext = parse(mLines.next());
+         }
+         return mNext != null;
+      }
+
+      public GuestFileInfo next() {
+         if (!hasNext()) {
+            throw new NoSuchElementException();
+         }
+         GuestFileInfo next = mNext;
+         mNext = null;
+         return next;
+      }
+
+      public void remove() {
+         throw new UnsupportedOperationException();
+      }
+
+      public void close() throws IOException {
+         mFile.close();
+      }
+
+      /**
+       * Parses a result line; returns null for lines which do not parse.
+       */
+      private static GuestFileInfo parse(String line) {
+         String[] fields = line.split("\t", 4);
+         if (fields.length < 4 || fields[0].length() != 1) {
+            return null;
+         }
+         int flags = 0;
+         switch (fields[0].charAt(0)) {
+         case 'd':
+            flags = VixConstants.VIX_FILE_ATTRIBUTES_DIRECTORY;
+            break;
+         case 'l':
+            flags = VixConstants.VIX_FILE_ATTRIBUTES_SYMLINK;
+            break;
+         }
+         try {
+            long size = Long.parseLong(fields[1]);
+            String time = fields[2];
+            int dot = time.indexOf('.');
+            long modTime = Long.parseLong(dot < 0 ? time : time.substring(0, dot));
+            return new GuestFileInfo(fields[3], size, flags, modTime);
+         } catch (NumberFormatException e) {
+            return null;
+         }
+      }
+   }
+}
@@ -0,0 +1,639 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vmware.vix.VixError;
+import com.vmware.vix.VixErrorCategory;
+import com.vmware.vix.VixException;
+import com.vmware.vix.VixHandle;
+import com.vmware.vix.VixJobFuture;
+import com.vmware.vix.VixLibrary;
+import com.vmware.vix.VixVmHandle;
+import com.vmware.vix.resilience.CircuitBreaker;
+import com.vmware.vix.resilience.CircuitOpenException;
+import com.vmware.vix.resilience.RetryPolicy;
+
+/**
+ * Copies many files between the client and guests with bounded parallelism.
+ * <p/>
+ * Copies are submitted as asynchronous VIX jobs instead of one blocking call
+ * per file. The number of outstanding jobs is limited per VM and per host;
+ * the limits are shared by every thread using the same instance, so one
+ * instance should be used for all transfers against a set of hosts. Copies
+ * failing with a transient error are retried after the backoff of a
+ * RetryPolicy, unless the CircuitBreaker of the host has opened, and
+ * throughput is tracked for each call as well as for the lifetime of the
+ * instance.
+ */
+public class GuestFileTransfer {
+
+   public static final int DEFAULT_MAX_JOBS_PER_HOST = 16;
+   public static final int DEFAULT_MAX_JOBS_PER_VM = 4;
+   public static final int DEFAULT_MAX_RETRIES = 2;
+
+   private final VixLibrary mVix = VixLibrary.INSTANCE;
+   private final int mMaxJobsPerHost;
+   private final int mMaxJobsPerVm;
+   private final int mMaxRetries;
+   private volatile RetryPolicy mRetryPolicy = RetryPolicy.getDefault();
+   private final Map<String, Slots> mHostSlots = new HashMap<String, Slots>();
+   private final Map<String, Slots> mVmSlots = new HashMap<String, Slots>();
+   private final AtomicLong mTotalFiles = new AtomicLong();
+   private final AtomicLong mTotalBytes = new AtomicLong();
+   private final AtomicLong mTotalNanos = new AtomicLong();
+
+   /**
+    * Constructor using the default limits.
+    */
+   public GuestFileTransfer() {
+      this(DEFAULT_MAX_JOBS_PER_HOST,
+           DEFAULT_MAX_JOBS_PER_VM,
+           DEFAULT_MAX_RETRIES);
+   }
+
+   /**
+    * Constructor.
+    *
+    * @param maxJobsPerHost
+    *           Maximum number of copy jobs outstanding against one host.
+    * @param maxJobsPerVm
+    *           Maximum number of copy jobs outstanding against one VM.
+    * @param maxRetries
+    *           Number of times a copy failing with a transient error is
+    *           retried before giving up on the file.
+    */
+   public GuestFileTransfer(int maxJobsPerHost, int maxJobsPerVm, int maxRetries) {
+      if (maxJobsPerHost < 1 || maxJobsPerVm < 1 || maxRetries < 0) {
+         throw new IllegalArgumentException("Invalid transfer limits");
+      }
+      mMaxJobsPerHost = maxJobsPerHost;
+      mMaxJobsPerVm = maxJobsPerVm;
+      mMaxRetries = maxRetries;
+   }
+
+   /**
+    * Copies files from the client into the guest. Guest directories which the
+    * files are copied into are created first, once each. You must call
+    * VixVM_LoginInGuest() before calling this method.
+    * <p/>
+    * Failing files do not stop the transfer; they are reported in the
+    * returned result.
+    *
+    * @param vmHandle
+    *           Handle for the VM to copy into.
+    * @param files
+    *           Map of absolute client paths to absolute guest destination
+    *           paths.
+    * @return Statistics and failures of this transfer.
+    * @throws VixException
+    *            If a guest directory could not be created.
+    */
+   public TransferResult copyFromHostToGuest(
+         VixVmHandle vmHandle,
+         Map<String, String> files) throws VixException {
+      long start = System.nanoTime();
+      TransferResult result = new TransferResult();
+
+      LinkedList<Job> pending = new LinkedList<Job>();
+      for (String dirPath : getDirectoriesToCreate(files.values())) {
+         pending.add(submit(new Job(vmHandle, null, dirPath, true)));
+      }
+      runJobs(pending, result);
+      result.checkErrors();
+
+      for (Map.Entry<String, String> file : files.entrySet()) {
+         pending.add(submit(new Job(vmHandle, file.getKey(), file.getValue(), true)));
+      }
+      runJobs(pending, result);
+
+      finish(result, start);
+      return result;
+   }
+
+   /**
+    * Copies files from the guest to the client. Missing client directories
+    * are created. You must call VixVM_LoginInGuest() before calling this
+    * method.
+    * <p/>
+    * Failing files do not stop the transfer; they are reported in the
+    * returned result.
+    *
+    * @param vmHandle
+    *           Handle for the VM to copy from.
+    * @param files
+    *           Map of absolute guest paths to absolute client destination
+    *           paths.
+    * @return Statistics and failures of this transfer.
+    * @throws VixException
+    */
+   public TransferResult copyFromGuestToHost(
+         VixVmHandle vmHandle,
+         Map<String, String> files) throws VixException {
+      long start = System.nanoTime();
+      TransferResult result = new TransferResult();
+
+      LinkedList<Job> pending = new LinkedList<Job>();
+      for (Map.Entry<String, String> file : files.entrySet()) {
+         File parent = new File(file.getValue()).getParentFile();
+         if (parent != null) {
+            parent.mkdirs();
+         }
+         pending.add(submit(new Job(vmHandle, file.getValue(), file.getKey(), false)));
+      }
+      runJobs(pending, result);
+
+      finish(result, start);
+      return result;
+   }
+
+   /**
+    * Get the number of files copied by this instance.
+    *
+    * @return Number of files.
+    */
+   public long getTotalFiles() {
+      return mTotalFiles.get();
+   }
+
+   /**
+    * Get the number of bytes copied by this instance.
+    *
+    * @return Number of bytes.
+    */
+   public long getTotalBytes() {
+      return mTotalBytes.get();
+   }
+
+   /**
+    * Get the average throughput of all transfers made by this instance.
+    *
+    * @return Bytes per second.
+    */
+   public double getBytesPerSecond() {
+      return perSecond(mTotalBytes.get(), mTotalNanos.get());
+   }
+
+   /**
+    * Get the average file rate of all transfers made by this instance.
+    *
+    * @return Files per second.
+    */
+   public double getFilesPerSecond() {
+      return perSecond(mTotalFiles.get(), mTotalNanos.get());
+   }
+
+   /**
+    * Sets the policy whose backoff is waited before resubmitting a failed
+    * copy. The number of retries is set by the constructor.
+    *
+    * @param retryPolicy
+    *           Policy; {@link RetryPolicy#getDefault()} unless set.
+    */
+   public void setRetryPolicy(RetryPolicy retryPolicy) {
+      mRetryPolicy = retryPolicy;
+   }
+
+   /**
+    * Determines whether a failed copy should be attempted again.
+    *
+    * @param error
+    *           Error the copy failed with.
+    * @return <code>true</code> if the error is transient.
+    */
+   protected boolean isTransient(VixError error) {
+      return VixErrorCategory.of(error).isRetryable();
+   }
+
+   /**
+    * Waits for every pending job, resubmitting jobs which failed with a
+    * transient error. The list is empty afterwards.
+    */
+   private void runJobs(LinkedList<Job> pending, TransferResult result)
+         throws VixException {
+      while (!pending.isEmpty()) {
+         Job job = pending.removeFirst();
+         try {
+            job.mFuture.getResult();
+            if (job.mHostPath != null) {
+               result.addFile(new File(job.mHostPath).length());
+            }
+         } catch (VixException e) {
+            if (job.mHostPath == null && isAlreadyExists(e.getError())) {
+               continue;
+            } else if (job.mAttempt <= mMaxRetries && isTransient(e.getError())) {
+               CircuitOpenException open = checkHost(job, e);
+               if (open != null) {
+                  result.addFailure(job.mGuestPath, open);
+                  continue;
+               }
+               sleep(mRetryPolicy.getDelayMillis(job.mAttempt), job);
+               result.mRetries++;
+               job.mAttempt++;
+               pending.addLast(submit(job));
+            } else {
+               result.addFailure(job.mGuestPath, e);
+            }
+         }
+      }
+   }
+
+   /**
+    * After a connection error, checks whether the circuit breaker of the
+    * job's host has opened, in which case the job is not resubmitted.
+    *
+    * @return Exception to fail the job with; <code>null</code> to retry.
+    */
+   private static CircuitOpenException checkHost(Job job, VixException e) {
+      String host = getHostKey(job.mVmHandle);
+      if (e.getCategory() != VixErrorCategory.CONNECTION || host.length() == 0) {
+         return null;
+      }
+      CircuitBreaker breaker = CircuitBreaker.forHost(host);
+      if (breaker.getCurrentState() != CircuitBreaker.State.OPEN) {
+         return null;
+      }
+      CircuitOpenException open =
+            new CircuitOpenException(host, breaker.getRemainingCoolDownMillis());
+      open.initCause(e);
+      return open;
+   }
+
+   private static void sleep(long millis, Job job) throws VixException {
+      try {
+         Thread.sleep(millis);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new VixException("Interrupted while waiting to retry "
+               + job.mGuestPath, e);
+      }
+   }
+
+   /**
+    * Starts the job once a slot is free on both its VM and its host. The slots
+    * are given back when the job completes, or at once if it could not be
+    * submitted.
+    */
+   private Job submit(Job job) throws VixException {
+      final String vmKey = job.mVmHandle.getVmxPath();
+      final String hostKey = getHostKey(job.mVmHandle);
+      final Slots vmSlots = acquire(mVmSlots, vmKey, mMaxJobsPerVm, job);
+      final Slots hostSlots;
+      try {
+         hostSlots = acquire(mHostSlots, hostKey, mMaxJobsPerHost, job);
+      } catch (VixException e) {
+         release(mVmSlots, vmKey, vmSlots);
+         throw e;
+      }
+
+      job.mFuture = new VixJobFuture<Void>() {
+         @Override
+         protected void done() {
+            release(mHostSlots, hostKey, hostSlots);
+            release(mVmSlots, vmKey, vmSlots);
+         }
+      };
+      try {
+         if (job.mHostPath == null) {
+            mVix.VixVM_CreateDirectoryInGuest(job.mVmHandle,
+                                              job.mGuestPath,
+                                              VixHandle.VIX_INVALID_HANDLE,
+                                              job.mFuture,
+                                              null);
+         } else if (job.mToGuest) {
+            mVix.VixVM_CopyFileFromHostToGuest(job.mVmHandle,
+                                               job.mHostPath,
+                                               job.mGuestPath,
+                                               0,
+                                               VixHandle.VIX_INVALID_HANDLE,
+                                               job.mFuture,
+                                               null);
+         } else {
+            mVix.VixVM_CopyFileFromGuestToHost(job.mVmHandle,
+                                               job.mGuestPath,
+                                               job.mHostPath,
+                                               0,
+                                               VixHandle.VIX_INVALID_HANDLE,
+                                               job.mFuture,
+                                               null);
+         }
+      } catch (RuntimeException e) {
+         // Completing the future gives back the slots.
+         job.mFuture.fail(new VixException(e));
+      }
+      return job;
+   }
+
+   /**
+    * Records the elapsed time of a transfer and adds it to the totals.
+    */
+   void finish(TransferResult result, long startNanos) {
+      result.mElapsedNanos = System.nanoTime() - startNanos;
+      mTotalFiles.addAndGet(result.mFiles);
+      mTotalBytes.addAndGet(result.mBytes);
+      mTotalNanos.addAndGet(result.mElapsedNanos);
+   }
+
+   /**
+    * Takes a slot of a host or VM, creating its semaphore on first use.
+    */
+   private static Slots acquire(
+         Map<String, Slots> slotsByKey,
+         String key,
+         int max,
+         Job job) throws VixException {
+      Slots slots;
+      synchronized (slotsByKey) {
+         slots = slotsByKey.get(key);
+         if (slots == null) {
+            slots = new Slots(max);
+            slotsByKey.put(key, slots);
+         }
+         slots.mUsers++;
+      }
+      try {
+         slots.mPermits.acquire();
+      } catch (InterruptedException e) {
+         synchronized (slotsByKey) {
+            if (--slots.mUsers == 0) {
+               slotsByKey.remove(key);
+            }
+         }
+         Thread.currentThread().interrupt();
+         throw new VixException("Interrupted while waiting to copy "
+               + job.mGuestPath, e);
+      }
+      return slots;
+   }
+
+   /**
+    * Gives back a slot, forgetting the semaphore once no job uses or waits
+    * for it.
+    */
+   private static void release(
+         Map<String, Slots> slotsByKey,
+         String key,
+         Slots slots) {
+      slots.mPermits.release();
+      synchronized (slotsByKey) {
+         if (--slots.mUsers == 0) {
+            slotsByKey.remove(key);
+         }
+      }
+   }
+
+   /**
+    * Key identifying the host of a VM. VMs whose host is unknown share one
+    * key.
+    */
+   private static String getHostKey(VixVmHandle vmHandle) {
+      if (vmHandle.getHostHandle() == null
+            || vmHandle.getHostHandle().getHostName() == null) {
+         return "";
+      }
+      return vmHandle.getHostHandle().getHostName();
+   }
+
+   /**
+    * Gets the smallest set of guest directories which need to be created for
+    * the given files. Creating a directory also creates its parents, so
+    * directories that are the parent of another one in the set are dropped.
+    *
+    * @param guestPaths
+    *           Absolute guest file paths.
+    * @return Directories to create.
+    */
+   static Collection<String> getDirectoriesToCreate(Collection<String> guestPaths) {
+      TreeSet<String> dirs = new TreeSet<String>();
+      for (String guestPath : guestPaths) {
+         String parent = GuestFileUtil.getParentPath(guestPath);
+         if (parent != null) {
+            dirs.add(parent);
+         }
+      }
+
+      /*
+       * Paths below a directory sort right after it, so the ceiling of
+       * "dir/" is a child of dir if it has any.
+       */
+      ArrayList<String> leaves = new ArrayList<String>();
+      for (String dir : dirs) {
+         String separator = GuestFileUtil.getPathSeparator(dir);
+         String prefix = dir.endsWith(separator) ? dir : dir + separator;
+         String next = dirs.ceiling(prefix);
+         if (next == null || !next.startsWith(prefix)) {
+            leaves.add(dir);
+         }
+      }
+      return leaves;
+   }
+
+   private static boolean isAlreadyExists(VixError error) {
+      return VixError.VIX_E_FILE_ALREADY_EXISTS.equals(error)
+            || VixError.VIX_E_ALREADY_EXISTS.equals(error);
+   }
+
+   private static double perSecond(long count, long nanos) {
+      if (nanos <= 0) {
+         return 0;
+      }
+      return count / (nanos / 1000000000.0);
+   }
+
+   /**
+    * Job slots of a host or VM. The semaphore and the count of jobs holding
+    * or waiting for a slot are guarded by the map holding the slots; they are
+    * keyed by host name and VMX path, as VIX reuses handle values.
+    */
+   private static final class Slots {
+
+      private final Semaphore mPermits;
+      private int mUsers;
+
+      Slots(int max) {
+         mPermits = new Semaphore(max);
+      }
+   }
+
+   /**
+    * A single guest directory creation or file copy.
+    */
+   private static class Job {
+
+      private final VixVmHandle mVmHandle;
+      private final String mHostPath;
+      private final String mGuestPath;
+      private final boolean mToGuest;
+      private int mAttempt = 1;
+      private VixJobFuture<Void> mFuture;
+
+      /**
+       * Constructor.
+       *
+       * @param vmHandle
+       * @param hostPath
+       *           File to copy; <code>null</code> to create the guest path as
+       *           a directory.
+       * @param guestPath
+       * @param toGuest
+       *           <code>true</code> to copy from the client into the guest.
+       */
+      Job(VixVmHandle vmHandle,
+          String hostPath,
+          String guestPath,
+          boolean toGuest) {
+         mVmHandle = vmHandle;
+         mHostPath = hostPath;
+         mGuestPath = guestPath;
+         mToGuest = toGuest;
+      }
+   }
+
+   /**
+    * Outcome of one transfer.
+    */
+   public static class TransferResult {
+
+      private final Map<String, VixException> mFailures =
+            new LinkedHashMap<String, VixException>();
+      private long mFiles;
+      private long mBytes;
+      private int mRetries;
+      private long mElapsedNanos;
+
+      /**
+       * Records a file which was copied.
+       *
+       * @param bytes
+       *           Size of the file.
+       */
+      void addFile(long bytes) {
+         mFiles++;
+         mBytes += bytes;
+      }
+
+      /**
+       * Records a file which could not be copied.
+       *
+       * @param path
+       *           Path of the file.
+       * @param e
+       *           Error the copy failed with.
+       */
+      void addFailure(String path, VixException e) {
+         mFailures.put(path, e);
+      }
+
+      /**
+       * Get the number of files copied.
+       *
+       * @return Number of files.
+       */
+      public long getFiles() {
+         return mFiles;
+      }
+
+      /**
+       * Get the number of bytes copied.
+       *
+       * @return Number of bytes.
+       */
+      public long getBytes() {
+         return mBytes;
+      }
+
+      /**
+       * Get the number of copies which were retried.
+       *
+       * @return Number of retries.
+       */
+      public int getRetries() {
+         return mRetries;
+      }
+
+      /**
+       * Get the wall clock time of the transfer.
+       *
+       * @return Elapsed time in milliseconds.
+       */
+      public long getElapsedMillis() {
+         return mElapsedNanos / 1000000;
+      }
+
+      /**
+       * Get the throughput of the transfer.
+       *
+       * @return Bytes per second.
+       */
+      public double getBytesPerSecond() {
+         return perSecond(mBytes, mElapsedNanos);
+      }
+
+      /**
+       * Get the file rate of the transfer.
+       *
+       * @return Files per second.
+       */
+      public double getFilesPerSecond() {
+         return perSecond(mFiles, mElapsedNanos);
+      }
+
+      /**
+       * Get the files which could not be copied.
+       *
+       * @return Map of guest destination paths to the error for that file.
+       *         Empty if every file was copied.
+       */
+      public Map<String, VixException> getFailures() {
+         return mFailures;
+      }
+
+      /**
+       * Throws the error of the first file that failed, if any.
+       *
+       * @throws VixException
+       */
+      public void checkErrors() throws VixException {
+         if (!mFailures.isEmpty()) {
+            throw mFailures.values().iterator().next();
+         }
+      }
+   }
+}
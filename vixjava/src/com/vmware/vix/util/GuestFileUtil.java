@@ -29,8 +29,11 @@
  ******************************************************************************/
 package com.vmware.vix.util;
 
+import java.util.ArrayList;
+
 import com.sun.jna.ptr.IntByReference;
 import com.sun.jna.ptr.LongByReference;
+import com.sun.jna.ptr.PointerByReference;
 import com.vmware.vix.VixConstants;
 import com.vmware.vix.VixError;
 import com.vmware.vix.VixException;
@@ -191,4 +194,143 @@ public class GuestFileUtil {
             || fileFlags == SYMLINK_DIRECTORY || fileFlags == SYMLINK_FILE;
    }
 
+   /**
+    * Lists a directory in the guest along with the size, attribute flags and
+    * modification time of each entry. The attributes come back with the
+    * listing itself, so this takes a single VIX call per directory regardless
+    * of the number of files.
+    *
+    * @param vmHandle
+    *           Handle for the VM containing dirPath.
+    * @param dirPath
+    *           Absolute path of a directory in the guest (no variables).
+    * @param recurse
+    *           <code>true</code> if child directories should be listed as
+    *           well. Symbolic links to directories are not followed.
+    * @return Entries with absolute paths, directories included. Empty if the
+    *         directory has no files.
+    * @throws VixException
+    */
+   public static ArrayList<GuestFileInfo> listFiles(
+         VixVmHandle vmHandle,
+         String dirPath,
+         boolean recurse) throws VixException {
+      ArrayList<GuestFileInfo> files = new ArrayList<GuestFileInfo>();
+      listFiles(vmHandle, dirPath, recurse, files);
+      return files;
+   }
+
+   /**
+    * Appends the entries of one directory to files, recursing if needed.
+    */
+   private static void listFiles(
+         VixVmHandle vmHandle,
+         String dirPath,
+         boolean recurse,
+         ArrayList<GuestFileInfo> files) throws VixException {
+      String separator = getPathSeparator(dirPath);
+      String prefix = dirPath.endsWith(separator) ? dirPath : dirPath + separator;
+      ArrayList<GuestFileInfo> dirs = new ArrayList<GuestFileInfo>();
+
+      VixHandle jobHandle =
+            mVix.VixVM_ListDirectoryInGuest(vmHandle, dirPath, 0, null, null);
+      try {
+         VixUtils.waitForJob(jobHandle, false);
+         int numFiles =
+               mVix.VixJob_GetNumProperties(jobHandle,
+                                            VixPropertyID.VIX_PROPERTY_JOB_RESULT_ITEM_NAME);
+         for (int i = 0; i < numFiles; i++) {
+            PointerByReference nameRef = new PointerByReference();
+            LongByReference sizeRef = new LongByReference();
+            IntByReference flagsRef = new IntByReference();
+            LongByReference modTimeRef = new LongByReference();
+            VixError error =
+                  mVix.VixJob_GetNthProperties(jobHandle,
+                                               i,
+                                               VixPropertyID.VIX_PROPERTY_JOB_RESULT_ITEM_NAME,
+                                               nameRef,
+                                               VixPropertyID.VIX_PROPERTY_JOB_RESULT_FILE_SIZE,
+                                               sizeRef,
+                                               VixPropertyID.VIX_PROPERTY_JOB_RESULT_FILE_FLAGS,
+                                               flagsRef,
+                                               VixPropertyID.VIX_PROPERTY_JOB_RESULT_FILE_MOD_TIME,
+                                               modTimeRef,
+                                               VixPropertyID.VIX_PROPERTY_NONE);
+            VixUtils.checkError(error);
+            if (nameRef.getValue() == null) {
+               continue;
+            }
+            String name = nameRef.getValue().getString(0);
+            mVix.Vix_FreeBuffer(nameRef.getValue());
+            if (name.equals(".") || name.equals("..")) {
+               continue;
+            }
+
+            GuestFileInfo info =
+                  new GuestFileInfo(prefix + name,
+                                    sizeRef.getValue(),
+                                    flagsRef.getValue(),
+                                    modTimeRef.getValue());
+            files.add(info);
+            if (recurse && info.isDirectory() && !info.isSymbolicLink()) {
+               dirs.add(info);
+            }
+         }
+      } finally {
+         mVix.Vix_ReleaseHandle(jobHandle);
+      }
+
+      for (GuestFileInfo dir : dirs) {
+         listFiles(vmHandle, dir.getPath(), recurse, files);
+      }
+   }
+
+   /**
+    * Get the path separator used by a guest path. Paths with a drive letter or
+    * containing a backslash are treated as Windows paths.
+    *
+    * @param filePath
+    *           Path in the guest.
+    * @return Either a Windows or Linux path separator depending on the path.
+    */
+   public static String getPathSeparator(String filePath) {
+      String windowsSeparator = "\\";
+      String linuxSeparator = "/";
+
+      if (filePath.matches("^[a-zA-Z]:.*")) {
+         /*
+          * This is definitely a Windows path. Matches a Windows drive.
+          */
+         return windowsSeparator;
+      } else if (filePath.contains(windowsSeparator)) {
+         return windowsSeparator;
+      } else {
+         return linuxSeparator;
+      }
+   }
+
+   /**
+    * Get the parent directory of a guest path.
+    *
+    * @param filePath
+    *           Absolute path in the guest.
+    * @return Parent directory; <code>null</code> if the path has no parent.
+    */
+   public static String getParentPath(String filePath) {
+      String separator = getPathSeparator(filePath);
+      String path = filePath;
+      while (path.length() > 1 && path.endsWith(separator)) {
+         path = path.substring(0, path.length() - 1);
+      }
+      int index = path.lastIndexOf(separator);
+      if (index < 0) {
+         return null;
+      } else if (index == 0) {
+         return separator;
+      } else if (index == 2 && path.charAt(1) == ':') {
+         return path.substring(0, 3);
+      }
+      return path.substring(0, index);
+   }
+
 }
\ No newline at end of file
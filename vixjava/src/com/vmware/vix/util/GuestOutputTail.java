@@ -0,0 +1,391 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.jna.ptr.LongByReference;
+import com.vmware.vix.VixError;
+import com.vmware.vix.VixException;
+import com.vmware.vix.VixHandle;
+import com.vmware.vix.VixLibrary;
+import com.vmware.vix.VixPropertyID;
+import com.vmware.vix.VixRunProgramOptions;
+import com.vmware.vix.VixUtils;
+import com.vmware.vix.VixVmHandle;
+
+/**
+ * Follows the output of a long running guest program while it runs.
+ * <p/>
+ * The program is started with VIX_RUNPROGRAM_RETURN_IMMEDIATELY and its
+ * standard output and error are redirected to a guest temp file. Each poll
+ * checks whether the program is still in the guest process list and whether
+ * the output file has grown; new bytes past the last offset are cut into a
+ * second temp file by the guest shell and only those are fetched. Complete
+ * lines are passed to a consumer as they arrive. Once the program has gone,
+ * the remaining output is delivered, the consumer is told and the temp files
+ * are removed.
+ * <p/>
+ * The guest session must stay logged in while the program is followed.
+ */
+public class GuestOutputTail {
+
+   /**
+    * Receives the output of a followed program.
+    */
+   public interface Consumer {
+
+      /**
+       * Called for every line of output, in order.
+       *
+       * @param line
+       *           Line without its terminator.
+       */
+      void outputLine(String line);
+
+      /**
+       * Called once after the last line, when the program has exited.
+       */
+      void outputEnded();
+
+      /**
+       * Called when a scheduled poll fails. Polling carries on with the next
+       * period.
+       *
+       * @param e
+       *           Error of the poll.
+       */
+      void pollFailed(VixException e);
+   }
+
+   private static final VixLibrary mVix = VixLibrary.INSTANCE;
+
+   private final VixVmHandle mVmHandle;
+   private final GuestShell mShell;
+   private final Consumer mConsumer;
+   private final String mGuestOutput;
+   private final String mGuestChunk;
+   private final long mPid;
+   private long mStartTime = -1;
+   private long mOffset;
+   private final ByteArrayOutputStream mPartialLine = new ByteArrayOutputStream();
+   private boolean mEnded;
+   private ScheduledFuture<?> mSchedule;
+
+   private GuestOutputTail(
+         VixVmHandle vmHandle,
+         GuestShell shell,
+         Consumer consumer,
+         String guestOutput,
+         String guestChunk,
+         long pid) {
+      mVmHandle = vmHandle;
+      mShell = shell;
+      mConsumer = consumer;
+      mGuestOutput = guestOutput;
+      mGuestChunk = guestChunk;
+      mPid = pid;
+   }
+
+   /**
+    * Starts a program in the guest with its output redirected for following.
+    * The program is run through the guest shell, so on Windows guests the
+    * followed process is cmd.exe, which exits along with the program. You
+    * must call VixVM_LoginInGuest() before calling this method.
+    *
+    * @param vmHandle
+    *           Handle for the VM to run the program in.
+    * @param programName
+    *           Full path of the program in the guest.
+    * @param commandLineArgs
+    *           Arguments for the program, already quoted for the guest shell,
+    *           or <code>null</code>.
+    * @param consumer
+    *           Consumer for the output.
+    * @return Tail to poll, or to start polling on a schedule.
+    * @throws VixException
+    */
+   public static GuestOutputTail launch(
+         VixVmHandle vmHandle,
+         String programName,
+         String commandLineArgs,
+         Consumer consumer) throws VixException {
+      GuestShell shell = GuestShell.forPath(programName);
+      String guestOutput = vmHandle.createTempFileInGuest(0);
+      String guestChunk = null;
+      boolean launched = false;
+      try {
+         guestChunk = vmHandle.createTempFileInGuest(0);
+
+         StringBuilder script = new StringBuilder();
+         if (shell == GuestShell.POSIX) {
+            script.append("exec ");
+         }
+         script.append(shell.quote(programName));
+         if (commandLineArgs != null) {
+            script.append(' ').append(commandLineArgs);
+         }
+         script.append(" >").append(shell.quote(guestOutput)).append(" 2>&1");
+         script.append(shell.getLineSeparator());
+
+         VixHandle jobHandle =
+               mVix.VixVM_RunScriptInGuest(vmHandle,
+                                           shell.getInterpreter(),
+                                           script.toString(),
+                                           VixRunProgramOptions.VIX_RUNPROGRAM_RETURN_IMMEDIATELY,
+                                           VixHandle.VIX_INVALID_HANDLE,
+                                           null,
+                                           null);
+         LongByReference pid = new LongByReference();
+         VixError err =
+               mVix.VixJob_Wait(jobHandle,
+                                VixPropertyID.VIX_PROPERTY_JOB_RESULT_PROCESS_ID,
+                                pid,
+                                VixPropertyID.VIX_PROPERTY_NONE);
+         mVix.Vix_ReleaseHandle(jobHandle);
+         VixUtils.checkError(err);
+         launched = true;
+         return new GuestOutputTail(vmHandle,
+                                    shell,
+                                    consumer,
+                                    guestOutput,
+                                    guestChunk,
+                                    pid.getValue());
+      } finally {
+         if (!launched) {
+            GuestScript.deleteQuietly(vmHandle, guestOutput);
+            if (guestChunk != null) {
+               GuestScript.deleteQuietly(vmHandle, guestChunk);
+            }
+         }
+      }
+   }
+
+   /**
+    * Get the guest process id being followed.
+    *
+    * @return Guest pid.
+    */
+   public long getPid() {
+      return mPid;
+   }
+
+   /**
+    * Get the number of output bytes fetched so far.
+    *
+    * @return Offset into the guest output file.
+    */
+   public synchronized long getOffset() {
+      return mOffset;
+   }
+
+   /**
+    * Check whether the program has exited and all output was delivered.
+    *
+    * @return <code>true</code> once outputEnded() has been called.
+    */
+   public synchronized boolean isEnded() {
+      return mEnded;
+   }
+
+   /**
+    * Fetches new output and passes its complete lines to the consumer. The
+    * process list is checked before the output, so everything written before
+    * the program exited is delivered by the poll that finds it gone.
+    *
+    * @return <code>true</code> if the program is still running;
+    *         <code>false</code> once it has exited and the output has ended.
+    * @throws VixException
+    */
+   public synchronized boolean poll() throws VixException {
+      if (mEnded) {
+         return false;
+      }
+      boolean running = isRunning();
+      long size = GuestFileUtil.getFileSize(mVmHandle, mGuestOutput);
+      if (size > mOffset) {
+         fetch();
+      }
+      if (!running) {
+         if (mPartialLine.size() > 0) {
+            mConsumer.outputLine(decode(mPartialLine.toByteArray(), mPartialLine.size()));
+            mPartialLine.reset();
+         }
+         mEnded = true;
+         stop();
+         GuestScript.deleteQuietly(mVmHandle, mGuestOutput);
+         GuestScript.deleteQuietly(mVmHandle, mGuestChunk);
+         mConsumer.outputEnded();
+      }
+      return running;
+   }
+
+   /**
+    * Polls on a schedule until the output ends or stop() is called. Errors,
+    * including runtime exceptions, are reported to the consumer through
+    * pollFailed() and polling continues.
+    *
+    * @param executor
+    *           Executor running the polls.
+    * @param period
+    *           Time between polls.
+    * @param unit
+    *           Unit of period.
+    */
+   public synchronized void start(
+         ScheduledExecutorService executor,
+         long period,
+         TimeUnit unit) {
+      if (mSchedule != null) {
+         throw new IllegalStateException("Tail is already running");
+      }
+      mSchedule = executor.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            try {
+               poll();
+            } catch (VixException e) {
+               mConsumer.pollFailed(e);
+            } catch (RuntimeException e) {
+               // Thrown out of run(), it would end the schedule silently.
+               mConsumer.pollFailed(new VixException(e));
+            }
+         }
+      }, 0, period, unit);
+   }
+
+   /**
+    * Stops scheduled polling. The program keeps running and the temp files
+    * stay in the guest until a later poll finds it gone.
+    */
+   public synchronized void stop() {
+      if (mSchedule != null) {
+         mSchedule.cancel(false);
+         mSchedule = null;
+      }
+   }
+
+   /**
+    * Looks the program up in the process list. Its start time is recorded
+    * the first time, so a reused pid is not mistaken for the program.
+    */
+   private boolean isRunning() throws VixException {
+      ProcessInfo processes = ProcessInfo.list(mVmHandle);
+      int row = processes.indexOf(mPid);
+      if (row < 0) {
+         return false;
+      }
+      if (mStartTime < 0) {
+         mStartTime = processes.getStartTime(row);
+      }
+      return processes.getStartTime(row) == mStartTime;
+   }
+
+   /**
+    * Copies the bytes past the current offset into the chunk file in the
+    * guest, fetches it and delivers the complete lines.
+    */
+   private void fetch() throws VixException {
+      String script;
+      if (mShell == GuestShell.POSIX) {
+         script = "tail -c +" + (mOffset + 1) + " " + mShell.quote(mGuestOutput)
+               + " > " + mShell.quote(mGuestChunk) + "\n";
+      } else {
+         script = GuestShell.powerShell("$in = [IO.File]::Open("
+               + GuestShell.quotePowerShell(mGuestOutput)
+               + ", 'Open', 'Read', 'ReadWrite'); $out = [IO.File]::Create("
+               + GuestShell.quotePowerShell(mGuestChunk)
+               + "); [void]$in.Seek(" + mOffset
+               + ", 'Begin'); $in.CopyTo($out); $out.Close(); $in.Close()")
+               + "\r\n";
+      }
+      GuestScript.run(mVmHandle, mShell, script, "read program output");
+
+      File hostChunk = null;
+      try {
+         hostChunk = File.createTempFile("vix", ".tail");
+         mVmHandle.copyFileFromGuestToHost(mGuestChunk, hostChunk.getAbsolutePath());
+         InputStream in = new FileInputStream(hostChunk);
+         try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+               mOffset += read;
+               deliver(buffer, read);
+            }
+         } finally {
+            in.close();
+         }
+      } catch (IOException e) {
+         throw new VixException("Unable to read program output", e);
+      } finally {
+         if (hostChunk != null) {
+            hostChunk.delete();
+         }
+      }
+   }
+
+   /**
+    * Splits bytes into lines, keeping an incomplete last line for later.
+    * Lines are decoded whole so multi-byte characters are never split.
+    */
+   private void deliver(byte[] bytes, int length) {
+      int start = 0;
+      for (int i = 0; i < length; i++) {
+         if (bytes[i] != '\n') {
+            continue;
+         }
+         mPartialLine.write(bytes, start, i - start);
+         byte[] line = mPartialLine.toByteArray();
+         int end = line.length;
+         if (end > 0 && line[end - 1] == '\r') {
+            end--;
+         }
+         mConsumer.outputLine(decode(line, end));
+         mPartialLine.reset();
+         start = i + 1;
+      }
+      mPartialLine.write(bytes, start, length - start);
+   }
+
+   private static String decode(byte[] bytes, int length) {
+      try {
+         return new String(bytes, 0, length, "UTF-8");
+      } catch (IOException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+}
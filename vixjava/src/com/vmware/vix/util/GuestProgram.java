@@ -0,0 +1,306 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.util;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.LongByReference;
+import com.vmware.vix.GuestProgramResult;
+import com.vmware.vix.VixError;
+import com.vmware.vix.VixException;
+import com.vmware.vix.VixHandle;
+import com.vmware.vix.VixJobFuture;
+import com.vmware.vix.VixLibrary;
+import com.vmware.vix.VixPropertyID;
+import com.vmware.vix.VixRunProgramOptions;
+import com.vmware.vix.VixUtils;
+import com.vmware.vix.VixVmHandle;
+
+/**
+ * Contains static methods for running programs in a guest without blocking.
+ * <p/>
+ * The methods return as soon as the VIX job is submitted. The returned future
+ * completes from the VIX callback, so many programs can run across VMs
+ * without holding a thread for each. When output is captured, the program's
+ * output is redirected to guest temp files which are fetched, also
+ * asynchronously, once it exits; the temp files are removed afterwards.
+ */
+public class GuestProgram {
+
+   private static final VixLibrary mVix = VixLibrary.INSTANCE;
+
+   /**
+    * Starts a program in the guest. You must call VixVM_LoginInGuest() before
+    * calling this method.
+    *
+    * @param vmHandle
+    *           Handle for the VM to run the program in.
+    * @param programName
+    *           Full path of the program in the guest.
+    * @param commandLineArgs
+    *           Arguments for the program, or <code>null</code>.
+    * @param returnImmediately
+    *           Whether the future should complete as soon as the program
+    *           starts; exit code and elapsed time are then zero.
+    * @return Future for the pid, exit code and elapsed time of the program.
+    */
+   public static VixJobFuture<GuestProgramResult> start(
+         VixVmHandle vmHandle,
+         String programName,
+         String commandLineArgs,
+         boolean returnImmediately) {
+      RunFuture future = new RunFuture();
+      mVix.VixVM_RunProgramInGuest(vmHandle,
+                                   programName,
+                                   commandLineArgs,
+                                   returnImmediately ? VixRunProgramOptions.VIX_RUNPROGRAM_RETURN_IMMEDIATELY
+                                         : VixRunProgramOptions.NONE,
+                                   VixHandle.VIX_INVALID_HANDLE,
+                                   future,
+                                   null);
+      return future;
+   }
+
+   /**
+    * Starts a program in the guest, capturing its standard output and error.
+    * The program is run through the guest shell to redirect its output, so on
+    * Windows guests the pid is that of cmd.exe. You must call
+    * VixVM_LoginInGuest() before calling this method.
+    *
+    * @param vmHandle
+    *           Handle for the VM to run the program in.
+    * @param programName
+    *           Full path of the program in the guest.
+    * @param commandLineArgs
+    *           Arguments for the program, already quoted for the guest shell,
+    *           or <code>null</code>.
+    * @return Future for the result of the program, including its output
+    *         decoded as UTF-8.
+    * @throws VixException
+    *            If the temp files for the output could not be created.
+    */
+   public static VixJobFuture<GuestProgramResult> startCapturingOutput(
+         VixVmHandle vmHandle,
+         String programName,
+         String commandLineArgs) throws VixException {
+      GuestShell shell = GuestShell.forPath(programName);
+      Capture capture = new Capture(vmHandle);
+      try {
+         capture.mGuestStdout = vmHandle.createTempFileInGuest(0);
+         capture.mGuestStderr = vmHandle.createTempFileInGuest(0);
+         capture.mHostStdout = File.createTempFile("vix", ".out");
+         capture.mHostStderr = File.createTempFile("vix", ".err");
+      } catch (IOException e) {
+         VixException failure =
+               new VixException("Unable to create output files", e);
+         capture.fail(failure);
+         throw failure;
+      } catch (VixException e) {
+         capture.fail(e);
+         throw e;
+      }
+
+      StringBuilder script = new StringBuilder();
+      if (shell == GuestShell.POSIX) {
+         script.append("exec ");
+      }
+      script.append(shell.quote(programName));
+      if (commandLineArgs != null) {
+         script.append(' ').append(commandLineArgs);
+      }
+      script.append(" >").append(shell.quote(capture.mGuestStdout));
+      script.append(" 2>").append(shell.quote(capture.mGuestStderr));
+      script.append(shell.getLineSeparator());
+
+      mVix.VixVM_RunScriptInGuest(vmHandle,
+                                  shell.getInterpreter(),
+                                  script.toString(),
+                                  VixRunProgramOptions.NONE,
+                                  VixHandle.VIX_INVALID_HANDLE,
+                                  capture.new Step(Capture.RUN),
+                                  null);
+      return capture;
+   }
+
+   /**
+    * Reads the program properties of a completed run job.
+    */
+   private static GuestProgramResult getProgramResult(VixHandle jobHandle)
+         throws VixException {
+      LongByReference pid = new LongByReference();
+      IntByReference exitCode = new IntByReference();
+      IntByReference elapsedTime = new IntByReference();
+      VixError err =
+            mVix.Vix_GetProperties(jobHandle,
+                                   VixPropertyID.VIX_PROPERTY_JOB_RESULT_PROCESS_ID,
+                                   pid,
+                                   VixPropertyID.VIX_PROPERTY_JOB_RESULT_GUEST_PROGRAM_EXIT_CODE,
+                                   exitCode,
+                                   VixPropertyID.VIX_PROPERTY_JOB_RESULT_GUEST_PROGRAM_ELAPSED_TIME,
+                                   elapsedTime,
+                                   VixPropertyID.VIX_PROPERTY_NONE);
+      VixUtils.checkError(err);
+      return new GuestProgramResult(pid.getValue(),
+                                    exitCode.getValue(),
+                                    elapsedTime.getValue());
+   }
+
+   /**
+    * Future for a program run without capturing output.
+    */
+   private static class RunFuture extends VixJobFuture<GuestProgramResult> {
+
+      @Override
+      protected GuestProgramResult getJobResult(VixHandle jobHandle)
+            throws VixException {
+         return getProgramResult(jobHandle);
+      }
+   }
+
+   /**
+    * Future for a program run with captured output. It is completed by the
+    * last of a chain of jobs: run the program, fetch standard output, fetch
+    * standard error. Each job is submitted from the callback of the previous
+    * one.
+    */
+   private static class Capture extends VixJobFuture<GuestProgramResult> {
+
+      static final int RUN = 0;
+      static final int FETCH_STDOUT = 1;
+      static final int FETCH_STDERR = 2;
+
+      private final VixVmHandle mVmHandle;
+      private String mGuestStdout;
+      private String mGuestStderr;
+      private File mHostStdout;
+      private File mHostStderr;
+      private GuestProgramResult mRun;
+
+      Capture(VixVmHandle vmHandle) {
+         mVmHandle = vmHandle;
+      }
+
+      /**
+       * Moves the chain on after a job has completed.
+       */
+      void next(int stage, VixError error, GuestProgramResult run) {
+         if (error == null || !error.equals(VixError.VIX_OK)) {
+            fail(error != null ? new VixException(error)
+                  : new VixException("Unable to run program in guest"));
+            return;
+         }
+         switch (stage) {
+         case RUN:
+            mRun = run;
+            mVix.VixVM_CopyFileFromGuestToHost(mVmHandle,
+                                               mGuestStdout,
+                                               mHostStdout.getAbsolutePath(),
+                                               0,
+                                               VixHandle.VIX_INVALID_HANDLE,
+                                               new Step(FETCH_STDOUT),
+                                               null);
+            break;
+         case FETCH_STDOUT:
+            mVix.VixVM_CopyFileFromGuestToHost(mVmHandle,
+                                               mGuestStderr,
+                                               mHostStderr.getAbsolutePath(),
+                                               0,
+                                               VixHandle.VIX_INVALID_HANDLE,
+                                               new Step(FETCH_STDERR),
+                                               null);
+            break;
+         default:
+            try {
+               set(new GuestProgramResult(mRun.getPid(),
+                                          mRun.getExitCode(),
+                                          mRun.getElapsedTime(),
+                                          GuestScript.readFile(mHostStdout),
+                                          GuestScript.readFile(mHostStderr)));
+            } catch (IOException e) {
+               fail(new VixException("Unable to read program output", e));
+            }
+         }
+      }
+
+      /**
+       * Removes the temp files once the chain is over. Guest files are
+       * deleted asynchronously and errors are ignored.
+       */
+      @Override
+      protected void done() {
+         if (mHostStdout != null) {
+            mHostStdout.delete();
+         }
+         if (mHostStderr != null) {
+            mHostStderr.delete();
+         }
+         deleteInGuest(mGuestStdout);
+         deleteInGuest(mGuestStderr);
+      }
+
+      private void deleteInGuest(String guestPath) {
+         if (guestPath != null) {
+            mVix.VixVM_DeleteFileInGuest(mVmHandle,
+                                         guestPath,
+                                         new VixJobFuture<Object>(),
+                                         null);
+         }
+      }
+
+      /**
+       * One job of the chain.
+       */
+      class Step extends VixJobFuture<GuestProgramResult> {
+
+         private final int mStage;
+         private GuestProgramResult mRunResult;
+
+         Step(int stage) {
+            mStage = stage;
+         }
+
+         @Override
+         protected GuestProgramResult getJobResult(VixHandle jobHandle)
+               throws VixException {
+            if (mStage == RUN) {
+               mRunResult = getProgramResult(jobHandle);
+            }
+            return mRunResult;
+         }
+
+         @Override
+         protected void done() {
+            next(mStage, getError(), mRunResult);
+         }
+      }
+   }
+}
@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.vmware.vix.VixException;
+import com.vmware.vix.VixVmHandle;
+
+/**
+ * Contains static utility methods for running generated scripts in a guest.
+ */
+public class GuestScript {
+
+   /**
+    * Runs a script in the guest and fails if it exits with a non-zero code.
+    * You must call VixVM_LoginInGuest() before calling this method.
+    *
+    * @param vmHandle
+    *           Handle for the VM to run the script in.
+    * @param shell
+    *           Shell of the guest.
+    * @param script
+    *           Text of the script.
+    * @param description
+    *           What the script does, for the exception message.
+    * @throws VixException
+    *            If the script could not be run or failed.
+    */
+   public static void run(
+         VixVmHandle vmHandle,
+         GuestShell shell,
+         String script,
+         String description) throws VixException {
+      int exitCode =
+            vmHandle.runScriptInGuest(shell.getInterpreter(), script, false);
+      if (exitCode != 0) {
+         throw new VixException("Unable to " + description + " (exit code "
+               + exitCode + ")");
+      }
+   }
+
+   /**
+    * Runs script commands in the guest and returns what they wrote to
+    * standard output. The output goes through a guest temp file which is
+    * fetched with one copy, so this takes four VIX calls regardless of the
+    * amount of output. You must call VixVM_LoginInGuest() before calling this
+    * method.
+    *
+    * @param vmHandle
+    *           Handle for the VM to run the commands in.
+    * @param shell
+    *           Shell of the guest.
+    * @param commands
+    *           Script commands, separated by the shell's line separator.
+    * @param description
+    *           What the commands do, for the exception message.
+    * @return Standard output of the commands, decoded as UTF-8.
+    * @throws VixException
+    *            If the commands could not be run or failed.
+    */
+   public static String runForOutput(
+         VixVmHandle vmHandle,
+         GuestShell shell,
+         String commands,
+         String description) throws VixException {
+      String guestOutput = vmHandle.createTempFileInGuest(0);
+      File hostOutput = null;
+      try {
+         run(vmHandle,
+             shell,
+             shell.redirectOutput(commands, guestOutput),
+             description);
+         hostOutput = File.createTempFile("vix", ".out");
+         vmHandle.copyFileFromGuestToHost(guestOutput, hostOutput.getAbsolutePath());
+         return readFile(hostOutput);
+      } catch (IOException e) {
+         throw new VixException("Unable to read output of " + description, e);
+      } finally {
+         if (hostOutput != null) {
+            hostOutput.delete();
+         }
+         deleteQuietly(vmHandle, guestOutput);
+      }
+   }
+
+   /**
+    * Deletes a guest file, ignoring any error. Used for cleaning up temp
+    * files where a failure must not hide the original error.
+    *
+    * @param vmHandle
+    *           Handle for the VM containing the file.
+    * @param guestPath
+    *           Absolute path of the file.
+    */
+   public static void deleteQuietly(VixVmHandle vmHandle, String guestPath) {
+      try {
+         vmHandle.deleteFileInGuest(guestPath);
+      } catch (VixException e) {
+         // Best effort only.
+      }
+   }
+
+   /**
+    * Reads a client file as UTF-8.
+    */
+   static String readFile(File file) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      InputStream in = new FileInputStream(file);
+      try {
+         byte[] buffer = new byte[8192];
+         int read;
+         while ((read = in.read(buffer)) > 0) {
+            bytes.write(buffer, 0, read);
+         }
+      } finally {
+         in.close();
+      }
+      return bytes.toString("UTF-8");
+   }
+}
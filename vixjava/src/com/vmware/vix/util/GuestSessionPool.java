@@ -0,0 +1,436 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.vmware.vix.VixError;
+import com.vmware.vix.VixException;
+import com.vmware.vix.VixHostHandle;
+import com.vmware.vix.VixVmHandle;
+
+/**
+ * Keeps guest login sessions open for reuse.
+ * <p/>
+ * Logging in and out around every few guest operations costs two VIX round
+ * trips plus authentication in the guest. The pool opens a VM handle per
+ * session, logs it in once and hands it out again to later tasks for the
+ * same VM and user, until the session has been idle for longer than the idle
+ * timeout. The number of sessions open at the same time in a guest is
+ * limited; once the limit is reached callers take over idle sessions of
+ * other users or wait for a session to be released.
+ * <p/>
+ * Tasks run through {@link #execute} are retried once on a freshly logged in
+ * session when they fail with an error showing the session was lost, such as
+ * VIX_E_GUEST_USER_PERMISSIONS after the guest dropped the login.
+ *
+ * <pre>
+ * String name = pool.execute(vmxPath, user, password,
+ *       new GuestSessionPool.Task&lt;String&gt;() {
+ *          public String run(VixVmHandle vm) throws VixException {
+ *             return vm.getEnvironmentVariable(&quot;COMPUTERNAME&quot;);
+ *          }
+ *       });
+ * </pre>
+ */
+public class GuestSessionPool {
+
+   public static final int DEFAULT_MAX_SESSIONS_PER_GUEST = 2;
+   public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
+   /*
+    * Errors after which logging in again is worth a try.
+    */
+   private static final Set<Integer> mSessionLostErrors = new HashSet<Integer>();
+   static {
+      VixError[] errors = {
+            VixError.VIX_E_GUEST_USER_PERMISSIONS,
+            VixError.VIX_E_INTERACTIVE_SESSION_NOT_PRESENT };
+      for (VixError error : errors) {
+         mSessionLostErrors.add(error.intValue());
+      }
+   }
+
+   /**
+    * Work to do in a guest with a logged in VM handle.
+    *
+    * @param <T>
+    *           Type of the result.
+    */
+   public interface Task<T> {
+
+      /**
+       * Runs the task. It may be run a second time if the session turns out
+       * to have been lost.
+       *
+       * @param vmHandle
+       *           Logged in handle for the VM.
+       * @return Result of the task.
+       * @throws VixException
+       */
+      T run(VixVmHandle vmHandle) throws VixException;
+   }
+
+   private final VixHostHandle mHostHandle;
+   private final int mMaxSessionsPerGuest;
+   private final long mIdleTimeoutMillis;
+   private final Map<String, int[]> mOpenSessions =
+         new HashMap<String, int[]>();
+   private final LinkedList<Session> mIdle = new LinkedList<Session>();
+   private boolean mClosed;
+
+   /**
+    * Constructor using the default limits.
+    *
+    * @param hostHandle
+    *           Connected host the VMs are opened on.
+    */
+   public GuestSessionPool(VixHostHandle hostHandle) {
+      this(hostHandle,
+           DEFAULT_MAX_SESSIONS_PER_GUEST,
+           DEFAULT_IDLE_TIMEOUT_MILLIS);
+   }
+
+   /**
+    * Constructor.
+    *
+    * @param hostHandle
+    *           Connected host the VMs are opened on.
+    * @param maxSessionsPerGuest
+    *           Maximum number of sessions, idle or in use, per guest.
+    * @param idleTimeoutMillis
+    *           Time after which an unused session is logged out.
+    */
+   public GuestSessionPool(
+         VixHostHandle hostHandle,
+         int maxSessionsPerGuest,
+         long idleTimeoutMillis) {
+      if (maxSessionsPerGuest < 1 || idleTimeoutMillis < 0) {
+         throw new IllegalArgumentException("Invalid session limits");
+      }
+      mHostHandle = hostHandle;
+      mMaxSessionsPerGuest = maxSessionsPerGuest;
+      mIdleTimeoutMillis = idleTimeoutMillis;
+   }
+
+   /**
+    * Runs a task with a pooled session, logging in again and retrying once if
+    * the session was lost.
+    *
+    * @param vmxPath
+    *           Path of the VM's .vmx file.
+    * @param username
+    *           User name inside the guest.
+    * @param password
+    *           Password of the user.
+    * @param task
+    *           Task to run.
+    * @return Result of the task.
+    * @throws VixException
+    */
+   public <T> T execute(
+         String vmxPath,
+         String username,
+         String password,
+         Task<T> task) throws VixException {
+      Session session = acquire(vmxPath, username, password);
+      boolean healthy = false;
+      try {
+         T result;
+         try {
+            result = task.run(session.mVmHandle);
+         } catch (VixException e) {
+            if (!isSessionLost(e.getError())) {
+               healthy = true;
+               throw e;
+            }
+            session.mVmHandle.loginInGuest(username, password, 0);
+            result = task.run(session.mVmHandle);
+         }
+         healthy = true;
+         return result;
+      } finally {
+         if (healthy) {
+            release(session);
+         } else {
+            invalidate(session);
+         }
+      }
+   }
+
+   /**
+    * Takes a session from the pool, logging in a new one if there is no idle
+    * session for the VM and user. When the guest has the maximum number of
+    * sessions open, an idle session of another user is logged out to make
+    * room, or the call blocks until a session is released. The session must
+    * be given back with release() or invalidate().
+    *
+    * @param vmxPath
+    *           Path of the VM's .vmx file.
+    * @param username
+    *           User name inside the guest.
+    * @param password
+    *           Password of the user.
+    * @return Logged in session.
+    * @throws VixException
+    */
+   public Session acquire(String vmxPath, String username, String password)
+         throws VixException {
+      evictIdle();
+      Session victim = null;
+      synchronized (this) {
+         while (true) {
+            if (mClosed) {
+               throw new IllegalStateException("Session pool is closed");
+            }
+            for (Iterator<Session> it = mIdle.iterator(); it.hasNext();) {
+               Session session = it.next();
+               if (session.matches(vmxPath, username, password)) {
+                  it.remove();
+                  return session;
+               }
+            }
+            int[] open = getOpenCount(vmxPath);
+            if (open[0] < mMaxSessionsPerGuest) {
+               open[0]++;
+               break;
+            }
+            /*
+             * Take over the slot of the least recently used idle session.
+             */
+            for (Iterator<Session> it = mIdle.descendingIterator(); it.hasNext();) {
+               Session session = it.next();
+               if (session.mVmxPath.equals(vmxPath)) {
+                  it.remove();
+                  victim = session;
+                  break;
+               }
+            }
+            if (victim != null) {
+               break;
+            }
+            try {
+               wait();
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               throw new VixException("Interrupted while waiting for a session on "
+                     + vmxPath, e);
+            }
+         }
+      }
+      if (victim != null) {
+         close(victim);
+      }
+
+      Session session = new Session(vmxPath, username, password);
+      try {
+         session.mVmHandle = mHostHandle.openVm(vmxPath);
+         session.mVmHandle.loginInGuest(username, password, 0);
+      } catch (VixException e) {
+         if (session.mVmHandle != null) {
+            session.mVmHandle.release();
+         }
+         closed(vmxPath);
+         throw e;
+      }
+      return session;
+   }
+
+   /**
+    * Gives a session back to the pool for reuse.
+    *
+    * @param session
+    *           Session obtained from acquire().
+    */
+   public void release(Session session) {
+      session.mLastUsed = System.currentTimeMillis();
+      synchronized (this) {
+         if (!mClosed) {
+            mIdle.addFirst(session);
+            notifyAll();
+            return;
+         }
+      }
+      invalidate(session);
+   }
+
+   /**
+    * Logs out and discards a session which should not be reused.
+    *
+    * @param session
+    *           Session obtained from acquire().
+    */
+   public void invalidate(Session session) {
+      close(session);
+      closed(session.mVmxPath);
+   }
+
+   /**
+    * Logs out the sessions which have been idle for longer than the idle
+    * timeout. Called on every acquire(); may also be called periodically.
+    */
+   public void evictIdle() {
+      long oldest = System.currentTimeMillis() - mIdleTimeoutMillis;
+      List<Session> expired = new ArrayList<Session>();
+      synchronized (this) {
+         for (Iterator<Session> it = mIdle.iterator(); it.hasNext();) {
+            Session session = it.next();
+            if (session.mLastUsed < oldest) {
+               it.remove();
+               expired.add(session);
+            }
+         }
+      }
+      for (Session session : expired) {
+         invalidate(session);
+      }
+   }
+
+   /**
+    * Logs out all idle sessions. Sessions still in use are logged out when
+    * they are released.
+    */
+   public void close() {
+      List<Session> idle;
+      synchronized (this) {
+         mClosed = true;
+         idle = new ArrayList<Session>(mIdle);
+         mIdle.clear();
+         notifyAll();
+      }
+      for (Session session : idle) {
+         invalidate(session);
+      }
+   }
+
+   /**
+    * Check whether an error shows the guest session was lost. Subclasses may
+    * override this to add errors.
+    *
+    * @param error
+    *           Error a task failed with.
+    * @return <code>true</code> if logging in again may help;
+    *         <code>false</code> otherwise.
+    */
+   protected boolean isSessionLost(VixError error) {
+      return error != null && mSessionLostErrors.contains(error.intValue());
+   }
+
+   /**
+    * Get the number of open sessions of a guest, idle or in use. Must be
+    * called with the pool locked.
+    */
+   private int[] getOpenCount(String vmxPath) {
+      int[] open = mOpenSessions.get(vmxPath);
+      if (open == null) {
+         open = new int[1];
+         mOpenSessions.put(vmxPath, open);
+      }
+      return open;
+   }
+
+   /**
+    * Frees the slot of a session which has been logged out.
+    */
+   private synchronized void closed(String vmxPath) {
+      getOpenCount(vmxPath)[0]--;
+      notifyAll();
+   }
+
+   /**
+    * Logs out and releases the handle of a session, ignoring errors.
+    */
+   private static void close(Session session) {
+      try {
+         session.mVmHandle.logoutFromGuest();
+      } catch (VixException e) {
+         // The session may be gone already.
+      }
+      session.mVmHandle.release();
+   }
+
+   /**
+    * A logged in guest session.
+    */
+   public static class Session {
+
+      private final String mVmxPath;
+      private final String mUsername;
+      private final String mPassword;
+      private VixVmHandle mVmHandle;
+      private long mLastUsed;
+
+      Session(String vmxPath, String username, String password) {
+         mVmxPath = vmxPath;
+         mUsername = username;
+         mPassword = password;
+      }
+
+      /**
+       * Get the VM handle of the session, which is logged in to the guest.
+       * It must not be logged out or released by the caller.
+       *
+       * @return Logged in handle for the VM.
+       */
+      public VixVmHandle getVmHandle() {
+         return mVmHandle;
+      }
+
+      /**
+       * Get the path of the VM's .vmx file.
+       *
+       * @return VMX path.
+       */
+      public String getVmxPath() {
+         return mVmxPath;
+      }
+
+      /**
+       * Get the user the session is logged in as.
+       *
+       * @return User name inside the guest.
+       */
+      public String getUsername() {
+         return mUsername;
+      }
+
+      boolean matches(String vmxPath, String username, String password) {
+         return mVmxPath.equals(vmxPath) && mUsername.equals(username)
+               && (mPassword == null ? password == null : mPassword.equals(password));
+      }
+   }
+}
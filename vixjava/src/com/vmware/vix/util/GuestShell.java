@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.util;
+
+/**
+ * Describes the command interpreter of a guest, so that scripts run with
+ * VixVmHandle.runScriptInGuest() can be generated for either Windows or POSIX
+ * guests.
+ */
+public enum GuestShell {
+
+   /**
+    * Bourne shell on Linux and other POSIX guests.
+    */
+   POSIX {
+      @Override
+      public String getInterpreter() {
+         return "/bin/sh";
+      }
+
+      @Override
+      public String getSeparator() {
+         return "/";
+      }
+
+      @Override
+      public String quote(String arg) {
+         return "'" + arg.replace("'", "'\\''") + "'";
+      }
+
+      @Override
+      public String getLineSeparator() {
+         return "\n";
+      }
+
+      @Override
+      public String redirectOutput(String commands, String outputPath) {
+         return "exec > " + quote(outputPath) + "\n" + commands;
+      }
+   },
+
+   /**
+    * cmd.exe on Windows guests. PowerShell is invoked from cmd.exe where
+    * needed.
+    */
+   WINDOWS {
+      @Override
+      public String getInterpreter() {
+         /*
+          * VIX falls back to cmd.exe when no interpreter is given.
+          */
+         return null;
+      }
+
+      @Override
+      public String getSeparator() {
+         return "\\";
+      }
+
+      /**
+       * Quotes an argument for a batch script, which is how VIX runs
+       * cmd.exe scripts. A percent sign is doubled so that it is not
+       * expanded as a variable. cmd.exe has no escape for a double quote
+       * within quotes; Windows paths cannot contain one.
+       *
+       * @throws IllegalArgumentException
+       *            If the argument contains a double quote.
+       */
+      @Override
+      public String quote(String arg) {
+         if (arg.indexOf('"') >= 0) {
+            throw new IllegalArgumentException("Cannot quote for cmd.exe: "
+                  + arg);
+         }
+         return "\"" + arg.replace("%", "%%") + "\"";
+      }
+
+      @Override
+      public String getLineSeparator() {
+         return "\r\n";
+      }
+
+      @Override
+      public String redirectOutput(String commands, String outputPath) {
+         return "(\r\n" + commands + "\r\n) > " + quote(outputPath) + "\r\n";
+      }
+   };
+
+   /**
+    * Get the interpreter to pass to VixVmHandle.runScriptInGuest().
+    *
+    * @return Absolute path of the interpreter; <code>null</code> for the VIX
+    *         default (cmd.exe).
+    */
+   public abstract String getInterpreter();
+
+   /**
+    * Get the path separator of the guest.
+    *
+    * @return Path separator.
+    */
+   public abstract String getSeparator();
+
+   /**
+    * Quotes a single argument for the shell so that it is passed through
+    * unchanged.
+    *
+    * @param arg
+    *           Argument, typically a guest path.
+    * @return Quoted argument.
+    */
+   public abstract String quote(String arg);
+
+   /**
+    * Get the line separator for scripts run by this shell.
+    *
+    * @return Line separator.
+    */
+   public abstract String getLineSeparator();
+
+   /**
+    * Wraps script commands so that their standard output is written to a
+    * guest file.
+    *
+    * @param commands
+    *           Script commands, separated by {@link #getLineSeparator()}.
+    * @param outputPath
+    *           Absolute guest path of the file to write.
+    * @return Script text.
+    */
+   public abstract String redirectOutput(String commands, String outputPath);
+
+   /**
+    * Quotes a string literal for use in a PowerShell command.
+    *
+    * @param arg
+    *           String to quote.
+    * @return Single quoted PowerShell literal.
+    */
+   public static String quotePowerShell(String arg) {
+      return "'" + arg.replace("'", "''") + "'";
+   }
+
+   /**
+    * Builds a cmd.exe command line running PowerShell statements. Execution
+    * stops at the first error, which makes PowerShell exit with code 1.
+    * Percent signs are doubled, since the line is run from a batch script.
+    *
+    * @param statements
+    *           PowerShell statements separated by semicolons. String literals
+    *           must use single quotes, see {@link #quotePowerShell(String)}.
+    * @return Command line, without a line separator.
+    */
+   public static String powerShell(String statements) {
+      return "powershell -NoProfile -NonInteractive -Command \""
+            + "$ErrorActionPreference = 'Stop'; " + statements.replace("%", "%%")
+            + "\"";
+   }
+
+   /**
+    * Guesses the shell of a guest from a path in that guest.
+    *
+    * @param guestPath
+    *           Absolute path in the guest.
+    * @return {@link #WINDOWS} for Windows style paths, {@link #POSIX}
+    *         otherwise.
+    */
+   public static GuestShell forPath(String guestPath) {
+      if (GuestFileUtil.getPathSeparator(guestPath).equals("\\")) {
+         return WINDOWS;
+      }
+      return POSIX;
+   }
+}
@@ -0,0 +1,372 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.sun.jna.ptr.PointerByReference;
+import com.vmware.vix.VixConstants;
+import com.vmware.vix.VixError;
+import com.vmware.vix.VixException;
+import com.vmware.vix.VixHandle;
+import com.vmware.vix.VixJobFuture;
+import com.vmware.vix.VixLibrary;
+import com.vmware.vix.VixPropertyID;
+import com.vmware.vix.VixUtils;
+import com.vmware.vix.VixVmHandle;
+
+/**
+ * Reads many guest variables at once and caches them per VM.
+ * <p/>
+ * A list of variables is read with one VixVM_ReadVariable() job per name, all
+ * submitted at once and completed through callbacks, so the round trips
+ * overlap instead of adding up. Guest environment variables can also be taken
+ * from a snapshot of the whole environment, dumped by a single guest script.
+ * Values are kept for a time to live, after which they are read again.
+ * <p/>
+ * Entries are keyed by the VMX path of the VM, so handles opened again for a
+ * VM share them and a handle value reused for another VM does not. Expired
+ * entries are dropped as new values are stored; call invalidate() to drop a
+ * VM before its handle is released.
+ * <p/>
+ * Variable types are those of VixVmHandle.readVariable():
+ * VixConstants.VIX_VM_GUEST_VARIABLE, VixConstants.VIX_VM_CONFIG_RUNTIME_ONLY
+ * and VixConstants.VIX_GUEST_ENVIRONMENT_VARIABLE. Environment variables
+ * require a guest login.
+ */
+public class GuestVariableCache {
+
+   public static final long DEFAULT_TTL_MILLIS = 60 * 1000;
+
+   private static final VixLibrary mVix = VixLibrary.INSTANCE;
+
+   private final long mTtlMillis;
+   private final Map<String, VmEntry> mVms = new HashMap<String, VmEntry>();
+   private long mNextEviction;
+
+   /**
+    * Constructor using the default time to live.
+    */
+   public GuestVariableCache() {
+      this(DEFAULT_TTL_MILLIS);
+   }
+
+   /**
+    * Constructor.
+    *
+    * @param ttlMillis
+    *           Time a value is served from the cache.
+    */
+   public GuestVariableCache(long ttlMillis) {
+      mTtlMillis = ttlMillis;
+   }
+
+   /**
+    * Gets variables, reading the ones not cached concurrently.
+    *
+    * @param vmHandle
+    *           Handle for the VM.
+    * @param varType
+    *           Type of the variables.
+    * @param names
+    *           Names of the variables.
+    * @return Map of names to values, in the order of names. Values of unset
+    *         variables are <code>null</code> or empty, as reported by VIX.
+    * @throws VixException
+    */
+   public Map<String, String> read(
+         VixVmHandle vmHandle,
+         int varType,
+         Collection<String> names) throws VixException {
+      Map<String, String> values = new LinkedHashMap<String, String>();
+      List<String> missing = new ArrayList<String>();
+      long now = System.currentTimeMillis();
+      String vmxPath = vmHandle.getVmxPath();
+      synchronized (mVms) {
+         VmEntry vm = getVm(vmxPath);
+         Map<String, String> snapshot =
+               varType == VixConstants.VIX_GUEST_ENVIRONMENT_VARIABLE
+                     && vm.mEnvironmentExpiry > now ? vm.mEnvironment : null;
+         for (String name : names) {
+            if (snapshot != null) {
+               values.put(name, snapshot.get(name));
+               continue;
+            }
+            Value value = vm.mValues.get(getKey(varType, name));
+            if (value != null && value.mExpiry > now) {
+               values.put(name, value.mValue);
+            } else {
+               values.put(name, null);
+               missing.add(name);
+            }
+         }
+      }
+      if (missing.isEmpty()) {
+         return values;
+      }
+
+      Map<String, String> read = readConcurrently(vmHandle, varType, missing);
+      long expiry = System.currentTimeMillis() + mTtlMillis;
+      synchronized (mVms) {
+         evictExpired();
+         VmEntry vm = getVm(vmxPath);
+         for (Map.Entry<String, String> entry : read.entrySet()) {
+            vm.mValues.put(getKey(varType, entry.getKey()),
+                           new Value(entry.getValue(), expiry));
+         }
+      }
+      values.putAll(read);
+      return values;
+   }
+
+   /**
+    * Gets the whole guest environment, dumping it with a guest script unless
+    * a snapshot is cached. While the snapshot is valid, read() serves
+    * environment variables from it. You must call VixVM_LoginInGuest() before
+    * calling this method.
+    *
+    * @param vmHandle
+    *           Handle for the VM.
+    * @param shell
+    *           Shell of the guest.
+    * @return Map of variable names to values; names are case insensitive on
+    *         Windows guests.
+    * @throws VixException
+    */
+   public Map<String, String> readEnvironment(
+         VixVmHandle vmHandle,
+         GuestShell shell) throws VixException {
+      String vmxPath = vmHandle.getVmxPath();
+      synchronized (mVms) {
+         VmEntry vm = getVm(vmxPath);
+         if (vm.mEnvironmentExpiry > System.currentTimeMillis()) {
+            return vm.mEnvironment;
+         }
+      }
+      Map<String, String> environment =
+            Collections.unmodifiableMap(dumpEnvironment(vmHandle, shell));
+      synchronized (mVms) {
+         evictExpired();
+         VmEntry vm = getVm(vmxPath);
+         vm.mEnvironment = environment;
+         vm.mEnvironmentExpiry = System.currentTimeMillis() + mTtlMillis;
+      }
+      return environment;
+   }
+
+   /**
+    * Drops everything cached for a VM, for example after changing variables
+    * or before releasing its handle.
+    *
+    * @param vmHandle
+    *           Handle for the VM.
+    * @throws VixException
+    *            If the VMX path of the VM could not be read.
+    */
+   public void invalidate(VixVmHandle vmHandle) throws VixException {
+      String vmxPath = vmHandle.getVmxPath();
+      synchronized (mVms) {
+         mVms.remove(vmxPath);
+      }
+   }
+
+   /**
+    * Reads variables without caching, with all VixVM_ReadVariable() jobs
+    * outstanding at the same time.
+    *
+    * @param vmHandle
+    *           Handle for the VM.
+    * @param varType
+    *           Type of the variables.
+    * @param names
+    *           Names of the variables.
+    * @return Map of names to values, in the order of names; variables which
+    *         do not exist map to <code>null</code>, as with
+    *         VixVmHandle.readVariable().
+    * @throws VixException
+    *            If reading any of the variables failed for another reason.
+    */
+   public static Map<String, String> readConcurrently(
+         VixVmHandle vmHandle,
+         int varType,
+         Collection<String> names) throws VixException {
+      Map<String, VixJobFuture<String>> futures =
+            new LinkedHashMap<String, VixJobFuture<String>>();
+      for (String name : names) {
+         VixJobFuture<String> future = new VixJobFuture<String>() {
+            @Override
+            protected String getJobResult(VixHandle jobHandle)
+                  throws VixException {
+               PointerByReference valPtr = new PointerByReference();
+               VixError err =
+                     mVix.Vix_GetProperties(jobHandle,
+                                            VixPropertyID.VIX_PROPERTY_JOB_RESULT_VM_VARIABLE_STRING,
+                                            valPtr,
+                                            VixPropertyID.VIX_PROPERTY_NONE);
+               VixUtils.checkError(err);
+               if (valPtr.getValue() == null) {
+                  return null;
+               }
+               String value = valPtr.getValue().getString(0);
+               mVix.Vix_FreeBuffer(valPtr.getValue());
+               return value;
+            }
+         };
+         mVix.VixVM_ReadVariable(vmHandle, varType, name, 0, future, null);
+         futures.put(name, future);
+      }
+
+      Map<String, String> values = new LinkedHashMap<String, String>();
+      VixException failure = null;
+      for (Map.Entry<String, VixJobFuture<String>> entry : futures.entrySet()) {
+         try {
+            values.put(entry.getKey(), entry.getValue().getResult());
+         } catch (VixException e) {
+            if (VixUtils.isVariableNotFound(e.getError())) {
+               values.put(entry.getKey(), null);
+            } else if (failure == null) {
+               failure = e;
+            }
+         }
+      }
+      if (failure != null) {
+         throw failure;
+      }
+      return values;
+   }
+
+   /**
+    * Dumps the guest environment with <code>env</code> or <code>set</code>
+    * in one guest script. Values spanning several lines are joined with
+    * '\n'. You must call VixVM_LoginInGuest() before calling this method.
+    *
+    * @param vmHandle
+    *           Handle for the VM.
+    * @param shell
+    *           Shell of the guest.
+    * @return Map of variable names to values; names are case insensitive on
+    *         Windows guests.
+    * @throws VixException
+    */
+   public static Map<String, String> dumpEnvironment(
+         VixVmHandle vmHandle,
+         GuestShell shell) throws VixException {
+      String output =
+            GuestScript.runForOutput(vmHandle,
+                                     shell,
+                                     shell == GuestShell.WINDOWS ? "set" : "env",
+                                     "dump guest environment");
+      Map<String, String> environment =
+            shell == GuestShell.WINDOWS ? new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER)
+                  : new HashMap<String, String>();
+      String name = null;
+      for (String line : output.split("\r?\n")) {
+         int equals = line.indexOf('=');
+         if (equals > 0) {
+            name = line.substring(0, equals);
+            environment.put(name, line.substring(equals + 1));
+         } else if (name != null) {
+            environment.put(name, environment.get(name) + "\n" + line);
+         }
+      }
+      return environment;
+   }
+
+   private VmEntry getVm(String vmxPath) {
+      VmEntry vm = mVms.get(vmxPath);
+      if (vm == null) {
+         vm = new VmEntry();
+         mVms.put(vmxPath, vm);
+      }
+      return vm;
+   }
+
+   /**
+    * Removes expired values, and VMs left without any, at most once per time
+    * to live. Must be called holding the lock on mVms.
+    */
+   private void evictExpired() {
+      long now = System.currentTimeMillis();
+      if (now < mNextEviction) {
+         return;
+      }
+      mNextEviction = now + mTtlMillis;
+      for (Iterator<VmEntry> vms = mVms.values().iterator(); vms.hasNext();) {
+         VmEntry vm = vms.next();
+         for (Iterator<Value> values = vm.mValues.values().iterator(); values.hasNext();) {
+            if (values.next().mExpiry <= now) {
+               values.remove();
+            }
+         }
+         if (vm.mEnvironmentExpiry <= now) {
+            vm.mEnvironment = null;
+            if (vm.mValues.isEmpty()) {
+               vms.remove();
+            }
+         }
+      }
+   }
+
+   private static String getKey(int varType, String name) {
+      return varType + ":" + name;
+   }
+
+   /**
+    * Variables cached for one VM.
+    */
+   private static class VmEntry {
+
+      private final Map<String, Value> mValues = new HashMap<String, Value>();
+      private Map<String, String> mEnvironment;
+      private long mEnvironmentExpiry;
+   }
+
+   /**
+    * A cached value with its expiry time.
+    */
+   private static class Value {
+
+      private final String mValue;
+      private final long mExpiry;
+
+      Value(String value, long expiry) {
+         mValue = value;
+         mExpiry = expiry;
+      }
+   }
+}
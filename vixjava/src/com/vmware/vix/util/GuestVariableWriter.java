@@ -0,0 +1,253 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import com.vmware.vix.VixException;
+import com.vmware.vix.VixJobFuture;
+import com.vmware.vix.VixLibrary;
+import com.vmware.vix.VixVmHandle;
+
+/**
+ * Writes variables to many VMs with pipelined VixVM_WriteVariable() jobs.
+ * <p/>
+ * Writes are submitted asynchronously and completed through callbacks. A
+ * write is submitted as soon as the number of outstanding jobs allows it, so
+ * the round trips overlap, within a limit per VM and a limit overall. Each
+ * write reports its own outcome; a failing write does not stop the others.
+ */
+public class GuestVariableWriter {
+
+   public static final int DEFAULT_MAX_JOBS = 64;
+   public static final int DEFAULT_MAX_JOBS_PER_VM = 8;
+
+   private final VixLibrary mVix = VixLibrary.INSTANCE;
+   private final int mMaxJobs;
+   private final int mMaxJobsPerVm;
+
+   /**
+    * Constructor using the default limits.
+    */
+   public GuestVariableWriter() {
+      this(DEFAULT_MAX_JOBS, DEFAULT_MAX_JOBS_PER_VM);
+   }
+
+   /**
+    * Constructor.
+    *
+    * @param maxJobs
+    *           Maximum number of write jobs outstanding in one call.
+    * @param maxJobsPerVm
+    *           Maximum number of write jobs outstanding against one VM.
+    */
+   public GuestVariableWriter(int maxJobs, int maxJobsPerVm) {
+      if (maxJobs < 1 || maxJobsPerVm < 1) {
+         throw new IllegalArgumentException("Invalid write limits");
+      }
+      mMaxJobs = maxJobs;
+      mMaxJobsPerVm = maxJobsPerVm;
+   }
+
+   /**
+    * Writes variables to one VM.
+    *
+    * @param vmHandle
+    *           Handle for the VM.
+    * @param varType
+    *           Type of the variables, as for VixVmHandle.writeVariable().
+    * @param values
+    *           Map of variable names to values.
+    * @return Outcome of the writes.
+    * @throws VixException
+    *            If interrupted while waiting to submit a write.
+    */
+   public WriteResult write(
+         VixVmHandle vmHandle,
+         int varType,
+         Map<String, String> values) throws VixException {
+      return write(Collections.singletonList(vmHandle), varType, values).get(0);
+   }
+
+   /**
+    * Writes the same variables to several VMs, for example to tag them. The
+    * VMs are served in turn so that all of them make progress together; a
+    * VM at its limit of outstanding writes is skipped until one of its
+    * writes completes, so a slow VM does not hold up the others.
+    *
+    * @param vmHandles
+    *           Handles for the VMs.
+    * @param varType
+    *           Type of the variables, as for VixVmHandle.writeVariable().
+    * @param values
+    *           Map of variable names to values.
+    * @return Outcome of the writes, one per VM in the order of vmHandles.
+    * @throws VixException
+    *            If interrupted while waiting to submit a write.
+    */
+   public List<WriteResult> write(
+         List<VixVmHandle> vmHandles,
+         int varType,
+         Map<String, String> values) throws VixException {
+      final Semaphore permits = new Semaphore(mMaxJobs);
+      List<Semaphore> vmPermits = new ArrayList<Semaphore>();
+      List<Map<String, VixJobFuture<Void>>> futures =
+            new ArrayList<Map<String, VixJobFuture<Void>>>();
+      for (int i = 0; i < vmHandles.size(); i++) {
+         vmPermits.add(new Semaphore(mMaxJobsPerVm));
+         futures.add(new LinkedHashMap<String, VixJobFuture<Void>>());
+      }
+
+      /*
+       * Released by every completed write, to wake up the loop when no VM
+       * could take another write.
+       */
+      final Semaphore completions = new Semaphore(0);
+      List<String> names = new ArrayList<String>(values.keySet());
+      int[] next = new int[vmHandles.size()];
+      int remaining = names.size() * vmHandles.size();
+      try {
+         while (remaining > 0) {
+            boolean submitted = false;
+            for (int i = 0; i < vmHandles.size(); i++) {
+               final Semaphore vmPermit = vmPermits.get(i);
+               if (next[i] == names.size() || !vmPermit.tryAcquire()) {
+                  continue;
+               }
+               try {
+                  permits.acquire();
+               } catch (InterruptedException e) {
+                  vmPermit.release();
+                  throw e;
+               }
+               VixJobFuture<Void> future = new VixJobFuture<Void>() {
+                  @Override
+                  protected void done() {
+                     vmPermit.release();
+                     permits.release();
+                     completions.release();
+                  }
+               };
+               String name = names.get(next[i]++);
+               mVix.VixVM_WriteVariable(vmHandles.get(i),
+                                        varType,
+                                        name,
+                                        values.get(name),
+                                        0,
+                                        future,
+                                        null);
+               futures.get(i).put(name, future);
+               remaining--;
+               submitted = true;
+            }
+            if (!submitted) {
+               completions.acquire();
+            }
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new VixException("Interrupted while writing variables", e);
+      }
+
+      List<WriteResult> results = new ArrayList<WriteResult>();
+      for (int i = 0; i < vmHandles.size(); i++) {
+         WriteResult result = new WriteResult(vmHandles.get(i));
+         for (Map.Entry<String, VixJobFuture<Void>> future : futures.get(i).entrySet()) {
+            try {
+               future.getValue().getResult();
+               result.mWritten++;
+            } catch (VixException e) {
+               result.mFailures.put(future.getKey(), e);
+            }
+         }
+         results.add(result);
+      }
+      return results;
+   }
+
+   /**
+    * Outcome of the writes to one VM.
+    */
+   public static class WriteResult {
+
+      private final VixVmHandle mVmHandle;
+      private final Map<String, VixException> mFailures =
+            new LinkedHashMap<String, VixException>();
+      private int mWritten;
+
+      WriteResult(VixVmHandle vmHandle) {
+         mVmHandle = vmHandle;
+      }
+
+      /**
+       * Get the VM the variables were written to.
+       *
+       * @return Handle for the VM.
+       */
+      public VixVmHandle getVmHandle() {
+         return mVmHandle;
+      }
+
+      /**
+       * Get the number of variables written.
+       *
+       * @return Number of successful writes.
+       */
+      public int getWritten() {
+         return mWritten;
+      }
+
+      /**
+       * Get the writes which failed.
+       *
+       * @return Map of variable names to the errors writing them.
+       */
+      public Map<String, VixException> getFailures() {
+         return mFailures;
+      }
+
+      /**
+       * Throws the first failure, if any.
+       *
+       * @throws VixException
+       *            If any write failed.
+       */
+      public void checkErrors() throws VixException {
+         if (!mFailures.isEmpty()) {
+            throw mFailures.values().iterator().next();
+         }
+      }
+   }
+}
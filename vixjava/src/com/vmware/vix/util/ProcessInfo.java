@@ -0,0 +1,395 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.LongByReference;
+import com.sun.jna.ptr.PointerByReference;
+import com.vmware.vix.VixError;
+import com.vmware.vix.VixException;
+import com.vmware.vix.VixHandle;
+import com.vmware.vix.VixLibrary;
+import com.vmware.vix.VixPropertyID;
+import com.vmware.vix.VixUtils;
+import com.vmware.vix.VixVmHandle;
+
+/**
+ * The processes running in a guest, stored column by column.
+ * <p/>
+ * Each property is kept in its own array indexed by row, with the rows
+ * sorted by pid, so a listing of hundreds of processes takes a handful of
+ * objects rather than a map per process. Equal names and owners share one
+ * String instance. Rows can be looked up by pid with a binary search, and by
+ * name or owner through indexes which are built on first use.
+ */
+public class ProcessInfo {
+
+   private static final VixLibrary mVix = VixLibrary.INSTANCE;
+
+   private static final int[] NO_ROWS = new int[0];
+
+   private final long[] mPids;
+   private final String[] mNames;
+   private final String[] mOwners;
+   private final String[] mCommands;
+   private final long[] mStartTimes;
+   private final boolean[] mBeingDebugged;
+
+   private Map<String, int[]> mNameIndex;
+   private Map<String, int[]> mOwnerIndex;
+
+   private ProcessInfo(int size) {
+      mPids = new long[size];
+      mNames = new String[size];
+      mOwners = new String[size];
+      mCommands = new String[size];
+      mStartTimes = new long[size];
+      mBeingDebugged = new boolean[size];
+   }
+
+   /**
+    * Lists the processes running in a guest. All properties of a process are
+    * read with a single VixJob_GetNthProperties() call. You must call
+    * VixVM_LoginInGuest() before calling this method.
+    *
+    * @param vmHandle
+    *           Handle for the VM.
+    * @return The processes, sorted by pid.
+    * @throws VixException
+    */
+   public static ProcessInfo list(VixVmHandle vmHandle) throws VixException {
+      VixHandle jobHandle =
+            mVix.VixVM_ListProcessesInGuest(vmHandle, 0, null, null);
+      try {
+         VixUtils.waitForJob(jobHandle, false);
+         return fromJob(jobHandle);
+      } finally {
+         mVix.Vix_ReleaseHandle(jobHandle);
+      }
+   }
+
+   /**
+    * Reads the result of a completed VixVM_ListProcessesInGuest() job.
+    *
+    * @param jobHandle
+    *           Handle for the completed job, which is not released.
+    * @return The processes, sorted by pid.
+    * @throws VixException
+    */
+   public static ProcessInfo fromJob(VixHandle jobHandle) throws VixException {
+      int num =
+            mVix.VixJob_GetNumProperties(jobHandle,
+                                         VixPropertyID.VIX_PROPERTY_JOB_RESULT_ITEM_NAME);
+      ProcessInfo processes = new ProcessInfo(num);
+      Map<String, String> strings = new HashMap<String, String>();
+      PointerByReference nameRef = new PointerByReference();
+      LongByReference pidRef = new LongByReference();
+      PointerByReference ownerRef = new PointerByReference();
+      PointerByReference commandRef = new PointerByReference();
+      IntByReference startTimeRef = new IntByReference();
+      IntByReference debuggedRef = new IntByReference();
+      for (int i = 0; i < num; i++) {
+         nameRef.setValue(null);
+         ownerRef.setValue(null);
+         commandRef.setValue(null);
+         startTimeRef.setValue(0);
+         debuggedRef.setValue(0);
+         VixError error =
+               mVix.VixJob_GetNthProperties(jobHandle,
+                                            i,
+                                            VixPropertyID.VIX_PROPERTY_JOB_RESULT_ITEM_NAME,
+                                            nameRef,
+                                            VixPropertyID.VIX_PROPERTY_JOB_RESULT_PROCESS_ID,
+                                            pidRef,
+                                            VixPropertyID.VIX_PROPERTY_JOB_RESULT_PROCESS_OWNER,
+                                            ownerRef,
+                                            VixPropertyID.VIX_PROPERTY_JOB_RESULT_PROCESS_COMMAND,
+                                            commandRef,
+                                            VixPropertyID.VIX_PROPERTY_JOB_RESULT_PROCESS_START_TIME,
+                                            startTimeRef,
+                                            VixPropertyID.VIX_PROPERTY_JOB_RESULT_PROCESS_BEING_DEBUGGED,
+                                            debuggedRef,
+                                            VixPropertyID.VIX_PROPERTY_NONE);
+         VixUtils.checkError(error);
+         processes.mPids[i] = pidRef.getValue();
+         processes.mNames[i] = takeString(nameRef, strings);
+         processes.mOwners[i] = takeString(ownerRef, strings);
+         processes.mCommands[i] = takeString(commandRef, null);
+         processes.mStartTimes[i] = startTimeRef.getValue() & 0xffffffffL;
+         /*
+          * Bool is a single byte in the VIX API.
+          */
+         processes.mBeingDebugged[i] = (debuggedRef.getValue() & 0xff) != 0;
+      }
+      processes.sortByPid();
+      return processes;
+   }
+
+   /**
+    * Get the number of processes.
+    *
+    * @return Number of rows.
+    */
+   public int size() {
+      return mPids.length;
+   }
+
+   /**
+    * Get the pid of a row.
+    *
+    * @param row
+    *           Row index, from 0 to size() - 1.
+    * @return Process id.
+    */
+   public long getPid(int row) {
+      return mPids[row];
+   }
+
+   /**
+    * Get the name of a row.
+    *
+    * @param row
+    *           Row index, from 0 to size() - 1.
+    * @return Process name.
+    */
+   public String getName(int row) {
+      return mNames[row];
+   }
+
+   /**
+    * Get the owner of a row.
+    *
+    * @param row
+    *           Row index, from 0 to size() - 1.
+    * @return Name of the user owning the process.
+    */
+   public String getOwner(int row) {
+      return mOwners[row];
+   }
+
+   /**
+    * Get the command line of a row.
+    *
+    * @param row
+    *           Row index, from 0 to size() - 1.
+    * @return Command line of the process.
+    */
+   public String getCommand(int row) {
+      return mCommands[row];
+   }
+
+   /**
+    * Get the start time of a row.
+    *
+    * @param row
+    *           Row index, from 0 to size() - 1.
+    * @return Start time in seconds since the epoch, as reported by the guest.
+    */
+   public long getStartTime(int row) {
+      return mStartTimes[row];
+   }
+
+   /**
+    * Check whether the process of a row is being debugged.
+    *
+    * @param row
+    *           Row index, from 0 to size() - 1.
+    * @return <code>true</code> if the process is being debugged;
+    *         <code>false</code> otherwise.
+    */
+   public boolean isBeingDebugged(int row) {
+      return mBeingDebugged[row];
+   }
+
+   /**
+    * Finds the row of a pid.
+    *
+    * @param pid
+    *           Process id.
+    * @return Row index, or -1 if there is no such process.
+    */
+   public int indexOf(long pid) {
+      int row = Arrays.binarySearch(mPids, pid);
+      return row >= 0 ? row : -1;
+   }
+
+   /**
+    * Finds the processes with a name.
+    *
+    * @param name
+    *           Process name, matched exactly.
+    * @return Row indexes in pid order, empty if there are none. The array
+    *         must not be modified.
+    */
+   public synchronized int[] findByName(String name) {
+      if (mNameIndex == null) {
+         mNameIndex = buildIndex(mNames);
+      }
+      int[] rows = mNameIndex.get(name);
+      return rows != null ? rows : NO_ROWS;
+   }
+
+   /**
+    * Finds the processes owned by a user.
+    *
+    * @param owner
+    *           User name, matched exactly.
+    * @return Row indexes in pid order, empty if there are none. The array
+    *         must not be modified.
+    */
+   public synchronized int[] findByOwner(String owner) {
+      if (mOwnerIndex == null) {
+         mOwnerIndex = buildIndex(mOwners);
+      }
+      int[] rows = mOwnerIndex.get(owner);
+      return rows != null ? rows : NO_ROWS;
+   }
+
+   /**
+    * Sorts the rows by pid in place. Guests usually list processes in pid
+    * order already, which is checked first.
+    */
+   private void sortByPid() {
+      for (int row = 1; row < mPids.length; row++) {
+         if (mPids[row - 1] > mPids[row]) {
+            sortByPid(0, mPids.length - 1);
+            return;
+         }
+      }
+   }
+
+   /**
+    * Quicksorts the rows lo to hi, both inclusive, by pid. Pids are unique,
+    * so stability does not matter.
+    */
+   private void sortByPid(int lo, int hi) {
+      while (hi - lo > 8) {
+         long pivot = mPids[(lo + hi) >>> 1];
+         int i = lo;
+         int j = hi;
+         while (i <= j) {
+            while (mPids[i] < pivot) {
+               i++;
+            }
+            while (mPids[j] > pivot) {
+               j--;
+            }
+            if (i <= j) {
+               swapRows(i++, j--);
+            }
+         }
+         // Recurse into the smaller part to bound the stack depth.
+         if (j - lo < hi - i) {
+            sortByPid(lo, j);
+            lo = i;
+         } else {
+            sortByPid(i, hi);
+            hi = j;
+         }
+      }
+      for (int row = lo + 1; row <= hi; row++) {
+         for (int k = row; k > lo && mPids[k - 1] > mPids[k]; k--) {
+            swapRows(k - 1, k);
+         }
+      }
+   }
+
+   private void swapRows(int a, int b) {
+      long pid = mPids[a];
+      mPids[a] = mPids[b];
+      mPids[b] = pid;
+      String name = mNames[a];
+      mNames[a] = mNames[b];
+      mNames[b] = name;
+      String owner = mOwners[a];
+      mOwners[a] = mOwners[b];
+      mOwners[b] = owner;
+      String command = mCommands[a];
+      mCommands[a] = mCommands[b];
+      mCommands[b] = command;
+      long startTime = mStartTimes[a];
+      mStartTimes[a] = mStartTimes[b];
+      mStartTimes[b] = startTime;
+      boolean beingDebugged = mBeingDebugged[a];
+      mBeingDebugged[a] = mBeingDebugged[b];
+      mBeingDebugged[b] = beingDebugged;
+   }
+
+   private static Map<String, int[]> buildIndex(String[] values) {
+      Map<String, int[]> index = new HashMap<String, int[]>();
+      for (String value : values) {
+         int[] count = index.get(value);
+         if (count == null) {
+            index.put(value, new int[] { 1 });
+         } else {
+            count[0]++;
+         }
+      }
+      for (Map.Entry<String, int[]> entry : index.entrySet()) {
+         entry.setValue(new int[entry.getValue()[0]]);
+      }
+      Map<String, int[]> filled = new HashMap<String, int[]>();
+      for (int row = 0; row < values.length; row++) {
+         int[] next = filled.get(values[row]);
+         if (next == null) {
+            next = new int[1];
+            filled.put(values[row], next);
+         }
+         index.get(values[row])[next[0]++] = row;
+      }
+      return index;
+   }
+
+   /**
+    * Reads and frees a string property, sharing equal instances through the
+    * given pool if any.
+    */
+   private static String takeString(
+         PointerByReference ref,
+         Map<String, String> pool) {
+      if (ref.getValue() == null) {
+         return null;
+      }
+      String value = ref.getValue().getString(0);
+      mVix.Vix_FreeBuffer(ref.getValue());
+      if (pool != null) {
+         String shared = pool.get(value);
+         if (shared != null) {
+            return shared;
+         }
+         pool.put(value, value);
+      }
+      return value;
+   }
+}
@@ -0,0 +1,264 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.util;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.vmware.vix.VixException;
+import com.vmware.vix.VixVmHandle;
+
+/**
+ * Tracks the processes of a guest, reporting the ones which started and
+ * exited between two polls.
+ * <p/>
+ * Each poll lists the processes with one VixVM_ListProcessesInGuest() call
+ * and compares the result with the previous snapshot by walking both pid
+ * arrays, which ProcessInfo keeps sorted, side by side. A pid which is still
+ * there but with a different start time was reused, and is reported as an
+ * exit followed by a start. The first poll only records the snapshot.
+ * <p/>
+ * Listing and notifying happen without holding the tracker's lock, so
+ * listeners may call back into the tracker. When polls overlap, a listing
+ * taken before the current snapshot is dropped, and listeners may be called
+ * from both polls at once.
+ * <p/>
+ * The guest session must stay logged in while the tracker runs.
+ */
+public class ProcessTracker {
+
+   /**
+    * Receives the changes found by a tracker.
+    */
+   public interface Listener {
+
+      /**
+       * Called for a process which started since the previous poll.
+       *
+       * @param vmHandle
+       *           Handle for the VM.
+       * @param current
+       *           The current snapshot.
+       * @param row
+       *           Row of the process in the current snapshot.
+       */
+      void processStarted(VixVmHandle vmHandle, ProcessInfo current, int row);
+
+      /**
+       * Called for a process which exited since the previous poll.
+       *
+       * @param vmHandle
+       *           Handle for the VM.
+       * @param previous
+       *           The previous snapshot.
+       * @param row
+       *           Row of the process in the previous snapshot.
+       */
+      void processExited(VixVmHandle vmHandle, ProcessInfo previous, int row);
+
+      /**
+       * Called when a scheduled poll fails. Polling carries on with the next
+       * period.
+       *
+       * @param vmHandle
+       *           Handle for the VM.
+       * @param e
+       *           Error of the poll.
+       */
+      void pollFailed(VixVmHandle vmHandle, VixException e);
+   }
+
+   private final VixVmHandle mVmHandle;
+   private final CopyOnWriteArrayList<Listener> mListeners =
+         new CopyOnWriteArrayList<Listener>();
+   private ProcessInfo mSnapshot;
+   private long mPolls;
+   private long mSnapshotPoll;
+   private ScheduledFuture<?> mSchedule;
+
+   /**
+    * Constructor.
+    *
+    * @param vmHandle
+    *           Handle for the VM to track.
+    */
+   public ProcessTracker(VixVmHandle vmHandle) {
+      mVmHandle = vmHandle;
+   }
+
+   /**
+    * Adds a listener.
+    *
+    * @param listener
+    *           Listener to notify of changes.
+    */
+   public void addListener(Listener listener) {
+      mListeners.add(listener);
+   }
+
+   /**
+    * Removes a listener.
+    *
+    * @param listener
+    *           Listener to remove.
+    */
+   public void removeListener(Listener listener) {
+      mListeners.remove(listener);
+   }
+
+   /**
+    * Get the snapshot taken by the last poll.
+    *
+    * @return Processes found by the last poll, or null before the first one.
+    */
+   public synchronized ProcessInfo getSnapshot() {
+      return mSnapshot;
+   }
+
+   /**
+    * Lists the guest processes and notifies listeners of the differences with
+    * the previous poll.
+    *
+    * @return Number of changes, counting a reused pid twice; 0 if a poll
+    *         started later has already replaced the snapshot.
+    * @throws VixException
+    */
+   public int poll() throws VixException {
+      long poll;
+      synchronized (this) {
+         poll = ++mPolls;
+      }
+      ProcessInfo current = ProcessInfo.list(mVmHandle);
+      ProcessInfo previous;
+      synchronized (this) {
+         if (poll < mSnapshotPoll) {
+            return 0;
+         }
+         previous = mSnapshot;
+         mSnapshot = current;
+         mSnapshotPoll = poll;
+      }
+      if (previous == null) {
+         return 0;
+      }
+
+      int changes = 0;
+      int i = 0;
+      int j = 0;
+      while (i < previous.size() || j < current.size()) {
+         if (j == current.size()) {
+            exited(previous, i++);
+         } else if (i == previous.size()) {
+            started(current, j++);
+         } else if (previous.getPid(i) < current.getPid(j)) {
+            exited(previous, i++);
+         } else if (previous.getPid(i) > current.getPid(j)) {
+            started(current, j++);
+         } else {
+            if (previous.getStartTime(i) == current.getStartTime(j)) {
+               i++;
+               j++;
+               continue;
+            }
+            exited(previous, i++);
+            started(current, j++);
+            changes++;
+         }
+         changes++;
+      }
+      return changes;
+   }
+
+   /**
+    * Polls on a schedule until stop() is called. Errors, including runtime
+    * exceptions, are reported to listeners through pollFailed() and polling
+    * continues.
+    *
+    * @param executor
+    *           Executor running the polls.
+    * @param period
+    *           Time between polls.
+    * @param unit
+    *           Unit of period.
+    */
+   public synchronized void start(
+         ScheduledExecutorService executor,
+         long period,
+         TimeUnit unit) {
+      if (mSchedule != null) {
+         throw new IllegalStateException("Tracker is already running");
+      }
+      mSchedule = executor.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            try {
+               poll();
+            } catch (VixException e) {
+               pollFailed(e);
+            } catch (RuntimeException e) {
+               /*
+                * An exception escaping run() would cancel the schedule
+                * without anyone noticing.
+                */
+               pollFailed(new VixException(e));
+            }
+         }
+      }, 0, period, unit);
+   }
+
+   /**
+    * Stops scheduled polling. A poll in progress is allowed to finish.
+    */
+   public synchronized void stop() {
+      if (mSchedule != null) {
+         mSchedule.cancel(false);
+         mSchedule = null;
+      }
+   }
+
+   private void pollFailed(VixException e) {
+      for (Listener listener : mListeners) {
+         listener.pollFailed(mVmHandle, e);
+      }
+   }
+
+   private void started(ProcessInfo current, int row) {
+      for (Listener listener : mListeners) {
+         listener.processStarted(mVmHandle, current, row);
+      }
+   }
+
+   private void exited(ProcessInfo previous, int row) {
+      for (Listener listener : mListeners) {
+         listener.processExited(mVmHandle, previous, row);
+      }
+   }
+}
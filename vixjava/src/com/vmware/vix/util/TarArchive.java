@@ -0,0 +1,325 @@
+/*******************************************************************************
+ * Copyright (c) 2010 VMware, Inc. licensed under the terms of the BSD. All
+ * other rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of VMware, Inc. nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL VMWARE, INC. OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package com.vmware.vix.util;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+/**
+ * Minimal reader and writer for the tar format, covering what is needed to
+ * exchange regular files with tar in POSIX guests. Long names are written as
+ * GNU long name entries, which both GNU tar and busybox understand.
+ */
+class TarArchive {
+
+   private static final int BLOCK_SIZE = 512;
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+   private static final String LONG_NAME = "././@LongLink";
+
+   /**
+    * Writes the given files to a tar stream. The stream is not closed.
+    *
+    * @param out
+    *           Stream to write to.
+    * @param entries
+    *           Map of entry names ('/' separated, relative) to the files to
+    *           store under that name.
+    * @throws IOException
+    */
+   static void write(OutputStream out, Map<String, File> entries)
+         throws IOException {
+      byte[] buffer = new byte[64 * 1024];
+      for (Map.Entry<String, File> entry : entries.entrySet()) {
+         File file = entry.getValue();
+         byte[] name = entry.getKey().getBytes(UTF8);
+         if (name.length > 100) {
+            writeHeader(out, LONG_NAME.getBytes(UTF8), 0644, name.length + 1, 0, 'L');
+            out.write(name);
+            out.write(new byte[padding(name.length + 1) + 1]);
+         }
+         long size = file.length();
+         writeHeader(out,
+                     name,
+                     file.canExecute() ? 0755 : 0644,
+                     size,
+                     file.lastModified() / 1000,
+                     '0');
+
+         InputStream in = new FileInputStream(file);
+         try {
+            long remaining = size;
+            int read;
+            while (remaining > 0
+                  && (read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0) {
+               out.write(buffer, 0, read);
+               remaining -= read;
+            }
+            if (remaining > 0) {
+               throw new IOException(file + " changed while it was archived");
+            }
+         } finally {
+            in.close();
+         }
+         out.write(new byte[padding(size)]);
+      }
+      out.write(new byte[2 * BLOCK_SIZE]);
+   }
+
+   /**
+    * Extracts regular files from a tar stream. Entries which are not in
+    * destinations, directories and special files are skipped.
+    *
+    * @param in
+    *           Stream to read from. Not closed.
+    * @param destinations
+    *           Map of entry names ('/' separated, relative) to the files they
+    *           are extracted to. Missing parent directories are created.
+    * @return Number of files extracted.
+    * @throws IOException
+    */
+   static int extract(InputStream in, Map<String, File> destinations)
+         throws IOException {
+      DataInputStream data = new DataInputStream(in);
+      byte[] header = new byte[BLOCK_SIZE];
+      byte[] buffer = new byte[64 * 1024];
+      String longName = null;
+      int extracted = 0;
+
+      while (true) {
+         data.readFully(header);
+         if (isZero(header)) {
+            return extracted;
+         }
+         String name = readString(header, 0, 100);
+         if (readString(header, 257, 6).equals("ustar")) {
+            String prefix = readString(header, 345, 155);
+            if (prefix.length() > 0) {
+               name = prefix + "/" + name;
+            }
+         }
+         long mode = readNumber(header, 100, 8);
+         long size = readNumber(header, 124, 12);
+         char type = (char) header[156];
+
+         if (type == 'L' || type == 'x') {
+            byte[] value = new byte[(int) size];
+            data.readFully(value);
+            skip(data, padding(size));
+            longName = type == 'L' ? readString(value, 0, value.length)
+                  : readPaxPath(value, longName);
+            continue;
+         }
+         if (longName != null) {
+            name = longName;
+            longName = null;
+         }
+         if (name.startsWith("./")) {
+            name = name.substring(2);
+         }
+
+         File dest = destinations.get(name);
+         if (dest != null && (type == '0' || type == '\0' || type == '7')) {
+            File parent = dest.getParentFile();
+            if (parent != null) {
+               parent.mkdirs();
+            }
+            OutputStream out = new FileOutputStream(dest);
+            try {
+               long remaining = size;
+               while (remaining > 0) {
+                  int read = data.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                  if (read < 0) {
+                     throw new IOException("Unexpected end of tar stream");
+                  }
+                  out.write(buffer, 0, read);
+                  remaining -= read;
+               }
+            } finally {
+               out.close();
+            }
+            if ((mode & 0100) != 0) {
+               dest.setExecutable(true);
+            }
+            skip(data, padding(size));
+            extracted++;
+         } else {
+            skip(data, size + padding(size));
+         }
+      }
+   }
+
+   private static void writeHeader(
+         OutputStream out,
+         byte[] name,
+         int mode,
+         long size,
+         long modTime,
+         char type) throws IOException {
+      byte[] header = new byte[BLOCK_SIZE];
+      System.arraycopy(name, 0, header, 0, Math.min(name.length, 100));
+      writeOctal(header, 100, 8, mode);
+      writeOctal(header, 108, 8, 0);
+      writeOctal(header, 116, 8, 0);
+      writeNumber(header, 124, 12, size);
+      writeOctal(header, 136, 12, modTime);
+      header[156] = (byte) type;
+      byte[] magic = "ustar  ".getBytes(UTF8);
+      System.arraycopy(magic, 0, header, 257, magic.length);
+
+      /*
+       * The checksum is computed with the checksum field set to spaces.
+       */
+      for (int i = 148; i < 156; i++) {
+         header[i] = ' ';
+      }
+      long checksum = 0;
+      for (byte b : header) {
+         checksum += b & 0xff;
+      }
+      writeOctal(header, 148, 7, checksum);
+      out.write(header);
+   }
+
+   /**
+    * Writes a zero terminated octal number filling the field.
+    */
+   private static void writeOctal(byte[] header, int offset, int length, long value) {
+      String octal = Long.toOctalString(value);
+      int digits = length - 1;
+      for (int i = 0; i < digits; i++) {
+         int index = octal.length() - digits + i;
+         header[offset + i] = (byte) (index < 0 ? '0' : octal.charAt(index));
+      }
+      header[offset + digits] = 0;
+   }
+
+   /**
+    * Writes a number as octal, or in the GNU base-256 encoding if it does not
+    * fit (files of 8GB and more).
+    */
+   private static void writeNumber(byte[] header, int offset, int length, long value) {
+      if (value < (1L << (3 * (length - 1)))) {
+         writeOctal(header, offset, length, value);
+         return;
+      }
+      header[offset] = (byte) 0x80;
+      for (int i = length - 1; i > 0; i--) {
+         header[offset + i] = (byte) value;
+         value >>>= 8;
+      }
+   }
+
+   private static long readNumber(byte[] header, int offset, int length) {
+      if ((header[offset] & 0x80) != 0) {
+         long value = 0;
+         for (int i = 1; i < length; i++) {
+            value = (value << 8) | (header[offset + i] & 0xff);
+         }
+         return value;
+      }
+      String octal = readString(header, offset, length).trim();
+      return octal.length() == 0 ? 0 : Long.parseLong(octal, 8);
+   }
+
+   private static String readString(byte[] bytes, int offset, int length) {
+      int end = offset;
+      while (end < offset + length && bytes[end] != 0) {
+         end++;
+      }
+      return new String(bytes, offset, end - offset, UTF8);
+   }
+
+   /**
+    * Gets the path from a pax extended header; records have the form
+    * "&lt;length&gt; &lt;key&gt;=&lt;value&gt;\n", where the length counts
+    * bytes, so records are split before the value is decoded.
+    */
+   private static String readPaxPath(byte[] records, String current)
+         throws IOException {
+      int pos = 0;
+      while (pos < records.length) {
+         int space = pos;
+         while (space < records.length && records[space] != ' ') {
+            space++;
+         }
+         if (space == records.length) {
+            break;
+         }
+         int length;
+         try {
+            length = Integer.parseInt(new String(records, pos, space - pos, UTF8));
+         } catch (NumberFormatException e) {
+            throw new IOException("Invalid pax extended header");
+         }
+         if (length < space - pos + 2 || pos + length > records.length) {
+            throw new IOException("Invalid pax extended header");
+         }
+         String record = new String(records, space + 1, pos + length - space - 2, UTF8);
+         if (record.startsWith("path=")) {
+            return record.substring(5);
+         }
+         pos += length;
+      }
+      return current;
+   }
+
+   private static int padding(long size) {
+      return (int) ((BLOCK_SIZE - (size % BLOCK_SIZE)) % BLOCK_SIZE);
+   }
+
+   private static boolean isZero(byte[] block) {
+      for (byte b : block) {
+         if (b != 0) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private static void skip(DataInputStream in, long count) throws IOException {
+      while (count > 0) {
+         long skipped = in.skip(count);
+         if (skipped <= 0) {
+            if (in.read() < 0) {
+               throw new IOException("Unexpected end of tar stream");
+            }
+            skipped = 1;
+         }
+         count -= skipped;
+      }
+   }
+}